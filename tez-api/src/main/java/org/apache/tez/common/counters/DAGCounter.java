@@ -38,5 +38,8 @@ public enum DAGCounter {
   NUM_UBER_SUBTASKS,
   NUM_FAILED_UBERTASKS,
   AM_CPU_MILLISECONDS,
-  AM_GC_TIME_MILLIS
+  AM_GC_TIME_MILLIS,
+  AM_EVENT_ROUTING_REQUESTS,
+  AM_EVENTS_ROUTED,
+  AM_EVENT_ROUTING_MICROS
 }
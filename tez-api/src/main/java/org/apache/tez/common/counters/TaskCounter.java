@@ -218,5 +218,64 @@ public enum TaskCounter {
    *
    * Represented in milliseconds
    */
-  LAST_EVENT_RECEIVED
+  LAST_EVENT_RECEIVED,
+
+  /**
+   * Number of merges whose merge factor was picked by the merge planner
+   */
+  MERGE_PLANS,
+
+  /**
+   * Sum of the merge factors picked by the merge planner. Divide by MERGE_PLANS
+   * for the average factor.
+   */
+  MERGE_PLAN_FACTOR,
+
+  /**
+   * Number of intermediate merge passes in the plans picked by the merge planner
+   */
+  MERGE_PLAN_INTERMEDIATE_PASSES,
+
+  /**
+   * Bytes the plans picked by the merge planner expect to rewrite in
+   * intermediate merge passes
+   */
+  MERGE_PLAN_INTERMEDIATE_BYTES,
+
+  /**
+   * Time fetchers and event handling waited on the locks of the ordered
+   * shuffle scheduler while other threads held them.
+   *
+   * Represented in milliseconds
+   */
+  SHUFFLE_SCHEDULER_LOCK_WAIT_TIME,
+
+  /**
+   * Bytes of the output partitions pushed to the shuffle handlers merging
+   * them for the consumers
+   */
+  SHUFFLE_BYTES_PUSHED,
+
+  /**
+   * Bytes of the input fetched from the partitions merged by the shuffle
+   * handlers the producers pushed them to. Also included in SHUFFLE_BYTES
+   */
+  SHUFFLE_BYTES_MERGED,
+
+  /**
+   * Number of in-memory shuffle buffers reused from the shuffle buffer pool
+   */
+  SHUFFLE_BUFFER_POOL_HITS,
+
+  /**
+   * Number of in-memory shuffle buffers the shuffle buffer pool had to
+   * allocate
+   */
+  SHUFFLE_BUFFER_POOL_MISSES,
+
+  /**
+   * Number of inputs fetched to disk instead of memory, because they were
+   * larger than the single shuffle limit or the shuffle memory was full
+   */
+  SHUFFLE_MEM_TO_DISK_FALLBACKS
 }
\ No newline at end of file
@@ -783,6 +783,44 @@ public class TezConfiguration extends Configuration {
   public static final int TEZ_TASK_AM_HEARTBEAT_COUNTER_INTERVAL_MS_DEFAULT =
       4000;
 
+  /**
+   * Boolean value. Whether tasks adapt their heartbeat interval to the event traffic. Idle tasks
+   * back off from {@link #TEZ_TASK_AM_HEARTBEAT_INTERVAL_MS} up to
+   * {@link #TEZ_TASK_AM_HEARTBEAT_ADAPTIVE_INTERVAL_MS_MAX}, a heartbeat is sent right away when
+   * the task queues events, and again without waiting when the AM has more events pending for the
+   * task. Reduces the heartbeat load on the AM for large DAGs. Expert level setting.
+   */
+  @ConfigurationScope(Scope.AM)
+  @ConfigurationProperty(type="boolean")
+  public static final String TEZ_TASK_AM_HEARTBEAT_ADAPTIVE_ENABLED = TEZ_TASK_PREFIX
+      + "am.heartbeat.adaptive.enabled";
+  public static final boolean TEZ_TASK_AM_HEARTBEAT_ADAPTIVE_ENABLED_DEFAULT = false;
+
+  /**
+   * Int value. The maximum heartbeat interval, in milliseconds, idle tasks back off to when
+   * {@link #TEZ_TASK_AM_HEARTBEAT_ADAPTIVE_ENABLED} is set. Expert level setting.
+   */
+  @ConfigurationScope(Scope.AM)
+  @ConfigurationProperty(type="integer")
+  public static final String TEZ_TASK_AM_HEARTBEAT_ADAPTIVE_INTERVAL_MS_MAX = TEZ_TASK_PREFIX
+      + "am.heartbeat.adaptive.interval-ms.max";
+  public static final int TEZ_TASK_AM_HEARTBEAT_ADAPTIVE_INTERVAL_MS_MAX_DEFAULT = 1000;
+
+  /**
+   * Boolean value. Whether the periodic status updates of tasks carry only the counters which
+   * changed since the previous update, with groups and counters referred to by ids assigned the
+   * first time they are sent, instead of all the counters. Reduces the size of heartbeats for
+   * tasks with many counters. The final status update of a task always carries all the counters,
+   * and so does every 50th periodic update, so that the AM recovers from a lost update.
+   * Vertex and DAG counters are still aggregated from the counters of the attempts.
+   * Expert level setting.
+   */
+  @ConfigurationScope(Scope.AM)
+  @ConfigurationProperty(type="boolean")
+  public static final String TEZ_TASK_AM_HEARTBEAT_COUNTER_DELTA_ENABLED = TEZ_TASK_PREFIX
+      + "am.heartbeat.counter.delta.enabled";
+  public static final boolean TEZ_TASK_AM_HEARTBEAT_COUNTER_DELTA_ENABLED_DEFAULT = false;
+
   /**
    * Int value. Maximum number of of events to fetch from the AM by the tasks in a single heartbeat.
    * Expert level setting. Expert level setting.
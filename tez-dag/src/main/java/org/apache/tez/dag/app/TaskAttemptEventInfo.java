@@ -25,11 +25,18 @@ public class TaskAttemptEventInfo {
   private final int nextFromEventId;
   private final int nextPreRoutedFromEventId;
   private final List<TezEvent> events;
+  private final boolean moreEventsPending;
   
   public TaskAttemptEventInfo(int nextFromEventId, List<TezEvent> events, int nextPreRoutedEventId) {
+    this(nextFromEventId, events, nextPreRoutedEventId, false);
+  }
+
+  public TaskAttemptEventInfo(int nextFromEventId, List<TezEvent> events, int nextPreRoutedEventId,
+      boolean moreEventsPending) {
     this.nextFromEventId = nextFromEventId;
     this.nextPreRoutedFromEventId = nextPreRoutedEventId;
     this.events = events;
+    this.moreEventsPending = moreEventsPending;
   }
   
   public int getNextFromEventId() {
@@ -43,4 +50,11 @@ public class TaskAttemptEventInfo {
   public List<TezEvent> getEvents() {
     return events;
   }
+
+  /**
+   * @return true if events are left to be sent, which did not fit in this batch
+   */
+  public boolean isMoreEventsPending() {
+    return moreEventsPending;
+  }
 }
@@ -364,7 +364,8 @@ public class TaskCommunicatorManager extends AbstractService implements
           .getTaskAttemptTezEvents(taskAttemptID, request.getStartIndex(), request.getPreRoutedStartIndex(),
               request.getMaxEvents());
     }
-    return new TaskHeartbeatResponse(false, eventInfo.getEvents(), eventInfo.getNextFromEventId(), eventInfo.getNextPreRoutedFromEventId());
+    return new TaskHeartbeatResponse(false, eventInfo.getEvents(), eventInfo.getNextFromEventId(),
+        eventInfo.getNextPreRoutedFromEventId(), eventInfo.isMoreEventsPending());
   }
 
   public void taskAlive(TezTaskAttemptID taskAttemptId) {
@@ -384,6 +384,7 @@ public class TezTaskCommunicatorImpl extends TaskCommunicator {
         response.setEvents(tResponse.getEvents());
         response.setNextFromEventId(tResponse.getNextFromEventId());
         response.setNextPreRoutedEventId(tResponse.getNextPreRoutedEventId());
+        response.setMoreEventsPending(tResponse.isMoreEventsPending());
       }
       response.setLastRequestId(requestId);
       containerInfo.lastRequestId = requestId;
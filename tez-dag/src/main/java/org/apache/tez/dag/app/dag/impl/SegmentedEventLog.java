@@ -0,0 +1,72 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.dag.app.dag.impl;
+
+import java.util.Arrays;
+
+/**
+ * Append-only log of elements stored in fixed size segments. Appends are
+ * serialized between writers, readers never block: an element is stored
+ * before the size is published, so any index below {@link #size()} can be
+ * read without locking. Segments are never copied, only the array of segments
+ * is replaced when it needs to grow.
+ */
+class SegmentedEventLog<E> {
+
+  private static final int SEGMENT_SHIFT = 10;
+  static final int SEGMENT_SIZE = 1 << SEGMENT_SHIFT;
+  private static final int SEGMENT_MASK = SEGMENT_SIZE - 1;
+
+  private volatile Object[][] segments = new Object[4][];
+  private volatile int size = 0;
+
+  /**
+   * @return the number of elements which can be read
+   */
+  int size() {
+    return size;
+  }
+
+  @SuppressWarnings("unchecked")
+  E get(int index) {
+    // read size first, the segments read after it are at least as recent
+    if (index < 0 || index >= size) {
+      throw new IndexOutOfBoundsException("Index: " + index + ", size: " + size);
+    }
+    return (E) segments[index >>> SEGMENT_SHIFT][index & SEGMENT_MASK];
+  }
+
+  synchronized void add(E element) {
+    int index = size;
+    int segmentIndex = index >>> SEGMENT_SHIFT;
+    Object[][] currentSegments = segments;
+    if (segmentIndex == currentSegments.length) {
+      currentSegments = Arrays.copyOf(currentSegments, currentSegments.length * 2);
+      segments = currentSegments;
+    }
+    Object[] segment = currentSegments[segmentIndex];
+    if (segment == null) {
+      segment = new Object[SEGMENT_SIZE];
+      currentSegments[segmentIndex] = segment;
+    }
+    segment[index & SEGMENT_MASK] = element;
+    // publish the element
+    size = index + 1;
+  }
+}
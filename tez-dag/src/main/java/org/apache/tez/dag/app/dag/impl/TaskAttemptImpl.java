@@ -113,6 +113,7 @@ import org.apache.tez.runtime.api.events.TaskStatusUpdateEvent;
 import org.apache.tez.runtime.api.impl.EventMetaData;
 import org.apache.tez.runtime.api.impl.TaskSpec;
 import org.apache.tez.runtime.api.impl.TaskStatistics;
+import org.apache.tez.runtime.api.impl.TezCountersDelta;
 import org.apache.tez.runtime.api.impl.TezEvent;
 import org.apache.tez.runtime.api.impl.EventMetaData.EventProducerConsumerType;
 
@@ -203,6 +204,8 @@ public class TaskAttemptImpl implements TaskAttempt,
   private DAGCounter localityCounter;
   
   org.apache.tez.runtime.api.impl.TaskStatistics statistics;
+  // Created with the first counters delta the attempt reports
+  private TezCountersDelta.Decoder countersDeltaDecoder;
 
   long lastNotifyProgressTimestamp = 0;
   private final long hungIntervalMax;
@@ -1376,6 +1379,9 @@ public class TaskAttemptImpl implements TaskAttempt,
         ta.nodeHttpAddress = StringInterner.weakIntern(container.getNodeHttpAddress());
       }
 
+      // No more status updates are applied
+      ta.countersDeltaDecoder = null;
+
       if (ta.recoveryData == null ||
           ta.recoveryData.getTaskAttemptFinishedEvent() == null) {
         ta.setFinishTime();
@@ -1561,6 +1567,19 @@ public class TaskAttemptImpl implements TaskAttempt,
       ta.reportedStatus.progress = statusEvent.getProgress();
       if (statusEvent.getCounters() != null) {
         ta.reportedStatus.counters = statusEvent.getCounters();
+      } else if (statusEvent.getCountersDelta() != null) {
+        if (ta.countersDeltaDecoder == null) {
+          ta.countersDeltaDecoder = new TezCountersDelta.Decoder();
+        }
+        try {
+          ta.reportedStatus.counters = ta.countersDeltaDecoder.decode(
+              statusEvent.getCountersDelta());
+        } catch (TezUncheckedException e) {
+          // Keep the last decoded counters, the next snapshot re-bases the decoder
+          LOG.error("Could not apply the counters delta of " + ta.attemptId
+              + ", counters are stale until the next snapshot", e);
+          ta.countersDeltaDecoder = null;
+        }
       }
       if (statusEvent.getStatistics() != null) {
         ta.statistics = statusEvent.getStatistics();
@@ -1636,6 +1655,9 @@ public class TaskAttemptImpl implements TaskAttempt,
         ta.logJobHistoryAttemptFinishedEvent(TaskAttemptStateInternal.SUCCEEDED);
       }
 
+      // No more status updates are applied
+      ta.countersDeltaDecoder = null;
+
       ta.sendEvent(createDAGCounterUpdateEventTAFinished(ta,
           TaskAttemptState.SUCCEEDED));
 
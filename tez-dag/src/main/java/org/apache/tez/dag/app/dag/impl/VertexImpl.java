@@ -34,10 +34,13 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import javax.annotation.Nullable;
@@ -64,6 +67,7 @@ import org.apache.tez.common.ATSConstants;
 import org.apache.tez.common.ReflectionUtils;
 import org.apache.tez.common.TezUtilsInternal;
 import org.apache.tez.common.counters.AggregateTezCounters;
+import org.apache.tez.common.counters.DAGCounter;
 import org.apache.tez.common.counters.LimitExceededException;
 import org.apache.tez.common.counters.TezCounters;
 import org.apache.tez.common.io.NonSyncByteArrayOutputStream;
@@ -735,14 +739,17 @@ public class VertexImpl implements org.apache.tez.dag.app.dag.Vertex, EventHandl
   // We may always store task events in the vertex for scalability
   List<TezEvent> pendingTaskEvents = Lists.newLinkedList();
   private boolean tasksNotYetScheduled = true;
-  // must be a random access structure
-  
-  private final List<EventInfo> onDemandRouteEvents = Lists.newArrayListWithCapacity(1000);
+  // must be a random access structure, read by heartbeats without locking
+  private final SegmentedEventLog<EventInfo> onDemandRouteEvents =
+      new SegmentedEventLog<EventInfo>();
   // Do not send any events if attempt is failed due to INPUT_FAILED_EVENTS.
+  // Guarded by the write lock, only held by writers of onDemandRouteEvents.
   private final Set<TezTaskAttemptID> failedTaskAttemptIDs = Sets.newHashSet();
-  private final ReadWriteLock onDemandRouteEventsReadWriteLock = new ReentrantReadWriteLock();
-  private final Lock onDemandRouteEventsReadLock = onDemandRouteEventsReadWriteLock.readLock();
-  private final Lock onDemandRouteEventsWriteLock = onDemandRouteEventsReadWriteLock.writeLock();
+  private final Lock onDemandRouteEventsWriteLock = new ReentrantLock();
+  // on demand routing done in heartbeats
+  private final AtomicLong onDemandRouteRequests = new AtomicLong();
+  private final AtomicLong onDemandRoutedEvents = new AtomicLong();
+  private final AtomicLong onDemandRouteNanos = new AtomicLong();
   
   List<TezEvent> pendingRouteEvents = new LinkedList<TezEvent>();
   List<TezTaskAttemptID> pendingReportedSrcCompletions = Lists.newLinkedList();
@@ -783,7 +790,8 @@ public class VertexImpl implements org.apache.tez.dag.app.dag.Vertex, EventHandl
     final TezEvent tezEvent;
     final Edge eventEdge;
     final int eventTaskIndex;
-    boolean isObsolete = false;
+    // set by the writer, read by heartbeats without locking
+    volatile boolean isObsolete = false;
     EventInfo(TezEvent tezEvent, Edge eventEdge, int eventTaskIndex) {
       this.tezEvent = tezEvent;
       this.eventEdge = eventEdge;
@@ -1199,6 +1207,7 @@ public class VertexImpl implements org.apache.tez.dag.app.dag.Vertex, EventHandl
 
       TezCounters counters = new TezCounters();
       counters.aggrAllCounters(this.counters);
+      addOnDemandRouteCounters(counters);
       return aggrTaskCounters(counters, tasks.values());
 
     } finally {
@@ -1228,6 +1237,7 @@ public class VertexImpl implements org.apache.tez.dag.app.dag.Vertex, EventHandl
 
       TezCounters counters = new TezCounters();
       counters.aggrAllCounters(this.counters);
+      addOnDemandRouteCounters(counters);
       cachedCounters = aggrTaskCounters(counters, tasks.values());
       return cachedCounters;
     } finally {
@@ -1235,6 +1245,21 @@ public class VertexImpl implements org.apache.tez.dag.app.dag.Vertex, EventHandl
     }
   }
 
+  // Events per heartbeat and routing latency, for vertices with on demand routed events
+  private void addOnDemandRouteCounters(TezCounters tezCounters) {
+    if (onDemandRouteEvents.size() == 0) {
+      return;
+    }
+    TezCounters routeCounters = new TezCounters();
+    routeCounters.findCounter(DAGCounter.AM_EVENT_ROUTING_REQUESTS).setValue(
+        onDemandRouteRequests.get());
+    routeCounters.findCounter(DAGCounter.AM_EVENTS_ROUTED).setValue(
+        onDemandRoutedEvents.get());
+    routeCounters.findCounter(DAGCounter.AM_EVENT_ROUTING_MICROS).setValue(
+        TimeUnit.NANOSECONDS.toMicros(onDemandRouteNanos.get()));
+    tezCounters.aggrAllCounters(routeCounters);
+  }
+
   @Override
   public void addCounters(final TezCounters tezCounters) {
     counters.aggrAllCounters(tezCounters);
@@ -1476,7 +1501,7 @@ public class VertexImpl implements org.apache.tez.dag.app.dag.Vertex, EventHandl
   }
 
   @VisibleForTesting
-  List<EventInfo> getOnDemandRouteEvents() {
+  SegmentedEventLog<EventInfo> getOnDemandRouteEvents() {
     return onDemandRouteEvents;
   }
   
@@ -3338,6 +3363,7 @@ public class VertexImpl implements org.apache.tez.dag.app.dag.Vertex, EventHandl
   public TezCounters constructFinalFullcounters() {
     AggregateTezCounters aggregateTezCounters = new AggregateTezCounters();
     aggregateTezCounters.aggrAllCounters(counters);
+    addOnDemandRouteCounters(aggregateTezCounters);
     this.vertexStats = new VertexStats();
 
     for (Task t : this.tasks.values()) {
@@ -3783,103 +3809,108 @@ public class VertexImpl implements org.apache.tez.dag.app.dag.Vertex, EventHandl
         attemptID, preRoutedFromEventId, maxEvents);
     int nextPreRoutedFromEventId = preRoutedFromEventId + events.size();
     int nextFromEventId = fromEventId;
-    onDemandRouteEventsReadLock.lock();
-    try {
-      int currEventCount = onDemandRouteEvents.size();
+    boolean moreEventsPending = false;
+    // events up to this count are published and can be read without locking
+    int currEventCount = onDemandRouteEvents.size();
+    if (currEventCount > fromEventId) {
+      long routeStartTime = System.nanoTime();
+      int numEventsSent = 0;
       try {
-        if (currEventCount > fromEventId) {
-          if (events != TaskImpl.EMPTY_TASK_ATTEMPT_TEZ_EVENTS) {
-            events.ensureCapacity(maxEvents);
-          } else {
-            events = Lists.newArrayListWithCapacity(maxEvents);
+        if (events != TaskImpl.EMPTY_TASK_ATTEMPT_TEZ_EVENTS) {
+          events.ensureCapacity(maxEvents);
+        } else {
+          events = Lists.newArrayListWithCapacity(maxEvents);
+        }
+        int numPreRoutedEvents = events.size();
+        int taskIndex = attemptID.getTaskID().getId();
+        Preconditions.checkState(taskIndex < tasks.size(), "Invalid task index for TA: " + attemptID
+            + " vertex: " + getLogIdentifier());
+        boolean isFirstEvent = true;
+        boolean firstEventObsoleted = false;
+        for (nextFromEventId = fromEventId; nextFromEventId < currEventCount; ++nextFromEventId) {
+          boolean earlyExit = false;
+          if (events.size() == maxEvents) {
+            break;
           }
-          int numPreRoutedEvents = events.size();
-          int taskIndex = attemptID.getTaskID().getId();
-          Preconditions.checkState(taskIndex < tasks.size(), "Invalid task index for TA: " + attemptID
-              + " vertex: " + getLogIdentifier());
-          boolean isFirstEvent = true;
-          boolean firstEventObsoleted = false;
-          for (nextFromEventId = fromEventId; nextFromEventId < currEventCount; ++nextFromEventId) {
-            boolean earlyExit = false;
-            if (events.size() == maxEvents) {
-              break;
-            }
-            EventInfo eventInfo = onDemandRouteEvents.get(nextFromEventId);
-            if (eventInfo.isObsolete) {
-              // ignore obsolete events
-              firstEventObsoleted = true;
-              continue;
-            }
-            TezEvent tezEvent = eventInfo.tezEvent;
-            switch(tezEvent.getEventType()) {
-            case INPUT_FAILED_EVENT:
-            case DATA_MOVEMENT_EVENT:
-            case COMPOSITE_DATA_MOVEMENT_EVENT:
-              {
-                int srcTaskIndex = eventInfo.eventTaskIndex;
-                Edge srcEdge = eventInfo.eventEdge;
-                PendingEventRouteMetadata pendingRoute = null;
-                if (isFirstEvent) {
-                  // the first event is the one that can have pending routes because its expanded
-                  // events had not been completely sent in the last round.
-                  isFirstEvent = false;
-                  pendingRoute = srcEdge.removePendingEvents(attemptID);
-                  if (pendingRoute != null) {
-                    // the first event must match the pending route event
-                    // the only reason it may not match is if in between rounds that event got
-                    // obsoleted
-                    if(tezEvent != pendingRoute.getTezEvent()) {
-                      Preconditions.checkState(firstEventObsoleted);
-                      // pending routes can be ignored for obsoleted events
-                      pendingRoute = null;
-                    }
+          EventInfo eventInfo = onDemandRouteEvents.get(nextFromEventId);
+          if (eventInfo.isObsolete) {
+            // ignore obsolete events
+            firstEventObsoleted = true;
+            continue;
+          }
+          TezEvent tezEvent = eventInfo.tezEvent;
+          switch(tezEvent.getEventType()) {
+          case INPUT_FAILED_EVENT:
+          case DATA_MOVEMENT_EVENT:
+          case COMPOSITE_DATA_MOVEMENT_EVENT:
+            {
+              int srcTaskIndex = eventInfo.eventTaskIndex;
+              Edge srcEdge = eventInfo.eventEdge;
+              PendingEventRouteMetadata pendingRoute = null;
+              if (isFirstEvent) {
+                // the first event is the one that can have pending routes because its expanded
+                // events had not been completely sent in the last round.
+                isFirstEvent = false;
+                pendingRoute = srcEdge.removePendingEvents(attemptID);
+                if (pendingRoute != null) {
+                  // the first event must match the pending route event
+                  // the only reason it may not match is if in between rounds that event got
+                  // obsoleted
+                  if(tezEvent != pendingRoute.getTezEvent()) {
+                    Preconditions.checkState(firstEventObsoleted);
+                    // pending routes can be ignored for obsoleted events
+                    pendingRoute = null;
                   }
                 }
-                if (!srcEdge.maybeAddTezEventForDestinationTask(tezEvent, attemptID, srcTaskIndex,
-                    events, maxEvents, pendingRoute)) {
-                  // not enough space left for this iteration events.
-                  // Exit and start from here next time
-                  earlyExit = true;
-                }
               }
-              break;
-            case ROOT_INPUT_DATA_INFORMATION_EVENT:
-              {
-                InputDataInformationEvent riEvent = (InputDataInformationEvent) tezEvent.getEvent();
-                if (riEvent.getTargetIndex() == taskIndex) {
-                  events.add(tezEvent);
-                }
+              if (!srcEdge.maybeAddTezEventForDestinationTask(tezEvent, attemptID, srcTaskIndex,
+                  events, maxEvents, pendingRoute)) {
+                // not enough space left for this iteration events.
+                // Exit and start from here next time
+                earlyExit = true;
               }
-              break;
-            default:
-              throw new TezUncheckedException("Unexpected event type for task: "
-                  + tezEvent.getEventType());
             }
-            if (earlyExit) {
-              break;
+            break;
+          case ROOT_INPUT_DATA_INFORMATION_EVENT:
+            {
+              InputDataInformationEvent riEvent = (InputDataInformationEvent) tezEvent.getEvent();
+              if (riEvent.getTargetIndex() == taskIndex) {
+                events.add(tezEvent);
+              }
             }
+            break;
+          default:
+            throw new TezUncheckedException("Unexpected event type for task: "
+                + tezEvent.getEventType());
           }
-          int numEventsSent = events.size() - numPreRoutedEvents;
-          if (numEventsSent > 0) {
-            StringBuilder builder = new StringBuilder();
-            builder.append("Sending ").append(attemptID).append(" ")
-                .append(numEventsSent)
-                .append(" events [").append(fromEventId).append(",").append(nextFromEventId)
-                .append(") total ").append(currEventCount).append(" ")
-                .append(getLogIdentifier());
-            LOG.info(builder.toString());
+          if (earlyExit) {
+            break;
           }
         }
+        // stopped early, because of maxEvents or pending routes
+        moreEventsPending = nextFromEventId < currEventCount;
+        numEventsSent = events.size() - numPreRoutedEvents;
+        if (numEventsSent > 0) {
+          StringBuilder builder = new StringBuilder();
+          builder.append("Sending ").append(attemptID).append(" ")
+              .append(numEventsSent)
+              .append(" events [").append(fromEventId).append(",").append(nextFromEventId)
+              .append(") total ").append(currEventCount).append(" ")
+              .append(getLogIdentifier());
+          LOG.info(builder.toString());
+        }
       } catch (AMUserCodeException e) {
         String msg = "Exception in " + e.getSource() + ", vertex=" + getLogIdentifier();
         LOG.error(msg, e);
         eventHandler.handle(new VertexEventManagerUserCodeError(getVertexId(), e));
         nextFromEventId = fromEventId;
         events.clear();
+        numEventsSent = 0;
       }
-    } finally {
-      onDemandRouteEventsReadLock.unlock();
+      onDemandRoutedEvents.addAndGet(numEventsSent);
+      onDemandRouteNanos.addAndGet(System.nanoTime() - routeStartTime);
     }
+    onDemandRouteRequests.incrementAndGet();
     if (!events.isEmpty()) {
       for (int i=(events.size() - 1); i>=0; --i) {
         TezEvent lastEvent = events.get(i);
@@ -3895,7 +3926,8 @@ public class VertexImpl implements org.apache.tez.dag.app.dag.Vertex, EventHandl
         }
       }
     }
-    return new TaskAttemptEventInfo(nextFromEventId, events, nextPreRoutedFromEventId);
+    return new TaskAttemptEventInfo(nextFromEventId, events, nextPreRoutedFromEventId,
+        moreEventsPending);
   }
 
   private void handleRoutedTezEvents(List<TezEvent> tezEvents, boolean isPendingEvents) throws AMUserCodeException {
@@ -4069,7 +4101,9 @@ public class VertexImpl implements org.apache.tez.dag.app.dag.Vertex, EventHandl
       }
       onDemandRouteEvents.add(new EventInfo(tezEvent, srcEdge, srcTaskIndex));
       if (tezEvent.getEventType() == EventType.INPUT_FAILED_EVENT) {
-        for (EventInfo eventInfo : onDemandRouteEvents) {
+        int numEvents = onDemandRouteEvents.size();
+        for (int i = 0; i < numEvents; ++i) {
+          EventInfo eventInfo = onDemandRouteEvents.get(i);
           if (eventInfo.eventEdge == srcEdge 
               && eventInfo.tezEvent.getSourceInfo().getTaskAttemptID().equals(
                  tezEvent.getSourceInfo().getTaskAttemptID())
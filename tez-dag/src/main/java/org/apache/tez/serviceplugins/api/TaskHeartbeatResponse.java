@@ -25,12 +25,19 @@ public class TaskHeartbeatResponse {
   private final int nextFromEventId;
   private final int nextPreRoutedEventId;
   private final List<TezEvent> events;
+  private final boolean moreEventsPending;
 
   public TaskHeartbeatResponse(boolean shouldDie, List<TezEvent> events, int nextFromEventId, int nextPreRoutedEventId) {
+    this(shouldDie, events, nextFromEventId, nextPreRoutedEventId, false);
+  }
+
+  public TaskHeartbeatResponse(boolean shouldDie, List<TezEvent> events, int nextFromEventId,
+      int nextPreRoutedEventId, boolean moreEventsPending) {
     this.shouldDie = shouldDie;
     this.events = events;
     this.nextFromEventId = nextFromEventId;
     this.nextPreRoutedEventId = nextPreRoutedEventId;
+    this.moreEventsPending = moreEventsPending;
   }
 
   public boolean isShouldDie() {
@@ -48,4 +55,8 @@ public class TaskHeartbeatResponse {
   public int getNextPreRoutedEventId() {
     return nextPreRoutedEventId;
   }
+
+  public boolean isMoreEventsPending() {
+    return moreEventsPending;
+  }
 }
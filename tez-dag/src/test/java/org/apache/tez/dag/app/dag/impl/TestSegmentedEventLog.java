@@ -0,0 +1,85 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.dag.app.dag.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+public class TestSegmentedEventLog {
+
+  @Test(timeout = 5000)
+  public void testAppend() {
+    SegmentedEventLog<Integer> log = new SegmentedEventLog<Integer>();
+    assertEquals(0, log.size());
+    int numElements = SegmentedEventLog.SEGMENT_SIZE * 10 + 1;
+    for (int i = 0; i < numElements; ++i) {
+      log.add(i);
+    }
+    assertEquals(numElements, log.size());
+    for (int i = 0; i < numElements; ++i) {
+      assertEquals(i, log.get(i).intValue());
+    }
+    try {
+      log.get(numElements);
+      fail("Expected IndexOutOfBoundsException");
+    } catch (IndexOutOfBoundsException e) {
+    }
+  }
+
+  @Test(timeout = 20000)
+  public void testConcurrentReaders() throws Exception {
+    final SegmentedEventLog<Integer> log = new SegmentedEventLog<Integer>();
+    final int numElements = SegmentedEventLog.SEGMENT_SIZE * 50;
+    final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+    Thread[] readers = new Thread[4];
+    for (int r = 0; r < readers.length; ++r) {
+      readers[r] = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            int next = 0;
+            while (next < numElements) {
+              int size = log.size();
+              for (; next < size; ++next) {
+                // every published element is visible
+                assertEquals(next, log.get(next).intValue());
+              }
+            }
+          } catch (Throwable t) {
+            error.set(t);
+          }
+        }
+      });
+      readers[r].start();
+    }
+    for (int i = 0; i < numElements; ++i) {
+      log.add(i);
+    }
+    for (Thread reader : readers) {
+      reader.join();
+    }
+    if (error.get() != null) {
+      throw new AssertionError(error.get());
+    }
+  }
+}
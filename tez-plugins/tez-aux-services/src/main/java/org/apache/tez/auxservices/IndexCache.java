@@ -14,8 +14,10 @@
 package org.apache.tez.auxservices;
 
 import java.io.IOException;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.hadoop.conf.Configuration;
@@ -26,6 +28,20 @@ import org.apache.tez.runtime.library.common.sort.impl.TezSpillRecord;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.cache.Weigher;
+import com.google.common.util.concurrent.ExecutionError;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+/**
+ * Cache of the spill records read from map output index files. Entries are
+ * weighed by the size of their index records and the least recently used
+ * entries are evicted once the configured memory is exceeded. Concurrent
+ * requests for the same map output share a single read of the index file.
+ */
 class IndexCache {
 
   private final Configuration conf;
@@ -33,16 +49,44 @@ class IndexCache {
   private AtomicInteger totalMemoryUsed = new AtomicInteger();
   private static final Logger LOG = LoggerFactory.getLogger(IndexCache.class);
 
-  private final ConcurrentHashMap<String,IndexInformation> cache =
-      new ConcurrentHashMap<String,IndexInformation>();
+  private final ShuffleHandler.ShuffleMetrics metrics;
+
+  private final Cache<String, IndexInformation> cache;
 
-  private final LinkedBlockingQueue<String> queue =
-      new LinkedBlockingQueue<String>();
   public static final String INDEX_CACHE_MB = "tez.shuffle.indexcache.mb";
 
   public IndexCache(Configuration conf) {
+    this(conf, null);
+  }
+
+  public IndexCache(Configuration conf, ShuffleHandler.ShuffleMetrics metrics) {
     this.conf = conf;
+    this.metrics = metrics;
     totalMemoryAllowed = conf.getInt(INDEX_CACHE_MB, 10) * 1024 * 1024;
+    // A single segment keeps eviction in global least recently used order
+    cache = CacheBuilder.newBuilder()
+        .concurrencyLevel(1)
+        .maximumWeight(totalMemoryAllowed)
+        .weigher(new Weigher<String, IndexInformation>() {
+          @Override
+          public int weigh(String mapId, IndexInformation info) {
+            return info.getSize();
+          }
+        })
+        .removalListener(new RemovalListener<String, IndexInformation>() {
+          @Override
+          public void onRemoval(RemovalNotification<String, IndexInformation> notification) {
+            IndexInformation info = notification.getValue();
+            if (info != null) {
+              totalMemoryUsed.addAndGet(-info.getSize());
+            }
+            if (LOG.isDebugEnabled()) {
+              LOG.debug("IndexCache Eviction: MapId " + notification.getKey() +
+                  ", Reason=" + notification.getCause());
+            }
+          }
+        })
+        .build();
     LOG.info("IndexCache created with max memory = " + totalMemoryAllowed);
   }
 
@@ -59,24 +103,7 @@ class IndexCache {
   public TezSpillRecord getSpillRecord(String mapId, Path fileName, String expectedIndexOwner)
       throws IOException {
 
-    IndexInformation info = cache.get(mapId);
-
-    if (info == null) {
-      info = readIndexFileToCache(fileName, mapId, expectedIndexOwner);
-    } else {
-      synchronized(info) {
-        while (isUnderConstruction(info)) {
-          try {
-            info.wait();
-          } catch (InterruptedException e) {
-            throw new IOException("Interrupted waiting for construction", e);
-          }
-        }
-      }
-      if (LOG.isDebugEnabled()) {
-        LOG.debug("IndexCache HIT: MapId " + mapId + " found");
-      }
-    }
+    IndexInformation info = getIndexInformation(mapId, fileName, expectedIndexOwner);
 
     if (info.mapSpillRecord.size() == 0) {
       throw new IOException("Invalid request " +
@@ -100,24 +127,7 @@ class IndexCache {
                                          Path fileName, String expectedIndexOwner)
       throws IOException {
 
-    IndexInformation info = cache.get(mapId);
-
-    if (info == null) {
-      info = readIndexFileToCache(fileName, mapId, expectedIndexOwner);
-    } else {
-      synchronized(info) {
-        while (isUnderConstruction(info)) {
-          try {
-            info.wait();
-          } catch (InterruptedException e) {
-            throw new IOException("Interrupted waiting for construction", e);
-          }
-        }
-      }
-      if (LOG.isDebugEnabled()) {
-        LOG.debug("IndexCache HIT: MapId " + mapId + " found");
-      }
-    }
+    IndexInformation info = getIndexInformation(mapId, fileName, expectedIndexOwner);
 
     if (info.mapSpillRecord.size() == 0 ||
         info.mapSpillRecord.size() <= reduce) {
@@ -128,78 +138,92 @@ class IndexCache {
     return info.mapSpillRecord.getIndex(reduce);
   }
 
-  private boolean isUnderConstruction(IndexInformation info) {
-    synchronized(info) {
-      return (null == info.mapSpillRecord);
-    }
-  }
-
-  private IndexInformation readIndexFileToCache(Path indexFileName,
-                                                String mapId,
-                                                String expectedIndexOwner)
-      throws IOException {
+  private IndexInformation getIndexInformation(String mapId, Path indexFileName,
+      String expectedIndexOwner) throws IOException {
+    IndexLoader loader = new IndexLoader(mapId, indexFileName, expectedIndexOwner);
     IndexInformation info;
-    IndexInformation newInd = new IndexInformation();
-    if ((info = cache.putIfAbsent(mapId, newInd)) != null) {
-      synchronized(info) {
-        while (isUnderConstruction(info)) {
-          try {
-            info.wait();
-          } catch (InterruptedException e) {
-            throw new IOException("Interrupted waiting for construction", e);
-          }
-        }
-      }
+    try {
+      info = cache.get(mapId, loader);
+    } catch (ExecutionException e) {
+      throw new IOException("Error Reading IndexFile", e.getCause());
+    } catch (UncheckedExecutionException e) {
+      throw new IOException("Error Reading IndexFile", e.getCause());
+    } catch (ExecutionError e) {
+      throw new IOException("Error Reading IndexFile", e.getCause());
+    }
+    if (!loader.loaded) {
       if (LOG.isDebugEnabled()) {
         LOG.debug("IndexCache HIT: MapId " + mapId + " found");
       }
-      return info;
-    }
-    if (LOG.isDebugEnabled()) {
-      LOG.debug("IndexCache MISS: MapId " + mapId + " not found");
-    }
-    TezSpillRecord tmp = null;
-    try {
-      tmp = new TezSpillRecord(indexFileName, conf, expectedIndexOwner);
-    } catch (Throwable e) {
-      tmp = new TezSpillRecord(0);
-      cache.remove(mapId);
-      throw new IOException("Error Reading IndexFile", e);
-    } finally {
-      synchronized (newInd) {
-        newInd.mapSpillRecord = tmp;
-        newInd.notifyAll();
+      if (metrics != null) {
+        metrics.indexCacheHits.incr();
       }
     }
-    queue.add(mapId);
+    return info;
+  }
+
+  /**
+   * Reads an index file on a cache miss. Only the loader of the request that
+   * missed is invoked, requests waiting on the same load are cache hits.
+   */
+  private class IndexLoader implements Callable<IndexInformation> {
+    private final String mapId;
+    private final Path indexFileName;
+    private final String expectedIndexOwner;
+    private boolean loaded = false;
 
-    if (totalMemoryUsed.addAndGet(newInd.getSize()) > totalMemoryAllowed) {
-      freeIndexInformation();
+    IndexLoader(String mapId, Path indexFileName, String expectedIndexOwner) {
+      this.mapId = mapId;
+      this.indexFileName = indexFileName;
+      this.expectedIndexOwner = expectedIndexOwner;
+    }
+
+    @Override
+    public IndexInformation call() throws IOException {
+      loaded = true;
+      if (LOG.isDebugEnabled()) {
+        LOG.debug("IndexCache MISS: MapId " + mapId + " not found");
+      }
+      long startNanos = System.nanoTime();
+      TezSpillRecord spillRecord =
+          new TezSpillRecord(indexFileName, conf, expectedIndexOwner);
+      if (metrics != null) {
+        metrics.indexCacheMisses.incr();
+        metrics.indexCacheLoadTime.add(
+            TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+      }
+      IndexInformation info = new IndexInformation(spillRecord, indexFileName);
+      totalMemoryUsed.addAndGet(info.getSize());
+      return info;
     }
-    return newInd;
   }
 
   /**
-   * This method removes the map from the cache if index information for this
-   * map is loaded(size>0), index information entry in cache will not be
-   * removed if it is in the loading phrase(size=0), this prevents corruption
-   * of totalMemoryUsed. It should be called when a map output on this tracker
-   * is discarded.
+   * This method removes the map from the cache. An entry which is still
+   * being loaded is not removed. It should be called when a map output on
+   * this tracker is discarded.
    * @param mapId The taskID of this map.
    */
   public void removeMap(String mapId) {
-    IndexInformation info = cache.get(mapId);
-    if (info == null || isUnderConstruction(info)) {
-      return;
-    }
-    info = cache.remove(mapId);
-    if (info != null) {
-      totalMemoryUsed.addAndGet(-info.getSize());
-      if (!queue.remove(mapId)) {
-        LOG.warn("Map ID" + mapId + " not found in queue!!");
+    cache.invalidate(mapId);
+  }
+
+  /**
+   * Removes the index information of all the map outputs below the given
+   * DAG directory, so a completed DAG does not hold on to the cache.
+   * @param dagLocation The DAG directory relative to the local dirs.
+   */
+  public void removeDag(String dagLocation) {
+    int removed = 0;
+    for (Map.Entry<String, IndexInformation> entry : cache.asMap().entrySet()) {
+      if (entry.getValue().indexPath.toUri().getPath().contains(dagLocation)) {
+        if (cache.asMap().remove(entry.getKey(), entry.getValue())) {
+          removed++;
+        }
       }
-    } else {
-      LOG.info("Map ID " + mapId + " not found in cache");
+    }
+    if (LOG.isDebugEnabled()) {
+      LOG.debug("IndexCache removed " + removed + " entries of " + dagLocation);
     }
   }
 
@@ -209,33 +233,25 @@ class IndexCache {
    * @return True if cache and totolMemoryUsed is consistent
    */
   boolean checkTotalMemoryUsed() {
+    cache.cleanUp();
     int totalSize = 0;
-    for (IndexInformation info : cache.values()) {
+    for (IndexInformation info : cache.asMap().values()) {
       totalSize += info.getSize();
     }
     return totalSize == totalMemoryUsed.get();
   }
 
-  /**
-   * Bring memory usage below totalMemoryAllowed.
-   */
-  private synchronized void freeIndexInformation() {
-    while (totalMemoryUsed.get() > totalMemoryAllowed) {
-      String s = queue.remove();
-      IndexInformation info = cache.remove(s);
-      if (info != null) {
-        totalMemoryUsed.addAndGet(-info.getSize());
-      }
-    }
-  }
-
   private static class IndexInformation {
-    TezSpillRecord mapSpillRecord;
+    final TezSpillRecord mapSpillRecord;
+    final Path indexPath;
+
+    IndexInformation(TezSpillRecord mapSpillRecord, Path indexPath) {
+      this.mapSpillRecord = mapSpillRecord;
+      this.indexPath = indexPath;
+    }
 
     int getSize() {
-      return mapSpillRecord == null
-          ? 0
-          : mapSpillRecord.size() * Constants.MAP_OUTPUT_INDEX_RECORD_LENGTH;
+      return mapSpillRecord.size() * Constants.MAP_OUTPUT_INDEX_RECORD_LENGTH;
     }
   }
 }
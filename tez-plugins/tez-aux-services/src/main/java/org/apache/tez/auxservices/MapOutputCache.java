@@ -0,0 +1,417 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.tez.auxservices;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.crypto.CryptoStreamUtils;
+import org.apache.hadoop.io.IOUtils;
+import org.apache.hadoop.io.SecureIOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.cache.Weigher;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Cache of map output regions which are requested repeatedly, e.g. by the
+ * consumers of a broadcast edge. A region is the data sent for one request
+ * of a map output, identified by the data file and its offset and length.
+ * The contents are kept off-heap in direct buffers and the least recently
+ * used regions are evicted once the configured size is exceeded.
+ *
+ * A region is only cached on its second request within the recently
+ * requested regions, so map outputs which are fetched once do not evict the
+ * hot ones. The region is then read by a loader thread, the request itself
+ * and the ones arriving before the load completes are served from disk.
+ *
+ * The buffers are reference counted, the cache holds one reference and every
+ * write of a region another one. A buffer is freed explicitly once the region
+ * was evicted and the last write completed. Memory of evicted regions which
+ * are still being written counts against the configured size, no region is
+ * loaded while it exceeds the configured size by more than one region.
+ */
+class MapOutputCache {
+
+  private static final Logger LOG = LoggerFactory.getLogger(MapOutputCache.class);
+
+  public static final String MAP_OUTPUT_CACHE_MB = "tez.shuffle.mapoutput.cache.mb";
+  public static final int DEFAULT_MAP_OUTPUT_CACHE_MB = 0;
+  /* Larger regions are always read from disk */
+  public static final String MAP_OUTPUT_CACHE_MAX_REGION_BYTES =
+      "tez.shuffle.mapoutput.cache.max-region-bytes";
+  public static final int DEFAULT_MAP_OUTPUT_CACHE_MAX_REGION_BYTES = 1024 * 1024;
+  /* Threads reading regions into the cache, off the Netty I/O threads */
+  public static final String MAP_OUTPUT_CACHE_LOADER_THREADS =
+      "tez.shuffle.mapoutput.cache.loader.threads";
+  public static final int DEFAULT_MAP_OUTPUT_CACHE_LOADER_THREADS = 1;
+  private static final int RECENT_REQUESTS_SIZE = 64 * 1024;
+  private static final int LOADER_QUEUE_SIZE = 1024;
+
+  // sun.misc.Unsafe#invokeCleaner(ByteBuffer), available since Java 9
+  private static final Object UNSAFE;
+  private static final Method INVOKE_CLEANER;
+  private static final AtomicBoolean FREE_FAILURE_LOGGED = new AtomicBoolean(false);
+
+  static {
+    Object unsafe = null;
+    Method invokeCleaner = null;
+    try {
+      Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+      invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+      Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+      theUnsafe.setAccessible(true);
+      unsafe = theUnsafe.get(null);
+    } catch (Throwable t) {
+      invokeCleaner = null;
+    }
+    UNSAFE = unsafe;
+    INVOKE_CLEANER = invokeCleaner;
+  }
+
+  private final long totalMemoryAllowed;
+  private final int maxRegionSize;
+  private final AtomicLong totalMemoryUsed = new AtomicLong();
+  private final ShuffleHandler.ShuffleMetrics metrics;
+
+  private final Cache<Region, CachedRegion> cache;
+  private final Cache<Region, Boolean> recentRequests;
+  private final ConcurrentMap<Region, Boolean> loading =
+      new ConcurrentHashMap<Region, Boolean>();
+  private final ExecutorService loader;
+
+  public MapOutputCache(Configuration conf, ShuffleHandler.ShuffleMetrics metrics) {
+    this(conf, metrics, createLoader(conf));
+  }
+
+  @VisibleForTesting
+  MapOutputCache(Configuration conf, ShuffleHandler.ShuffleMetrics metrics,
+      ExecutorService loader) {
+    this.metrics = metrics;
+    this.loader = loader;
+    totalMemoryAllowed = conf.getLong(MAP_OUTPUT_CACHE_MB, DEFAULT_MAP_OUTPUT_CACHE_MB)
+        * 1024 * 1024;
+    maxRegionSize = (int) Math.min(totalMemoryAllowed, conf.getInt(
+        MAP_OUTPUT_CACHE_MAX_REGION_BYTES, DEFAULT_MAP_OUTPUT_CACHE_MAX_REGION_BYTES));
+    // A single segment keeps eviction in global least recently used order, and
+    // lets regions up to the configured size fit in the cache
+    cache = CacheBuilder.newBuilder()
+        .concurrencyLevel(1)
+        .maximumWeight(totalMemoryAllowed)
+        .weigher(new Weigher<Region, CachedRegion>() {
+          @Override
+          public int weigh(Region region, CachedRegion cached) {
+            return region.length;
+          }
+        })
+        .removalListener(new RemovalListener<Region, CachedRegion>() {
+          @Override
+          public void onRemoval(RemovalNotification<Region, CachedRegion> notification) {
+            CachedRegion cached = notification.getValue();
+            if (cached != null) {
+              // Drop the reference of the cache, the buffer is freed here
+              // unless writes of the region are still in progress
+              cached.release();
+            }
+            if (LOG.isDebugEnabled()) {
+              LOG.debug("MapOutputCache Eviction: " + notification.getKey() +
+                  ", Reason=" + notification.getCause());
+            }
+          }
+        })
+        .build();
+    recentRequests = CacheBuilder.newBuilder()
+        .maximumSize(RECENT_REQUESTS_SIZE)
+        .build();
+    LOG.info("MapOutputCache created with max memory = " + totalMemoryAllowed +
+        ", max region size = " + maxRegionSize);
+  }
+
+  private static ExecutorService createLoader(Configuration conf) {
+    int threads = Math.max(1, conf.getInt(MAP_OUTPUT_CACHE_LOADER_THREADS,
+        DEFAULT_MAP_OUTPUT_CACHE_LOADER_THREADS));
+    return new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+        new LinkedBlockingQueue<Runnable>(LOADER_QUEUE_SIZE),
+        new ThreadFactoryBuilder().setDaemon(true)
+            .setNameFormat("ShuffleHandler MapOutputCache Loader #%d").build());
+  }
+
+  /**
+   * Returns the cached contents of a map output region. When the region was
+   * requested recently, it is read into the cache in the background.
+   * @param file The map output data file
+   * @param offset The offset of the region in the file
+   * @param length The length of the region
+   * @param expectedOwner The expected owner of the data file
+   * @return The region, which has to be released once it was written, or
+   *         null when the region has to be read from disk
+   */
+  public CachedRegion getRegion(File file, long offset, long length, String expectedOwner) {
+    if (length <= 0 || length > maxRegionSize) {
+      return null;
+    }
+    Region region = new Region(file.getAbsolutePath(), offset, (int) length);
+    CachedRegion cached = cache.getIfPresent(region);
+    if (cached != null && cached.retain()) {
+      if (metrics != null) {
+        metrics.mapOutputCacheHits.incr();
+      }
+      return cached;
+    }
+    if (metrics != null) {
+      metrics.mapOutputCacheMisses.incr();
+    }
+    if (recentRequests.asMap().putIfAbsent(region, Boolean.TRUE) == null) {
+      return null;
+    }
+    if (loading.putIfAbsent(region, Boolean.TRUE) == null) {
+      recentRequests.invalidate(region);
+      try {
+        loader.execute(new RegionLoader(file, region, expectedOwner));
+      } catch (RejectedExecutionException e) {
+        // The loader fell behind or was shut down, the region stays on disk
+        loading.remove(region);
+      }
+    }
+    return null;
+  }
+
+  private class RegionLoader implements Runnable {
+    private final File file;
+    private final Region region;
+    private final String expectedOwner;
+
+    RegionLoader(File file, Region region, String expectedOwner) {
+      this.file = file;
+      this.region = region;
+      this.expectedOwner = expectedOwner;
+    }
+
+    @Override
+    public void run() {
+      try {
+        load();
+      } catch (FileNotFoundException e) {
+        if (LOG.isDebugEnabled()) {
+          LOG.debug("Not caching " + region + ", the map output is gone", e);
+        }
+      } catch (IOException e) {
+        LOG.info("Unable to cache " + region, e);
+      } catch (OutOfMemoryError e) {
+        LOG.warn("Out of direct memory, unable to cache " + region, e);
+      } finally {
+        loading.remove(region);
+      }
+    }
+
+    private void load() throws IOException {
+      CachedRegion cached = null;
+      boolean cachedRegion = false;
+      try {
+        if (totalMemoryUsed.addAndGet(region.length) > totalMemoryAllowed + maxRegionSize) {
+          // Evicted regions which are still being written hold too much memory
+          return;
+        }
+        cached = new CachedRegion(ByteBuffer.allocateDirect(region.length));
+        ByteBuffer buffer = cached.buffer;
+        RandomAccessFile raf = SecureIOUtils.openForRandomRead(file, "r", expectedOwner, null);
+        try {
+          FileChannel channel = raf.getChannel();
+          long position = region.offset;
+          while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+              throw new EOFException("Map output " + file + " ends before " + region);
+            }
+            position += read;
+          }
+        } finally {
+          IOUtils.closeStream(raf);
+        }
+        buffer.flip();
+        cachedRegion = cache.asMap().putIfAbsent(region, cached) == null;
+      } finally {
+        if (cached == null) {
+          // Nothing was allocated, the memory is no longer reserved
+          totalMemoryUsed.addAndGet(-region.length);
+        } else if (!cachedRegion) {
+          cached.release();
+        }
+      }
+    }
+  }
+
+  /**
+   * A cached region, the holder of a reference returned by
+   * {@link #getRegion(File, long, long, String)} has to call
+   * {@link #release()} once it is done with the buffer.
+   */
+  class CachedRegion {
+    private final ByteBuffer buffer;
+    private final AtomicInteger refCount = new AtomicInteger(1);
+
+    private CachedRegion(ByteBuffer buffer) {
+      this.buffer = buffer;
+    }
+
+    private boolean retain() {
+      while (true) {
+        int count = refCount.get();
+        if (count == 0) {
+          // Evicted and already freed
+          return false;
+        }
+        if (refCount.compareAndSet(count, count + 1)) {
+          return true;
+        }
+      }
+    }
+
+    /**
+     * @return A new buffer sharing the contents of the region
+     */
+    ByteBuffer getBuffer() {
+      return buffer.duplicate();
+    }
+
+    void release() {
+      if (refCount.decrementAndGet() == 0) {
+        free(buffer);
+        totalMemoryUsed.addAndGet(-buffer.capacity());
+      }
+    }
+  }
+
+  private static void free(ByteBuffer buffer) {
+    Throwable failure;
+    try {
+      // Works up to Java 8
+      CryptoStreamUtils.freeDB(buffer);
+      return;
+    } catch (Throwable t) {
+      failure = t;
+    }
+    if (INVOKE_CLEANER != null) {
+      try {
+        INVOKE_CLEANER.invoke(UNSAFE, buffer);
+        return;
+      } catch (Throwable t) {
+        failure = t;
+      }
+    }
+    if (FREE_FAILURE_LOGGED.compareAndSet(false, true)) {
+      LOG.warn("Unable to free direct buffers, their memory is released by GC. "
+          + "Further failures are logged at debug level", failure);
+    } else if (LOG.isDebugEnabled()) {
+      LOG.debug("Unable to free direct buffer", failure);
+    }
+  }
+
+  /**
+   * Removes the regions of all the map outputs below the given DAG
+   * directory, it should be called when the DAG is cleaned up.
+   * @param dagLocation The DAG directory relative to the local dirs.
+   */
+  public void removeDag(String dagLocation) {
+    for (Region region : cache.asMap().keySet()) {
+      if (region.path.contains(dagLocation)) {
+        cache.invalidate(region);
+      }
+    }
+    for (Region region : recentRequests.asMap().keySet()) {
+      if (region.path.contains(dagLocation)) {
+        recentRequests.invalidate(region);
+      }
+    }
+  }
+
+  /**
+   * Stops the loader and releases the cached regions.
+   */
+  public void close() {
+    loader.shutdownNow();
+    cache.invalidateAll();
+    recentRequests.invalidateAll();
+  }
+
+  /**
+   * Memory held by the cached regions and the evicted regions which are
+   * still being written, only used for unit test.
+   */
+  long getTotalMemoryUsed() {
+    cache.cleanUp();
+    return totalMemoryUsed.get();
+  }
+
+  private static class Region {
+    private final String path;
+    private final long offset;
+    private final int length;
+
+    Region(String path, long offset, int length) {
+      this.path = path;
+      this.offset = offset;
+      this.length = length;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (o == null || getClass() != o.getClass()) {
+        return false;
+      }
+      Region that = (Region) o;
+      return offset == that.offset && length == that.length && path.equals(that.path);
+    }
+
+    @Override
+    public int hashCode() {
+      int result = path.hashCode();
+      result = 31 * result + (int) (offset ^ (offset >>> 32));
+      result = 31 * result + length;
+      return result;
+    }
+
+    @Override
+    public String toString() {
+      return "Region{" + path + ", offset=" + offset + ", length=" + length + "}";
+    }
+  }
+}
@@ -0,0 +1,296 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.tez.auxservices;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileContext;
+import org.apache.hadoop.fs.LocalDirAllocator;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.IOUtils;
+import org.apache.hadoop.mapreduce.JobID;
+import org.apache.tez.runtime.library.common.shuffle.orderedgrouped.ShuffleHeader;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Stores the partitions pushed by the producers of a shuffle edge. All the
+ * blocks pushed for one partition of an edge are appended to one file, each
+ * preceded by its {@link ShuffleHeader}, so a consumer can read all of them
+ * with a single sequential request.
+ *
+ * The files are kept below the node's local dirs rather than the application
+ * dirs, which are owned by the application user. The list of blocks is only
+ * held in memory, so after a restart the consumers pull all the partitions
+ * from the producers. The total size of the stored partitions is limited,
+ * pushes exceeding it are rejected and pulled by the consumers instead.
+ */
+class PushedPartitionStore {
+
+  private static final Logger LOG = LoggerFactory.getLogger(PushedPartitionStore.class);
+
+  static final String PUSHED_DIR = "tez-shuffle-pushed";
+
+  /* Disk space the pushed partitions may use on this node, further pushes
+   are rejected and pulled by the consumers
+   */
+  public static final String SHUFFLE_PUSH_MAX_STORED_MB = "tez.shuffle.push.max-stored-mb";
+  public static final long DEFAULT_SHUFFLE_PUSH_MAX_STORED_MB = 10 * 1024;
+
+  private final Configuration conf;
+  private final LocalDirAllocator lDirAlloc;
+  private final long maxStoredBytes;
+  private final AtomicLong storedBytes = new AtomicLong();
+  private final ConcurrentMap<String, MergedPartition> partitions =
+      new ConcurrentHashMap<String, MergedPartition>();
+
+  /**
+   * Thrown when storing a block would exceed the configured size of the
+   * pushed partitions.
+   */
+  static class QuotaExceededException extends IOException {
+    QuotaExceededException(String message) {
+      super(message);
+    }
+  }
+
+  PushedPartitionStore(Configuration conf, LocalDirAllocator lDirAlloc) {
+    this.conf = conf;
+    this.lDirAlloc = lDirAlloc;
+    this.maxStoredBytes = conf.getLong(SHUFFLE_PUSH_MAX_STORED_MB,
+        DEFAULT_SHUFFLE_PUSH_MAX_STORED_MB) * 1024 * 1024;
+  }
+
+  /**
+   * The directory holding the pushed partitions of a DAG, relative to the
+   * local dirs.
+   * @throws IllegalArgumentException if the job id or the dag id is not valid
+   */
+  static String getDagLocation(String jobId, int dagId) {
+    if (dagId < 0) {
+      throw new IllegalArgumentException("Bad dag id " + dagId);
+    }
+    return getAppLocation(jobId) + dagId + Path.SEPARATOR;
+  }
+
+  /**
+   * @throws IllegalArgumentException if the job id is not valid
+   */
+  static String getAppLocation(String jobId) {
+    // Only a well formed job id can be used as a path component
+    JobID jobID = JobID.forName(jobId);
+    Long.parseLong(jobID.getJtIdentifier());
+    String location = PUSHED_DIR + Path.SEPARATOR + jobID + Path.SEPARATOR;
+    checkLocation(location);
+    return location;
+  }
+
+  /**
+   * Ensures a location given by a request does not resolve outside of the
+   * pushed partitions.
+   */
+  private static void checkLocation(String location) {
+    java.nio.file.Path normalized = Paths.get(location).normalize();
+    if (!normalized.startsWith(PUSHED_DIR) || normalized.getNameCount() < 2) {
+      throw new IllegalArgumentException("Bad location " + location);
+    }
+  }
+
+  /**
+   * Appends the block pushed by a map output to its partition.
+   * @param dagLocation The location of the DAG from {@link #getDagLocation}
+   * @param edge The edge the block belongs to
+   * @param partition The partition of the block
+   * @param mapId The path component of the map output
+   * @param rawLength The uncompressed length of the block
+   * @param data The block
+   * @return false if a block of this map output had already been pushed
+   * @throws QuotaExceededException if there is no room for the block
+   * @throws IOException if the block could not be stored
+   */
+  boolean append(String dagLocation, String edge, int partition, String mapId, long rawLength,
+      ChannelBuffer data) throws IOException {
+    String relativePath = dagLocation + edge + Path.SEPARATOR + partition + ".out";
+    checkLocation(relativePath);
+    ShuffleHeader header = new ShuffleHeader(mapId, data.readableBytes(), rawLength, partition);
+    DataOutputBuffer dob = new DataOutputBuffer();
+    header.write(dob);
+    long blockLength = dob.getLength() + data.readableBytes();
+    if (storedBytes.addAndGet(blockLength) > maxStoredBytes) {
+      storedBytes.addAndGet(-blockLength);
+      throw new QuotaExceededException("Pushed partitions exceed " + maxStoredBytes
+          + " bytes, not storing partition " + partition + " of " + mapId);
+    }
+    boolean added = false;
+    try {
+      MergedPartition mergedPartition = partitions.get(relativePath);
+      if (mergedPartition == null) {
+        Path path = lDirAlloc.getLocalPathForWrite(relativePath, conf);
+        MergedPartition newPartition = new MergedPartition(new File(path.toUri().getPath()));
+        mergedPartition = partitions.putIfAbsent(relativePath, newPartition);
+        if (mergedPartition == null) {
+          mergedPartition = newPartition;
+        }
+      }
+      added = mergedPartition.append(header.getMapId(), dob, data);
+    } finally {
+      if (!added) {
+        storedBytes.addAndGet(-blockLength);
+      }
+    }
+    return added;
+  }
+
+  /**
+   * @param fromBlock The number of blocks the consumer already read
+   * @return The blocks pushed for a partition so far, starting with the given
+   *         block, or null if none were pushed
+   */
+  MergedPartition.Snapshot getMergedPartition(String dagLocation, String edge, int partition,
+      int fromBlock) {
+    MergedPartition mergedPartition =
+        partitions.get(dagLocation + edge + Path.SEPARATOR + partition + ".out");
+    return mergedPartition == null ? null : mergedPartition.snapshot(fromBlock);
+  }
+
+  /**
+   * The size of all the stored blocks, only used for unit test.
+   */
+  long getStoredBytes() {
+    return storedBytes.get();
+  }
+
+  /**
+   * Drops and deletes the pushed partitions below the given location.
+   * @param location The location of a DAG or an application
+   */
+  void remove(String location) {
+    checkLocation(location);
+    for (Iterator<Map.Entry<String, MergedPartition>> it = partitions.entrySet().iterator();
+        it.hasNext();) {
+      Map.Entry<String, MergedPartition> entry = it.next();
+      if (entry.getKey().startsWith(location)) {
+        it.remove();
+        storedBytes.addAndGet(-entry.getValue().remove());
+      }
+    }
+    try {
+      FileContext lfc = FileContext.getLocalFSFileContext();
+      for (Path path : lDirAlloc.getAllLocalPathsToRead(location, conf)) {
+        lfc.delete(path, true);
+      }
+    } catch (IOException e) {
+      LOG.warn("Encountered exception deleting pushed partitions of " + location + " " + e);
+    }
+  }
+
+  static class MergedPartition {
+    private final File file;
+    private final Set<String> mapIds = new HashSet<String>();
+    // Offsets of the blocks in the file
+    private final List<Long> blockOffsets = new ArrayList<Long>();
+    private long length = 0;
+    private boolean removed = false;
+
+    MergedPartition(File file) {
+      this.file = file;
+    }
+
+    synchronized boolean append(String mapId, DataOutputBuffer header, ChannelBuffer data)
+        throws IOException {
+      if (removed || mapIds.contains(mapId)) {
+        return false;
+      }
+      if (length == 0 && !file.getParentFile().isDirectory() && !file.getParentFile().mkdirs()
+          && !file.getParentFile().isDirectory()) {
+        throw new IOException("Could not create " + file.getParentFile());
+      }
+      long blockLength = header.getLength() + data.readableBytes();
+      FileOutputStream out = new FileOutputStream(file, true);
+      boolean written = false;
+      try {
+        out.write(header.getData(), 0, header.getLength());
+        data.getBytes(data.readerIndex(), out, data.readableBytes());
+        out.close();
+        written = true;
+      } finally {
+        if (!written) {
+          IOUtils.closeStream(out);
+          // Drop the partially written block
+          RandomAccessFile raf = new RandomAccessFile(file, "rw");
+          try {
+            raf.setLength(length);
+          } finally {
+            raf.close();
+          }
+        }
+      }
+      mapIds.add(mapId);
+      blockOffsets.add(length);
+      length += blockLength;
+      return true;
+    }
+
+    /**
+     * Stops accepting blocks.
+     * @return the size of the blocks stored
+     */
+    synchronized long remove() {
+      removed = true;
+      return length;
+    }
+
+    synchronized Snapshot snapshot(int fromBlock) {
+      int blockCount = blockOffsets.size();
+      if (fromBlock < 0 || fromBlock >= blockCount) {
+        return new Snapshot(file, 0, length, length);
+      }
+      return new Snapshot(file, blockCount - fromBlock, blockOffsets.get(fromBlock), length);
+    }
+
+    /**
+     * The blocks of a partition at a point in time. Later blocks are
+     * appended after them, so the snapshot stays valid.
+     */
+    static class Snapshot {
+      final File file;
+      final int blockCount;
+      final long offset;
+      final long length;
+
+      Snapshot(File file, int blockCount, long offset, long length) {
+        this.file = file;
+        this.blockCount = blockCount;
+        this.offset = offset;
+        this.length = length;
+      }
+    }
+  }
+}
@@ -24,12 +24,15 @@ import static org.fusesource.leveldbjni.JniDBFactory.bytes;
 import static org.jboss.netty.buffer.ChannelBuffers.wrappedBuffer;
 import static org.jboss.netty.handler.codec.http.HttpHeaders.Names.CONTENT_TYPE;
 import static org.jboss.netty.handler.codec.http.HttpMethod.GET;
+import static org.jboss.netty.handler.codec.http.HttpMethod.POST;
 import static org.jboss.netty.handler.codec.http.HttpResponseStatus.BAD_REQUEST;
 import static org.jboss.netty.handler.codec.http.HttpResponseStatus.FORBIDDEN;
 import static org.jboss.netty.handler.codec.http.HttpResponseStatus.INTERNAL_SERVER_ERROR;
+import static org.jboss.netty.handler.codec.http.HttpResponseStatus.INSUFFICIENT_STORAGE;
 import static org.jboss.netty.handler.codec.http.HttpResponseStatus.METHOD_NOT_ALLOWED;
 import static org.jboss.netty.handler.codec.http.HttpResponseStatus.NOT_FOUND;
 import static org.jboss.netty.handler.codec.http.HttpResponseStatus.OK;
+import static org.jboss.netty.handler.codec.http.HttpResponseStatus.SERVICE_UNAVAILABLE;
 import static org.jboss.netty.handler.codec.http.HttpResponseStatus.UNAUTHORIZED;
 import static org.jboss.netty.handler.codec.http.HttpVersion.HTTP_1_1;
 
@@ -49,6 +52,9 @@ import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Pattern;
@@ -71,7 +77,9 @@ import org.apache.tez.common.security.JobTokenIdentifier;
 import org.apache.tez.common.security.JobTokenSecretManager;
 import org.apache.tez.runtime.library.common.Constants;
 import org.apache.tez.runtime.library.common.security.SecureShuffleUtils;
+import org.apache.tez.runtime.library.common.shuffle.ShuffleUtils;
 import org.apache.tez.runtime.library.common.shuffle.orderedgrouped.ShuffleHeader;
+import org.apache.tez.runtime.library.common.shuffle.orderedgrouped.ShuffleRangeHeader;
 import org.apache.hadoop.metrics2.MetricsSystem;
 import org.apache.hadoop.metrics2.annotation.Metric;
 import org.apache.hadoop.metrics2.annotation.Metrics;
@@ -79,6 +87,7 @@ import org.apache.hadoop.metrics2.lib.DefaultMetricsSystem;
 import org.apache.hadoop.metrics2.lib.MutableCounterInt;
 import org.apache.hadoop.metrics2.lib.MutableCounterLong;
 import org.apache.hadoop.metrics2.lib.MutableGaugeInt;
+import org.apache.hadoop.metrics2.lib.MutableRate;
 import org.apache.hadoop.security.proto.SecurityProtos.TokenProto;
 import org.apache.hadoop.security.ssl.SSLFactory;
 import org.apache.hadoop.security.token.Token;
@@ -150,6 +159,7 @@ import com.google.common.cache.LoadingCache;
 import com.google.common.cache.RemovalListener;
 import com.google.common.cache.RemovalNotification;
 import com.google.common.cache.Weigher;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.protobuf.ByteString;
 
 public class ShuffleHandler extends AuxiliaryService {
@@ -256,6 +266,36 @@ public class ShuffleHandler extends AuxiliaryService {
   public static final int DEFAULT_SHUFFLE_MAX_SESSION_OPEN_FILES = 3;
   public static final String SHUFFLE_LISTEN_QUEUE_SIZE = "tez.shuffle.listen.queue.size";
   public static final int DEFAULT_SHUFFLE_LISTEN_QUEUE_SIZE = 128;
+  /* Bytes queued on a connection above which no further map outputs are
+   opened until the queue drained below the low watermark
+   */
+  public static final String SHUFFLE_WRITE_BUFFER_HIGH_WATERMARK =
+      "tez.shuffle.write-buffer.high-watermark";
+  public static final int DEFAULT_SHUFFLE_WRITE_BUFFER_HIGH_WATERMARK = 64 * 1024;
+  public static final String SHUFFLE_WRITE_BUFFER_LOW_WATERMARK =
+      "tez.shuffle.write-buffer.low-watermark";
+  public static final int DEFAULT_SHUFFLE_WRITE_BUFFER_LOW_WATERMARK = 32 * 1024;
+  /* Threads reading the index files of the map outputs a request will send
+   later into the index cache, 0 disables prefetching
+   */
+  public static final String SHUFFLE_INDEX_CACHE_PREFETCH_THREADS =
+      "tez.shuffle.indexcache.prefetch.threads";
+  public static final int DEFAULT_SHUFFLE_INDEX_CACHE_PREFETCH_THREADS = 2;
+  private static final int INDEX_CACHE_PREFETCH_QUEUE_SIZE = 1024;
+  /* Whether producers may push partitions to this node to be merged for
+   their consumers, see PushedPartitionStore
+   */
+  public static final String SHUFFLE_PUSH_ENABLED = "tez.shuffle.push.enabled";
+  public static final boolean DEFAULT_SHUFFLE_PUSH_ENABLED = false;
+  public static final String SHUFFLE_PUSH_MAX_BLOCK_BYTES = "tez.shuffle.push.max-block-bytes";
+  public static final int DEFAULT_SHUFFLE_PUSH_MAX_BLOCK_BYTES = 1024 * 1024;
+  /* Threads writing pushed partitions to disk, off the netty worker threads.
+   Pushes beyond what they have queued are refused and pulled instead
+   */
+  public static final String SHUFFLE_PUSH_WRITER_THREADS = "tez.shuffle.push.writer.threads";
+  public static final int DEFAULT_SHUFFLE_PUSH_WRITER_THREADS = 4;
+  private static final int PUSH_WRITER_QUEUE_SIZE = 256;
+  private static final Pattern VALID_EDGE_NAME = Pattern.compile("[A-Za-z0-9_\\-]+");
 
   boolean connectionKeepAliveEnabled = false;
   private int connectionKeepAliveTimeOut;
@@ -272,6 +312,16 @@ public class ShuffleHandler extends AuxiliaryService {
         MutableCounterInt shuffleOutputsOK;
     @Metric("# of current shuffle connections")
         MutableGaugeInt shuffleConnections;
+    @Metric("# of index cache hits")
+        MutableCounterLong indexCacheHits;
+    @Metric("# of index cache misses")
+        MutableCounterLong indexCacheMisses;
+    @Metric("Index file load time in milliseconds")
+        MutableRate indexCacheLoadTime;
+    @Metric("# of map output requests served from the map output cache")
+        MutableCounterLong mapOutputCacheHits;
+    @Metric("# of map output requests read from disk")
+        MutableCounterLong mapOutputCacheMisses;
 
     @Override
     public void operationComplete(ChannelFuture future) throws Exception {
@@ -312,8 +362,11 @@ public class ShuffleHandler extends AuxiliaryService {
         } else {
           future.getChannel().close();
         }
-      } else {
+      } else if (future.getChannel().isWritable()) {
         pipelineFact.getSHUFFLE().sendMap(reduceContext);
+      } else {
+        // Sent once the channel drained, see Shuffle#channelInterestChanged
+        reduceContext.getDeferredMaps().incrementAndGet();
       }
     }
   }
@@ -327,6 +380,7 @@ public class ShuffleHandler extends AuxiliaryService {
     private List<String> mapIds;
     private AtomicInteger mapsToWait;
     private AtomicInteger mapsToSend;
+    private AtomicInteger deferredMaps;
     private Range reduceRange;
     private ChannelHandlerContext ctx;
     private String user;
@@ -356,6 +410,11 @@ public class ShuffleHandler extends AuxiliaryService {
       * asynchronously. Used to decide which mapId should be sent next.
       */
       this.mapsToSend = new AtomicInteger(0);
+      /**
+      * Atomic count of the sendMap() calls postponed while the channel was
+      * not writable.
+      */
+      this.deferredMaps = new AtomicInteger(0);
       this.ctx = context;
       this.user = usr;
       this.infoMap = mapOutputInfoMap;
@@ -395,6 +454,10 @@ public class ShuffleHandler extends AuxiliaryService {
       return mapsToWait;
     }
 
+    public AtomicInteger getDeferredMaps() {
+      return deferredMaps;
+    }
+
     public boolean getKeepAlive() {
       return keepAlive;
     }
@@ -484,6 +547,9 @@ public class ShuffleHandler extends AuxiliaryService {
       LOG.error("Error during stopApp", e);
       // TODO add API to AuxiliaryServices to report failures
     }
+    if (pipelineFact != null) {
+      pipelineFact.getSHUFFLE().removePushedPartitions(jobId.toString());
+    }
   }
 
   @Override
@@ -550,6 +616,10 @@ public class ShuffleHandler extends AuxiliaryService {
     bootstrap.setOption("backlog", conf.getInt(SHUFFLE_LISTEN_QUEUE_SIZE,
         DEFAULT_SHUFFLE_LISTEN_QUEUE_SIZE));
     bootstrap.setOption("child.keepAlive", true);
+    bootstrap.setOption("child.writeBufferHighWaterMark", conf.getInt(
+        SHUFFLE_WRITE_BUFFER_HIGH_WATERMARK, DEFAULT_SHUFFLE_WRITE_BUFFER_HIGH_WATERMARK));
+    bootstrap.setOption("child.writeBufferLowWaterMark", conf.getInt(
+        SHUFFLE_WRITE_BUFFER_LOW_WATERMARK, DEFAULT_SHUFFLE_WRITE_BUFFER_LOW_WATERMARK));
     bootstrap.setPipelineFactory(pipelineFact);
     port = conf.getInt(SHUFFLE_PORT_CONFIG_KEY, DEFAULT_SHUFFLE_PORT);
     Channel ch = bootstrap.bind(new InetSocketAddress(port));
@@ -814,9 +884,17 @@ public class ShuffleHandler extends AuxiliaryService {
     final Shuffle SHUFFLE;
     private SSLFactory sslFactory;
     private final ChannelHandler idleStateHandler;
+    // Pushed partitions are sent as the content of a request
+    private final int maxRequestContentLength;
 
     public HttpPipelineFactory(Configuration conf, Timer timer) throws Exception {
       SHUFFLE = getShuffle(conf);
+      if (conf.getBoolean(SHUFFLE_PUSH_ENABLED, DEFAULT_SHUFFLE_PUSH_ENABLED)) {
+        maxRequestContentLength = Math.max(1 << 16,
+            conf.getInt(SHUFFLE_PUSH_MAX_BLOCK_BYTES, DEFAULT_SHUFFLE_PUSH_MAX_BLOCK_BYTES));
+      } else {
+        maxRequestContentLength = 1 << 16;
+      }
       if (conf.getBoolean(SHUFFLE_SSL_ENABLED_KEY,
                           SHUFFLE_SSL_ENABLED_DEFAULT)) {
         LOG.info("Encrypted shuffle is enabled.");
@@ -834,6 +912,7 @@ public class ShuffleHandler extends AuxiliaryService {
       if (sslFactory != null) {
         sslFactory.destroy();
       }
+      SHUFFLE.destroy();
     }
 
     @Override
@@ -843,7 +922,7 @@ public class ShuffleHandler extends AuxiliaryService {
         pipeline.addLast("ssl", new SslHandler(sslFactory.createSSLEngine()));
       }
       pipeline.addLast("decoder", new HttpRequestDecoder());
-      pipeline.addLast("aggregator", new HttpChunkAggregator(1 << 16));
+      pipeline.addLast("aggregator", new HttpChunkAggregator(maxRequestContentLength));
       pipeline.addLast("encoder", new HttpResponseEncoder());
       pipeline.addLast("chunking", new ChunkedWriteHandler());
       pipeline.addLast("shuffle", SHUFFLE);
@@ -860,10 +939,17 @@ public class ShuffleHandler extends AuxiliaryService {
   protected static class Range {
     final int first;
     final int last;
+    // Whether the partitions of a map output share one ShuffleRangeHeader
+    final boolean compactHeader;
 
     Range(int first, int last) {
+      this(first, last, false);
+    }
+
+    Range(int first, int last, boolean compactHeader) {
       this.first = first;
       this.last = last;
+      this.compactHeader = compactHeader;
     }
 
     int getFirst() {
@@ -874,9 +960,13 @@ public class ShuffleHandler extends AuxiliaryService {
       return last;
     }
 
+    boolean isCompactHeader() {
+      return compactHeader;
+    }
+
     @Override
     public String toString() {
-      return "range: " + first + "-" + last;
+      return "range: " + first + "-" + last + (compactHeader ? " (compact header)" : "");
     }
   }
 
@@ -887,6 +977,10 @@ public class ShuffleHandler extends AuxiliaryService {
     private static final int ALLOWED_CONCURRENCY = 16;
     private final Configuration conf;
     private final IndexCache indexCache;
+    private final ThreadPoolExecutor indexPrefetchExecutor;
+    private final MapOutputCache mapOutputCache;
+    private final PushedPartitionStore pushedPartitionStore;
+    private final ThreadPoolExecutor pushWriterExecutor;
     private final LocalDirAllocator lDirAlloc =
       new LocalDirAllocator(YarnConfiguration.NM_LOCAL_DIRS);
     private int port;
@@ -935,8 +1029,59 @@ public class ShuffleHandler extends AuxiliaryService {
 
     public Shuffle(Configuration conf) {
       this.conf = conf;
-      indexCache = new IndexCache(conf);
+      indexCache = new IndexCache(conf, metrics);
+      if (conf.getInt(MapOutputCache.MAP_OUTPUT_CACHE_MB,
+          MapOutputCache.DEFAULT_MAP_OUTPUT_CACHE_MB) > 0) {
+        mapOutputCache = new MapOutputCache(conf, metrics);
+      } else {
+        mapOutputCache = null;
+      }
       this.port = conf.getInt(SHUFFLE_PORT_CONFIG_KEY, DEFAULT_SHUFFLE_PORT);
+      if (conf.getBoolean(SHUFFLE_PUSH_ENABLED, DEFAULT_SHUFFLE_PUSH_ENABLED)) {
+        pushedPartitionStore = new PushedPartitionStore(conf,
+            new LocalDirAllocator(YarnConfiguration.NM_LOCAL_DIRS));
+        int writerThreads = Math.max(1, conf.getInt(SHUFFLE_PUSH_WRITER_THREADS,
+            DEFAULT_SHUFFLE_PUSH_WRITER_THREADS));
+        pushWriterExecutor = new ThreadPoolExecutor(writerThreads, writerThreads,
+            0L, TimeUnit.MILLISECONDS,
+            new LinkedBlockingQueue<Runnable>(PUSH_WRITER_QUEUE_SIZE),
+            new ThreadFactoryBuilder().setDaemon(true)
+                .setNameFormat("ShuffleHandler Push Writer #%d").build());
+      } else {
+        pushedPartitionStore = null;
+        pushWriterExecutor = null;
+      }
+      int prefetchThreads = conf.getInt(SHUFFLE_INDEX_CACHE_PREFETCH_THREADS,
+          DEFAULT_SHUFFLE_INDEX_CACHE_PREFETCH_THREADS);
+      if (prefetchThreads > 0) {
+        // Prefetching is best effort, requests are dropped when it falls behind
+        indexPrefetchExecutor = new ThreadPoolExecutor(prefetchThreads, prefetchThreads,
+            0L, TimeUnit.MILLISECONDS,
+            new LinkedBlockingQueue<Runnable>(INDEX_CACHE_PREFETCH_QUEUE_SIZE),
+            new ThreadFactoryBuilder().setDaemon(true)
+                .setNameFormat("ShuffleHandler IndexCache Prefetch #%d").build(),
+            new ThreadPoolExecutor.DiscardPolicy());
+      } else {
+        indexPrefetchExecutor = null;
+      }
+    }
+
+    void destroy() {
+      if (indexPrefetchExecutor != null) {
+        indexPrefetchExecutor.shutdownNow();
+      }
+      if (pushWriterExecutor != null) {
+        pushWriterExecutor.shutdownNow();
+      }
+      if (mapOutputCache != null) {
+        mapOutputCache.close();
+      }
+    }
+
+    void removePushedPartitions(String jobId) {
+      if (pushedPartitionStore != null) {
+        pushedPartitionStore.remove(PushedPartitionStore.getAppLocation(jobId));
+      }
     }
 
     public void setPort(int port) {
@@ -954,7 +1099,7 @@ public class ShuffleHandler extends AuxiliaryService {
       return ret;
     }
 
-    private Range splitReduces(List<String> reduceq) {
+    private Range splitReduces(List<String> reduceq, List<String> compactHeaderq) {
       if (null == reduceq || reduceq.size() != 1) {
         return null;
       }
@@ -964,7 +1109,9 @@ public class ShuffleHandler extends AuxiliaryService {
       if (reduce.length > 1) {
         last = Integer.parseInt(reduce[1]);
       }
-      return new Range(first, last);
+      boolean compactHeader = compactHeaderq != null && compactHeaderq.size() == 1
+          && Boolean.parseBoolean(compactHeaderq.get(0));
+      return new Range(first, last, compactHeader);
     }
 
     @Override
@@ -986,7 +1133,8 @@ public class ShuffleHandler extends AuxiliaryService {
     public void messageReceived(ChannelHandlerContext ctx, MessageEvent evt)
         throws Exception {
       HttpRequest request = (HttpRequest) evt.getMessage();
-      if (request.getMethod() != GET) {
+      boolean pushRequest = pushedPartitionStore != null && request.getMethod() == POST;
+      if (request.getMethod() != GET && !pushRequest) {
           sendError(ctx, METHOD_NOT_ALLOWED);
           return;
       }
@@ -1010,7 +1158,8 @@ public class ShuffleHandler extends AuxiliaryService {
         }
       }
       final List<String> mapIds = splitMaps(q.get("map"));
-      final Range reduceRange = splitReduces(q.get("reduce"));
+      final Range reduceRange = splitReduces(q.get("reduce"),
+          q.get(ShuffleRangeHeader.HTTP_PARAM_NAME));
       final List<String> jobQ = q.get("job");
       final List<String> dagIdQ = q.get("dag");
       if (LOG.isDebugEnabled()) {
@@ -1022,7 +1171,15 @@ public class ShuffleHandler extends AuxiliaryService {
             "\n  keepAlive: " + keepAliveParam);
       }
       // If the request is for Dag Deletion, process the request and send OK.
-      if (deleteDagDirectories(evt, dagCompletedQ, jobQ, dagIdQ))  {
+      if (deleteDagDirectories(ctx, evt, dagCompletedQ, jobQ, dagIdQ))  {
+        return;
+      }
+      if (pushRequest) {
+        receivePushedPartition(ctx, evt, q, mapIds, jobQ, dagIdQ, keepAliveParam);
+        return;
+      }
+      if (q.containsKey(ShuffleUtils.MERGED_HTTP_PARAM_NAME)) {
+        sendMergedPartition(ctx, evt, q, jobQ, dagIdQ, keepAliveParam);
         return;
       }
       if (mapIds == null || reduceRange == null || jobQ == null || dagIdQ == null) {
@@ -1092,7 +1249,16 @@ public class ShuffleHandler extends AuxiliaryService {
       boolean keepAlive = keepAliveParam || connectionKeepAliveEnabled;
       ReduceContext reduceContext = new ReduceContext(mapIds, reduceRange, ctx,
           user, mapOutputInfoMap, jobId, dagId, keepAlive);
-      for (int i = 0; i < Math.min(maxSessionOpenFiles, mapIds.size()); i++) {
+      ctx.setAttachment(reduceContext);
+      int initialMaps = Math.min(maxSessionOpenFiles, mapIds.size());
+      prefetchIndexInformation(mapIds.subList(initialMaps, mapIds.size()), jobId, dagId,
+          user, mapOutputInfoMap);
+      for (int i = 0; i < initialMaps; i++) {
+        if (!ch.isWritable()) {
+          // Don't open more map outputs while the client is not keeping up
+          reduceContext.getDeferredMaps().addAndGet(initialMaps - i);
+          return;
+        }
         ChannelFuture nextMap = sendMap(reduceContext);
         if(nextMap == null) {
           return;
@@ -1100,7 +1266,24 @@ public class ShuffleHandler extends AuxiliaryService {
       }
     }
 
-    private boolean deleteDagDirectories(MessageEvent evt,
+    @Override
+    public void channelInterestChanged(ChannelHandlerContext ctx, ChannelStateEvent evt)
+        throws Exception {
+      ReduceContext reduceContext = (ReduceContext) ctx.getAttachment();
+      if (reduceContext != null) {
+        // Resume the map outputs postponed while the channel was not writable
+        while (ctx.getChannel().isWritable()
+            && reduceContext.getDeferredMaps().get() > 0) {
+          reduceContext.getDeferredMaps().decrementAndGet();
+          if (sendMap(reduceContext) == null) {
+            break;
+          }
+        }
+      }
+      super.channelInterestChanged(ctx, evt);
+    }
+
+    private boolean deleteDagDirectories(ChannelHandlerContext ctx, MessageEvent evt,
                                          List<String> dagCompletedQ, List<String> jobQ,
                                          List<String> dagIdQ) {
       if (jobQ == null || jobQ.isEmpty()) {
@@ -1108,7 +1291,27 @@ public class ShuffleHandler extends AuxiliaryService {
       }
       if (dagCompletedQ != null && !dagCompletedQ.isEmpty() && dagCompletedQ.get(0).contains("delete")
           && dagIdQ != null && !dagIdQ.isEmpty()) {
-        String base = getDagLocation(jobQ.get(0), dagIdQ.get(0), userRsrc.get(jobQ.get(0)));
+        // Both are part of the local paths deleted below
+        int dagId = parseDagId(dagIdQ);
+        String base;
+        String pushedLocation;
+        try {
+          if (dagId < 0) {
+            throw new IllegalArgumentException("Bad dag id " + dagIdQ);
+          }
+          base = getDagLocation(jobQ.get(0), String.valueOf(dagId), userRsrc.get(jobQ.get(0)));
+          pushedLocation = PushedPartitionStore.getDagLocation(jobQ.get(0), dagId);
+        } catch (IllegalArgumentException e) {
+          sendError(ctx, "Bad job or dag parameter", BAD_REQUEST);
+          return true;
+        }
+        indexCache.removeDag(base);
+        if (mapOutputCache != null) {
+          mapOutputCache.removeDag(base);
+        }
+        if (pushedPartitionStore != null) {
+          pushedPartitionStore.remove(pushedLocation);
+        }
         try {
           FileContext lfc = FileContext.getLocalFSFileContext();
           for(Path dagPath : lDirAlloc.getAllLocalPathsToRead(base, conf)) {
@@ -1124,6 +1327,200 @@ public class ShuffleHandler extends AuxiliaryService {
       return false;
     }
 
+    /**
+     * @return the dag id of a request, or -1 if it is not a valid one
+     */
+    private int parseDagId(List<String> dagIdQ) {
+      if (dagIdQ == null || dagIdQ.size() != 1) {
+        return -1;
+      }
+      try {
+        return Math.max(-1, Integer.parseInt(dagIdQ.get(0)));
+      } catch (NumberFormatException e) {
+        return -1;
+      }
+    }
+
+    /**
+     * Stores a partition pushed by a producer, which is sent as the content
+     * of a POST request for a single map output and partition. The producer
+     * falls back to have the partition pulled if this fails. The partition is
+     * written to disk by the push writer threads, reads of the channel are
+     * suspended until it is written and the response is sent.
+     */
+    private void receivePushedPartition(final ChannelHandlerContext ctx, MessageEvent evt,
+        Map<String, List<String>> q, final List<String> mapIds, List<String> jobQ,
+        List<String> dagIdQ, final boolean keepAliveParam) throws IOException {
+      List<String> reduceQ = q.get("reduce");
+      List<String> edgeQ = q.get(ShuffleUtils.PUSH_EDGE_HTTP_PARAM_NAME);
+      List<String> rawLengthQ = q.get(ShuffleUtils.PUSH_RAW_LENGTH_HTTP_PARAM_NAME);
+      if (mapIds == null || mapIds.size() != 1 || reduceQ == null || reduceQ.size() != 1
+          || jobQ == null || jobQ.size() != 1 || dagIdQ == null || dagIdQ.size() != 1
+          || !isValidEdge(edgeQ) || rawLengthQ == null || rawLengthQ.size() != 1) {
+        sendError(ctx, "Required param job, dag, map, reduce, edge and rawLength", BAD_REQUEST);
+        return;
+      }
+      String jobId = jobQ.get(0);
+      final int partition;
+      final long rawLength;
+      final String dagLocation;
+      try {
+        partition = Integer.parseInt(reduceQ.get(0));
+        rawLength = Long.parseLong(rawLengthQ.get(0));
+        dagLocation = PushedPartitionStore.getDagLocation(jobId, parseDagId(dagIdQ));
+      } catch (IllegalArgumentException e) {
+        sendError(ctx, "Bad job, dag, reduce or rawLength parameter", BAD_REQUEST);
+        return;
+      }
+      final HttpRequest request = (HttpRequest) evt.getMessage();
+      final HttpResponse response = new DefaultHttpResponse(HTTP_1_1, OK);
+      try {
+        verifyRequest(jobId, ctx, request, response,
+            new URL("http", "", this.port, request.getUri()));
+      } catch (IOException e) {
+        LOG.warn("Shuffle push failure ", e);
+        sendError(ctx, e.getMessage(), UNAUTHORIZED);
+        return;
+      }
+      final Channel channel = evt.getChannel();
+      final String edge = edgeQ.get(0);
+      channel.setReadable(false);
+      try {
+        pushWriterExecutor.execute(new Runnable() {
+          @Override
+          public void run() {
+            try {
+              appendPushedPartition(ctx, channel, request, response, dagLocation, edge,
+                  partition, mapIds.get(0), rawLength, keepAliveParam);
+            } finally {
+              channel.setReadable(true);
+            }
+          }
+        });
+      } catch (RejectedExecutionException e) {
+        channel.setReadable(true);
+        sendError(ctx, "Too many pushed partitions are being written", SERVICE_UNAVAILABLE);
+      }
+    }
+
+    private void appendPushedPartition(ChannelHandlerContext ctx, Channel channel,
+        HttpRequest request, HttpResponse response, String dagLocation, String edge,
+        int partition, String mapId, long rawLength, boolean keepAliveParam) {
+      try {
+        boolean added = pushedPartitionStore.append(dagLocation, edge, partition,
+            mapId, rawLength, request.getContent());
+        if (!added && LOG.isDebugEnabled()) {
+          LOG.debug("Ignoring repeated push of " + mapId + ", partition " + partition);
+        }
+      } catch (PushedPartitionStore.QuotaExceededException e) {
+        if (LOG.isDebugEnabled()) {
+          LOG.debug(e.getMessage());
+        }
+        sendError(ctx, e.getMessage(), INSUFFICIENT_STORAGE);
+        return;
+      } catch (IOException e) {
+        LOG.warn("Could not store pushed partition " + partition + " of " + mapId, e);
+        sendError(ctx, getErrorMessage(e), INTERNAL_SERVER_ERROR);
+        return;
+      }
+      setResponseHeaders(response, keepAliveParam, 0);
+      ChannelFuture future = channel.write(response);
+      if (!(connectionKeepAliveEnabled || keepAliveParam)) {
+        future.addListener(ChannelFutureListener.CLOSE);
+      }
+    }
+
+    /**
+     * Sends the blocks pushed for a partition of an edge so far, as the
+     * number of blocks followed by the {@link ShuffleHeader} and the data of
+     * each block. Consumers fetching a partition repeatedly pass the number
+     * of blocks they already read, which are not sent again.
+     */
+    private void sendMergedPartition(ChannelHandlerContext ctx, MessageEvent evt,
+        Map<String, List<String>> q, List<String> jobQ, List<String> dagIdQ,
+        final boolean keepAliveParam) throws IOException {
+      List<String> reduceQ = q.get("reduce");
+      List<String> edgeQ = q.get(ShuffleUtils.PUSH_EDGE_HTTP_PARAM_NAME);
+      List<String> fromBlockQ = q.get(ShuffleUtils.MERGED_FROM_BLOCK_HTTP_PARAM_NAME);
+      if (pushedPartitionStore == null) {
+        sendError(ctx, "Shuffle push is not enabled", NOT_FOUND);
+        return;
+      }
+      if (reduceQ == null || reduceQ.size() != 1 || jobQ == null || jobQ.size() != 1
+          || dagIdQ == null || dagIdQ.size() != 1 || !isValidEdge(edgeQ)) {
+        sendError(ctx, "Required param job, dag, reduce and edge", BAD_REQUEST);
+        return;
+      }
+      String jobId = jobQ.get(0);
+      int partition;
+      int fromBlock = 0;
+      String dagLocation;
+      try {
+        partition = Integer.parseInt(reduceQ.get(0));
+        if (fromBlockQ != null && !fromBlockQ.isEmpty()) {
+          fromBlock = Integer.parseInt(fromBlockQ.get(0));
+        }
+        dagLocation = PushedPartitionStore.getDagLocation(jobId, parseDagId(dagIdQ));
+      } catch (IllegalArgumentException e) {
+        sendError(ctx, "Bad job, dag, reduce or fromBlock parameter", BAD_REQUEST);
+        return;
+      }
+      HttpRequest request = (HttpRequest) evt.getMessage();
+      HttpResponse response = new DefaultHttpResponse(HTTP_1_1, OK);
+      try {
+        verifyRequest(jobId, ctx, request, response,
+            new URL("http", "", this.port, request.getUri()));
+      } catch (IOException e) {
+        LOG.warn("Shuffle failure ", e);
+        sendError(ctx, e.getMessage(), UNAUTHORIZED);
+        return;
+      }
+      PushedPartitionStore.MergedPartition.Snapshot merged =
+          pushedPartitionStore.getMergedPartition(dagLocation, edgeQ.get(0), partition, fromBlock);
+      int blockCount = merged == null ? 0 : merged.blockCount;
+      long length = merged == null ? 0 : merged.length - merged.offset;
+      DataOutputBuffer dob = new DataOutputBuffer();
+      WritableUtils.writeVInt(dob, blockCount);
+
+      Channel ch = evt.getChannel();
+      TimeoutHandler timeoutHandler = (TimeoutHandler) ch.getPipeline().get(TIMEOUT_HANDLER);
+      timeoutHandler.setEnabledTimeout(false);
+      setResponseHeaders(response, keepAliveParam, dob.getLength() + length);
+      ch.write(response);
+      ChannelFuture writeFuture = ch.write(wrappedBuffer(dob.getData(), 0, dob.getLength()));
+      if (length > 0) {
+        RandomAccessFile file;
+        try {
+          file = new RandomAccessFile(merged.file, "r");
+        } catch (FileNotFoundException e) {
+          LOG.info(merged.file + " not found");
+          sendError(ctx, NOT_FOUND);
+          return;
+        }
+        writeFuture = writeFileRegion(ch, file, merged.file, merged.offset, length);
+      }
+      metrics.shuffleConnections.incr();
+      metrics.shuffleOutputBytes.incr(length);
+      writeFuture.addListener(metrics);
+      writeFuture.addListener(new ChannelFutureListener() {
+        @Override
+        public void operationComplete(ChannelFuture future) throws Exception {
+          if (future.isSuccess() && (connectionKeepAliveEnabled || keepAliveParam)) {
+            TimeoutHandler timeoutHandler =
+                (TimeoutHandler) future.getChannel().getPipeline().get(TIMEOUT_HANDLER);
+            timeoutHandler.setEnabledTimeout(true);
+          } else {
+            future.getChannel().close();
+          }
+        }
+      });
+    }
+
+    private boolean isValidEdge(List<String> edgeQ) {
+      // The edge is part of a local path
+      return edgeQ != null && edgeQ.size() == 1 && VALID_EDGE_NAME.matcher(edgeQ.get(0)).matches();
+    }
+
     /**
      * Calls sendMapOutput for the mapId pointed by ReduceContext.mapsToSend
      * and increments it. This method is first called by messageReceived()
@@ -1203,6 +1600,43 @@ public class ShuffleHandler extends AuxiliaryService {
       return dagStr;
     }
 
+    /**
+     * Reads the index files of the map outputs which are only sent once the
+     * first ones of a request completed, so they are cached by then.
+     */
+    private void prefetchIndexInformation(List<String> mapIds, final String jobId,
+        final String dagId, final String user, Map<String, MapOutputInfo> mapOutputInfoMap) {
+      if (indexPrefetchExecutor == null) {
+        return;
+      }
+      final List<String> prefetchMapIds = new ArrayList<String>();
+      for (String mapId : mapIds) {
+        if (!mapOutputInfoMap.containsKey(mapId)) {
+          prefetchMapIds.add(mapId);
+        }
+      }
+      if (prefetchMapIds.isEmpty()) {
+        return;
+      }
+      indexPrefetchExecutor.execute(new Runnable() {
+        @Override
+        public void run() {
+          for (String mapId : prefetchMapIds) {
+            try {
+              AttemptPathInfo pathInfo =
+                  pathCache.get(new AttemptPathIdentifier(jobId, dagId, user, mapId));
+              indexCache.getSpillRecord(mapId, pathInfo.indexPath, user);
+            } catch (Exception e) {
+              // The request reports the error when it gets to this map output
+              if (LOG.isDebugEnabled()) {
+                LOG.debug("Could not prefetch index of " + mapId + ": " + e);
+              }
+            }
+          }
+        }
+      });
+    }
+
     protected MapOutputInfo getMapOutputInfo(String dagId, String mapId,
                                              Range reduceRange, String jobId,
                                              String user) throws IOException {
@@ -1266,11 +1700,19 @@ public class ShuffleHandler extends AuxiliaryService {
       // Reduce count is written once per mapId
       int reduceCountVSize = WritableUtils.getVIntSize(reduceRange.getLast() - reduceRange.getFirst() + 1);
       for (String mapId : mapIds) {
-        contentLength += reduceCountVSize;
         MapOutputInfo outputInfo = getMapOutputInfo(dagId, mapId, reduceRange, jobId, user);
         if (mapOutputInfoMap.size() < mapOutputMetaInfoCacheSize) {
           mapOutputInfoMap.put(mapId, outputInfo);
         }
+        if (reduceRange.isCompactHeader()) {
+          ShuffleRangeHeader header = createRangeHeader(mapId, reduceRange, outputInfo);
+          contentLength += header.writeLength();
+          for (int reduce = reduceRange.getFirst(); reduce <= reduceRange.getLast(); reduce++) {
+            contentLength += outputInfo.getIndex(reduce).getPartLength();
+          }
+          continue;
+        }
+        contentLength += reduceCountVSize;
         for (int reduce = reduceRange.getFirst(); reduce <= reduceRange.getLast(); reduce++) {
           TezIndexRecord indexRecord = outputInfo.getIndex(reduce);
           ShuffleHeader header =
@@ -1283,6 +1725,20 @@ public class ShuffleHandler extends AuxiliaryService {
       return contentLength;
     }
 
+    private ShuffleRangeHeader createRangeHeader(String mapId, Range reduceRange,
+        MapOutputInfo outputInfo) {
+      int count = reduceRange.getLast() - reduceRange.getFirst() + 1;
+      long[] compressedLengths = new long[count];
+      long[] uncompressedLengths = new long[count];
+      for (int i = 0; i < count; i++) {
+        TezIndexRecord indexRecord = outputInfo.getIndex(reduceRange.getFirst() + i);
+        compressedLengths[i] = indexRecord.getPartLength();
+        uncompressedLengths[i] = indexRecord.getRawLength();
+      }
+      return new ShuffleRangeHeader(mapId, reduceRange.getFirst(), compressedLengths,
+          uncompressedLengths);
+    }
+
     protected void setResponseHeaders(HttpResponse response, boolean keepAliveParam, long contentLength) {
       if (connectionKeepAliveEnabled || keepAliveParam) {
         response.headers().set(HttpHeaders.Names.CONTENT_LENGTH, String.valueOf(contentLength));
@@ -1382,9 +1838,15 @@ public class ShuffleHandler extends AuxiliaryService {
       TezIndexRecord lastIndex = null;
 
       DataOutputBuffer dobRange = new DataOutputBuffer();
-      // Indicate how many record to be written
-      WritableUtils.writeVInt(dobRange, reduceRange.getLast() - reduceRange.getFirst() + 1);
-      ch.write(wrappedBuffer(dobRange.getData(), 0, dobRange.getLength()));
+      if (reduceRange.isCompactHeader()) {
+        // The count and the lengths of all the partitions in one table
+        ShuffleRangeHeader rangeHeader = createRangeHeader(mapId, reduceRange, outputInfo);
+        rangeHeader.writeCount(dobRange);
+        rangeHeader.write(dobRange);
+      } else {
+        // Indicate how many record to be written
+        WritableUtils.writeVInt(dobRange, reduceRange.getLast() - reduceRange.getFirst() + 1);
+      }
       for (int reduce = reduceRange.getFirst(); reduce <= reduceRange.getLast(); reduce++) {
         TezIndexRecord index = outputInfo.getIndex(reduce);
         // Records are only valid if they have a non-zero part length
@@ -1395,17 +1857,35 @@ public class ShuffleHandler extends AuxiliaryService {
           lastIndex = index;
         }
 
-        ShuffleHeader header = new ShuffleHeader(mapId, index.getPartLength(), index.getRawLength(), reduce);
-        DataOutputBuffer dob = new DataOutputBuffer();
-        header.write(dob);
-        // Free the memory needed to store the spill and index records
-        ch.write(wrappedBuffer(dob.getData(), 0, dob.getLength()));
+        if (!reduceRange.isCompactHeader()) {
+          ShuffleHeader header = new ShuffleHeader(mapId, index.getPartLength(), index.getRawLength(), reduce);
+          header.write(dobRange);
+        }
       }
+      // All the headers go out in one write ahead of the data
+      ch.write(wrappedBuffer(dobRange.getData(), 0, dobRange.getLength()));
+      // Free the memory needed to store the spill and index records
       outputInfo.finish();
 
       final long rangeOffset = firstIndex.getStartOffset();
       final long rangePartLength = lastIndex.getStartOffset() + lastIndex.getPartLength() - firstIndex.getStartOffset();
       final File spillFile = new File(outputInfo.mapOutputFileName.toString());
+      if (mapOutputCache != null) {
+        final MapOutputCache.CachedRegion region =
+            mapOutputCache.getRegion(spillFile, rangeOffset, rangePartLength, user);
+        if (region != null) {
+          ChannelFuture writeFuture = ch.write(wrappedBuffer(region.getBuffer()));
+          writeFuture.addListener(new ChannelFutureListener() {
+            @Override
+            public void operationComplete(ChannelFuture future) {
+              region.release();
+            }
+          });
+          metrics.shuffleConnections.incr();
+          metrics.shuffleOutputBytes.incr(rangePartLength); // optimistic
+          return writeFuture;
+        }
+      }
       RandomAccessFile spill;
       try {
         spill = SecureIOUtils.openForRandomRead(spillFile, "r", user, null);
@@ -1413,11 +1893,20 @@ public class ShuffleHandler extends AuxiliaryService {
         LOG.info(spillFile + " not found");
         return null;
       }
+      ChannelFuture writeFuture = writeFileRegion(ch, spill, spillFile, rangeOffset,
+          rangePartLength);
+      metrics.shuffleConnections.incr();
+      metrics.shuffleOutputBytes.incr(rangePartLength); // optimistic
+      return writeFuture;
+    }
+
+    private ChannelFuture writeFileRegion(Channel ch, RandomAccessFile file, File path,
+        long offset, long length) throws IOException {
       ChannelFuture writeFuture;
       if (ch.getPipeline().get(SslHandler.class) == null) {
-        final FadvisedFileRegion partition = new FadvisedFileRegion(spill,
-            rangeOffset, rangePartLength, manageOsCache, readaheadLength,
-            readaheadPool, spillFile.getAbsolutePath(),
+        final FadvisedFileRegion partition = new FadvisedFileRegion(file,
+            offset, length, manageOsCache, readaheadLength,
+            readaheadPool, path.getAbsolutePath(),
             shuffleBufferSize, shuffleTransferToAllowed);
         writeFuture = ch.write(partition);
         writeFuture.addListener(new ChannelFutureListener() {
@@ -1433,14 +1922,12 @@ public class ShuffleHandler extends AuxiliaryService {
         });
       } else {
         // HTTPS cannot be done with zero copy.
-        final FadvisedChunkedFile chunk = new FadvisedChunkedFile(spill,
-            rangeOffset, rangePartLength, sslFileBufferSize,
+        final FadvisedChunkedFile chunk = new FadvisedChunkedFile(file,
+            offset, length, sslFileBufferSize,
             manageOsCache, readaheadLength, readaheadPool,
-            spillFile.getAbsolutePath());
+            path.getAbsolutePath());
         writeFuture = ch.write(chunk);
       }
-      metrics.shuffleConnections.incr();
-      metrics.shuffleOutputBytes.incr(rangePartLength); // optimistic
       return writeFuture;
     }
 
@@ -313,6 +313,76 @@ public class TestIndexCache {
     timeoutThread.interrupt();
   }
 
+  @Test
+  public void testRecentlyUsedRetained() throws Exception {
+    fs.delete(p, true);
+    conf.setInt(INDEX_CACHE_MB, 1);
+    final int partsPerMap = 1000;
+    final int bytesPerFile = partsPerMap * 24;
+    final String user = UserGroupInformation.getCurrentUser().getShortUserName();
+    IndexCache cache = new IndexCache(conf);
+
+    // fill cache
+    int totalsize = bytesPerFile;
+    for (; totalsize < 1024 * 1024; totalsize += bytesPerFile) {
+      Path f = new Path(p, Integer.toString(totalsize, 36));
+      writeFile(fs, f, totalsize, partsPerMap);
+      cache.getIndexInformation(Integer.toString(totalsize, 36), 0, f, user);
+    }
+    // use the oldest entry again, then push out the next oldest
+    checkRecord(cache.getIndexInformation(Integer.toString(bytesPerFile, 36), 0,
+        new Path(p, Integer.toString(bytesPerFile, 36)), user), bytesPerFile);
+    Path f = new Path(p, Integer.toString(totalsize, 36));
+    writeFile(fs, f, totalsize, partsPerMap);
+    cache.getIndexInformation(Integer.toString(totalsize, 36), 0, f, user);
+    for (FileStatus stat : fs.listStatus(p)) {
+      fs.delete(stat.getPath(), true);
+    }
+
+    checkRecord(cache.getIndexInformation(Integer.toString(bytesPerFile, 36), 0,
+        new Path(p, Integer.toString(bytesPerFile, 36)), user), bytesPerFile);
+    try {
+      cache.getIndexInformation(Integer.toString(2 * bytesPerFile, 36), 0,
+          new Path(p, Integer.toString(2 * bytesPerFile, 36)), user);
+      fail("Least recently used entry was not evicted");
+    } catch (IOException e) {
+      if (!(e.getCause() instanceof FileNotFoundException)) {
+        throw e;
+      }
+    }
+    assertTrue(cache.checkTotalMemoryUsed());
+  }
+
+  @Test
+  public void testRemoveDag() throws Exception {
+    fs.delete(p, true);
+    conf.setInt(INDEX_CACHE_MB, 1);
+    final int partsPerMap = 10;
+    final int bytesPerFile = partsPerMap * 24;
+    final String user = UserGroupInformation.getCurrentUser().getShortUserName();
+    IndexCache cache = new IndexCache(conf);
+
+    Path dag1 = new Path(p, "dag_1/output/attempt_1/file.out.index");
+    Path dag2 = new Path(p, "dag_2/output/attempt_1/file.out.index");
+    writeFile(fs, dag1, bytesPerFile, partsPerMap);
+    writeFile(fs, dag2, bytesPerFile, partsPerMap);
+    cache.getIndexInformation("dag1map", 0, dag1, user);
+    cache.getIndexInformation("dag2map", 0, dag2, user);
+    fs.delete(p, true);
+
+    cache.removeDag("dag_1/");
+    assertTrue(cache.checkTotalMemoryUsed());
+    checkRecord(cache.getIndexInformation("dag2map", 0, dag2, user), bytesPerFile);
+    try {
+      cache.getIndexInformation("dag1map", 0, dag1, user);
+      fail("Index information of removed dag was still cached");
+    } catch (IOException e) {
+      if (!(e.getCause() instanceof FileNotFoundException)) {
+        throw e;
+      }
+    }
+  }
+
   private static void checkRecord(TezIndexRecord rec, long fill) {
     assertEquals(fill, rec.getStartOffset());
     assertEquals(fill, rec.getRawLength());
@@ -0,0 +1,229 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.tez.auxservices;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileUtil;
+import org.apache.hadoop.security.UserGroupInformation;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.util.concurrent.MoreExecutors;
+
+import static org.apache.tez.auxservices.MapOutputCache.MAP_OUTPUT_CACHE_MAX_REGION_BYTES;
+import static org.apache.tez.auxservices.MapOutputCache.MAP_OUTPUT_CACHE_MB;
+import static org.junit.Assert.*;
+
+public class TestMapOutputCache {
+  private static final int FILE_SIZE = 64 * 1024;
+
+  private Configuration conf;
+  private File dir;
+  private String user;
+
+  @Before
+  public void setUp() throws IOException {
+    conf = new Configuration();
+    conf.setInt(MAP_OUTPUT_CACHE_MB, 1);
+    dir = new File(System.getProperty("test.build.data", "/tmp"), "mapOutputCache");
+    FileUtil.fullyDelete(dir);
+    user = UserGroupInformation.getCurrentUser().getShortUserName();
+  }
+
+  @After
+  public void tearDown() {
+    FileUtil.fullyDelete(dir);
+  }
+
+  private MapOutputCache createCache() {
+    // Regions are loaded by the requesting thread
+    return new MapOutputCache(conf, null, MoreExecutors.sameThreadExecutor());
+  }
+
+  @Test
+  public void testCachedOnRepeatedRequest() throws Exception {
+    MapOutputCache cache = createCache();
+    File f = writeFile("dag_1/output/attempt_1/file.out");
+
+    // The first requests are served from disk, the second one loads the region
+    assertNull(cache.getRegion(f, 100, 1000, user));
+    assertEquals(0, cache.getTotalMemoryUsed());
+    assertNull(cache.getRegion(f, 100, 1000, user));
+    assertEquals(1000, cache.getTotalMemoryUsed());
+    checkRegion(cache.getRegion(f, 100, 1000, user), 100, 1000);
+
+    // Served from memory after the file is gone
+    assertTrue(f.delete());
+    checkRegion(cache.getRegion(f, 100, 1000, user), 100, 1000);
+    checkRegion(cache.getRegion(f, 100, 1000, user), 100, 1000);
+    // Other regions of the file are not cached
+    for (int i = 0; i < 3; i++) {
+      assertNull(cache.getRegion(f, 0, 1000, user));
+    }
+    assertEquals(1000, cache.getTotalMemoryUsed());
+  }
+
+  @Test
+  public void testLargeRegionNotCached() throws Exception {
+    conf.setInt(MAP_OUTPUT_CACHE_MAX_REGION_BYTES, 1000);
+    MapOutputCache cache = createCache();
+    File f = writeFile("dag_1/output/attempt_1/file.out");
+    for (int i = 0; i < 3; i++) {
+      assertNull(cache.getRegion(f, 0, 1001, user));
+    }
+    assertEquals(0, cache.getTotalMemoryUsed());
+  }
+
+  @Test
+  public void testEviction() throws Exception {
+    MapOutputCache cache = createCache();
+    File f = writeFile("dag_1/output/oldest/file.out");
+    cache.getRegion(f, 0, FILE_SIZE, user);
+    cache.getRegion(f, 0, FILE_SIZE, user);
+    checkRegion(cache.getRegion(f, 0, FILE_SIZE, user), 0, FILE_SIZE);
+    for (int i = 0; i < 2 * 1024 * 1024 / FILE_SIZE; i++) {
+      File other = writeFile("dag_1/output/attempt_" + i + "/file.out");
+      cache.getRegion(other, 0, FILE_SIZE, user);
+      cache.getRegion(other, 0, FILE_SIZE, user);
+      assertTrue(cache.getTotalMemoryUsed() <= 1024 * 1024);
+    }
+    assertTrue(cache.getTotalMemoryUsed() > 0);
+    // The oldest region was evicted
+    assertNull(cache.getRegion(f, 0, FILE_SIZE, user));
+  }
+
+  @Test
+  public void testFreedAfterLastRelease() throws Exception {
+    MapOutputCache cache = createCache();
+    File f = writeFile("dag_1/output/attempt_1/file.out");
+    cache.getRegion(f, 0, 1000, user);
+    cache.getRegion(f, 0, 1000, user);
+    MapOutputCache.CachedRegion first = cache.getRegion(f, 0, 1000, user);
+    MapOutputCache.CachedRegion second = cache.getRegion(f, 0, 1000, user);
+    assertNotNull(first);
+    assertNotNull(second);
+
+    // Evicted regions are freed once the last write completed
+    cache.removeDag("dag_1/");
+    assertNull(cache.getRegion(f, 0, 1000, user));
+    assertEquals(1000, cache.getTotalMemoryUsed());
+    first.release();
+    assertEquals(1000, cache.getTotalMemoryUsed());
+    checkRegion(second, 0, 1000);
+    assertEquals(0, cache.getTotalMemoryUsed());
+
+    // Memory held by evicted regions counts against the cache size
+    conf.setInt(MAP_OUTPUT_CACHE_MAX_REGION_BYTES, FILE_SIZE);
+    cache = createCache();
+    int numFiles = 2 * 1024 * 1024 / FILE_SIZE;
+    for (int i = 0; i < numFiles; i++) {
+      File other = writeFile("dag_1/output/attempt_" + i + "/file.out");
+      cache.getRegion(other, 0, FILE_SIZE, user);
+      cache.getRegion(other, 0, FILE_SIZE, user);
+      // Never released
+      cache.getRegion(other, 0, FILE_SIZE, user);
+      assertTrue(cache.getTotalMemoryUsed() <= 1024 * 1024 + FILE_SIZE);
+    }
+    File last = writeFile("dag_1/output/last/file.out");
+    cache.getRegion(last, 0, FILE_SIZE, user);
+    cache.getRegion(last, 0, FILE_SIZE, user);
+    assertNull(cache.getRegion(last, 0, FILE_SIZE, user));
+  }
+
+  @Test
+  public void testLargeRegionFitsInCache() throws Exception {
+    // Regions up to the whole cache size are kept, the cache is not split
+    // into segments holding a fraction of it each
+    int length = 768 * 1024;
+    conf.setInt(MAP_OUTPUT_CACHE_MAX_REGION_BYTES, length);
+    MapOutputCache cache = createCache();
+    File f = writeFile("dag_1/output/attempt_1/file.out", length);
+    cache.getRegion(f, 0, length, user);
+    cache.getRegion(f, 0, length, user);
+    assertEquals(length, cache.getTotalMemoryUsed());
+    checkRegion(cache.getRegion(f, 0, length, user), 0, length);
+  }
+
+  @Test
+  public void testFailedLoadReleasesMemory() throws Exception {
+    MapOutputCache cache = createCache();
+    File f = writeFile("dag_1/output/attempt_1/file.out");
+    // The region ends beyond the end of the file
+    for (int i = 0; i < 3; i++) {
+      assertNull(cache.getRegion(f, FILE_SIZE - 100, 1000, user));
+      assertEquals(0, cache.getTotalMemoryUsed());
+    }
+  }
+
+  @Test
+  public void testRemoveDag() throws Exception {
+    MapOutputCache cache = createCache();
+    File dag1 = writeFile("dag_1/output/attempt_1/file.out");
+    File dag2 = writeFile("dag_2/output/attempt_1/file.out");
+    for (File f : new File[] { dag1, dag2 }) {
+      cache.getRegion(f, 0, 1000, user);
+      cache.getRegion(f, 0, 1000, user);
+    }
+    assertEquals(2000, cache.getTotalMemoryUsed());
+
+    cache.removeDag("dag_1/");
+    assertEquals(1000, cache.getTotalMemoryUsed());
+    assertTrue(dag2.delete());
+    checkRegion(cache.getRegion(dag2, 0, 1000, user), 0, 1000);
+    assertNull(cache.getRegion(dag1, 0, 1000, user));
+
+    cache.close();
+    assertEquals(0, cache.getTotalMemoryUsed());
+  }
+
+  private File writeFile(String name) throws IOException {
+    return writeFile(name, FILE_SIZE);
+  }
+
+  private File writeFile(String name, int size) throws IOException {
+    File f = new File(dir, name);
+    assertTrue(f.getParentFile().isDirectory() || f.getParentFile().mkdirs());
+    byte[] data = new byte[size];
+    for (int i = 0; i < data.length; i++) {
+      data[i] = (byte) i;
+    }
+    FileOutputStream out = new FileOutputStream(f);
+    try {
+      out.write(data);
+    } finally {
+      out.close();
+    }
+    return f;
+  }
+
+  private static void checkRegion(MapOutputCache.CachedRegion region, int offset, int length) {
+    assertNotNull(region);
+    ByteBuffer buffer = region.getBuffer();
+    assertEquals(length, buffer.remaining());
+    for (int i = 0; i < length; i++) {
+      assertEquals((byte) (offset + i), buffer.get());
+    }
+    region.release();
+  }
+}
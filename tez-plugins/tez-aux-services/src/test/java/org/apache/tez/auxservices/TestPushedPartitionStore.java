@@ -0,0 +1,218 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.tez.auxservices;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileUtil;
+import org.apache.hadoop.fs.LocalDirAllocator;
+import org.apache.hadoop.io.IOUtils;
+import org.apache.hadoop.yarn.conf.YarnConfiguration;
+import org.apache.tez.runtime.library.common.shuffle.orderedgrouped.ShuffleHeader;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TestPushedPartitionStore {
+
+  private static final String DAG_LOCATION =
+      PushedPartitionStore.getDagLocation("job_1_0001", 1);
+
+  private File dir;
+  private Configuration conf;
+  private PushedPartitionStore store;
+
+  @Before
+  public void setUp() {
+    dir = new File(System.getProperty("test.build.data", "/tmp"), "pushedPartitionStore");
+    FileUtil.fullyDelete(dir);
+    assertTrue(dir.mkdirs());
+    conf = new Configuration();
+    conf.set(YarnConfiguration.NM_LOCAL_DIRS, dir.getAbsolutePath());
+    store = new PushedPartitionStore(conf,
+        new LocalDirAllocator(YarnConfiguration.NM_LOCAL_DIRS));
+  }
+
+  @After
+  public void tearDown() {
+    FileUtil.fullyDelete(dir);
+  }
+
+  @Test
+  public void testAppend() throws Exception {
+    assertNull(store.getMergedPartition(DAG_LOCATION, "a-b", 3, 0));
+    assertTrue(store.append(DAG_LOCATION, "a-b", 3, "attempt_1", 150, block(100, 1)));
+    assertTrue(store.append(DAG_LOCATION, "a-b", 3, "attempt_2", 300, block(200, 2)));
+    // Repeated pushes are ignored
+    assertFalse(store.append(DAG_LOCATION, "a-b", 3, "attempt_1", 150, block(100, 1)));
+    // Other partitions and edges are separate
+    assertTrue(store.append(DAG_LOCATION, "a-b", 4, "attempt_1", 150, block(100, 1)));
+    assertTrue(store.append(DAG_LOCATION, "a-c", 3, "attempt_1", 150, block(100, 1)));
+
+    PushedPartitionStore.MergedPartition.Snapshot merged =
+        store.getMergedPartition(DAG_LOCATION, "a-b", 3, 0);
+    assertEquals(2, merged.blockCount);
+    assertEquals(0, merged.offset);
+    assertEquals(merged.length, merged.file.length());
+
+    DataInputStream in = new DataInputStream(new FileInputStream(merged.file));
+    try {
+      checkBlock(in, "attempt_1", 3, 100, 150, 1);
+      checkBlock(in, "attempt_2", 3, 200, 300, 2);
+      assertEquals(-1, in.read());
+    } finally {
+      in.close();
+    }
+
+    // Blocks read before are skipped
+    merged = store.getMergedPartition(DAG_LOCATION, "a-b", 3, 1);
+    assertEquals(1, merged.blockCount);
+    in = new DataInputStream(new FileInputStream(merged.file));
+    try {
+      IOUtils.skipFully(in, merged.offset);
+      checkBlock(in, "attempt_2", 3, 200, 300, 2);
+      assertEquals(-1, in.read());
+    } finally {
+      in.close();
+    }
+    merged = store.getMergedPartition(DAG_LOCATION, "a-b", 3, 2);
+    assertEquals(0, merged.blockCount);
+    assertEquals(merged.length, merged.offset);
+  }
+
+  @Test
+  public void testQuota() throws Exception {
+    conf.setLong(PushedPartitionStore.SHUFFLE_PUSH_MAX_STORED_MB, 1);
+    store = new PushedPartitionStore(conf,
+        new LocalDirAllocator(YarnConfiguration.NM_LOCAL_DIRS));
+    String otherDag = PushedPartitionStore.getDagLocation("job_1_0001", 2);
+    assertTrue(store.append(DAG_LOCATION, "a-b", 0, "attempt_1", 10, block(600 * 1024, 1)));
+    long stored = store.getStoredBytes();
+    assertTrue(stored > 600 * 1024);
+    try {
+      store.append(otherDag, "a-b", 0, "attempt_2", 10, block(600 * 1024, 2));
+      fail("Expected the quota to be exceeded");
+    } catch (PushedPartitionStore.QuotaExceededException e) {
+      // expected
+    }
+    assertEquals(stored, store.getStoredBytes());
+    assertNull(store.getMergedPartition(otherDag, "a-b", 0, 0));
+    // Repeated pushes are not counted
+    assertFalse(store.append(DAG_LOCATION, "a-b", 0, "attempt_1", 10, block(100, 1)));
+    assertEquals(stored, store.getStoredBytes());
+
+    // Removing a DAG frees its space
+    store.remove(DAG_LOCATION);
+    assertEquals(0, store.getStoredBytes());
+    assertTrue(store.append(otherDag, "a-b", 0, "attempt_2", 10, block(600 * 1024, 2)));
+  }
+
+  @Test
+  public void testRemove() throws Exception {
+    String otherDag = PushedPartitionStore.getDagLocation("job_1_0001", 2);
+    store.append(DAG_LOCATION, "a-b", 0, "attempt_1", 10, block(10, 1));
+    store.append(otherDag, "a-b", 0, "attempt_1", 10, block(10, 1));
+    File file = store.getMergedPartition(DAG_LOCATION, "a-b", 0, 0).file;
+    assertTrue(file.exists());
+
+    store.remove(DAG_LOCATION);
+    assertNull(store.getMergedPartition(DAG_LOCATION, "a-b", 0, 0));
+    assertFalse(file.exists());
+    assertNotNull(store.getMergedPartition(otherDag, "a-b", 0, 0));
+
+    store.remove(PushedPartitionStore.getAppLocation("job_1_0001"));
+    assertNull(store.getMergedPartition(otherDag, "a-b", 0, 0));
+  }
+
+  @Test
+  public void testBadLocation() throws Exception {
+    String[] badJobIds = {"..", "job_1_0001/..", "job_../.._0001", "job_1/../.._0001",
+        "job_1_../..", ""};
+    for (String jobId : badJobIds) {
+      try {
+        PushedPartitionStore.getDagLocation(jobId, 1);
+        fail("Expected a bad job id for " + jobId);
+      } catch (IllegalArgumentException e) {
+        // expected
+      }
+      try {
+        PushedPartitionStore.getAppLocation(jobId);
+        fail("Expected a bad job id for " + jobId);
+      } catch (IllegalArgumentException e) {
+        // expected
+      }
+    }
+    try {
+      PushedPartitionStore.getDagLocation("job_1_0001", -1);
+      fail("Expected a bad dag id");
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+
+    File outside = new File(dir, "outside");
+    assertTrue(outside.mkdirs());
+    try {
+      store.append(DAG_LOCATION + "../../../", "outside", 0, "attempt_1", 10, block(10, 1));
+      fail("Expected a bad location");
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+    try {
+      store.remove(PushedPartitionStore.PUSHED_DIR + "/../outside");
+      fail("Expected a bad location");
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+    try {
+      store.remove(PushedPartitionStore.PUSHED_DIR + "/");
+      fail("Expected a bad location");
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+    assertTrue(outside.exists());
+  }
+
+  private static ChannelBuffer block(int length, int value) {
+    byte[] data = new byte[length];
+    for (int i = 0; i < length; i++) {
+      data[i] = (byte) (value + i);
+    }
+    return ChannelBuffers.wrappedBuffer(data);
+  }
+
+  private static void checkBlock(DataInputStream in, String mapId, int partition, int length,
+      long rawLength, int value) throws IOException {
+    ShuffleHeader header = new ShuffleHeader();
+    header.readFields(in);
+    assertEquals(mapId, header.getMapId());
+    assertEquals(partition, header.getPartition());
+    assertEquals(length, header.getCompressedLength());
+    assertEquals(rawLength, header.getUncompressedLength());
+    for (int i = 0; i < length; i++) {
+      assertEquals((byte) (value + i), in.readByte());
+    }
+  }
+}
@@ -82,6 +82,7 @@ import org.jboss.netty.channel.Channel;
 import org.jboss.netty.channel.ChannelFuture;
 import org.jboss.netty.channel.ChannelHandlerContext;
 import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.channel.ChannelStateEvent;
 import org.jboss.netty.channel.socket.SocketChannel;
 import org.jboss.netty.channel.MessageEvent;
 import org.jboss.netty.channel.AbstractChannel;
@@ -1254,6 +1255,73 @@ public class TestShuffleHandler {
     }
   }
 
+  @Test(timeout = 10000)
+  public void testPushedPartition() throws Exception {
+    Configuration conf = new Configuration();
+    conf.setInt(ShuffleHandler.SHUFFLE_PORT_CONFIG_KEY, 0);
+    conf.setBoolean(ShuffleHandler.SHUFFLE_PUSH_ENABLED, true);
+    conf.setInt(ShuffleHandler.SHUFFLE_PUSH_WRITER_THREADS, 1);
+    File absLogDir = new File("target", TestShuffleHandler.class.
+        getSimpleName() + "PushDir").getAbsoluteFile();
+    conf.set(YarnConfiguration.NM_LOCAL_DIRS, absLogDir.getAbsolutePath());
+    ShuffleHandler shuffleHandler = new ShuffleHandler() {
+      @Override
+      protected Shuffle getShuffle(Configuration conf) {
+        return new Shuffle(conf) {
+          @Override
+          protected void verifyRequest(String appid, ChannelHandlerContext ctx,
+              HttpRequest request, HttpResponse response, URL requestUri)
+              throws IOException {
+            // Do nothing.
+          }
+        };
+      }
+    };
+    shuffleHandler.init(conf);
+    try {
+      shuffleHandler.start();
+      String base = "http://127.0.0.1:"
+          + shuffleHandler.getConfig().get(ShuffleHandler.SHUFFLE_PORT_CONFIG_KEY)
+          + "/mapOutput?job=job_12345_0001&dag=1&reduce=0&edge=e1";
+      // The response is sent once the partition is written by the push writer
+      for (int i = 0; i < 2; i++) {
+        byte[] data = ("pushed block " + i).getBytes();
+        URL url = new URL(base + "&map=attempt_12345_1_m_" + i + "_0&rawLength=" + data.length);
+        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+        conn.setRequestMethod("POST");
+        conn.setDoOutput(true);
+        conn.setRequestProperty(ShuffleHeader.HTTP_HEADER_NAME,
+            ShuffleHeader.DEFAULT_HTTP_HEADER_NAME);
+        conn.setRequestProperty(ShuffleHeader.HTTP_HEADER_VERSION,
+            ShuffleHeader.DEFAULT_HTTP_HEADER_VERSION);
+        conn.getOutputStream().write(data);
+        assertEquals(HttpURLConnection.HTTP_OK, conn.getResponseCode());
+        conn.disconnect();
+      }
+
+      HttpURLConnection conn = (HttpURLConnection) new URL(base + "&merged=true")
+          .openConnection();
+      conn.setRequestProperty(ShuffleHeader.HTTP_HEADER_NAME,
+          ShuffleHeader.DEFAULT_HTTP_HEADER_NAME);
+      conn.setRequestProperty(ShuffleHeader.HTTP_HEADER_VERSION,
+          ShuffleHeader.DEFAULT_HTTP_HEADER_VERSION);
+      DataInputStream in = new DataInputStream(conn.getInputStream());
+      assertEquals(2, WritableUtils.readVInt(in));
+      for (int i = 0; i < 2; i++) {
+        ShuffleHeader header = new ShuffleHeader();
+        header.readFields(in);
+        assertEquals("attempt_12345_1_m_" + i + "_0", header.getMapId());
+        byte[] data = new byte[(int) header.getCompressedLength()];
+        in.readFully(data);
+        assertEquals("pushed block " + i, new String(data));
+      }
+      in.close();
+    } finally {
+      shuffleHandler.stop();
+      FileUtil.fullyDelete(absLogDir);
+    }
+  }
+
   @Test(timeout = 4000)
   public void testSendMapCount() throws Exception {
     final List<ShuffleHandler.ReduceMapFileCount> listenerList =
@@ -1279,6 +1347,7 @@ public class TestShuffleHandler {
     when(mockCtx.getChannel()).thenReturn(mockCh);
     Mockito.doReturn(mockFuture).when(mockCh).write(Mockito.any(Object.class));
     when(mockCh.write(Object.class)).thenReturn(mockFuture);
+    when(mockCh.isWritable()).thenReturn(true);
 
     //Mock MessageEvent behavior
     Mockito.doReturn(mockCh).when(mockEvt).getChannel();
@@ -1306,6 +1375,70 @@ public class TestShuffleHandler {
     sh.close();
   }
 
+  @Test(timeout = 4000)
+  public void testSendMapDeferredWhileNotWritable() throws Exception {
+    final List<ShuffleHandler.ReduceMapFileCount> listenerList =
+        new ArrayList<ShuffleHandler.ReduceMapFileCount>();
+
+    final ChannelHandlerContext mockCtx =
+        mock(ChannelHandlerContext.class);
+    final MessageEvent mockEvt = mock(MessageEvent.class);
+    final Channel mockCh = mock(AbstractChannel.class);
+    final ChannelPipeline mockPipeline = Mockito.mock(ChannelPipeline.class);
+    final HttpRequest mockHttpRequest = createMockHttpRequest();
+    final ChannelFuture mockFuture = createMockChannelFuture(mockCh,
+        listenerList);
+    final ShuffleHandler.TimeoutHandler timerHandler =
+        new ShuffleHandler.TimeoutHandler();
+
+    when(mockCtx.getChannel()).thenReturn(mockCh);
+    final Object[] attachment = new Object[1];
+    Mockito.doAnswer(new Answer() {
+      @Override
+      public Object answer(InvocationOnMock invocation) throws Throwable {
+        attachment[0] = invocation.getArguments()[0];
+        return null;
+      }
+    }).when(mockCtx).setAttachment(Mockito.any());
+    Mockito.doAnswer(new Answer() {
+      @Override
+      public Object answer(InvocationOnMock invocation) throws Throwable {
+        return attachment[0];
+      }
+    }).when(mockCtx).getAttachment();
+    when(mockCh.getPipeline()).thenReturn(mockPipeline);
+    when(mockPipeline.get(Mockito.any(String.class))).thenReturn(timerHandler);
+    Mockito.doReturn(mockFuture).when(mockCh).write(Mockito.any(Object.class));
+    when(mockCh.isWritable()).thenReturn(false);
+    when(mockEvt.getChannel()).thenReturn(mockCh);
+    Mockito.doReturn(mockHttpRequest).when(mockEvt).getMessage();
+
+    final ShuffleHandler sh = new MockShuffleHandler();
+    Configuration conf = new Configuration();
+    conf.setInt(ShuffleHandler.SHUFFLE_PORT_CONFIG_KEY, 0);
+    sh.init(conf);
+    sh.start();
+    ShuffleHandler.Shuffle shuffle = sh.getShuffle(conf);
+    shuffle.messageReceived(mockCtx, mockEvt);
+    // Nothing is sent until the channel is writable
+    assertEquals(0, listenerList.size());
+
+    when(mockCh.isWritable()).thenReturn(true);
+    shuffle.channelInterestChanged(mockCtx, mock(ChannelStateEvent.class));
+    int maxOpenFiles = conf.getInt(ShuffleHandler.SHUFFLE_MAX_SESSION_OPEN_FILES,
+        ShuffleHandler.DEFAULT_SHUFFLE_MAX_SESSION_OPEN_FILES);
+    assertEquals(maxOpenFiles, listenerList.size());
+
+    // A completed map output is replaced once the channel drained
+    when(mockCh.isWritable()).thenReturn(false);
+    listenerList.remove(0).operationComplete(mockFuture);
+    assertEquals(maxOpenFiles - 1, listenerList.size());
+    when(mockCh.isWritable()).thenReturn(true);
+    shuffle.channelInterestChanged(mockCtx, mock(ChannelStateEvent.class));
+    assertEquals(maxOpenFiles, listenerList.size());
+    sh.close();
+  }
+
   public ChannelFuture createMockChannelFuture(Channel mockCh,
       final List<ShuffleHandler.ReduceMapFileCount> listenerList) {
     final ChannelFuture mockFuture = mock(ChannelFuture.class);
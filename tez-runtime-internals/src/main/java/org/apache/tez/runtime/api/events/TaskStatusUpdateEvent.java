@@ -26,6 +26,7 @@ import org.apache.hadoop.io.Writable;
 import org.apache.tez.common.counters.TezCounters;
 import org.apache.tez.runtime.api.Event;
 import org.apache.tez.runtime.api.impl.TaskStatistics;
+import org.apache.tez.runtime.api.impl.TezCountersDelta;
 
 public class TaskStatusUpdateEvent extends Event implements Writable {
 
@@ -33,6 +34,7 @@ public class TaskStatusUpdateEvent extends Event implements Writable {
   private float progress;
   boolean progressNotified;
   private TaskStatistics statistics;
+  private TezCountersDelta countersDelta;
 
   public TaskStatusUpdateEvent() {
   }
@@ -45,6 +47,18 @@ public class TaskStatusUpdateEvent extends Event implements Writable {
     this.progressNotified = progressNotified;
   }
 
+  /**
+   * Creates an update which carries the counters as the changes since the
+   * previous delta of the same attempt, instead of all the counters.
+   */
+  public static TaskStatusUpdateEvent createWithCountersDelta(TezCountersDelta countersDelta,
+      float progress, TaskStatistics statistics, boolean progressNotified) {
+    TaskStatusUpdateEvent event = new TaskStatusUpdateEvent(null, progress, statistics,
+        progressNotified);
+    event.countersDelta = countersDelta;
+    return event;
+  }
+
   public TezCounters getCounters() {
     return tezCounters;
   }
@@ -53,6 +67,10 @@ public class TaskStatusUpdateEvent extends Event implements Writable {
     return progress;
   }
   
+  public TezCountersDelta getCountersDelta() {
+    return countersDelta;
+  }
+
   public TaskStatistics getStatistics() {
     return statistics;
   }
@@ -77,6 +95,12 @@ public class TaskStatusUpdateEvent extends Event implements Writable {
     } else {
       out.writeBoolean(false);
     }
+    if (countersDelta != null) {
+      out.writeBoolean(true);
+      countersDelta.write(out);
+    } else {
+      out.writeBoolean(false);
+    }
   }
 
   @Override
@@ -91,6 +115,10 @@ public class TaskStatusUpdateEvent extends Event implements Writable {
       statistics = new TaskStatistics();
       statistics.readFields(in);
     }
+    if (in.readBoolean()) {
+      countersDelta = new TezCountersDelta();
+      countersDelta.readFields(in);
+    }
   }
 
 }
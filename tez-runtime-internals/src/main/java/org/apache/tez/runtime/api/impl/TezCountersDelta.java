@@ -0,0 +1,332 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.runtime.api.impl;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableUtils;
+import org.apache.hadoop.util.StringInterner;
+import org.apache.tez.common.counters.CounterGroup;
+import org.apache.tez.common.counters.TezCounter;
+import org.apache.tez.common.counters.TezCounters;
+import org.apache.tez.dag.api.TezUncheckedException;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * The counters of a task attempt, as the changes since the previous delta.
+ * Groups and counters are given an integer id the first time they are sent,
+ * along with their names, and are referred to by id afterwards. Only the
+ * counters whose value changed are included. An {@link Encoder} on the task
+ * side and a {@link Decoder} in the AM keep the state of one attempt, and
+ * every delta produced by the encoder has to be decoded in order. Every few
+ * deltas the encoder sends a snapshot instead, which defines and carries all
+ * the counters and re-bases the decoder.
+ */
+public class TezCountersDelta implements Writable {
+
+  private boolean snapshot = false;
+  private final List<GroupDefinition> newGroups = Lists.newArrayList();
+  private final List<CounterDefinition> newCounters = Lists.newArrayList();
+  private int numValues = 0;
+  private int[] valueIds = new int[0];
+  private long[] values = new long[0];
+
+  private static class GroupDefinition {
+    final int id;
+    final String name;
+    final String displayName;
+
+    GroupDefinition(int id, String name, String displayName) {
+      this.id = id;
+      this.name = name;
+      this.displayName = displayName;
+    }
+  }
+
+  private static class CounterDefinition {
+    final int id;
+    final int groupId;
+    final String name;
+    final String displayName;
+
+    CounterDefinition(int id, int groupId, String name, String displayName) {
+      this.id = id;
+      this.groupId = groupId;
+      this.name = name;
+      this.displayName = displayName;
+    }
+  }
+
+  /**
+   * @return true if this delta carries all the counters, and replaces what the
+   *         decoder knows of the attempt
+   */
+  public boolean isSnapshot() {
+    return snapshot;
+  }
+
+  /**
+   * @return the number of counter values in this delta
+   */
+  public int getNumValues() {
+    return numValues;
+  }
+
+  private void addValue(int counterId, long value) {
+    if (numValues == valueIds.length) {
+      int capacity = Math.max(16, numValues * 2);
+      valueIds = Arrays.copyOf(valueIds, capacity);
+      values = Arrays.copyOf(values, capacity);
+    }
+    valueIds[numValues] = counterId;
+    values[numValues] = value;
+    numValues++;
+  }
+
+  @Override
+  public void write(DataOutput out) throws IOException {
+    out.writeBoolean(snapshot);
+    WritableUtils.writeVInt(out, newGroups.size());
+    for (GroupDefinition group : newGroups) {
+      WritableUtils.writeVInt(out, group.id);
+      Text.writeString(out, group.name);
+      Text.writeString(out, group.displayName);
+    }
+    WritableUtils.writeVInt(out, newCounters.size());
+    for (CounterDefinition counter : newCounters) {
+      WritableUtils.writeVInt(out, counter.id);
+      WritableUtils.writeVInt(out, counter.groupId);
+      Text.writeString(out, counter.name);
+      Text.writeString(out, counter.displayName);
+    }
+    WritableUtils.writeVInt(out, numValues);
+    for (int i = 0; i < numValues; i++) {
+      WritableUtils.writeVInt(out, valueIds[i]);
+      WritableUtils.writeVLong(out, values[i]);
+    }
+  }
+
+  @Override
+  public void readFields(DataInput in) throws IOException {
+    snapshot = in.readBoolean();
+    newGroups.clear();
+    newCounters.clear();
+    int numGroups = WritableUtils.readVInt(in);
+    for (int i = 0; i < numGroups; i++) {
+      int id = WritableUtils.readVInt(in);
+      String name = StringInterner.weakIntern(Text.readString(in));
+      String displayName = StringInterner.weakIntern(Text.readString(in));
+      newGroups.add(new GroupDefinition(id, name, displayName));
+    }
+    int numCounters = WritableUtils.readVInt(in);
+    for (int i = 0; i < numCounters; i++) {
+      int id = WritableUtils.readVInt(in);
+      int groupId = WritableUtils.readVInt(in);
+      String name = StringInterner.weakIntern(Text.readString(in));
+      String displayName = StringInterner.weakIntern(Text.readString(in));
+      newCounters.add(new CounterDefinition(id, groupId, name, displayName));
+    }
+    numValues = WritableUtils.readVInt(in);
+    valueIds = new int[numValues];
+    values = new long[numValues];
+    for (int i = 0; i < numValues; i++) {
+      valueIds[i] = WritableUtils.readVInt(in);
+      values[i] = WritableUtils.readVLong(in);
+    }
+  }
+
+  /**
+   * Produces the deltas of the counters of one task attempt. Not thread safe.
+   */
+  public static class Encoder {
+
+    /** Number of deltas after which a snapshot is sent */
+    public static final int DEFAULT_SNAPSHOT_INTERVAL = 50;
+
+    private final int snapshotInterval;
+    private final Map<String, Integer> groupIds = Maps.newHashMap();
+    private final List<Map<String, Integer>> counterIdsByGroup = Lists.newArrayList();
+    private int numCounters = 0;
+    private long[] lastValues = new long[64];
+    private int deltasSinceSnapshot = 0;
+
+    public Encoder() {
+      this(DEFAULT_SNAPSHOT_INTERVAL);
+    }
+
+    /**
+     * @param snapshotInterval the number of deltas after which a snapshot is
+     *          sent. The first delta is always a snapshot.
+     */
+    public Encoder(int snapshotInterval) {
+      Preconditions.checkArgument(snapshotInterval > 0, "snapshotInterval must be positive");
+      this.snapshotInterval = snapshotInterval;
+    }
+
+    /**
+     * @return the counters which were added or changed since the previous
+     *         call, or a snapshot of all the counters
+     */
+    public TezCountersDelta encode(TezCounters counters) {
+      TezCountersDelta delta = new TezCountersDelta();
+      if (numCounters == 0 || ++deltasSinceSnapshot >= snapshotInterval) {
+        // Forget the ids so that every group and counter is defined again
+        groupIds.clear();
+        counterIdsByGroup.clear();
+        numCounters = 0;
+        deltasSinceSnapshot = 0;
+        delta.snapshot = true;
+      }
+      for (CounterGroup group : counters) {
+        Integer groupId = groupIds.get(group.getName());
+        if (groupId == null) {
+          groupId = groupIds.size();
+          groupIds.put(group.getName(), groupId);
+          counterIdsByGroup.add(Maps.<String, Integer>newHashMap());
+          delta.newGroups.add(new GroupDefinition(groupId, group.getName(),
+              group.getDisplayName()));
+        }
+        Map<String, Integer> counterIds = counterIdsByGroup.get(groupId);
+        for (TezCounter counter : group) {
+          long value = counter.getValue();
+          Integer counterId = counterIds.get(counter.getName());
+          if (counterId == null) {
+            counterId = numCounters++;
+            counterIds.put(counter.getName(), counterId);
+            if (counterId == lastValues.length) {
+              lastValues = Arrays.copyOf(lastValues, lastValues.length * 2);
+            }
+            delta.newCounters.add(new CounterDefinition(counterId, groupId,
+                counter.getName(), counter.getDisplayName()));
+          } else if (lastValues[counterId] == value) {
+            continue;
+          }
+          lastValues[counterId] = value;
+          delta.addValue(counterId, value);
+        }
+      }
+      return delta;
+    }
+  }
+
+  /**
+   * Applies the deltas of one task attempt, in the order they were encoded.
+   * Not thread safe.
+   */
+  public static class Decoder {
+
+    private String[] groupNames = new String[16];
+    private String[] groupDisplayNames = new String[16];
+    private int[] counterGroupIds = new int[64];
+    private String[] counterNames = new String[64];
+    private String[] counterDisplayNames = new String[64];
+    private long[] counterValues = new long[64];
+    private int numCounters = 0;
+    private TezCounters counters = null;
+    private TezCounter[] decodedCounters = new TezCounter[0];
+
+    /**
+     * @return all the counters of the attempt after applying the delta. A
+     *         snapshot replaces all that was decoded before. When
+     *         the delta only changes values, the counters returned by the
+     *         previous call are updated in place and returned. A new object
+     *         is built when groups or counters are added, previously returned
+     *         counters are then left as they were.
+     * @throws TezUncheckedException if the delta refers to groups or counters
+     *           which were not defined since the last snapshot, which means
+     *           that a delta was lost or decoded out of order
+     */
+    public TezCounters decode(TezCountersDelta delta) {
+      if (delta.snapshot) {
+        Arrays.fill(groupNames, null);
+        Arrays.fill(counterNames, null);
+        numCounters = 0;
+        counters = null;
+      } else if (counters == null) {
+        throw new TezUncheckedException("Expected a snapshot of counters as the first delta");
+      }
+      boolean newDefinitions = !delta.newGroups.isEmpty() || !delta.newCounters.isEmpty();
+      for (GroupDefinition group : delta.newGroups) {
+        if (group.id >= groupNames.length) {
+          int capacity = Math.max(group.id + 1, groupNames.length * 2);
+          groupNames = Arrays.copyOf(groupNames, capacity);
+          groupDisplayNames = Arrays.copyOf(groupDisplayNames, capacity);
+        }
+        groupNames[group.id] = group.name;
+        groupDisplayNames[group.id] = group.displayName;
+      }
+      for (CounterDefinition counter : delta.newCounters) {
+        if (counter.groupId >= groupNames.length || groupNames[counter.groupId] == null) {
+          throw new TezUncheckedException("Counter " + counter.name
+              + " refers to an undefined group id " + counter.groupId);
+        }
+        if (counter.id >= counterNames.length) {
+          int capacity = Math.max(counter.id + 1, counterNames.length * 2);
+          counterGroupIds = Arrays.copyOf(counterGroupIds, capacity);
+          counterNames = Arrays.copyOf(counterNames, capacity);
+          counterDisplayNames = Arrays.copyOf(counterDisplayNames, capacity);
+          counterValues = Arrays.copyOf(counterValues, capacity);
+        }
+        counterGroupIds[counter.id] = counter.groupId;
+        counterNames[counter.id] = counter.name;
+        counterDisplayNames[counter.id] = counter.displayName;
+        numCounters = Math.max(numCounters, counter.id + 1);
+      }
+      for (int i = 0; i < delta.numValues; i++) {
+        int counterId = delta.valueIds[i];
+        if (counterId >= numCounters || counterNames[counterId] == null) {
+          throw new TezUncheckedException("Value for an undefined counter id " + counterId);
+        }
+        counterValues[counterId] = delta.values[i];
+        if (!newDefinitions) {
+          decodedCounters[counterId].setValue(delta.values[i]);
+        }
+      }
+      if (newDefinitions || counters == null) {
+        rebuild();
+      }
+      return counters;
+    }
+
+    private void rebuild() {
+      counters = new TezCounters();
+      decodedCounters = new TezCounter[numCounters];
+      for (int i = 0; i < numCounters; i++) {
+        if (counterNames[i] == null) {
+          continue;
+        }
+        int groupId = counterGroupIds[i];
+        CounterGroup group = counters.getGroup(groupNames[groupId]);
+        group.setDisplayName(groupDisplayNames[groupId]);
+        decodedCounters[i] = group.findCounter(counterNames[i], counterDisplayNames[i]);
+        decodedCounters[i].setValue(counterValues[i]);
+      }
+    }
+  }
+}
@@ -22,9 +22,12 @@ import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.List;
+import java.util.Map;
 
 import org.apache.hadoop.io.DataInputBuffer;
 import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableUtils;
 import org.apache.tez.common.ProtoConverters;
 import org.apache.tez.common.TezConverterUtils;
 import org.apache.tez.dag.api.TezUncheckedException;
@@ -258,17 +261,17 @@ public class TezEvent implements Writable {
       ((TaskStatusUpdateEvent)event).readFields(in);
     } else {
       int eventBytesLen = in.readInt();
-      byte[] eventBytes;
       CodedInputStream input;
-      int startOffset = 0;
       if (in instanceof DataInputBuffer) {
-        eventBytes = ((DataInputBuffer)in).getData();
-        startOffset = ((DataInputBuffer) in).getPosition();
+        input = CodedInputStream.newInstance(((DataInputBuffer) in).getData(),
+            ((DataInputBuffer) in).getPosition(), eventBytesLen);
       } else {
-        eventBytes = new byte[eventBytesLen];
+        // Events are small, an exact sized copy is cheaper than the buffer a
+        // stream backed CodedInputStream allocates for each event
+        byte[] eventBytes = new byte[eventBytesLen];
         in.readFully(eventBytes);
+        input = CodedInputStream.newInstance(eventBytes, 0, eventBytesLen);
       }
-      input = CodedInputStream.newInstance(eventBytes, startOffset, eventBytesLen);
       switch (eventType) {
       case CUSTOM_PROCESSOR_EVENT:
         CustomProcessorEventProto cpProto =
@@ -282,7 +285,7 @@ public class TezEvent implements Writable {
         break;
       case COMPOSITE_ROUTED_DATA_MOVEMENT_EVENT:
         CompositeRoutedDataMovementEventProto edmProto =
-            CompositeRoutedDataMovementEventProto.parseFrom(eventBytes);
+            CompositeRoutedDataMovementEventProto.parseFrom(input);
       event = ProtoConverters.convertCompositeRoutedDataMovementEventFromProto(edmProto);
       break;
       case COMPOSITE_DATA_MOVEMENT_EVENT:
@@ -371,6 +374,66 @@ public class TezEvent implements Writable {
     }
   }
 
+  /**
+   * Writes the event with its meta data written only the first time it is
+   * seen, later events refer to it by index. Events routed to a task mostly
+   * share their destination and, per source attempt, their source meta data.
+   * @param metaDataIndices the indices of the meta data already written
+   */
+  void write(DataOutput out, Map<EventMetaData, Integer> metaDataIndices)
+      throws IOException {
+    serializeEvent(out);
+    writeMetaDataReference(out, sourceInfo, metaDataIndices);
+    writeMetaDataReference(out, destinationInfo, metaDataIndices);
+  }
+
+  /**
+   * Reads an event written by {@link #write(DataOutput, Map)}. Events
+   * referring to the same meta data share the same instance.
+   * @param metaDatas the meta data already read, in index order
+   */
+  void readFields(DataInput in, List<EventMetaData> metaDatas) throws IOException {
+    deserializeEvent(in);
+    sourceInfo = readMetaDataReference(in, metaDatas);
+    destinationInfo = readMetaDataReference(in, metaDatas);
+  }
+
+  private static void writeMetaDataReference(DataOutput out, EventMetaData metaData,
+      Map<EventMetaData, Integer> metaDataIndices) throws IOException {
+    if (metaData == null) {
+      WritableUtils.writeVInt(out, -1);
+      return;
+    }
+    Integer index = metaDataIndices.get(metaData);
+    if (index != null) {
+      WritableUtils.writeVInt(out, index);
+    } else {
+      index = metaDataIndices.size();
+      metaDataIndices.put(metaData, index);
+      WritableUtils.writeVInt(out, index);
+      metaData.write(out);
+    }
+  }
+
+  private static EventMetaData readMetaDataReference(DataInput in,
+      List<EventMetaData> metaDatas) throws IOException {
+    int index = WritableUtils.readVInt(in);
+    if (index < 0) {
+      return null;
+    }
+    if (index < metaDatas.size()) {
+      return metaDatas.get(index);
+    }
+    if (index != metaDatas.size()) {
+      throw new IOException("Unexpected event meta data index " + index
+          + ", expected at most " + metaDatas.size());
+    }
+    EventMetaData metaData = new EventMetaData();
+    metaData.readFields(in);
+    metaDatas.add(metaData);
+    return metaData;
+  }
+
   @Override
   public String toString() {
     return "TezEvent{" +
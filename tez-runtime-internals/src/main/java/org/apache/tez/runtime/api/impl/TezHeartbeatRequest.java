@@ -23,7 +23,9 @@ import java.io.DataOutput;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.io.Writable;
@@ -88,8 +90,10 @@ public class TezHeartbeatRequest implements Writable {
     if (events != null) {
       out.writeBoolean(true);
       out.writeInt(events.size());
+      // meta data shared by the events is only written once
+      Map<EventMetaData, Integer> metaDataIndices = new HashMap<EventMetaData, Integer>();
       for (TezEvent e : events) {
-        e.write(out);
+        e.write(out, metaDataIndices);
       }
     } else {
       out.writeBoolean(false);
@@ -112,9 +116,10 @@ public class TezHeartbeatRequest implements Writable {
     if (in.readBoolean()) {
       int eventsCount = in.readInt();
       events = new ArrayList<TezEvent>(eventsCount);
+      List<EventMetaData> metaDatas = new ArrayList<EventMetaData>();
       for (int i = 0; i < eventsCount; ++i) {
         TezEvent e = new TezEvent();
-        e.readFields(in);
+        e.readFields(in, metaDatas);
         events.add(e);
       }
     }
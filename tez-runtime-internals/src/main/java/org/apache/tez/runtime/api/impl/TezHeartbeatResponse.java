@@ -23,7 +23,9 @@ import java.io.DataOutput;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.apache.hadoop.io.Writable;
 
@@ -34,6 +36,7 @@ public class TezHeartbeatResponse implements Writable {
   private List<TezEvent> events;
   private int nextFromEventId;
   private int nextPreRoutedEventId;
+  private boolean moreEventsPending = false;
 
   public TezHeartbeatResponse() {
   }
@@ -62,6 +65,14 @@ public class TezHeartbeatResponse implements Writable {
     return nextPreRoutedEventId;
   }
 
+  /**
+   * @return true if the AM has more events for the task than it could send
+   *         in this response
+   */
+  public boolean isMoreEventsPending() {
+    return moreEventsPending;
+  }
+
   public void setEvents(List<TezEvent> events) {
     this.events = Collections.unmodifiableList(events);
   }
@@ -82,17 +93,24 @@ public class TezHeartbeatResponse implements Writable {
     this.nextPreRoutedEventId = nextPreRoutedEventId;
   }
 
+  public void setMoreEventsPending(boolean moreEventsPending) {
+    this.moreEventsPending = moreEventsPending;
+  }
+
   @Override
   public void write(DataOutput out) throws IOException {
     out.writeLong(lastRequestId);
     out.writeBoolean(shouldDie);
     out.writeInt(nextFromEventId);
     out.writeInt(nextPreRoutedEventId);
+    out.writeBoolean(moreEventsPending);
     if(events != null) {
       out.writeBoolean(true);
       out.writeInt(events.size());
+      // meta data shared by the events is only written once
+      Map<EventMetaData, Integer> metaDataIndices = new HashMap<EventMetaData, Integer>();
       for (TezEvent e : events) {
-        e.write(out);
+        e.write(out, metaDataIndices);
       }
     } else {
       out.writeBoolean(false);
@@ -105,12 +123,14 @@ public class TezHeartbeatResponse implements Writable {
     shouldDie = in.readBoolean();
     nextFromEventId = in.readInt();
     nextPreRoutedEventId = in.readInt();
+    moreEventsPending = in.readBoolean();
     if(in.readBoolean()) {
       int eventCount = in.readInt();
       events = new ArrayList<TezEvent>(eventCount);
+      List<EventMetaData> metaDatas = new ArrayList<EventMetaData>();
       for (int i = 0; i < eventCount; ++i) {
         TezEvent e = new TezEvent();
-        e.readFields(in);
+        e.readFields(in, metaDatas);
         events.add(e);
       }
     }
@@ -123,6 +143,7 @@ public class TezHeartbeatResponse implements Writable {
         + ", shouldDie=" + shouldDie
         + ", nextFromEventId=" + nextFromEventId
         + ", nextPreRoutedEventId=" + nextPreRoutedEventId
+        + ", moreEventsPending=" + moreEventsPending
         + ", eventCount=" + (events != null ? events.size() : 0)
         + " }";
   }
@@ -47,6 +47,7 @@ import org.apache.tez.runtime.api.events.TaskAttemptKilledEvent;
 import org.apache.tez.runtime.api.events.TaskStatusUpdateEvent;
 import org.apache.tez.runtime.api.impl.EventMetaData;
 import org.apache.tez.runtime.api.impl.TaskStatistics;
+import org.apache.tez.runtime.api.impl.TezCountersDelta;
 import org.apache.tez.runtime.api.impl.TezEvent;
 import org.apache.tez.runtime.api.impl.TezHeartbeatRequest;
 import org.apache.tez.runtime.api.impl.TezHeartbeatResponse;
@@ -80,6 +81,9 @@ public class TaskReporter implements TaskReporterInterface {
   private final int maxEventsToGet;
   private final AtomicLong requestCounter;
   private final String containerIdStr;
+  private final boolean adaptive;
+  private final long maxPollInterval;
+  private final boolean sendCounterDeltas;
 
   private final ListeningExecutorService heartbeatExecutor;
 
@@ -88,12 +92,38 @@ public class TaskReporter implements TaskReporterInterface {
 
   public TaskReporter(TezTaskUmbilicalProtocol umbilical, long amPollInterval,
       long sendCounterInterval, int maxEventsToGet, AtomicLong requestCounter, String containerIdStr) {
+    this(umbilical, amPollInterval, sendCounterInterval, maxEventsToGet, requestCounter,
+        containerIdStr, false, amPollInterval);
+  }
+
+  /**
+   * @param adaptive whether the heartbeat interval backs off from amPollInterval up to
+   *          maxPollInterval while idle, and heartbeats are sent right away for queued events
+   */
+  public TaskReporter(TezTaskUmbilicalProtocol umbilical, long amPollInterval,
+      long sendCounterInterval, int maxEventsToGet, AtomicLong requestCounter,
+      String containerIdStr, boolean adaptive, long maxPollInterval) {
+    this(umbilical, amPollInterval, sendCounterInterval, maxEventsToGet, requestCounter,
+        containerIdStr, adaptive, maxPollInterval, false);
+  }
+
+  /**
+   * @param sendCounterDeltas whether periodic status updates only carry the counters which
+   *          changed since the previous update
+   */
+  public TaskReporter(TezTaskUmbilicalProtocol umbilical, long amPollInterval,
+      long sendCounterInterval, int maxEventsToGet, AtomicLong requestCounter,
+      String containerIdStr, boolean adaptive, long maxPollInterval,
+      boolean sendCounterDeltas) {
     this.umbilical = umbilical;
     this.pollInterval = amPollInterval;
     this.sendCounterInterval = sendCounterInterval;
     this.maxEventsToGet = maxEventsToGet;
     this.requestCounter = requestCounter;
     this.containerIdStr = containerIdStr;
+    this.adaptive = adaptive;
+    this.maxPollInterval = Math.max(amPollInterval, maxPollInterval);
+    this.sendCounterDeltas = sendCounterDeltas;
     ExecutorService executor = Executors.newFixedThreadPool(1, new ThreadFactoryBuilder()
         .setDaemon(true).setNameFormat("TaskHeartbeatThread").build());
     heartbeatExecutor = MoreExecutors.listeningDecorator(executor);
@@ -106,7 +136,8 @@ public class TaskReporter implements TaskReporterInterface {
   public synchronized void registerTask(RuntimeTask task,
       ErrorReporter errorReporter) {
     currentCallable = new HeartbeatCallable(task, umbilical, pollInterval, sendCounterInterval,
-        maxEventsToGet, requestCounter, containerIdStr);
+        maxEventsToGet, requestCounter, containerIdStr, adaptive, maxPollInterval,
+        sendCounterDeltas);
     ListenableFuture<Boolean> future = heartbeatExecutor.submit(currentCallable);
     Futures.addCallback(future, new HeartbeatCallback(errorReporter));
   }
@@ -145,6 +176,10 @@ public class TaskReporter implements TaskReporterInterface {
     private final long sendCounterInterval;
     private final int maxEventsToGet;
     private final String containerIdStr;
+    private final boolean adaptive;
+    private final long maxPollInterval;
+    // Only used by periodic status updates, which are sent in order from heartbeat()
+    private final TezCountersDelta.Encoder countersDeltaEncoder;
 
     private final AtomicLong requestCounter;
 
@@ -166,16 +201,42 @@ public class TaskReporter implements TaskReporterInterface {
      * Tracks the last non-OOB heartbeat number at which counters were sent to the AM. 
      */
     private int prevCounterSendHeartbeatNum = 0;
+    /*
+     * With an adaptive interval, the current interval and the time counters were last sent at.
+     */
+    private long currentPollInterval;
+    private long prevCounterSendTime;
 
     public HeartbeatCallable(RuntimeTask task,
         TezTaskUmbilicalProtocol umbilical, long amPollInterval, long sendCounterInterval,
         int maxEventsToGet, AtomicLong requestCounter, String containerIdStr) {
+      this(task, umbilical, amPollInterval, sendCounterInterval, maxEventsToGet, requestCounter,
+          containerIdStr, false, amPollInterval);
+    }
+
+    public HeartbeatCallable(RuntimeTask task,
+        TezTaskUmbilicalProtocol umbilical, long amPollInterval, long sendCounterInterval,
+        int maxEventsToGet, AtomicLong requestCounter, String containerIdStr,
+        boolean adaptive, long maxPollInterval) {
+      this(task, umbilical, amPollInterval, sendCounterInterval, maxEventsToGet, requestCounter,
+          containerIdStr, adaptive, maxPollInterval, false);
+    }
+
+    public HeartbeatCallable(RuntimeTask task,
+        TezTaskUmbilicalProtocol umbilical, long amPollInterval, long sendCounterInterval,
+        int maxEventsToGet, AtomicLong requestCounter, String containerIdStr,
+        boolean adaptive, long maxPollInterval, boolean sendCounterDeltas) {
 
       this.pollInterval = amPollInterval;
       this.sendCounterInterval = sendCounterInterval;
       this.maxEventsToGet = maxEventsToGet;
       this.requestCounter = requestCounter;
       this.containerIdStr = containerIdStr;
+      this.adaptive = adaptive;
+      this.maxPollInterval = Math.max(amPollInterval, maxPollInterval);
+      this.currentPollInterval = amPollInterval;
+      this.prevCounterSendTime = System.currentTimeMillis();
+      this.countersDeltaEncoder = sendCounterDeltas ? new TezCountersDelta.Encoder() : null;
 
       this.task = task;
       this.umbilical = umbilical;
@@ -198,13 +259,17 @@ public class TaskReporter implements TaskReporterInterface {
           LOG.info("Asked to die via task heartbeat");
           return false;
         } else {
-          if (response.numEvents < maxEventsToGet) {
+          if (response.numEvents < maxEventsToGet && !(adaptive && response.moreEventsPending)) {
             // Wait before sending another heartbeat. Otherwise consider as an OOB heartbeat
             lock.lock();
             try {
-              boolean interrupted = condition.await(pollInterval, TimeUnit.MILLISECONDS);
-              if (!interrupted) {
-                nonOobHeartbeatCounter.incrementAndGet();
+              // events queued during the heartbeat are sent right away
+              if (!adaptive || eventsToSend.isEmpty()) {
+                boolean interrupted = condition.await(getNextPollInterval(response),
+                    TimeUnit.MILLISECONDS);
+                if (!interrupted) {
+                  nonOobHeartbeatCounter.incrementAndGet();
+                }
               }
             } finally {
               lock.unlock();
@@ -222,6 +287,24 @@ public class TaskReporter implements TaskReporterInterface {
       return true;
     }
 
+    /**
+     * @return the interval to wait for before the next heartbeat. With an adaptive interval, it is
+     *         doubled up to the max interval after heartbeats without any event sent or received,
+     *         and reset otherwise.
+     */
+    @VisibleForTesting
+    long getNextPollInterval(ResponseWrapper response) {
+      if (!adaptive) {
+        return pollInterval;
+      }
+      if (response.numEvents > 0 || response.numEventsSent > 0) {
+        currentPollInterval = pollInterval;
+      } else {
+        currentPollInterval = Math.min(maxPollInterval, currentPollInterval * 2);
+      }
+      return currentPollInterval;
+    }
+
     /**
      * @param eventsArg
      * @return
@@ -240,6 +323,7 @@ public class TaskReporter implements TaskReporterInterface {
       TezEvent updateEvent = null;
       List<TezEvent> events = new ArrayList<TezEvent>();
       eventsToSend.drainTo(events);
+      int numEventsSent = events.size();
 
       if (!task.isTaskDone() && !task.wasErrorReported()) {
         boolean sendCounters = false;
@@ -249,11 +333,18 @@ public class TaskReporter implements TaskReporterInterface {
          * real time decisions are made based on these counters, it can be sent once per second.
          */
         // Not completely accurate, since OOB heartbeats could go out.
-        if ((nonOobHeartbeatCounter.get() - prevCounterSendHeartbeatNum) * pollInterval >= sendCounterInterval) {
+        if (adaptive) {
+          // heartbeats are not evenly spaced, go by time
+          long now = System.currentTimeMillis();
+          if (now - prevCounterSendTime >= sendCounterInterval) {
+            sendCounters = true;
+            prevCounterSendTime = now;
+          }
+        } else if ((nonOobHeartbeatCounter.get() - prevCounterSendHeartbeatNum) * pollInterval >= sendCounterInterval) {
           sendCounters = true;
           prevCounterSendHeartbeatNum = nonOobHeartbeatCounter.get();
         }
-        updateEvent = new TezEvent(getStatusUpdateEvent(sendCounters), updateEventMetadata);
+        updateEvent = new TezEvent(getStatusUpdateEvent(sendCounters, true), updateEventMetadata);
         events.add(updateEvent);
       }
 
@@ -277,7 +368,7 @@ public class TaskReporter implements TaskReporterInterface {
       if (response.shouldDie()) {
         LOG.info("Received should die response from AM");
         askedToDie.set(true);
-        return new ResponseWrapper(true, 1);
+        return new ResponseWrapper(true, 1, numEventsSent, false);
       }
       if (response.getLastRequestId() != requestId) {
         throw new TezException("AM and Task out of sync" + ", responseReqId="
@@ -305,7 +396,8 @@ public class TaskReporter implements TaskReporterInterface {
           task.handleEvents(response.getEvents());
         }
       }
-      return new ResponseWrapper(false, numEventsReceived);
+      return new ResponseWrapper(false, numEventsReceived, numEventsSent,
+          response.isMoreEventsPending());
     }
 
     public void markComplete() {
@@ -351,6 +443,14 @@ public class TaskReporter implements TaskReporterInterface {
     
     @VisibleForTesting
     TaskStatusUpdateEvent getStatusUpdateEvent(boolean sendCounters) {
+      return getStatusUpdateEvent(sendCounters, false);
+    }
+
+    /**
+     * @param periodic whether this is a periodic update, for which the counters are sent as a
+     *          delta if enabled. Final updates always carry all the counters.
+     */
+    private TaskStatusUpdateEvent getStatusUpdateEvent(boolean sendCounters, boolean periodic) {
       TezCounters counters = null;
       TaskStatistics stats = null;
       float progress = 0;
@@ -364,6 +464,10 @@ public class TaskReporter implements TaskReporterInterface {
           stats = task.getTaskStatistics();
         }
       }
+      if (counters != null && periodic && countersDeltaEncoder != null) {
+        return TaskStatusUpdateEvent.createWithCountersDelta(
+            countersDeltaEncoder.encode(counters), progress, stats, progressNotified);
+      }
       return new TaskStatusUpdateEvent(counters, progress, stats, progressNotified);
     }
 
@@ -416,6 +520,15 @@ public class TaskReporter implements TaskReporterInterface {
     private void addEvents(TezTaskAttemptID taskAttemptID, Collection<TezEvent> events) {
       if (events != null && !events.isEmpty()) {
         eventsToSend.addAll(events);
+        if (adaptive) {
+          // Heartbeat right away, events queued until then go out together
+          lock.lock();
+          try {
+            condition.signal();
+          } finally {
+            lock.unlock();
+          }
+        }
       }
     }
   }
@@ -477,13 +590,20 @@ public class TaskReporter implements TaskReporterInterface {
     return umbilical.canCommit(taskAttemptID);
   }
 
-  private static final class ResponseWrapper {
+  @VisibleForTesting
+  static final class ResponseWrapper {
     boolean shouldDie;
     int numEvents;
+    int numEventsSent;
+    boolean moreEventsPending;
 
-    private ResponseWrapper(boolean shouldDie, int numEvents) {
+    @VisibleForTesting
+    ResponseWrapper(boolean shouldDie, int numEvents, int numEventsSent,
+        boolean moreEventsPending) {
       this.shouldDie = shouldDie;
       this.numEvents = numEvents;
+      this.numEventsSent = numEventsSent;
+      this.moreEventsPending = moreEventsPending;
     }
   }
 }
@@ -100,6 +100,9 @@ public class TezChild {
   private final int amHeartbeatInterval;
   private final long sendCounterInterval;
   private final int maxEventsToGet;
+  private final boolean adaptiveHeartbeat;
+  private final long maxAmHeartbeatInterval;
+  private final boolean sendCounterDeltas;
   private final String workingDir;
 
   private final ListeningExecutorService executor;
@@ -160,6 +163,16 @@ public class TezChild {
     maxEventsToGet = defaultConf.getInt(TezConfiguration.TEZ_TASK_MAX_EVENTS_PER_HEARTBEAT,
         TezConfiguration.TEZ_TASK_MAX_EVENTS_PER_HEARTBEAT_DEFAULT);
 
+    adaptiveHeartbeat = defaultConf.getBoolean(
+        TezConfiguration.TEZ_TASK_AM_HEARTBEAT_ADAPTIVE_ENABLED,
+        TezConfiguration.TEZ_TASK_AM_HEARTBEAT_ADAPTIVE_ENABLED_DEFAULT);
+    maxAmHeartbeatInterval = defaultConf.getInt(
+        TezConfiguration.TEZ_TASK_AM_HEARTBEAT_ADAPTIVE_INTERVAL_MS_MAX,
+        TezConfiguration.TEZ_TASK_AM_HEARTBEAT_ADAPTIVE_INTERVAL_MS_MAX_DEFAULT);
+    sendCounterDeltas = defaultConf.getBoolean(
+        TezConfiguration.TEZ_TASK_AM_HEARTBEAT_COUNTER_DELTA_ENABLED,
+        TezConfiguration.TEZ_TASK_AM_HEARTBEAT_COUNTER_DELTA_ENABLED_DEFAULT);
+
     ExecutorService executor = Executors.newFixedThreadPool(1, new ThreadFactoryBuilder()
         .setDaemon(true).setNameFormat("TezChild").build());
     this.executor = MoreExecutors.listeningDecorator(executor);
@@ -207,7 +220,8 @@ public class TezChild {
         getTaskMaxSleepTime);
 
     taskReporter = new TaskReporter(umbilical, amHeartbeatInterval,
-        sendCounterInterval, maxEventsToGet, heartbeatCounter, containerIdString);
+        sendCounterInterval, maxEventsToGet, heartbeatCounter, containerIdString,
+        adaptiveHeartbeat, maxAmHeartbeatInterval, sendCounterDeltas);
 
     UserGroupInformation childUGI = null;
 
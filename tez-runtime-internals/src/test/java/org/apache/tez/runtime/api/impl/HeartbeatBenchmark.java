@@ -0,0 +1,244 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.runtime.api.impl;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.security.PrivilegedExceptionAction;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.ipc.ProtocolSignature;
+import org.apache.hadoop.ipc.RPC;
+import org.apache.hadoop.net.NetUtils;
+import org.apache.hadoop.security.UserGroupInformation;
+import org.apache.tez.common.ContainerContext;
+import org.apache.tez.common.ContainerTask;
+import org.apache.tez.common.TezTaskUmbilicalProtocol;
+import org.apache.tez.common.counters.FileSystemCounter;
+import org.apache.tez.common.counters.TaskCounter;
+import org.apache.tez.common.counters.TezCounters;
+import org.apache.tez.dag.api.TezException;
+import org.apache.tez.dag.records.TezTaskAttemptID;
+import org.apache.tez.dag.records.TezTaskID;
+import org.apache.tez.runtime.api.events.DataMovementEvent;
+import org.apache.tez.runtime.api.events.TaskStatusUpdateEvent;
+import org.apache.tez.runtime.api.impl.EventMetaData.EventProducerConsumerType;
+
+/**
+ * Measures how many heartbeats per second the umbilical RPC server of the AM
+ * handles, with many containers heartbeating at once. Each container runs in
+ * its own thread, with its own connection, and sends a status update and data
+ * movement events. The AM side answers with routed data movement events and
+ * does no other work, so the numbers show the cost of the RPC and of the
+ * serialization of requests and responses.
+ *
+ * Not a unit test, run it with the test classpath:
+ * <pre>
+ *   java -cp ... org.apache.tez.runtime.api.impl.HeartbeatBenchmark \
+ *     [containers] [events per heartbeat] [seconds] [handlers]
+ * </pre>
+ */
+public class HeartbeatBenchmark {
+
+  private static final TezTaskID TASK_ID =
+      TezTaskID.fromString("task_1454468251169_866787_1_02_000000");
+
+  private final int eventsPerHeartbeat;
+  private final List<TezEvent> responseEvents;
+
+  HeartbeatBenchmark(int eventsPerHeartbeat) {
+    this.eventsPerHeartbeat = eventsPerHeartbeat;
+    // Events routed to a consumer, from a few producers
+    responseEvents = new ArrayList<TezEvent>(eventsPerHeartbeat);
+    for (int i = 0; i < eventsPerHeartbeat; i++) {
+      EventMetaData sourceInfo = new EventMetaData(EventProducerConsumerType.OUTPUT, "v1", "v2",
+          TezTaskAttemptID.getInstance(TASK_ID, i % 4));
+      EventMetaData destInfo = new EventMetaData(EventProducerConsumerType.INPUT, "v2", "v1",
+          TezTaskAttemptID.getInstance(TASK_ID, 100));
+      TezEvent event = new TezEvent(DataMovementEvent.create(i, i, 0, payload(i)), sourceInfo);
+      event.setDestinationInfo(destInfo);
+      responseEvents.add(event);
+    }
+  }
+
+  private static ByteBuffer payload(int seed) {
+    byte[] payload = new byte[64];
+    for (int i = 0; i < payload.length; i++) {
+      payload[i] = (byte) (seed + i);
+    }
+    return ByteBuffer.wrap(payload);
+  }
+
+  /**
+   * @return a heartbeat of a producer, with its status and the events of its
+   *         outputs
+   */
+  TezHeartbeatRequest createRequest(int container, long requestId) {
+    TezTaskAttemptID attemptId = TezTaskAttemptID.getInstance(TASK_ID, container);
+    List<TezEvent> events = new ArrayList<TezEvent>(eventsPerHeartbeat + 1);
+    TezCounters counters = new TezCounters();
+    counters.findCounter(TaskCounter.INPUT_RECORDS_PROCESSED).setValue(requestId * 1000);
+    counters.findCounter(TaskCounter.OUTPUT_RECORDS).setValue(requestId * 800);
+    counters.findCounter(TaskCounter.OUTPUT_BYTES).setValue(requestId * 80000);
+    counters.findCounter(TaskCounter.SPILLED_RECORDS).setValue(requestId * 800);
+    counters.findCounter("HDFS", FileSystemCounter.BYTES_READ).setValue(requestId * 100000);
+    counters.findCounter("FILE", FileSystemCounter.BYTES_WRITTEN).setValue(requestId * 90000);
+    EventMetaData taskInfo = new EventMetaData(EventProducerConsumerType.SYSTEM, "v1", "",
+        attemptId);
+    events.add(new TezEvent(new TaskStatusUpdateEvent(counters, 0.5f, null, true), taskInfo));
+    EventMetaData outputInfo = new EventMetaData(EventProducerConsumerType.OUTPUT, "v1", "v2",
+        attemptId);
+    for (int i = 0; i < eventsPerHeartbeat; i++) {
+      events.add(new TezEvent(DataMovementEvent.create(i, payload(i)), outputInfo));
+    }
+    return new TezHeartbeatRequest(requestId, events, 0, "container_" + container, attemptId,
+        0, 500);
+  }
+
+  private class Umbilical implements TezTaskUmbilicalProtocol {
+
+    @Override
+    public ContainerTask getTask(ContainerContext containerContext) throws IOException {
+      return null;
+    }
+
+    @Override
+    public boolean canCommit(TezTaskAttemptID taskid) throws IOException {
+      return false;
+    }
+
+    @Override
+    public TezHeartbeatResponse heartbeat(TezHeartbeatRequest request)
+        throws IOException, TezException {
+      TezHeartbeatResponse response = new TezHeartbeatResponse(responseEvents);
+      response.setLastRequestId(request.getRequestId());
+      response.setNextFromEventId(request.getStartIndex() + responseEvents.size());
+      return response;
+    }
+
+    @Override
+    public long getProtocolVersion(String protocol, long clientVersion) throws IOException {
+      return versionID;
+    }
+
+    @Override
+    public ProtocolSignature getProtocolSignature(String protocol, long clientVersion,
+        int clientMethodsHash) throws IOException {
+      return ProtocolSignature.getProtocolSignature(this, protocol, clientVersion,
+          clientMethodsHash);
+    }
+  }
+
+  private double run(Configuration conf, int containers, int seconds, int handlers)
+      throws Exception {
+    RPC.Server server = new RPC.Builder(conf)
+        .setProtocol(TezTaskUmbilicalProtocol.class)
+        .setBindAddress("localhost")
+        .setPort(0)
+        .setInstance(new Umbilical())
+        .setNumHandlers(handlers)
+        .build();
+    server.start();
+    final InetSocketAddress address = NetUtils.getConnectAddress(server);
+    final AtomicLong heartbeats = new AtomicLong();
+    final CountDownLatch started = new CountDownLatch(containers);
+    final long[] deadline = new long[1];
+    final CountDownLatch go = new CountDownLatch(1);
+    final Configuration clientConf = conf;
+    List<Thread> threads = new ArrayList<Thread>(containers);
+    for (int i = 0; i < containers; i++) {
+      final int container = i;
+      Thread thread = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          TezTaskUmbilicalProtocol umbilical = null;
+          try {
+            // A user per container so that each one gets its own connection
+            UserGroupInformation ugi =
+                UserGroupInformation.createRemoteUser("container_" + container);
+            umbilical = ugi.doAs(new PrivilegedExceptionAction<TezTaskUmbilicalProtocol>() {
+              @Override
+              public TezTaskUmbilicalProtocol run() throws Exception {
+                return RPC.getProxy(TezTaskUmbilicalProtocol.class,
+                    TezTaskUmbilicalProtocol.versionID, address, clientConf);
+              }
+            });
+            long requestId = 0;
+            umbilical.heartbeat(createRequest(container, requestId++));
+            started.countDown();
+            go.await();
+            while (System.nanoTime() < deadline[0]) {
+              umbilical.heartbeat(createRequest(container, requestId++));
+              heartbeats.incrementAndGet();
+            }
+          } catch (Exception e) {
+            throw new RuntimeException(e);
+          } finally {
+            if (umbilical != null) {
+              RPC.stopProxy(umbilical);
+            }
+          }
+        }
+      }, "container_" + i);
+      thread.setDaemon(true);
+      thread.start();
+      threads.add(thread);
+    }
+    started.await();
+    long start = System.nanoTime();
+    deadline[0] = start + seconds * 1000000000L;
+    go.countDown();
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    long elapsed = System.nanoTime() - start;
+    server.stop();
+    return heartbeats.get() * 1e9 / elapsed;
+  }
+
+  public static void main(String[] args) throws Exception {
+    int containers = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+    int eventsPerHeartbeat = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+    int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 20;
+    int handlers = args.length > 3 ? Integer.parseInt(args[3]) : 30;
+    HeartbeatBenchmark benchmark = new HeartbeatBenchmark(eventsPerHeartbeat);
+
+    DataOutputBuffer out = new DataOutputBuffer();
+    benchmark.createRequest(0, 1).write(out);
+    int requestBytes = out.getLength();
+    out.reset();
+    TezHeartbeatResponse response = new TezHeartbeatResponse(benchmark.responseEvents);
+    response.write(out);
+    int responseBytes = out.getLength();
+
+    Configuration conf = new Configuration();
+    // Warm up
+    benchmark.run(conf, containers, Math.max(1, seconds / 4), handlers);
+    double rate = benchmark.run(conf, containers, seconds, handlers);
+    System.out.println(String.format("containers=%d, eventsPerHeartbeat=%d, handlers=%d,"
+        + " requestBytes=%d, responseBytes=%d, heartbeats/s=%.0f",
+        containers, eventsPerHeartbeat, handlers, requestBytes, responseBytes, rate));
+  }
+}
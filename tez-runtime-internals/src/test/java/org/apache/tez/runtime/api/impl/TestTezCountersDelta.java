@@ -0,0 +1,176 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.runtime.api.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.tez.common.counters.FileSystemCounter;
+import org.apache.tez.common.counters.TaskCounter;
+import org.apache.tez.common.counters.TezCounters;
+import org.apache.tez.dag.api.TezUncheckedException;
+import org.apache.tez.runtime.api.events.TaskStatusUpdateEvent;
+import org.junit.Test;
+
+public class TestTezCountersDelta {
+
+  private static TezCountersDelta roundTrip(TezCountersDelta delta) throws IOException {
+    TaskStatusUpdateEvent event = TaskStatusUpdateEvent.createWithCountersDelta(delta, 0.5f,
+        null, false);
+    DataOutputBuffer out = new DataOutputBuffer();
+    event.write(out);
+    DataInputBuffer in = new DataInputBuffer();
+    in.reset(out.getData(), out.getLength());
+    TaskStatusUpdateEvent read = new TaskStatusUpdateEvent();
+    read.readFields(in);
+    assertEquals(null, read.getCounters());
+    assertEquals(0.5f, read.getProgress(), 0);
+    return read.getCountersDelta();
+  }
+
+  @Test(timeout = 5000)
+  public void testIncrementalUpdates() throws IOException {
+    TezCountersDelta.Encoder encoder = new TezCountersDelta.Encoder();
+    TezCountersDelta.Decoder decoder = new TezCountersDelta.Decoder();
+    TezCounters counters = new TezCounters();
+    counters.findCounter(TaskCounter.INPUT_RECORDS_PROCESSED).setValue(10);
+    counters.findCounter("HDFS", FileSystemCounter.BYTES_READ).setValue(1024);
+    counters.getGroup("custom").setDisplayName("Custom Group");
+    counters.getGroup("custom").findCounter("c1", "Counter One").setValue(1);
+
+    TezCountersDelta delta = roundTrip(encoder.encode(counters));
+    assertEquals(3, delta.getNumValues());
+    TezCounters decoded = decoder.decode(delta);
+    assertEquals(counters, decoded);
+    assertEquals("Custom Group", decoded.getGroup("custom").getDisplayName());
+    assertEquals("Counter One", decoded.findCounter("custom", "c1").getDisplayName());
+
+    // Nothing changed
+    delta = roundTrip(encoder.encode(counters));
+    assertEquals(0, delta.getNumValues());
+    assertSame(decoded, decoder.decode(delta));
+    assertEquals(counters, decoded);
+
+    // Changed values are applied in place
+    counters.findCounter(TaskCounter.INPUT_RECORDS_PROCESSED).setValue(15);
+    delta = roundTrip(encoder.encode(counters));
+    assertEquals(1, delta.getNumValues());
+    assertSame(decoded, decoder.decode(delta));
+    assertEquals(counters, decoded);
+
+    // One changed value and new counters in an existing and a new group
+    counters.findCounter(TaskCounter.INPUT_RECORDS_PROCESSED).setValue(20);
+    counters.findCounter(TaskCounter.OUTPUT_RECORDS).setValue(5);
+    counters.findCounter("file", FileSystemCounter.BYTES_WRITTEN).setValue(2048);
+    counters.findCounter("other", "c2").setValue(7);
+    delta = roundTrip(encoder.encode(counters));
+    assertEquals(4, delta.getNumValues());
+    TezCounters decodedLater = decoder.decode(delta);
+    assertNotSame(decoded, decodedLater);
+    assertEquals(counters, decodedLater);
+    // Counters returned before new counters were added are not modified
+    assertEquals(15, decoded.findCounter(TaskCounter.INPUT_RECORDS_PROCESSED).getValue());
+    assertEquals(3, decoded.countCounters());
+    assertEquals(2048, decodedLater.findCounter("FILE", FileSystemCounter.BYTES_WRITTEN)
+        .getValue());
+
+    // Later changes go to the rebuilt counters
+    counters.findCounter("other", "c2").setValue(8);
+    assertSame(decodedLater, decoder.decode(roundTrip(encoder.encode(counters))));
+    assertEquals(counters, decodedLater);
+  }
+
+  @Test(timeout = 5000)
+  public void testManyCounters() throws IOException {
+    TezCountersDelta.Encoder encoder = new TezCountersDelta.Encoder();
+    TezCountersDelta.Decoder decoder = new TezCountersDelta.Decoder();
+    TezCounters counters = new TezCounters();
+    for (int i = 0; i < 20; i++) {
+      for (int j = 0; j < 10; j++) {
+        counters.findCounter("group" + i, "counter" + j).setValue(i * j);
+      }
+    }
+    assertEquals(counters, decoder.decode(roundTrip(encoder.encode(counters))));
+    counters.findCounter("group19", "counter9").increment(1);
+    TezCountersDelta delta = roundTrip(encoder.encode(counters));
+    assertEquals(1, delta.getNumValues());
+    assertEquals(counters, decoder.decode(delta));
+  }
+
+  @Test(timeout = 5000)
+  public void testSnapshotRebasesDecoder() throws IOException {
+    TezCountersDelta.Encoder encoder = new TezCountersDelta.Encoder(3);
+    TezCountersDelta.Decoder decoder = new TezCountersDelta.Decoder();
+    TezCounters counters = new TezCounters();
+    counters.findCounter(TaskCounter.INPUT_RECORDS_PROCESSED).setValue(10);
+    TezCountersDelta delta = roundTrip(encoder.encode(counters));
+    assertTrue(delta.isSnapshot());
+    assertEquals(counters, decoder.decode(delta));
+
+    // Lost delta, defining a new counter
+    counters.findCounter(TaskCounter.OUTPUT_RECORDS).setValue(5);
+    assertFalse(encoder.encode(counters).isSnapshot());
+
+    counters.findCounter(TaskCounter.OUTPUT_RECORDS).setValue(6);
+    delta = roundTrip(encoder.encode(counters));
+    assertFalse(delta.isSnapshot());
+    try {
+      decoder.decode(delta);
+      fail("Expected a failure for an undefined counter");
+    } catch (TezUncheckedException e) {
+      assertTrue(e.getMessage().contains("undefined counter id"));
+    }
+
+    // The third delta is a snapshot, with all the counters
+    counters.findCounter(TaskCounter.INPUT_RECORDS_PROCESSED).setValue(20);
+    delta = roundTrip(encoder.encode(counters));
+    assertTrue(delta.isSnapshot());
+    assertEquals(2, delta.getNumValues());
+    assertEquals(counters, decoder.decode(delta));
+
+    counters.findCounter(TaskCounter.OUTPUT_RECORDS).setValue(7);
+    delta = roundTrip(encoder.encode(counters));
+    assertFalse(delta.isSnapshot());
+    assertEquals(1, delta.getNumValues());
+    assertEquals(counters, decoder.decode(delta));
+  }
+
+  @Test(timeout = 5000)
+  public void testDeltaBeforeSnapshot() throws IOException {
+    TezCountersDelta.Encoder encoder = new TezCountersDelta.Encoder();
+    TezCounters counters = new TezCounters();
+    counters.findCounter(TaskCounter.INPUT_RECORDS_PROCESSED).setValue(10);
+    encoder.encode(counters);
+    counters.findCounter(TaskCounter.INPUT_RECORDS_PROCESSED).setValue(11);
+    try {
+      new TezCountersDelta.Decoder().decode(roundTrip(encoder.encode(counters)));
+      fail("Expected a failure for a delta without a preceding snapshot");
+    } catch (TezUncheckedException e) {
+      assertTrue(e.getMessage().contains("snapshot"));
+    }
+  }
+}
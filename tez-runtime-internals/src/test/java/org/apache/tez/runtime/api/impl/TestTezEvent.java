@@ -22,6 +22,7 @@ import java.io.DataInput;
 import java.io.DataInputStream;
 import java.io.DataOutput;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 
 import org.apache.commons.lang.RandomStringUtils;
@@ -32,6 +33,7 @@ import org.apache.tez.common.TezUtils;
 import org.apache.tez.dag.api.UserPayload;
 import org.apache.tez.dag.records.TezTaskAttemptID;
 import org.apache.tez.dag.records.TezTaskID;
+import org.apache.tez.runtime.api.events.CompositeRoutedDataMovementEvent;
 import org.apache.tez.runtime.api.events.DataMovementEvent;
 import org.apache.tez.runtime.api.events.TaskAttemptCompletedEvent;
 import org.apache.tez.runtime.api.events.TaskStatusUpdateEvent;
@@ -101,6 +103,83 @@ public class TestTezEvent {
 
   }
 
+  @Test
+  public void testCompositeRoutedEventSerialization() throws IOException {
+    TezTaskAttemptID srcTAID = TezTaskAttemptID.getInstance(
+        TezTaskID.fromString("task_1454468251169_866787_1_02_000000"), 1000);
+    EventMetaData srcInfo = new EventMetaData(EventProducerConsumerType.OUTPUT,
+        "v1", "v2", srcTAID);
+    ArrayList<TezEvent> events = new ArrayList<TezEvent>();
+    // not the first event of the buffer
+    events.add(new TezEvent(new TaskAttemptCompletedEvent(), srcInfo));
+    events.add(new TezEvent(CompositeRoutedDataMovementEvent.create(2, 5, 3, 1,
+        ByteBuffer.wrap(new byte[] {1, 2, 3})), srcInfo));
+
+    DataOutputBuffer dataout = new DataOutputBuffer();
+    serializeEvents(events, dataout);
+    DataInputBuffer datain = new DataInputBuffer();
+    datain.reset(dataout.getData(), dataout.getLength());
+    DataInputStream dis = new DataInputStream(
+        new ByteArrayInputStream(dataout.getData(), 0, dataout.getLength()));
+    for (DataInput in : new DataInput[] {datain, dis}) {
+      ArrayList<TezEvent> actual = deserializeEvents(in);
+      Assert.assertEquals(2, actual.size());
+      CompositeRoutedDataMovementEvent event =
+          (CompositeRoutedDataMovementEvent) actual.get(1).getEvent();
+      Assert.assertEquals(2, event.getSourceIndex());
+      Assert.assertEquals(5, event.getTargetIndex());
+      Assert.assertEquals(3, event.getCount());
+      Assert.assertEquals(1, event.getVersion());
+      Assert.assertEquals(ByteBuffer.wrap(new byte[] {1, 2, 3}), event.getUserPayload());
+    }
+  }
+
+  @Test
+  public void testHeartbeatResponseSharedMetaData() throws IOException {
+    TezTaskAttemptID srcTAID = TezTaskAttemptID.getInstance(
+        TezTaskID.fromString("task_1454468251169_866787_1_02_000000"), 1000);
+    TezTaskAttemptID destTAID = TezTaskAttemptID.getInstance(
+        TezTaskID.fromString("task_1454468251169_866787_1_03_000000"), 2000);
+    EventMetaData destInfo = new EventMetaData(EventProducerConsumerType.INPUT,
+        "v2", "v1", destTAID);
+    ArrayList<TezEvent> events = new ArrayList<TezEvent>();
+    for (int i = 0; i < 10; i++) {
+      // equal but not the same source meta data
+      EventMetaData srcInfo = new EventMetaData(EventProducerConsumerType.OUTPUT,
+          "v1", "v2", srcTAID);
+      TezEvent dmeEvent = new TezEvent(DataMovementEvent.create(0, i, 1, null), srcInfo,
+          System.currentTimeMillis());
+      dmeEvent.setDestinationInfo(destInfo);
+      events.add(dmeEvent);
+    }
+    events.add(new TezEvent(new TaskAttemptCompletedEvent(), null));
+    TezHeartbeatResponse response = new TezHeartbeatResponse(events);
+
+    DataOutputBuffer dataout = new DataOutputBuffer();
+    response.write(dataout);
+    DataOutputBuffer eventsOut = new DataOutputBuffer();
+    serializeEvents(events, eventsOut);
+    // meta data written once instead of twice per event
+    Assert.assertTrue(dataout.getLength() < eventsOut.getLength() / 2);
+
+    DataInputBuffer datain = new DataInputBuffer();
+    datain.reset(dataout.getData(), dataout.getLength());
+    TezHeartbeatResponse actual = new TezHeartbeatResponse();
+    actual.readFields(datain);
+    Assert.assertEquals(events.size(), actual.getEvents().size());
+    for (int i = 0; i < 10; i++) {
+      TezEvent event = actual.getEvents().get(i);
+      Assert.assertEquals(events.get(i).getSourceInfo(), event.getSourceInfo());
+      Assert.assertEquals(destInfo, event.getDestinationInfo());
+      Assert.assertSame(actual.getEvents().get(0).getSourceInfo(), event.getSourceInfo());
+      Assert.assertEquals(i, ((DataMovementEvent) event.getEvent()).getTargetIndex());
+    }
+    TezEvent last = actual.getEvents().get(10);
+    Assert.assertNull(last.getSourceInfo());
+    Assert.assertNull(last.getDestinationInfo());
+    Assert.assertTrue(last.getEvent() instanceof TaskAttemptCompletedEvent);
+  }
+
   private void serializeEvents(ArrayList<TezEvent> events, DataOutput out) throws IOException {
     out.writeInt(events.size());
     for (TezEvent e : events) {
@@ -217,6 +217,68 @@ public class TestTaskReporter {
 
   }
 
+  @Test(timeout = 5000)
+  public void testAdaptivePollInterval() {
+    LogicalIOProcessorRuntimeTask mockTask = mock(LogicalIOProcessorRuntimeTask.class);
+    doReturn("vertexName").when(mockTask).getVertexName();
+    doReturn(mock(TezTaskAttemptID.class)).when(mockTask).getTaskAttemptID();
+    TezTaskUmbilicalProtocol mockUmbilical = mock(TezTaskUmbilicalProtocol.class);
+
+    TaskReporter.HeartbeatCallable heartbeatCallable =
+        new TaskReporter.HeartbeatCallable(mockTask, mockUmbilical, 100, 100000, 5,
+            new AtomicLong(0), "containerIdStr", true, 500);
+    TaskReporter.ResponseWrapper idle = new TaskReporter.ResponseWrapper(false, 0, 0, false);
+    // backs off while idle, up to the max
+    Assert.assertEquals(200, heartbeatCallable.getNextPollInterval(idle));
+    Assert.assertEquals(400, heartbeatCallable.getNextPollInterval(idle));
+    Assert.assertEquals(500, heartbeatCallable.getNextPollInterval(idle));
+    Assert.assertEquals(500, heartbeatCallable.getNextPollInterval(idle));
+    // reset by events received or sent
+    Assert.assertEquals(100, heartbeatCallable.getNextPollInterval(
+        new TaskReporter.ResponseWrapper(false, 1, 0, false)));
+    Assert.assertEquals(200, heartbeatCallable.getNextPollInterval(idle));
+    Assert.assertEquals(100, heartbeatCallable.getNextPollInterval(
+        new TaskReporter.ResponseWrapper(false, 0, 1, false)));
+
+    heartbeatCallable = new TaskReporter.HeartbeatCallable(mockTask, mockUmbilical, 100, 100000,
+        5, new AtomicLong(0), "containerIdStr");
+    Assert.assertEquals(100, heartbeatCallable.getNextPollInterval(idle));
+    Assert.assertEquals(100, heartbeatCallable.getNextPollInterval(idle));
+  }
+
+  @Test(timeout = 10000)
+  public void testAdaptiveMoreEventsPending() throws Exception {
+    TezTaskAttemptID mockTaskAttemptId = mock(TezTaskAttemptID.class);
+    LogicalIOProcessorRuntimeTask mockTask = mock(LogicalIOProcessorRuntimeTask.class);
+    when(mockTask.getMaxEventsToHandle()).thenReturn(10000);
+    when(mockTask.getVertexName()).thenReturn("vertexName");
+    when(mockTask.getTaskAttemptID()).thenReturn(mockTaskAttemptId);
+
+    TezTaskUmbilicalProtocol mockUmbilical = mock(TezTaskUmbilicalProtocol.class);
+    TezHeartbeatResponse resp1 = new TezHeartbeatResponse(createEvents(1));
+    resp1.setLastRequestId(1);
+    resp1.setMoreEventsPending(true);
+    TezHeartbeatResponse resp2 = new TezHeartbeatResponse(createEvents(1));
+    resp2.setLastRequestId(2);
+    resp2.setShouldDie();
+    when(mockUmbilical.heartbeat(isA(TezHeartbeatRequest.class))).thenReturn(resp1, resp2);
+
+    // Setup the sleep time to be way higher than the test timeout, the second heartbeat is only
+    // sent in time if it does not wait
+    TaskReporter.HeartbeatCallable heartbeatCallable =
+        new TaskReporter.HeartbeatCallable(mockTask, mockUmbilical, 100000, 100000, 5,
+            new AtomicLong(0), "containerIdStr", true, 100000);
+
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      Future<Boolean> result = executor.submit(heartbeatCallable);
+      Assert.assertFalse(result.get());
+    } finally {
+      executor.shutdownNow();
+    }
+    verify(mockUmbilical, times(2)).heartbeat(isA(TezHeartbeatRequest.class));
+  }
+
   private List<TezEvent> createEvents(int numEvents) {
     List<TezEvent> list = Lists.newArrayListWithCapacity(numEvents);
     for (int i = 0; i < numEvents; i++) {
@@ -88,6 +88,42 @@ public class TezRuntimeConfiguration {
   public static final int TEZ_RUNTIME_IFILE_READAHEAD_BYTES_DEFAULT =
       4 * 1024 * 1024;
 
+  /**
+   * Configuration key to read uncompressed IFile segments on the local filesystem through a
+   * memory mapped view of the file during merges, instead of through buffered streams. Key and
+   * value bytes are copied straight out of the mapping, skipping the read ahead and stream
+   * buffers. Compressed segments and segments on other filesystems are always read through
+   * streams.
+   */
+  @ConfigurationProperty(type = "boolean")
+  public static final String TEZ_RUNTIME_IFILE_MMAP_READS = TEZ_RUNTIME_PREFIX +
+      "ifile.mmap.reads";
+  public static final boolean TEZ_RUNTIME_IFILE_MMAP_READS_DEFAULT = false;
+
+  /**
+   * Size in bytes of the blocks compressed IFiles are cut into. When set to a positive value and
+   * compression is enabled, every block of records is compressed independently and the IFile
+   * ends with an index of the blocks (offsets, lengths, record counts, checksums and first keys),
+   * which lets readers decompress blocks in parallel. A value of 0 writes the records as a single
+   * compressed stream. Readers handle both formats irrespective of this setting.
+   */
+  @ConfigurationProperty(type = "integer")
+  public static final String TEZ_RUNTIME_IFILE_BLOCK_SIZE = TEZ_RUNTIME_PREFIX +
+      "ifile.block.size";
+  public static final int TEZ_RUNTIME_IFILE_BLOCK_SIZE_DEFAULT = 0;
+
+  /**
+   * Whether IFile writers front code keys, i.e. write only the suffix of a key which shares a
+   * prefix with the previous key, along with the length of the shared prefix. Saves space for
+   * sorted data with long composite keys, before compression is applied. Readers handle front
+   * coded keys irrespective of this setting, but data written with it enabled can not be read by
+   * older versions.
+   */
+  @ConfigurationProperty(type = "boolean")
+  public static final String TEZ_RUNTIME_IFILE_KEY_PREFIX_COMPRESSION = TEZ_RUNTIME_PREFIX +
+      "ifile.key.prefix-compression";
+  public static final boolean TEZ_RUNTIME_IFILE_KEY_PREFIX_COMPRESSION_DEFAULT = false;
+
   public static final int TEZ_RUNTIME_IFILE_BUFFER_SIZE_DEFAULT = -1;
 
   /**
@@ -104,6 +140,45 @@ public class TezRuntimeConfiguration {
   public static final int TEZ_RUNTIME_IO_SORT_FACTOR_DEFAULT = 100;
 
 
+  /**
+   * Configuration key to let merges pick their merge factor based on the segments being merged,
+   * instead of always using tez.runtime.io.sort.factor. The factor is raised (never lowered)
+   * as far as the memory and disk limits below allow, to the value which minimizes the bytes
+   * rewritten by intermediate merge passes. The chosen plan is published through the
+   * MERGE_PLAN_* task counters.
+   */
+  @ConfigurationProperty(type = "boolean")
+  public static final String TEZ_RUNTIME_MERGE_PLANNER_ENABLED = TEZ_RUNTIME_PREFIX +
+      "merge.planner.enabled";
+  public static final boolean TEZ_RUNTIME_MERGE_PLANNER_ENABLED_DEFAULT = false;
+
+  /**
+   * Fraction of the maximum heap the merge planner may assume to be available for the
+   * buffers of segments which are read at the same time.
+   */
+  @ConfigurationProperty(type = "float")
+  public static final String TEZ_RUNTIME_MERGE_PLANNER_MEMORY_FRACTION = TEZ_RUNTIME_PREFIX +
+      "merge.planner.memory.fraction";
+  public static final float TEZ_RUNTIME_MERGE_PLANNER_MEMORY_FRACTION_DEFAULT = 0.1f;
+
+  /**
+   * Estimated memory in bytes needed to read one on-disk segment during a merge (stream,
+   * checksum and decompression buffers). Used by the merge planner.
+   */
+  @ConfigurationProperty(type = "integer")
+  public static final String TEZ_RUNTIME_MERGE_PLANNER_SEGMENT_BYTES = TEZ_RUNTIME_PREFIX +
+      "merge.planner.segment.bytes";
+  public static final int TEZ_RUNTIME_MERGE_PLANNER_SEGMENT_BYTES_DEFAULT = 256 * 1024;
+
+  /**
+   * Maximum number of on-disk segments the merge planner lets a single merge read per local
+   * directory. The limit for a merge is this value times the number of local directories.
+   */
+  @ConfigurationProperty(type = "integer")
+  public static final String TEZ_RUNTIME_MERGE_PLANNER_SEGMENTS_PER_DISK = TEZ_RUNTIME_PREFIX +
+      "merge.planner.segments.per.disk";
+  public static final int TEZ_RUNTIME_MERGE_PLANNER_SEGMENTS_PER_DISK_DEFAULT = 200;
+
   @ConfigurationProperty(type = "float")
   public static final String TEZ_RUNTIME_SORT_SPILL_PERCENT = TEZ_RUNTIME_PREFIX +
       "sort.spill.percent";
@@ -128,6 +203,20 @@ public class TezRuntimeConfiguration {
       "combine.min.spills";
   public static final int TEZ_RUNTIME_COMBINE_MIN_SPILLS_DEFAULT = 3;
 
+  /**
+   * Size in bytes of the hash table sorted outputs combine records in before writing them to the
+   * sort buffer, when a combiner is configured. Records are grouped by partition and key in the
+   * table, and the combiner is run on the groups whenever the table fills up, so that only the
+   * combined records are sorted, spilled and shuffled. Aggregations over few distinct keys
+   * benefit most; the table is bypassed once combining turns out not to reduce the records. The
+   * memory (roughly twice the configured size) is requested in addition to
+   * {@link #TEZ_RUNTIME_IO_SORT_MB}. A value of 0 disables it.
+   */
+  @ConfigurationProperty(type = "integer")
+  public static final String TEZ_RUNTIME_COMBINE_HASH_BUFFER_BYTES = TEZ_RUNTIME_PREFIX +
+      "combine.hash.buffer.bytes";
+  public static final int TEZ_RUNTIME_COMBINE_HASH_BUFFER_BYTES_DEFAULT = 0;
+
   /**
    * Tries to allocate @link{#TEZ_RUNTIME_IO_SORT_MB} in chunks specified in
    * this parameter.
@@ -154,6 +243,34 @@ public class TezRuntimeConfiguration {
   public static final boolean
       TEZ_RUNTIME_PIPELINED_SORTER_LAZY_ALLOCATE_MEMORY_DEFAULT = false;
 
+  /**
+   * Setting this to true makes the pipelined sorter allocate its sort buffers
+   * (serialized key/values as well as the per record metadata) as direct buffers
+   * obtained from a JVM wide pool, instead of as on-heap byte arrays. This keeps the
+   * large and long lived sort buffers out of the old generation, at the cost of
+   * copying keys onto the heap while comparing them.
+   */
+  @ConfigurationProperty(type = "boolean")
+  public static final String TEZ_RUNTIME_PIPELINED_SORTER_USE_DIRECT_BUFFERS = TEZ_RUNTIME_PREFIX +
+      "pipelined.sorter.use.direct.buffers";
+  public static final boolean
+      TEZ_RUNTIME_PIPELINED_SORTER_USE_DIRECT_BUFFERS_DEFAULT = false;
+
+  /**
+   * Setting this to true makes the pipelined sorter keep the first 8 bytes of every
+   * serialized key next to the partition in the sort metadata, and sort spans with an
+   * in-place radix pass on partition and key prefix. The key comparator is only invoked
+   * for keys sharing the same prefix. This is only effective when the key comparator
+   * orders keys by their serialized bytes (i.e.
+   * {@link org.apache.tez.runtime.library.common.comparator.TezBytesComparator}), and is
+   * ignored otherwise.
+   */
+  @ConfigurationProperty(type = "boolean")
+  public static final String TEZ_RUNTIME_PIPELINED_SORTER_RADIX_SORT = TEZ_RUNTIME_PREFIX +
+      "pipelined.sorter.radix.sort";
+  public static final boolean
+      TEZ_RUNTIME_PIPELINED_SORTER_RADIX_SORT_DEFAULT = false;
+
   /**
    * String value.
    * Which sorter implementation to use.
@@ -172,6 +289,18 @@ public class TezRuntimeConfiguration {
       "pipelined.sorter.sort.threads";
   public static final int TEZ_RUNTIME_PIPELINED_SORTER_SORT_THREADS_DEFAULT = 2;
 
+  /**
+   * Integer value. Number of threads used by the pipelined sorter to merge spills into the
+   * final output, when final merge is enabled. Partitions are split into contiguous ranges
+   * which are merged concurrently and stitched into the final output file. The final merge
+   * stays single threaded when a combiner has to be run, as combiners are not expected to be
+   * thread safe.
+   */
+  @ConfigurationProperty(type = "integer")
+  public static final String TEZ_RUNTIME_PIPELINED_SORTER_FINAL_MERGE_THREADS = TEZ_RUNTIME_PREFIX +
+      "pipelined.sorter.final-merge.threads";
+  public static final int TEZ_RUNTIME_PIPELINED_SORTER_FINAL_MERGE_THREADS_DEFAULT = 1;
+
   /**
    * Integer value. Percentage of buffer to be filled before we spill to disk. Default value is 0,
    * which will spill for every buffer.
@@ -204,6 +333,16 @@ public class TezRuntimeConfiguration {
       "unordered.output.buffer.size-mb";
   public static final int TEZ_RUNTIME_UNORDERED_OUTPUT_BUFFER_SIZE_MB_DEFAULT = 100;
 
+  /**
+   * Size of the hash table HashAggregatedPartitionedKVOutput combines records in before
+   * buffering them, in addition to {@link #TEZ_RUNTIME_UNORDERED_OUTPUT_BUFFER_SIZE_MB}. If the
+   * output is assigned less memory than requested, both are scaled down proportionally.
+   */
+  @ConfigurationProperty(type = "integer")
+  public static final String TEZ_RUNTIME_HASH_AGGREGATION_BUFFER_SIZE_MB = TEZ_RUNTIME_PREFIX +
+      "hash-aggregation.buffer.size-mb";
+  public static final int TEZ_RUNTIME_HASH_AGGREGATION_BUFFER_SIZE_MB_DEFAULT = 64;
+
   /**
    * Maximum size for individual buffers used in the UnsortedPartitionedOutput.
    * This is only meant to be used by unit tests for now.
@@ -233,6 +372,62 @@ public class TezRuntimeConfiguration {
       "shuffle.parallel.copies";
   public static final int TEZ_RUNTIME_SHUFFLE_PARALLEL_COPIES_DEFAULT = 20;
 
+  /**
+   * Whether unordered inputs adapt the number of running fetchers to the
+   * observed shuffle throughput, fetch failures and memory pressure. When
+   * enabled, {@link #TEZ_RUNTIME_SHUFFLE_PARALLEL_COPIES} is the upper bound.
+   */
+  @ConfigurationProperty(type = "boolean")
+  public static final String TEZ_RUNTIME_SHUFFLE_ADAPTIVE_FETCHERS_ENABLED = TEZ_RUNTIME_PREFIX +
+      "shuffle.adaptive.fetchers.enabled";
+  public static final boolean TEZ_RUNTIME_SHUFFLE_ADAPTIVE_FETCHERS_ENABLED_DEFAULT = false;
+
+  /**
+   * The number of fetchers adaptive fetching starts with and never goes below.
+   */
+  @ConfigurationProperty(type = "integer")
+  public static final String TEZ_RUNTIME_SHUFFLE_ADAPTIVE_FETCHERS_MIN = TEZ_RUNTIME_PREFIX +
+      "shuffle.adaptive.fetchers.min";
+  public static final int TEZ_RUNTIME_SHUFFLE_ADAPTIVE_FETCHERS_MIN_DEFAULT = 2;
+
+  /**
+   * Interval in milliseconds at which adaptive fetching re-evaluates the
+   * number of fetchers.
+   */
+  @ConfigurationProperty(type = "integer")
+  public static final String TEZ_RUNTIME_SHUFFLE_ADAPTIVE_FETCHERS_INTERVAL_MS =
+      TEZ_RUNTIME_PREFIX + "shuffle.adaptive.fetchers.interval-ms";
+  public static final int TEZ_RUNTIME_SHUFFLE_ADAPTIVE_FETCHERS_INTERVAL_MS_DEFAULT = 1000;
+
+  /**
+   * Fraction of the shuffle memory in use above which adaptive fetching
+   * halves the number of fetchers.
+   */
+  @ConfigurationProperty(type = "float")
+  public static final String TEZ_RUNTIME_SHUFFLE_ADAPTIVE_FETCHERS_MEMORY_PRESSURE =
+      TEZ_RUNTIME_PREFIX + "shuffle.adaptive.fetchers.memory.pressure";
+  public static final float TEZ_RUNTIME_SHUFFLE_ADAPTIVE_FETCHERS_MEMORY_PRESSURE_DEFAULT = 0.9f;
+
+  /**
+   * Whether the buffers inputs are shuffled to memory into are pooled and
+   * reused instead of being allocated for every input. Idle pooled buffers
+   * count against the shuffle memory limit.
+   */
+  @ConfigurationProperty(type = "boolean")
+  public static final String TEZ_RUNTIME_SHUFFLE_BUFFER_POOL_ENABLED = TEZ_RUNTIME_PREFIX +
+      "shuffle.buffer.pool.enabled";
+  public static final boolean TEZ_RUNTIME_SHUFFLE_BUFFER_POOL_ENABLED_DEFAULT = false;
+
+  /**
+   * Size in bytes of the largest buffer pooled, larger buffers are allocated
+   * for every input.
+   */
+  @ConfigurationProperty(type = "integer")
+  public static final String TEZ_RUNTIME_SHUFFLE_BUFFER_POOL_MAX_BUFFER_SIZE =
+      TEZ_RUNTIME_PREFIX + "shuffle.buffer.pool.max-buffer-size";
+  public static final int TEZ_RUNTIME_SHUFFLE_BUFFER_POOL_MAX_BUFFER_SIZE_DEFAULT =
+      8 * 1024 * 1024;
+
   @ConfigurationProperty(type = "integer")
   public static final String TEZ_RUNTIME_SHUFFLE_FETCH_FAILURES_LIMIT = TEZ_RUNTIME_PREFIX +
       "shuffle.fetch.failures.limit";
@@ -408,6 +603,67 @@ public class TezRuntimeConfiguration {
       TEZ_RUNTIME_PREFIX + "shuffle.fetch.verify-disk-checksum";
   public static final boolean TEZ_RUNTIME_SHUFFLE_FETCH_VERIFY_DISK_CHECKSUM_DEFAULT = true;
 
+  /**
+   * Whether fetchers of a range of partitions ask the shuffle handler for a
+   * single compact header table instead of one header per partition. Shuffle
+   * handlers which do not support it send the per partition headers, which
+   * the fetchers still accept.
+   */
+  @ConfigurationProperty(type = "boolean")
+  public static final String TEZ_RUNTIME_SHUFFLE_FETCH_COMPACT_RANGE_HEADER =
+      TEZ_RUNTIME_PREFIX + "shuffle.fetch.compact-range-header";
+  public static final boolean TEZ_RUNTIME_SHUFFLE_FETCH_COMPACT_RANGE_HEADER_DEFAULT = true;
+
+  /**
+   * Whether unordered outputs push their partitions to the shuffle handlers
+   * listed in {@link #TEZ_RUNTIME_SHUFFLE_PUSH_MERGER_HOSTS}, which append the
+   * partitions pushed for an edge into one file per partition, and whether
+   * unordered inputs fetch these files before pulling the partitions which
+   * were not pushed. Needs tez.shuffle.push.enabled on the shuffle handlers.
+   * Partitions which could not be pushed are pulled from the producers.
+   */
+  @ConfigurationProperty(type = "boolean")
+  public static final String TEZ_RUNTIME_SHUFFLE_PUSH_ENABLED =
+      TEZ_RUNTIME_PREFIX + "shuffle.push.enabled";
+  public static final boolean TEZ_RUNTIME_SHUFFLE_PUSH_ENABLED_DEFAULT = false;
+
+  /**
+   * Comma separated hosts merging the pushed partitions, partition n is
+   * pushed to host n modulo the number of hosts. The shuffle handlers are
+   * expected to listen on the same port on all the hosts.
+   */
+  @ConfigurationProperty
+  public static final String TEZ_RUNTIME_SHUFFLE_PUSH_MERGER_HOSTS =
+      TEZ_RUNTIME_PREFIX + "shuffle.push.merger.hosts";
+
+  /**
+   * Partitions larger than this many bytes are not pushed. Must not exceed
+   * tez.shuffle.push.max-block-bytes of the shuffle handlers.
+   */
+  @ConfigurationProperty(type = "integer")
+  public static final String TEZ_RUNTIME_SHUFFLE_PUSH_MAX_BLOCK_SIZE =
+      TEZ_RUNTIME_PREFIX + "shuffle.push.max-block-size";
+  public static final int TEZ_RUNTIME_SHUFFLE_PUSH_MAX_BLOCK_SIZE_DEFAULT = 1024 * 1024;
+
+  /**
+   * Number of merger hosts an output pushes to at the same time. The
+   * partitions of one host are pushed one after the other.
+   */
+  @ConfigurationProperty(type = "integer")
+  public static final String TEZ_RUNTIME_SHUFFLE_PUSH_PARALLELISM =
+      TEZ_RUNTIME_PREFIX + "shuffle.push.parallelism";
+  public static final int TEZ_RUNTIME_SHUFFLE_PUSH_PARALLELISM_DEFAULT = 4;
+
+  /**
+   * Time in milliseconds closing an output waits for its partitions to be
+   * pushed. Partitions which are not pushed by then are pulled by the
+   * consumers.
+   */
+  @ConfigurationProperty(type = "integer")
+  public static final String TEZ_RUNTIME_SHUFFLE_PUSH_TIMEOUT_MS =
+      TEZ_RUNTIME_PREFIX + "shuffle.push.timeout-ms";
+  public static final int TEZ_RUNTIME_SHUFFLE_PUSH_TIMEOUT_MS_DEFAULT = 10000;
+
   @ConfigurationProperty(type = "float")
   public static final String TEZ_RUNTIME_SHUFFLE_FETCH_BUFFER_PERCENT = TEZ_RUNTIME_PREFIX +
       "shuffle.fetch.buffer.percent";
@@ -426,6 +682,17 @@ public class TezRuntimeConfiguration {
       "shuffle.merge.percent";
   public static final float TEZ_RUNTIME_SHUFFLE_MERGE_PERCENT_DEFAULT = 0.90f;
 
+  /**
+   * Fraction of the inputs of an ordered input left to fetch below which the
+   * outputs fetched so far are merged while the last inputs are fetched, so
+   * that the final merge only has to merge the result with the last inputs.
+   * 0 disables merging ahead of the final merge.
+   */
+  @ConfigurationProperty(type = "float")
+  public static final String TEZ_RUNTIME_SHUFFLE_MERGE_TAIL_INPUTS_PERCENT = TEZ_RUNTIME_PREFIX +
+      "shuffle.merge.tail.inputs.percent";
+  public static final float TEZ_RUNTIME_SHUFFLE_MERGE_TAIL_INPUTS_PERCENT_DEFAULT = 0.0f;
+
   @ConfigurationProperty(type = "integer")
   public static final String TEZ_RUNTIME_SHUFFLE_MEMTOMEM_SEGMENTS = TEZ_RUNTIME_PREFIX +
       "shuffle.memory-to-memory.segments";
@@ -473,6 +740,22 @@ public class TezRuntimeConfiguration {
   @ConfigurationProperty
   public static final String TEZ_RUNTIME_COMPRESS_CODEC = TEZ_RUNTIME_PREFIX + "compress.codec";
 
+  /**
+   * Block codec to compress intermediate data with. When set, and {@link #TEZ_RUNTIME_COMPRESS}
+   * is enabled, it is used instead of {@link #TEZ_RUNTIME_COMPRESS_CODEC}. If the codec is not
+   * available, e.g. "zstd" without the native library, the output is compressed with
+   * {@link #TEZ_RUNTIME_COMPRESS_CODEC}. Either a built-in codec ("lz4", a pure Java LZ4 implementation, "deflate", using
+   * the JDK's zlib, or "zstd", which needs the native hadoop library built with zstd) or the name
+   * of an implementation of org.apache.tez.runtime.library.common.compress.BlockCodec registered
+   * with java.util.ServiceLoader. Block codecs compress whole IFile blocks at once (see
+   * {@link #TEZ_RUNTIME_IFILE_BLOCK_SIZE}, 64KB blocks are used if it is not set) without going
+   * through Hadoop's codec pool and streams. The codec is recorded in the IFile, so readers do
+   * not need this setting.
+   */
+  @ConfigurationProperty
+  public static final String TEZ_RUNTIME_COMPRESS_BLOCK_CODEC = TEZ_RUNTIME_PREFIX +
+      "compress.block.codec";
+
   // TODO Move this key to MapReduce
   @ConfigurationProperty
   public static final String TEZ_RUNTIME_KEY_SECONDARY_COMPARATOR_CLASS =
@@ -558,22 +841,40 @@ public class TezRuntimeConfiguration {
   static {
     tezRuntimeKeys.add(TEZ_RUNTIME_IFILE_READAHEAD);
     tezRuntimeKeys.add(TEZ_RUNTIME_IFILE_READAHEAD_BYTES);
+    tezRuntimeKeys.add(TEZ_RUNTIME_IFILE_MMAP_READS);
+    tezRuntimeKeys.add(TEZ_RUNTIME_IFILE_BLOCK_SIZE);
+    tezRuntimeKeys.add(TEZ_RUNTIME_IFILE_KEY_PREFIX_COMPRESSION);
     tezRuntimeKeys.add(TEZ_RUNTIME_IO_FILE_BUFFER_SIZE);
     tezRuntimeKeys.add(TEZ_RUNTIME_IO_SORT_FACTOR);
+    tezRuntimeKeys.add(TEZ_RUNTIME_MERGE_PLANNER_ENABLED);
+    tezRuntimeKeys.add(TEZ_RUNTIME_MERGE_PLANNER_MEMORY_FRACTION);
+    tezRuntimeKeys.add(TEZ_RUNTIME_MERGE_PLANNER_SEGMENT_BYTES);
+    tezRuntimeKeys.add(TEZ_RUNTIME_MERGE_PLANNER_SEGMENTS_PER_DISK);
     tezRuntimeKeys.add(TEZ_RUNTIME_SORT_SPILL_PERCENT);
     tezRuntimeKeys.add(TEZ_RUNTIME_IO_SORT_MB);
     tezRuntimeKeys.add(TEZ_RUNTIME_INDEX_CACHE_MEMORY_LIMIT_BYTES);
     tezRuntimeKeys.add(TEZ_RUNTIME_COMBINE_MIN_SPILLS);
+    tezRuntimeKeys.add(TEZ_RUNTIME_COMBINE_HASH_BUFFER_BYTES);
     tezRuntimeKeys.add(TEZ_RUNTIME_PIPELINED_SORTER_SORT_THREADS);
+    tezRuntimeKeys.add(TEZ_RUNTIME_PIPELINED_SORTER_FINAL_MERGE_THREADS);
     tezRuntimeKeys.add(
         TEZ_RUNTIME_PIPELINED_SORTER_MIN_BLOCK_SIZE_IN_MB);
     tezRuntimeKeys.add(TEZ_RUNTIME_PIPELINED_SORTER_LAZY_ALLOCATE_MEMORY);
+    tezRuntimeKeys.add(TEZ_RUNTIME_PIPELINED_SORTER_USE_DIRECT_BUFFERS);
+    tezRuntimeKeys.add(TEZ_RUNTIME_PIPELINED_SORTER_RADIX_SORT);
     tezRuntimeKeys.add(TEZ_RUNTIME_UNORDERED_OUTPUT_BUFFER_SIZE_MB);
+    tezRuntimeKeys.add(TEZ_RUNTIME_HASH_AGGREGATION_BUFFER_SIZE_MB);
     tezRuntimeKeys.add(TEZ_RUNTIME_UNORDERED_OUTPUT_MAX_PER_BUFFER_SIZE_BYTES);
     tezRuntimeKeys.add(TEZ_RUNTIME_PARTITIONER_CLASS);
     tezRuntimeKeys.add(TEZ_RUNTIME_COMBINER_CLASS);
     tezRuntimeKeys.add(TEZ_RUNTIME_SHUFFLE_USE_ASYNC_HTTP);
     tezRuntimeKeys.add(TEZ_RUNTIME_SHUFFLE_PARALLEL_COPIES);
+    tezRuntimeKeys.add(TEZ_RUNTIME_SHUFFLE_ADAPTIVE_FETCHERS_ENABLED);
+    tezRuntimeKeys.add(TEZ_RUNTIME_SHUFFLE_ADAPTIVE_FETCHERS_MIN);
+    tezRuntimeKeys.add(TEZ_RUNTIME_SHUFFLE_ADAPTIVE_FETCHERS_INTERVAL_MS);
+    tezRuntimeKeys.add(TEZ_RUNTIME_SHUFFLE_ADAPTIVE_FETCHERS_MEMORY_PRESSURE);
+    tezRuntimeKeys.add(TEZ_RUNTIME_SHUFFLE_BUFFER_POOL_ENABLED);
+    tezRuntimeKeys.add(TEZ_RUNTIME_SHUFFLE_BUFFER_POOL_MAX_BUFFER_SIZE);
     tezRuntimeKeys.add(TEZ_RUNTIME_SHUFFLE_FETCH_FAILURES_LIMIT);
     tezRuntimeKeys.add(TEZ_RUNTIME_SHUFFLE_FETCH_MAX_TASK_OUTPUT_AT_ONCE);
     tezRuntimeKeys.add(TEZ_RUNTIME_SHUFFLE_NOTIFY_READERROR);
@@ -584,9 +885,16 @@ public class TezRuntimeConfiguration {
     tezRuntimeKeys.add(TEZ_RUNTIME_SHUFFLE_BUFFER_SIZE);
     tezRuntimeKeys.add(TEZ_RUNTIME_SHUFFLE_ENABLE_SSL);
     tezRuntimeKeys.add(TEZ_RUNTIME_SHUFFLE_FETCH_VERIFY_DISK_CHECKSUM);
+    tezRuntimeKeys.add(TEZ_RUNTIME_SHUFFLE_FETCH_COMPACT_RANGE_HEADER);
+    tezRuntimeKeys.add(TEZ_RUNTIME_SHUFFLE_PUSH_ENABLED);
+    tezRuntimeKeys.add(TEZ_RUNTIME_SHUFFLE_PUSH_MERGER_HOSTS);
+    tezRuntimeKeys.add(TEZ_RUNTIME_SHUFFLE_PUSH_MAX_BLOCK_SIZE);
+    tezRuntimeKeys.add(TEZ_RUNTIME_SHUFFLE_PUSH_PARALLELISM);
+    tezRuntimeKeys.add(TEZ_RUNTIME_SHUFFLE_PUSH_TIMEOUT_MS);
     tezRuntimeKeys.add(TEZ_RUNTIME_SHUFFLE_FETCH_BUFFER_PERCENT);
     tezRuntimeKeys.add(TEZ_RUNTIME_SHUFFLE_MEMORY_LIMIT_PERCENT);
     tezRuntimeKeys.add(TEZ_RUNTIME_SHUFFLE_MERGE_PERCENT);
+    tezRuntimeKeys.add(TEZ_RUNTIME_SHUFFLE_MERGE_TAIL_INPUTS_PERCENT);
     tezRuntimeKeys.add(TEZ_RUNTIME_SHUFFLE_MEMTOMEM_SEGMENTS);
     tezRuntimeKeys.add(TEZ_RUNTIME_SHUFFLE_ENABLE_MEMTOMEM);
     tezRuntimeKeys.add
@@ -606,6 +914,7 @@ public class TezRuntimeConfiguration {
     tezRuntimeKeys.add(TEZ_RUNTIME_VALUE_CLASS);
     tezRuntimeKeys.add(TEZ_RUNTIME_COMPRESS);
     tezRuntimeKeys.add(TEZ_RUNTIME_COMPRESS_CODEC);
+    tezRuntimeKeys.add(TEZ_RUNTIME_COMPRESS_BLOCK_CODEC);
     tezRuntimeKeys.add(TEZ_RUNTIME_KEY_SECONDARY_COMPARATOR_CLASS);
     tezRuntimeKeys.add(TEZ_RUNTIME_EMPTY_PARTITION_INFO_VIA_EVENTS_ENABLED);
     tezRuntimeKeys.add(TEZ_RUNTIME_PIPELINED_SHUFFLE_ENABLED);
@@ -0,0 +1,411 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.runtime.library.common.combine;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.apache.hadoop.classification.InterfaceAudience.Private;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.WritableComparator;
+import org.apache.hadoop.io.serializer.Deserializer;
+import org.apache.hadoop.io.serializer.SerializationFactory;
+import org.apache.hadoop.io.serializer.Serializer;
+import org.apache.hadoop.util.Progress;
+import org.apache.tez.runtime.library.common.sort.impl.IFile;
+import org.apache.tez.runtime.library.common.sort.impl.IFile.Writer;
+import org.apache.tez.runtime.library.common.sort.impl.TezRawKeyValueIterator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.annotations.VisibleForTesting;
+
+/**
+ * Bounded hash table which groups records by partition and serialized key
+ * before they reach a sort buffer. When the table fills up (or is flushed),
+ * each partition's groups are run through the combiner, and the combined
+ * records are handed to {@link #collect(Object, Object, int)}.
+ *
+ * Keys and values are copied into a single byte array, the groups are found
+ * through an open addressing table of group indexes and the values of a
+ * group are chained, so that no objects are allocated per record. If
+ * combining hardly reduces the records, the table is bypassed for the
+ * remaining records.
+ */
+@Private
+@SuppressWarnings({"unchecked", "rawtypes"})
+public abstract class HashCombineBuffer {
+
+  private static final Logger LOG = LoggerFactory.getLogger(HashCombineBuffer.class);
+
+  // Average bytes per record assumed to size the record and group arrays
+  private static final int BYTES_PER_RECORD = 64;
+  // Bypass the table when combining keeps more than this fraction of the records
+  @VisibleForTesting
+  static final float MAX_COMBINED_FRACTION = 0.9f;
+  // Records to see before deciding to bypass the table
+  private static final int MIN_RECORDS_FOR_BYPASS = 1000;
+
+  private final int partitions;
+  private final byte[] data;
+  private int dataLength;
+
+  // Open addressing table of group index + 1, 0 marks an empty slot
+  private final int[] table;
+  private final int mask;
+
+  // Groups: partition, key location and the chain of values
+  private final int[] groupPartition;
+  private final int[] groupHash;
+  private final int[] groupKeyStart;
+  private final int[] groupKeyLength;
+  private final int[] groupFirstValue;
+  private final int[] groupLastValue;
+  private int numGroups;
+
+  // Values: location and the next value of the same group, or -1
+  private final int[] valueStart;
+  private final int[] valueLength;
+  private final int[] valueNext;
+  private int numValues;
+
+  // Groups ordered by partition for the flush
+  private final int[] partitionGroups;
+  private final int[] partitionStart;
+
+  private final DataOutputBuffer serialized = new DataOutputBuffer();
+  private final Serializer keySerializer;
+  private final Serializer valSerializer;
+  private final CollectingWriter writer;
+
+  private boolean bypass = false;
+  private long inputRecords = 0;
+  private long outputRecords = 0;
+  private int flushes = 0;
+
+  protected HashCombineBuffer(SerializationFactory serializationFactory, Class keyClass,
+      Class valClass, int partitions, int bufferBytes) throws IOException {
+    this.partitions = partitions;
+    this.data = new byte[bufferBytes];
+    int maxRecords = getMaxRecords(bufferBytes);
+    this.table = new int[getTableSize(maxRecords)];
+    this.mask = table.length - 1;
+    this.groupPartition = new int[maxRecords];
+    this.groupHash = new int[maxRecords];
+    this.groupKeyStart = new int[maxRecords];
+    this.groupKeyLength = new int[maxRecords];
+    this.groupFirstValue = new int[maxRecords];
+    this.groupLastValue = new int[maxRecords];
+    this.valueStart = new int[maxRecords];
+    this.valueLength = new int[maxRecords];
+    this.valueNext = new int[maxRecords];
+    this.partitionGroups = new int[maxRecords];
+    this.partitionStart = new int[partitions + 1];
+
+    this.keySerializer = serializationFactory.getSerializer(keyClass);
+    this.valSerializer = serializationFactory.getSerializer(valClass);
+    keySerializer.open(serialized);
+    valSerializer.open(serialized);
+    this.writer = new CollectingWriter(serializationFactory.getDeserializer(keyClass),
+        serializationFactory.getDeserializer(valClass));
+  }
+
+  private static int getMaxRecords(int bufferBytes) {
+    return Math.max(16, bufferBytes / BYTES_PER_RECORD);
+  }
+
+  private static int getTableSize(int maxRecords) {
+    return Integer.highestOneBit(maxRecords - 1) << 2;
+  }
+
+  /**
+   * @return the bytes taken by a table for bufferBytes of records, with its
+   *         group and value arrays
+   */
+  public static long getMemoryRequirement(int bufferBytes) {
+    int maxRecords = getMaxRecords(bufferBytes);
+    // 10 int arrays of groups and values, and the open addressing table
+    return bufferBytes + 4L * (10L * maxRecords + getTableSize(maxRecords));
+  }
+
+  /**
+   * Write a record to the sort buffer.
+   */
+  protected abstract void collect(Object key, Object value, int partition) throws IOException;
+
+  /**
+   * Run the combiner on the records of kvIter, writing the results to writer.
+   */
+  protected abstract void combine(TezRawKeyValueIterator kvIter, Writer writer)
+      throws IOException;
+
+  /**
+   * Add a record to the table, flushing the table first if the record does
+   * not fit.
+   */
+  public void add(Object key, Object value, int partition) throws IOException {
+    if (bypass) {
+      collect(key, value, partition);
+      return;
+    }
+    serialized.reset();
+    keySerializer.serialize(key);
+    int keyLength = serialized.getLength();
+    valSerializer.serialize(value);
+    int recordLength = serialized.getLength();
+    if (recordLength > data.length - dataLength || numValues == valueStart.length) {
+      flush();
+      if (bypass || recordLength > data.length) {
+        collect(key, value, partition);
+        return;
+      }
+    }
+    inputRecords++;
+
+    byte[] record = serialized.getData();
+    int hash = hash(record, keyLength, partition);
+    int slot = hash & mask;
+    int group;
+    while (true) {
+      group = table[slot] - 1;
+      if (group < 0) {
+        group = numGroups++;
+        table[slot] = group + 1;
+        groupPartition[group] = partition;
+        groupHash[group] = hash;
+        groupKeyStart[group] = dataLength;
+        groupKeyLength[group] = keyLength;
+        groupFirstValue[group] = -1;
+        System.arraycopy(record, 0, data, dataLength, keyLength);
+        dataLength += keyLength;
+        break;
+      }
+      if (groupHash[group] == hash && groupPartition[group] == partition
+          && WritableComparator.compareBytes(data, groupKeyStart[group], groupKeyLength[group],
+              record, 0, keyLength) == 0) {
+        break;
+      }
+      slot = (slot + 1) & mask;
+    }
+
+    int valueIndex = numValues++;
+    valueStart[valueIndex] = dataLength;
+    valueLength[valueIndex] = recordLength - keyLength;
+    valueNext[valueIndex] = -1;
+    System.arraycopy(record, keyLength, data, dataLength, recordLength - keyLength);
+    dataLength += recordLength - keyLength;
+    if (groupFirstValue[group] < 0) {
+      groupFirstValue[group] = valueIndex;
+    } else {
+      valueNext[groupLastValue[group]] = valueIndex;
+    }
+    groupLastValue[group] = valueIndex;
+  }
+
+  private static int hash(byte[] key, int keyLength, int partition) {
+    int h = WritableComparator.hashBytes(key, keyLength) * 31 + partition;
+    // Spread the bits, keys often only differ in their last bytes
+    h ^= (h >>> 16);
+    h *= 0x85ebca6b;
+    h ^= (h >>> 13);
+    return h;
+  }
+
+  /**
+   * Combine the records in the table and collect the results.
+   */
+  public void flush() throws IOException {
+    if (numValues == 0) {
+      return;
+    }
+    // Counting sort of the groups by partition
+    Arrays.fill(partitionStart, 0);
+    for (int group = 0; group < numGroups; group++) {
+      partitionStart[groupPartition[group] + 1]++;
+    }
+    for (int partition = 0; partition < partitions; partition++) {
+      partitionStart[partition + 1] += partitionStart[partition];
+    }
+    for (int group = 0; group < numGroups; group++) {
+      partitionGroups[partitionStart[groupPartition[group]]++] = group;
+    }
+    for (int partition = partitions; partition > 0; partition--) {
+      partitionStart[partition] = partitionStart[partition - 1];
+    }
+    partitionStart[0] = 0;
+
+    for (int partition = 0; partition < partitions; partition++) {
+      if (partitionStart[partition] < partitionStart[partition + 1]) {
+        writer.partition = partition;
+        combine(new GroupIterator(partitionStart[partition], partitionStart[partition + 1]),
+            writer);
+      }
+    }
+
+    flushes++;
+    if (LOG.isDebugEnabled()) {
+      LOG.debug("Flushed combine buffer: records=" + numValues + ", keys=" + numGroups
+          + ", bytes=" + dataLength + ", total input records=" + inputRecords
+          + ", total output records=" + outputRecords);
+    }
+    Arrays.fill(table, 0);
+    numGroups = 0;
+    numValues = 0;
+    dataLength = 0;
+    if (inputRecords >= MIN_RECORDS_FOR_BYPASS
+        && outputRecords > inputRecords * MAX_COMBINED_FRACTION) {
+      LOG.info("Bypassing combine buffer after " + flushes + " flushes, combined "
+          + inputRecords + " records to " + outputRecords);
+      bypass = true;
+    }
+  }
+
+  @VisibleForTesting
+  boolean isBypassed() {
+    return bypass;
+  }
+
+  /**
+   * Iterates over the values of the groups partitionGroups[start, end).
+   */
+  private class GroupIterator implements TezRawKeyValueIterator {
+    private final DataInputBuffer key = new DataInputBuffer();
+    private final DataInputBuffer value = new DataInputBuffer();
+    private final int end;
+    private int current;
+    private int currentValue = -1;
+    private boolean sameKey = false;
+
+    GroupIterator(int start, int end) {
+      this.current = start - 1;
+      this.end = end;
+    }
+
+    @Override
+    public DataInputBuffer getKey() throws IOException {
+      int group = partitionGroups[current];
+      key.reset(data, groupKeyStart[group], groupKeyLength[group]);
+      return key;
+    }
+
+    @Override
+    public DataInputBuffer getValue() throws IOException {
+      value.reset(data, valueStart[currentValue], valueLength[currentValue]);
+      return value;
+    }
+
+    @Override
+    public boolean next() throws IOException {
+      if (currentValue >= 0 && valueNext[currentValue] >= 0) {
+        currentValue = valueNext[currentValue];
+        sameKey = true;
+        return true;
+      }
+      if (++current < end) {
+        currentValue = groupFirstValue[partitionGroups[current]];
+        sameKey = false;
+        return true;
+      }
+      return false;
+    }
+
+    @Override
+    public boolean hasNext() throws IOException {
+      return (currentValue >= 0 && valueNext[currentValue] >= 0) || (current + 1 < end);
+    }
+
+    @Override
+    public void close() throws IOException {
+    }
+
+    @Override
+    public Progress getProgress() {
+      return null;
+    }
+
+    @Override
+    public boolean isSameKey() throws IOException {
+      return sameKey;
+    }
+  }
+
+  /**
+   * Writer handing the combined records to {@link #collect(Object, Object, int)}.
+   */
+  private class CollectingWriter extends Writer {
+    private final Deserializer keyDeserializer;
+    private final Deserializer valDeserializer;
+    private final DataInputBuffer keyIn = new DataInputBuffer();
+    private final DataInputBuffer valIn = new DataInputBuffer();
+    private Object key;
+    private Object rawKey;
+    private Object rawValue;
+    int partition;
+
+    CollectingWriter(Deserializer keyDeserializer, Deserializer valDeserializer)
+        throws IOException {
+      super(null, null, false);
+      this.keyDeserializer = keyDeserializer;
+      this.valDeserializer = valDeserializer;
+      keyDeserializer.open(keyIn);
+      valDeserializer.open(valIn);
+    }
+
+    @Override
+    public void append(Object key, Object value) throws IOException {
+      if (key != IFile.REPEAT_KEY) {
+        this.key = key;
+      }
+      collectCombined(this.key, value);
+    }
+
+    @Override
+    public void append(DataInputBuffer key, DataInputBuffer value) throws IOException {
+      if (key != IFile.REPEAT_KEY) {
+        keyIn.reset(key.getData(), key.getPosition(), key.getLength() - key.getPosition());
+        rawKey = keyDeserializer.deserialize(rawKey);
+        this.key = rawKey;
+      }
+      appendValue(value);
+    }
+
+    @Override
+    public void appendValue(Object value) throws IOException {
+      collectCombined(key, value);
+    }
+
+    @Override
+    public void appendValue(DataInputBuffer value) throws IOException {
+      valIn.reset(value.getData(), value.getPosition(),
+          value.getLength() - value.getPosition());
+      rawValue = valDeserializer.deserialize(rawValue);
+      collectCombined(key, rawValue);
+    }
+
+    private void collectCombined(Object key, Object value) throws IOException {
+      outputRecords++;
+      collect(key, value, partition);
+    }
+
+    @Override
+    public void close() throws IOException {
+    }
+  }
+}
@@ -0,0 +1,89 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.runtime.library.common.compress;
+
+import java.io.IOException;
+
+import org.apache.hadoop.classification.InterfaceAudience;
+import org.apache.hadoop.classification.InterfaceStability;
+
+/**
+ * Codec compressing whole blocks of data in one call.
+ *
+ * Unlike Hadoop's {@link org.apache.hadoop.io.compress.CompressionCodec}, a block
+ * codec has no streams and no pooled compressor objects: callers hand over the
+ * complete input and an output buffer sized with {@link #maxCompressedLength(int)}.
+ * Implementations must be thread safe; per thread state (e.g. hash tables) should
+ * be kept in thread locals so that it is reused across calls.
+ *
+ * Implementations are looked up by name through {@link BlockCodecs}, and the
+ * name returned by {@link #getName()} is stored with the compressed data, so it
+ * must stay stable across releases. Codecs other than the built-in ones are
+ * registered as {@link java.util.ServiceLoader} providers of this class, and
+ * need a public no-arg constructor.
+ */
+@InterfaceAudience.Public
+@InterfaceStability.Unstable
+public abstract class BlockCodec {
+
+  /**
+   * @return name the codec is registered under, stored with compressed data
+   */
+  public String getName() {
+    return getClass().getName();
+  }
+
+  /**
+   * @return whether the codec can be used in this JVM, e.g. false if it needs a
+   *         native library which is not loaded
+   */
+  public boolean isAvailable() {
+    return true;
+  }
+
+  /**
+   * @param rawLength length of the input
+   * @return upper bound of the compressed length of an input of rawLength bytes
+   */
+  public abstract int maxCompressedLength(int rawLength);
+
+  /**
+   * Compress src[srcOffset, srcOffset + srcLength) into dest, which must have
+   * at least {@link #maxCompressedLength(int)} bytes available at destOffset.
+   *
+   * @return the compressed length
+   */
+  public abstract int compress(byte[] src, int srcOffset, int srcLength,
+      byte[] dest, int destOffset) throws IOException;
+
+  /**
+   * Decompress src[srcOffset, srcOffset + srcLength) into exactly rawLength
+   * bytes at dest[destOffset].
+   *
+   * @throws IOException if the input is malformed or does not decompress to
+   *                     rawLength bytes
+   */
+  public abstract void decompress(byte[] src, int srcOffset, int srcLength,
+      byte[] dest, int destOffset, int rawLength) throws IOException;
+
+  @Override
+  public String toString() {
+    return getName();
+  }
+}
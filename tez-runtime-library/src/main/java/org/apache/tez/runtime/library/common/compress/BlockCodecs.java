@@ -0,0 +1,115 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.runtime.library.common.compress;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.hadoop.classification.InterfaceAudience;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.tez.runtime.library.api.TezRuntimeConfiguration;
+import org.apache.tez.runtime.library.common.ConfigUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Registry of {@link BlockCodec}s. Codecs are looked up by name: the built-in
+ * codecs ({@value Lz4BlockCodec#NAME}, {@value DeflateBlockCodec#NAME},
+ * {@value ZstdBlockCodec#NAME}) and the codecs registered as
+ * {@link ServiceLoader} providers of {@link BlockCodec}. Names read from
+ * intermediate data never cause other classes to be loaded. A single instance
+ * of each codec is shared by all callers.
+ */
+@InterfaceAudience.Private
+public final class BlockCodecs {
+
+  private static final Logger LOG = LoggerFactory.getLogger(BlockCodecs.class);
+
+  private static final ConcurrentMap<String, BlockCodec> CODECS =
+      new ConcurrentHashMap<String, BlockCodec>();
+
+  static {
+    register(new Lz4BlockCodec());
+    register(new DeflateBlockCodec());
+    register(new ZstdBlockCodec());
+    Iterator<BlockCodec> providers =
+        ServiceLoader.load(BlockCodec.class, BlockCodecs.class.getClassLoader()).iterator();
+    while (true) {
+      try {
+        if (!providers.hasNext()) {
+          break;
+        }
+        register(providers.next());
+      } catch (ServiceConfigurationError e) {
+        LOG.warn("Unable to load a block codec", e);
+      }
+    }
+  }
+
+  private BlockCodecs() {
+  }
+
+  private static void register(BlockCodec codec) {
+    BlockCodec existing = CODECS.putIfAbsent(codec.getName(), codec);
+    if (existing != null && existing.getClass() != codec.getClass()) {
+      LOG.warn("Ignoring block codec " + codec.getClass().getName() + ", the name "
+          + codec.getName() + " is already used by " + existing.getClass().getName());
+    }
+  }
+
+  /**
+   * @param conf configuration
+   * @return the codec configured with
+   *         {@link TezRuntimeConfiguration#TEZ_RUNTIME_COMPRESS_BLOCK_CODEC}, or
+   *         null if none is configured, if
+   *         {@link TezRuntimeConfiguration#TEZ_RUNTIME_COMPRESS} is not set or if
+   *         the codec is not available in this JVM
+   * @throws IOException if the codec is unknown
+   */
+  public static BlockCodec getConfiguredCodec(Configuration conf) throws IOException {
+    String name = conf.getTrimmed(TezRuntimeConfiguration.TEZ_RUNTIME_COMPRESS_BLOCK_CODEC);
+    if (name == null || name.isEmpty() || !ConfigUtils.shouldCompressIntermediateOutput(conf)) {
+      return null;
+    }
+    BlockCodec codec = getCodec(name);
+    if (!codec.isAvailable()) {
+      LOG.warn("Block codec " + name + " is not available, using "
+          + TezRuntimeConfiguration.TEZ_RUNTIME_COMPRESS_CODEC + " instead");
+      return null;
+    }
+    return codec;
+  }
+
+  /**
+   * @param name name of a built-in or registered codec
+   * @return the codec
+   * @throws IOException if no codec is registered under the name
+   */
+  public static BlockCodec getCodec(String name) throws IOException {
+    BlockCodec codec = CODECS.get(name);
+    if (codec == null) {
+      throw new IOException("Unknown block codec " + name + ", known codecs: " + CODECS.keySet());
+    }
+    return codec;
+  }
+}
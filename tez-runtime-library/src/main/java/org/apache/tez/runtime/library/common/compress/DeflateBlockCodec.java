@@ -0,0 +1,111 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.runtime.library.common.compress;
+
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.apache.hadoop.classification.InterfaceAudience;
+
+/**
+ * zlib codec on top of the JDK's {@link Deflater} and {@link Inflater}, which
+ * are kept per thread and reset between blocks. Uses the fastest compression
+ * level, as intermediate data is written once and read a few times.
+ */
+@InterfaceAudience.Private
+public class DeflateBlockCodec extends BlockCodec {
+
+  public static final String NAME = "deflate";
+
+  private static final ThreadLocal<Deflater> DEFLATER = new ThreadLocal<Deflater>() {
+    @Override
+    protected Deflater initialValue() {
+      return new Deflater(Deflater.BEST_SPEED);
+    }
+  };
+
+  private static final ThreadLocal<Inflater> INFLATER = new ThreadLocal<Inflater>() {
+    @Override
+    protected Inflater initialValue() {
+      return new Inflater();
+    }
+  };
+
+  @Override
+  public String getName() {
+    return NAME;
+  }
+
+  @Override
+  public int maxCompressedLength(int rawLength) {
+    // deflateBound() of zlib plus the zlib header and trailer
+    return rawLength + (rawLength >>> 12) + (rawLength >>> 14) + (rawLength >>> 25) + 13 + 6;
+  }
+
+  @Override
+  public int compress(byte[] src, int srcOffset, int srcLength, byte[] dest, int destOffset)
+      throws IOException {
+    Deflater deflater = DEFLATER.get();
+    deflater.reset();
+    deflater.setInput(src, srcOffset, srcLength);
+    deflater.finish();
+    int maxLength = maxCompressedLength(srcLength);
+    int length = 0;
+    while (!deflater.finished()) {
+      if (length == maxLength) {
+        throw new IOException("Compressed data exceeds the bound of " + maxLength + " bytes");
+      }
+      length += deflater.deflate(dest, destOffset + length, maxLength - length);
+    }
+    return length;
+  }
+
+  @Override
+  public void decompress(byte[] src, int srcOffset, int srcLength, byte[] dest, int destOffset,
+      int rawLength) throws IOException {
+    Inflater inflater = INFLATER.get();
+    inflater.reset();
+    inflater.setInput(src, srcOffset, srcLength);
+    int length = 0;
+    try {
+      while (length < rawLength) {
+        int n = inflater.inflate(dest, destOffset + length, rawLength - length);
+        if (n == 0) {
+          break;
+        }
+        length += n;
+      }
+      if (length == rawLength && !inflater.finished()) {
+        // The end of the stream has not been consumed yet
+        if (inflater.inflate(new byte[1]) != 0) {
+          length++;
+        }
+      }
+      if (length != rawLength || !inflater.finished() || inflater.getRemaining() != 0) {
+        // Either too few bytes, or more compressed data than expected
+        throw new IOException("Malformed deflate block: decompressed " + length
+            + " bytes, expected " + rawLength);
+      }
+    } catch (DataFormatException e) {
+      throw new IOException("Malformed deflate block", e);
+    }
+  }
+}
@@ -0,0 +1,227 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.runtime.library.common.compress;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.apache.hadoop.classification.InterfaceAudience;
+
+/**
+ * Pure Java codec producing the LZ4 block format, i.e. a sequence of
+ * (token, literals, offset, match length) sequences without frame headers.
+ * Blocks are limited to 2GB and matches to a 64KB window, as in the reference
+ * implementation. No native library is needed.
+ */
+@InterfaceAudience.Private
+public class Lz4BlockCodec extends BlockCodec {
+
+  public static final String NAME = "lz4";
+
+  private static final int MIN_MATCH = 4;
+  // The last match has to start at least 12 bytes before the end of the block
+  private static final int MF_LIMIT = 12;
+  // and the last 5 bytes are always literals
+  private static final int LAST_LITERALS = 5;
+  private static final int MAX_DISTANCE = 65535;
+  private static final int RUN_MASK = 15;
+  private static final int ML_MASK = 15;
+  private static final int HASH_LOG = 14;
+  private static final int SKIP_TRIGGER = 6;
+
+  private static final ThreadLocal<int[]> HASH_TABLE = new ThreadLocal<int[]>() {
+    @Override
+    protected int[] initialValue() {
+      return new int[1 << HASH_LOG];
+    }
+  };
+
+  @Override
+  public String getName() {
+    return NAME;
+  }
+
+  @Override
+  public int maxCompressedLength(int rawLength) {
+    return rawLength + rawLength / 255 + 16;
+  }
+
+  private static int readInt(byte[] b, int i) {
+    return (b[i] & 0xff) | ((b[i + 1] & 0xff) << 8) | ((b[i + 2] & 0xff) << 16)
+        | ((b[i + 3] & 0xff) << 24);
+  }
+
+  private static int hash(int value) {
+    return (value * -1640531535) >>> (32 - HASH_LOG);
+  }
+
+  private static int writeLength(byte[] dest, int op, int length) {
+    while (length >= 255) {
+      dest[op++] = (byte) 255;
+      length -= 255;
+    }
+    dest[op++] = (byte) length;
+    return op;
+  }
+
+  private static int writeLiterals(byte[] src, int anchor, int literals, byte[] dest, int op,
+      int token) {
+    if (literals >= RUN_MASK) {
+      dest[op++] = (byte) ((RUN_MASK << 4) | token);
+      op = writeLength(dest, op, literals - RUN_MASK);
+    } else {
+      dest[op++] = (byte) ((literals << 4) | token);
+    }
+    System.arraycopy(src, anchor, dest, op, literals);
+    return op + literals;
+  }
+
+  @Override
+  public int compress(byte[] src, int srcOffset, int srcLength, byte[] dest, int destOffset) {
+    final int srcEnd = srcOffset + srcLength;
+    final int mfLimit = srcEnd - MF_LIMIT;
+    final int matchLimit = srcEnd - LAST_LITERALS;
+    int op = destOffset;
+    int anchor = srcOffset;
+
+    if (srcLength >= MF_LIMIT + 1) {
+      // Entries are positions + 1, so that 0 marks an empty slot
+      final int[] table = HASH_TABLE.get();
+      Arrays.fill(table, 0);
+      int ip = srcOffset;
+      int searchMatch = 1 << SKIP_TRIGGER;
+      while (ip < mfLimit) {
+        int sequence = readInt(src, ip);
+        int h = hash(sequence);
+        int ref = table[h] - 1;
+        table[h] = ip + 1;
+        if (ref < srcOffset || ip - ref > MAX_DISTANCE || readInt(src, ref) != sequence) {
+          // Skip ahead faster through data which does not compress
+          ip += searchMatch++ >>> SKIP_TRIGGER;
+          continue;
+        }
+        searchMatch = 1 << SKIP_TRIGGER;
+        while (ip > anchor && ref > srcOffset && src[ip - 1] == src[ref - 1]) {
+          ip--;
+          ref--;
+        }
+        int matchLength = MIN_MATCH;
+        while (ip + matchLength < matchLimit && src[ref + matchLength] == src[ip + matchLength]) {
+          matchLength++;
+        }
+
+        int matchToken = Math.min(matchLength - MIN_MATCH, ML_MASK);
+        op = writeLiterals(src, anchor, ip - anchor, dest, op, matchToken);
+        int offset = ip - ref;
+        dest[op++] = (byte) offset;
+        dest[op++] = (byte) (offset >>> 8);
+        if (matchToken == ML_MASK) {
+          op = writeLength(dest, op, matchLength - MIN_MATCH - ML_MASK);
+        }
+        ip += matchLength;
+        anchor = ip;
+        if (ip < mfLimit) {
+          table[hash(readInt(src, ip - 2))] = ip - 2 + 1;
+        }
+      }
+    }
+    op = writeLiterals(src, anchor, srcEnd - anchor, dest, op, 0);
+    return op - destOffset;
+  }
+
+  private static IOException malformed(String reason) {
+    return new IOException("Malformed LZ4 block: " + reason);
+  }
+
+  @Override
+  public void decompress(byte[] src, int srcOffset, int srcLength, byte[] dest, int destOffset,
+      int rawLength) throws IOException {
+    final int srcEnd = srcOffset + srcLength;
+    final int destEnd = destOffset + rawLength;
+    int ip = srcOffset;
+    int op = destOffset;
+    try {
+      while (true) {
+        if (ip >= srcEnd) {
+          throw malformed("truncated input");
+        }
+        int token = src[ip++] & 0xff;
+        int literals = token >>> 4;
+        if (literals == RUN_MASK) {
+          int b;
+          do {
+            if (ip >= srcEnd) {
+              throw malformed("truncated input");
+            }
+            b = src[ip++] & 0xff;
+            literals += b;
+          } while (b == 255);
+        }
+        if (literals > destEnd - op || literals > srcEnd - ip) {
+          throw malformed("literals beyond the end of the block");
+        }
+        System.arraycopy(src, ip, dest, op, literals);
+        ip += literals;
+        op += literals;
+        if (ip == srcEnd) {
+          break;
+        }
+
+        if (srcEnd - ip < 2) {
+          throw malformed("truncated input");
+        }
+        int offset = (src[ip] & 0xff) | ((src[ip + 1] & 0xff) << 8);
+        ip += 2;
+        int ref = op - offset;
+        if (offset == 0 || ref < destOffset) {
+          throw malformed("invalid match offset " + offset);
+        }
+        int matchLength = token & ML_MASK;
+        if (matchLength == ML_MASK) {
+          int b;
+          do {
+            if (ip >= srcEnd) {
+              throw malformed("truncated input");
+            }
+            b = src[ip++] & 0xff;
+            matchLength += b;
+          } while (b == 255);
+        }
+        matchLength += MIN_MATCH;
+        if (matchLength > destEnd - op) {
+          throw malformed("match beyond the end of the block");
+        }
+        if (offset >= matchLength) {
+          System.arraycopy(dest, ref, dest, op, matchLength);
+          op += matchLength;
+        } else {
+          // Overlapping copy, repeats the last offset bytes
+          for (int end = op + matchLength; op < end; ) {
+            dest[op++] = dest[ref++];
+          }
+        }
+      }
+    } catch (ArrayIndexOutOfBoundsException e) {
+      throw malformed("truncated input");
+    }
+    if (op != destEnd) {
+      throw malformed("decompressed " + (op - destOffset) + " bytes, expected " + rawLength);
+    }
+  }
+}
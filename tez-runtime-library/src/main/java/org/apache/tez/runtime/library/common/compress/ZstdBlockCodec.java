@@ -0,0 +1,146 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.runtime.library.common.compress;
+
+import java.io.IOException;
+
+import org.apache.hadoop.classification.InterfaceAudience;
+import org.apache.hadoop.io.compress.zstd.ZStandardCompressor;
+import org.apache.hadoop.io.compress.zstd.ZStandardDecompressor;
+import org.apache.hadoop.util.NativeCodeLoader;
+
+/**
+ * Zstandard codec on top of the native compressor and decompressor of Hadoop.
+ * They are kept per thread and reset between blocks. Each block is a complete
+ * zstd frame. Needs libhadoop built with zstd support, see
+ * {@link #isAvailable()}; writers fall back to the Hadoop codec without it.
+ */
+@InterfaceAudience.Private
+public class ZstdBlockCodec extends BlockCodec {
+
+  public static final String NAME = "zstd";
+
+  // Same as io.compression.codec.zstd.level, a low level as intermediate data
+  // is written once and read a few times
+  private static final int LEVEL = 3;
+  // Block header, frame header and checksum are included in compressBound()
+  // for a single block, allow for a few more of them
+  private static final int FRAME_OVERHEAD = 64;
+
+  private static final ThreadLocal<ZStandardCompressor> COMPRESSOR =
+      new ThreadLocal<ZStandardCompressor>() {
+        @Override
+        protected ZStandardCompressor initialValue() {
+          return new ZStandardCompressor(LEVEL, ZStandardCompressor.getRecommendedBufferSize());
+        }
+      };
+
+  private static final ThreadLocal<ZStandardDecompressor> DECOMPRESSOR =
+      new ThreadLocal<ZStandardDecompressor>() {
+        @Override
+        protected ZStandardDecompressor initialValue() {
+          return new ZStandardDecompressor(ZStandardDecompressor.getRecommendedBufferSize());
+        }
+      };
+
+  @Override
+  public String getName() {
+    return NAME;
+  }
+
+  private static volatile Boolean available = null;
+
+  @Override
+  public boolean isAvailable() {
+    if (available == null) {
+      boolean loaded;
+      try {
+        loaded = NativeCodeLoader.isNativeCodeLoaded()
+            && ZStandardCompressor.isNativeCodeLoaded()
+            && ZStandardDecompressor.isNativeCodeLoaded();
+      } catch (LinkageError e) {
+        // libhadoop without zstd, or a hadoop version without the classes
+        loaded = false;
+      }
+      available = loaded;
+    }
+    return available;
+  }
+
+  private void checkAvailable() throws IOException {
+    if (!isAvailable()) {
+      throw new IOException("The " + NAME + " block codec needs the native hadoop library"
+          + " built with zstd support");
+    }
+  }
+
+  @Override
+  public int maxCompressedLength(int rawLength) {
+    // ZSTD_compressBound()
+    int margin = (rawLength < (128 << 10)) ? (((128 << 10) - rawLength) >>> 11) : 0;
+    return rawLength + (rawLength >>> 8) + margin + FRAME_OVERHEAD;
+  }
+
+  @Override
+  public int compress(byte[] src, int srcOffset, int srcLength, byte[] dest, int destOffset)
+      throws IOException {
+    checkAvailable();
+    ZStandardCompressor compressor = COMPRESSOR.get();
+    compressor.reset();
+    compressor.setInput(src, srcOffset, srcLength);
+    compressor.finish();
+    int maxLength = maxCompressedLength(srcLength);
+    int length = 0;
+    while (!compressor.finished()) {
+      if (length == maxLength) {
+        throw new IOException("Compressed data exceeds the bound of " + maxLength + " bytes");
+      }
+      length += compressor.compress(dest, destOffset + length, maxLength - length);
+    }
+    return length;
+  }
+
+  @Override
+  public void decompress(byte[] src, int srcOffset, int srcLength, byte[] dest, int destOffset,
+      int rawLength) throws IOException {
+    checkAvailable();
+    ZStandardDecompressor decompressor = DECOMPRESSOR.get();
+    decompressor.reset();
+    decompressor.setInput(src, srcOffset, srcLength);
+    int length = 0;
+    while (length < rawLength) {
+      int n = decompressor.decompress(dest, destOffset + length, rawLength - length);
+      if (n == 0 && (decompressor.finished() || decompressor.needsInput())) {
+        break;
+      }
+      length += n;
+    }
+    if (length == rawLength && !decompressor.finished()) {
+      // The end of the frame has not been consumed yet
+      if (decompressor.decompress(new byte[1], 0, 1) != 0) {
+        length++;
+      }
+    }
+    if (length != rawLength || !decompressor.finished() || !decompressor.needsInput()) {
+      // Either too few bytes, or more compressed data than expected
+      throw new IOException("Malformed zstd block: decompressed " + length
+          + " bytes, expected " + rawLength);
+    }
+  }
+}
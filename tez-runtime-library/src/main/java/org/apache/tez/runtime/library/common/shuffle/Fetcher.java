@@ -30,12 +30,16 @@ import java.nio.channels.OverlappingFileLockException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -62,12 +66,14 @@ import org.apache.tez.runtime.library.api.TezRuntimeConfiguration;
 import org.apache.tez.runtime.library.common.Constants;
 import org.apache.tez.runtime.library.common.InputAttemptIdentifier;
 import org.apache.tez.runtime.library.common.shuffle.orderedgrouped.ShuffleHeader;
+import org.apache.tez.runtime.library.common.shuffle.orderedgrouped.ShuffleRangeHeader;
 import org.apache.tez.runtime.library.common.sort.impl.TezIndexRecord;
 import org.apache.tez.runtime.library.common.sort.impl.TezSpillRecord;
 import org.apache.tez.runtime.library.exceptions.FetcherReadTimeoutException;
 import org.apache.tez.runtime.library.common.shuffle.FetchedInput.Type;
 
 import com.google.common.base.Preconditions;
+import com.google.common.collect.Iterables;
 
 /**
  * Responsible for fetching inputs served by the ShuffleHandler for a single
@@ -182,11 +188,17 @@ public class Fetcher extends CallableWithNdc<FetchResult> {
   private final Path lockPath;
   private final RawLocalFileSystem localFs;
 
+  // Shares inputs fetched to memory with the other inputs in this process
+  private SharedFetchRegistry sharedFetchRegistry;
+  // Shared outputs this fetcher has to fetch and publish
+  private final Set<String> claimedSharedOutputs = new HashSet<String>();
+
   // Initiative value is 0, which means it hasn't retried yet.
   private long retryStartTime = 0;
 
   private final boolean asyncHttp;
   private final boolean compositeFetch;
+  private final boolean compactRangeHeader;
 
   private final boolean verifyDiskChecksum;
 
@@ -225,6 +237,9 @@ public class Fetcher extends CallableWithNdc<FetchResult> {
     this.localHostname = localHostname;
     this.shufflePort = shufflePort;
     this.compositeFetch = compositeFetch;
+    this.compactRangeHeader = compositeFetch && conf.getBoolean(
+        TezRuntimeConfiguration.TEZ_RUNTIME_SHUFFLE_FETCH_COMPACT_RANGE_HEADER,
+        TezRuntimeConfiguration.TEZ_RUNTIME_SHUFFLE_FETCH_COMPACT_RANGE_HEADER_DEFAULT);
 
     try {
       if (this.sharedFetchEnabled) {
@@ -275,15 +290,43 @@ public class Fetcher extends CallableWithNdc<FetchResult> {
     }
 
     HostFetchResult hostFetchResult;
+    boolean localFetch = localDiskFetchEnabled && host.equals(localHostname)
+        && port == shufflePort;
+
+    Map<InputAttemptIdentifier, SharedFetchRegistry.Entry> sharedInProgress =
+        Collections.emptyMap();
+    try {
+      if (sharedFetchRegistry != null && !localFetch) {
+        sharedInProgress = takeFromSharedRegistry();
+        if (srcAttemptsRemaining.isEmpty()) {
+          // Nothing is claimed by this fetcher while it waits
+          List<InputAttemptIdentifier> sharedInputsLeft = awaitSharedInputs(sharedInProgress);
+          shutdown();
+          return new FetchResult(host, port, partition, partitionCount, sharedInputsLeft);
+        }
+      }
 
-    if (localDiskFetchEnabled && host.equals(localHostname) && port == shufflePort) {
-      hostFetchResult = setupLocalDiskFetch();
-    } else if (multiplex) {
-      hostFetchResult = doSharedFetch();
-    } else{
-      hostFetchResult = doHttpFetch();
+      if (localFetch) {
+        hostFetchResult = setupLocalDiskFetch();
+      } else if (multiplex) {
+        hostFetchResult = doSharedFetch();
+      } else{
+        hostFetchResult = doHttpFetch();
+      }
+    } finally {
+      // Let the inputs waiting for outputs which were not fetched to memory
+      // fetch them on their own
+      for (String key : claimedSharedOutputs) {
+        sharedFetchRegistry.abandon(key);
+      }
+      claimedSharedOutputs.clear();
     }
 
+    // Only wait for the outputs claimed by other fetchers once the outputs
+    // claimed by this one were published or abandoned, otherwise two fetchers
+    // waiting for each other's claims would both stall until the timeout
+    List<InputAttemptIdentifier> sharedInputsLeft = awaitSharedInputs(sharedInProgress);
+
     if (hostFetchResult.failedInputs != null && hostFetchResult.failedInputs.length > 0) {
       if (!isShutDown.get()) {
         LOG.warn("copyInputs failed for tasks " + Arrays.toString(hostFetchResult.failedInputs));
@@ -308,7 +351,100 @@ public class Fetcher extends CallableWithNdc<FetchResult> {
       }
     }
 
-    return hostFetchResult.fetchResult;
+    FetchResult fetchResult = hostFetchResult.fetchResult;
+    if (!sharedInputsLeft.isEmpty()) {
+      // Fetched by the next fetcher for the host
+      Iterable<InputAttemptIdentifier> pendingInputs = fetchResult.getPendingInputs();
+      fetchResult = new FetchResult(host, port, partition, partitionCount,
+          pendingInputs == null ? sharedInputsLeft
+              : Iterables.concat(pendingInputs, sharedInputsLeft),
+          fetchResult.getAdditionalInfo());
+    }
+    return fetchResult;
+  }
+
+  /**
+   * Takes the shared inputs which other fetchers in this process already
+   * fetched from the shared fetch registry, and claims the ones no other
+   * fetcher is fetching. The inputs other fetchers are still fetching are
+   * not fetched by this fetcher.
+   * @return the inputs other fetchers are still fetching
+   */
+  private Map<InputAttemptIdentifier, SharedFetchRegistry.Entry> takeFromSharedRegistry()
+      throws IOException {
+    Map<InputAttemptIdentifier, SharedFetchRegistry.Entry> inProgress =
+        new LinkedHashMap<InputAttemptIdentifier, SharedFetchRegistry.Entry>();
+    for (Iterator<InputAttemptIdentifier> it = srcAttemptsRemaining.values().iterator();
+        it.hasNext();) {
+      InputAttemptIdentifier in = it.next();
+      if (!in.isShared() || partitionCount != 1) {
+        continue;
+      }
+      String key = in.getPathComponent();
+      SharedFetchRegistry.Entry entry = sharedFetchRegistry.claim(key);
+      if (entry == null) {
+        claimedSharedOutputs.add(key);
+        continue;
+      }
+      InputAttemptIdentifier srcAttemptId = expandSharedInput(in);
+      MemoryFetchedInput fetchedInput = entry.acquire(srcAttemptId);
+      if (fetchedInput != null) {
+        sharedFetchSucceeded(srcAttemptId, entry, fetchedInput);
+      } else {
+        inProgress.put(in, entry);
+      }
+      it.remove();
+    }
+    return inProgress;
+  }
+
+  /**
+   * Waits up to the read timeout for the inputs other fetchers are fetching.
+   * Must not be called while this fetcher holds claims.
+   * @return the inputs which were not shared in time
+   */
+  private List<InputAttemptIdentifier> awaitSharedInputs(
+      Map<InputAttemptIdentifier, SharedFetchRegistry.Entry> inProgress) throws IOException {
+    List<InputAttemptIdentifier> left = new ArrayList<InputAttemptIdentifier>();
+    if (inProgress.isEmpty()) {
+      return left;
+    }
+    long deadline = System.currentTimeMillis() + httpConnectionParams.getReadTimeout();
+    for (Map.Entry<InputAttemptIdentifier, SharedFetchRegistry.Entry> e : inProgress.entrySet()) {
+      MemoryFetchedInput fetchedInput = null;
+      if (!isShutDown.get() && !Thread.currentThread().isInterrupted()) {
+        InputAttemptIdentifier srcAttemptId = expandSharedInput(e.getKey());
+        try {
+          fetchedInput = e.getValue().await(srcAttemptId,
+              Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ie) {
+          Thread.currentThread().interrupt();
+        }
+        if (fetchedInput != null) {
+          sharedFetchSucceeded(srcAttemptId, e.getValue(), fetchedInput);
+        }
+      }
+      if (fetchedInput == null) {
+        left.add(e.getKey());
+      }
+    }
+    return left;
+  }
+
+  private static InputAttemptIdentifier expandSharedInput(InputAttemptIdentifier in) {
+    if (in instanceof CompositeInputAttemptIdentifier) {
+      return ((CompositeInputAttemptIdentifier) in).expand(0);
+    }
+    return in;
+  }
+
+  private void sharedFetchSucceeded(InputAttemptIdentifier srcAttemptId,
+      SharedFetchRegistry.Entry entry, MemoryFetchedInput fetchedInput) throws IOException {
+    if (isDebugEnabled) {
+      LOG.debug(logIdentifier + ": using the shared copy of " + srcAttemptId);
+    }
+    fetcherCallback.fetchSucceeded(host, srcAttemptId, fetchedInput,
+        entry.getCompressedLength(), fetchedInput.getSize(), 0);
   }
 
   private final class CachingCallBack {
@@ -489,7 +625,8 @@ public class Fetcher extends CallableWithNdc<FetchResult> {
   private HostFetchResult setupConnection(Collection<InputAttemptIdentifier> attempts) {
     try {
       StringBuilder baseURI = ShuffleUtils.constructBaseURIForShuffleHandler(host,
-          port, partition, partitionCount, appId.toString(), dagIdentifier, httpConnectionParams.isSslShuffle());
+          port, partition, partitionCount, appId.toString(), dagIdentifier, httpConnectionParams.isSslShuffle(),
+          compactRangeHeader);
       this.url = ShuffleUtils.constructInputURL(baseURI.toString(), attempts,
           httpConnectionParams.isKeepAlive());
 
@@ -839,9 +976,14 @@ public class Fetcher extends CallableWithNdc<FetchResult> {
       long startTime = System.currentTimeMillis();
       int partitionCount = 1;
 
+      ShuffleRangeHeader rangeHeader = null;
       if (this.compositeFetch) {
         // Multiple partitions are fetched
-        partitionCount = WritableUtils.readVInt(input);
+        int count = WritableUtils.readVInt(input);
+        partitionCount = ShuffleRangeHeader.getPartitionCount(count);
+        if (ShuffleRangeHeader.isCompact(count)) {
+          rangeHeader = new ShuffleRangeHeader(partitionCount);
+        }
       }
       ArrayList<MapOutputStat> mapOutputStats = new ArrayList<>(partitionCount);
       for (int mapOutputIndex = 0; mapOutputIndex < partitionCount; mapOutputIndex++) {
@@ -850,8 +992,17 @@ public class Fetcher extends CallableWithNdc<FetchResult> {
         // Read the shuffle header
         String pathComponent = null;
         try {
-          ShuffleHeader header = new ShuffleHeader();
-          header.readFields(input);
+          ShuffleHeader header;
+          if (rangeHeader != null) {
+            // All the headers are read from the table at once
+            if (mapOutputIndex == 0) {
+              rangeHeader.readFields(input);
+            }
+            header = rangeHeader.getHeader(mapOutputIndex);
+          } else {
+            header = new ShuffleHeader();
+            header.readFields(input);
+          }
           pathComponent = header.getMapId();
           if (!pathComponent.startsWith(InputAttemptIdentifier.PATH_PREFIX)) {
             throw new IllegalArgumentException("Invalid map id: " + header.getMapId() + ", expected to start with " +
@@ -961,6 +1112,13 @@ public class Fetcher extends CallableWithNdc<FetchResult> {
               fetchedInput);
         }
 
+        // share the fetched input with the other inputs in this process
+        if (srcAttemptId.isShared() && fetchedInput.getType() == Type.MEMORY
+            && claimedSharedOutputs.remove(srcAttemptId.getPathComponent())) {
+          fetchedInput = sharedFetchRegistry.publish(srcAttemptId.getPathComponent(),
+              (MemoryFetchedInput) fetchedInput, compressedLength);
+        }
+
         // offer the fetched input for caching
         if (srcAttemptId.isShared() && callback != null) {
           // this has to be before the fetchSucceeded, because that goes across
@@ -1141,6 +1299,11 @@ public class Fetcher extends CallableWithNdc<FetchResult> {
       return this;
     }
 
+    public FetcherBuilder setSharedFetchRegistry(SharedFetchRegistry sharedFetchRegistry) {
+      fetcher.sharedFetchRegistry = sharedFetchRegistry;
+      return this;
+    }
+
     public FetcherBuilder setIFileParams(boolean readAhead, int readAheadBytes) {
       fetcher.ifileReadAhead = readAhead;
       fetcher.ifileReadAheadLength = readAheadBytes;
@@ -30,12 +30,27 @@ import com.google.common.base.Preconditions;
 public class MemoryFetchedInput extends FetchedInput {
 
   private byte[] byteArray;
+  private final int length;
 
   public MemoryFetchedInput(long actualSize,
       InputAttemptIdentifier inputAttemptIdentifier,
       FetchedInputCallback callbackHandler) {
     super(inputAttemptIdentifier, callbackHandler);
     this.byteArray = new byte[(int) actualSize];
+    this.length = byteArray.length;
+  }
+
+  /**
+   * An input stored in the first length bytes of the given array, e.g. a
+   * pooled buffer, or data already fetched, see {@link SharedFetchRegistry}.
+   */
+  public MemoryFetchedInput(byte[] byteArray, int length,
+      InputAttemptIdentifier inputAttemptIdentifier, FetchedInputCallback callbackHandler) {
+    super(inputAttemptIdentifier, callbackHandler);
+    Preconditions.checkArgument(length <= byteArray.length,
+        "length %s larger than the array", length);
+    this.byteArray = byteArray;
+    this.length = length;
   }
 
   @Override
@@ -48,19 +63,22 @@ public class MemoryFetchedInput extends FetchedInput {
     if (this.byteArray == null) {
       return 0;
     }
-    return this.byteArray.length;
+    return length;
   }
 
   @Override
   public OutputStream getOutputStream() {
-    return new InMemoryBoundedByteArrayOutputStream(byteArray);
+    return new InMemoryBoundedByteArrayOutputStream(byteArray, length);
   }
 
   @Override
   public InputStream getInputStream() {
-    return new NonSyncByteArrayInputStream(byteArray);
+    return new NonSyncByteArrayInputStream(byteArray, 0, length);
   }
 
+  /**
+   * @return the array holding the data, which may be longer than the data
+   */
   public byte[] getBytes() {
     return byteArray;
   }
@@ -104,8 +122,8 @@ public class MemoryFetchedInput extends FetchedInput {
   }
 
   private static class InMemoryBoundedByteArrayOutputStream extends BoundedByteArrayOutputStream {
-    InMemoryBoundedByteArrayOutputStream(byte[] array) {
-      super(array, 0, array.length);
+    InMemoryBoundedByteArrayOutputStream(byte[] array, int length) {
+      super(array, 0, length);
     }
   }
 }
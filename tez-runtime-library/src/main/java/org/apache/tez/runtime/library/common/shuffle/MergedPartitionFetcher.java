@@ -0,0 +1,250 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.runtime.library.common.shuffle;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.URL;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.hadoop.classification.InterfaceAudience.Private;
+import org.apache.hadoop.io.IOUtils;
+import org.apache.hadoop.io.WritableUtils;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.yarn.api.records.ApplicationId;
+import org.apache.tez.common.security.JobTokenSecretManager;
+import org.apache.tez.dag.api.TezUncheckedException;
+import org.apache.tez.http.BaseHttpConnection;
+import org.apache.tez.http.HttpConnectionParams;
+import org.apache.tez.runtime.library.common.InputAttemptIdentifier;
+import org.apache.tez.runtime.library.common.shuffle.FetchedInput.Type;
+import org.apache.tez.runtime.library.common.shuffle.Fetcher.PathPartition;
+import org.apache.tez.runtime.library.common.shuffle.orderedgrouped.ShuffleHeader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Fetches the blocks the producers of an edge pushed to the merging shuffle
+ * handlers, with one request per partition. Producers push before the
+ * consumers learn about their output, so the inputs are fetched in rounds as
+ * they become known: each round requests the partitions of the inputs added
+ * since the previous round, starting after the blocks read before. Blocks are
+ * matched to the inputs of the round by their path component and partition,
+ * other blocks are skipped. Inputs which are not in the merged partitions are
+ * left to the regular fetchers.
+ *
+ * Inputs are added and removed by any thread, the rounds run on one thread at
+ * a time.
+ */
+@Private
+public class MergedPartitionFetcher {
+
+  private static final Logger LOG = LoggerFactory.getLogger(MergedPartitionFetcher.class);
+
+  private final FetcherCallback fetcherCallback;
+  private final FetchedInputAllocator inputManager;
+  private final HttpConnectionParams httpConnectionParams;
+  private final JobTokenSecretManager jobTokenSecretMgr;
+  private final ApplicationId appId;
+  private final int dagIdentifier;
+  private final String edgeName;
+  private final String[] mergerHosts;
+  private final int port;
+  private final String logIdentifier;
+
+  private CompressionCodec codec;
+  private boolean ifileReadAhead = false;
+  private int ifileReadAheadLength = 0;
+  private boolean verifyDiskChecksum = false;
+
+  // Inputs added since the last round, guarded by this
+  private final Map<PathPartition, InputAttemptIdentifier> pendingInputs =
+      new HashMap<PathPartition, InputAttemptIdentifier>();
+  private final BitSet pendingPartitions = new BitSet();
+  // Only used by the rounds
+  private final Map<Integer, Integer> blocksRead = new HashMap<Integer, Integer>();
+  private final Set<String> failedHosts = new HashSet<String>();
+  private long fetchedBytes = 0;
+
+  public MergedPartitionFetcher(FetcherCallback fetcherCallback,
+      FetchedInputAllocator inputManager, HttpConnectionParams httpConnectionParams,
+      JobTokenSecretManager jobTokenSecretMgr, ApplicationId appId, int dagIdentifier,
+      String edgeName, String[] mergerHosts, int port, String logIdentifier) {
+    this.fetcherCallback = fetcherCallback;
+    this.inputManager = inputManager;
+    this.httpConnectionParams = httpConnectionParams;
+    this.jobTokenSecretMgr = jobTokenSecretMgr;
+    this.appId = appId;
+    this.dagIdentifier = dagIdentifier;
+    this.edgeName = edgeName;
+    this.mergerHosts = mergerHosts;
+    this.port = port;
+    this.logIdentifier = logIdentifier;
+  }
+
+  public void setCompressionParameters(CompressionCodec codec) {
+    this.codec = codec;
+  }
+
+  public void setIFileParams(boolean readAhead, int readAheadBytes, boolean verifyDiskChecksum) {
+    this.ifileReadAhead = readAhead;
+    this.ifileReadAheadLength = readAheadBytes;
+    this.verifyDiskChecksum = verifyDiskChecksum;
+  }
+
+  /**
+   * Adds an input which may have been pushed.
+   * @param partition The physical partition of the input
+   * @param input The input, not a composite one
+   */
+  public synchronized void addInput(int partition, InputAttemptIdentifier input) {
+    pendingInputs.put(new PathPartition(input.getPathComponent(), partition), input);
+    pendingPartitions.set(partition);
+  }
+
+  /**
+   * Removes an input which became obsolete before its round started.
+   */
+  public synchronized void removeInput(InputAttemptIdentifier input) {
+    pendingInputs.values().remove(input);
+  }
+
+  /**
+   * Fetches the blocks pushed for the inputs added since the previous round.
+   * Inputs which are not found are dropped and have to be pulled. A merger
+   * which fails is logged and not asked again, the inputs of its partitions
+   * are pulled.
+   * @return the number of inputs fetched
+   */
+  public int fetch() {
+    Map<PathPartition, InputAttemptIdentifier> inputs;
+    BitSet partitions;
+    synchronized (this) {
+      inputs = new HashMap<PathPartition, InputAttemptIdentifier>(pendingInputs);
+      partitions = (BitSet) pendingPartitions.clone();
+      pendingInputs.clear();
+      pendingPartitions.clear();
+    }
+    int fetched = 0;
+    for (int partition = partitions.nextSetBit(0); partition >= 0;
+        partition = partitions.nextSetBit(partition + 1)) {
+      String host = ShuffleUtils.getPushMergerHost(mergerHosts, partition);
+      if (failedHosts.contains(host)) {
+        continue;
+      }
+      try {
+        fetched += fetchPartition(host, partition, inputs);
+      } catch (IOException | InternalError e) {
+        LOG.warn(logIdentifier + ": Failed to fetch merged partition " + partition + " from "
+            + host + ", pulling the remaining inputs: " + e.getMessage());
+        failedHosts.add(host);
+      } catch (InterruptedException e) {
+        LOG.info(logIdentifier + ": Interrupted while fetching merged partitions");
+        Thread.currentThread().interrupt();
+        break;
+      }
+    }
+    return fetched;
+  }
+
+  private int fetchPartition(String host, int partition,
+      Map<PathPartition, InputAttemptIdentifier> inputs)
+      throws IOException, InterruptedException {
+    long startTime = System.currentTimeMillis();
+    Integer fromBlock = blocksRead.get(partition);
+    int blocks = fromBlock == null ? 0 : fromBlock;
+    URL url = ShuffleUtils.constructMergedPartitionURL(host, port, partition, appId.toString(),
+        dagIdentifier, httpConnectionParams.isSslShuffle(), edgeName, blocks);
+    BaseHttpConnection httpConnection = ShuffleUtils.getHttpConnection(false, url,
+        httpConnectionParams, logIdentifier, jobTokenSecretMgr);
+    int fetched = 0;
+    try {
+      if (!httpConnection.connect()) {
+        return 0;
+      }
+      httpConnection.validate();
+      DataInputStream input = httpConnection.getInputStream();
+      int blockCount = WritableUtils.readVInt(input);
+      for (int i = 0; i < blockCount; i++) {
+        ShuffleHeader header = new ShuffleHeader();
+        header.readFields(input);
+        InputAttemptIdentifier srcAttemptId = inputs.remove(
+            new PathPartition(header.getMapId(), header.getPartition()));
+        if (srcAttemptId == null || header.getCompressedLength() <= 0) {
+          // Pushed by an attempt which is not used, or which the consumer
+          // did not know about when the round started. Those are pulled.
+          IOUtils.skipFully(input, header.getCompressedLength());
+        } else {
+          fetchBlock(host, input, header, srcAttemptId, startTime);
+          fetchedBytes += header.getCompressedLength();
+          fetched++;
+        }
+        blocksRead.put(partition, ++blocks);
+      }
+    } finally {
+      httpConnection.cleanup(false);
+    }
+    if (LOG.isDebugEnabled()) {
+      LOG.debug(logIdentifier + ": Fetched " + fetched + " inputs of merged partition "
+          + partition + " from " + host);
+    }
+    return fetched;
+  }
+
+  /**
+   * @return the compressed bytes of the inputs fetched
+   */
+  public long getFetchedBytes() {
+    return fetchedBytes;
+  }
+
+  private void fetchBlock(String host, DataInputStream input, ShuffleHeader header,
+      InputAttemptIdentifier srcAttemptId, long startTime) throws IOException {
+    long compressedLength = header.getCompressedLength();
+    long decompressedLength = header.getUncompressedLength();
+    FetchedInput fetchedInput = inputManager.allocate(decompressedLength, compressedLength,
+        srcAttemptId);
+    boolean succeeded = false;
+    try {
+      if (fetchedInput.getType() == Type.MEMORY) {
+        ShuffleUtils.shuffleToMemory(((MemoryFetchedInput) fetchedInput).getBytes(),
+            input, (int) decompressedLength, (int) compressedLength, codec,
+            ifileReadAhead, ifileReadAheadLength, LOG, srcAttemptId);
+      } else if (fetchedInput.getType() == Type.DISK) {
+        ShuffleUtils.shuffleToDisk(((DiskFetchedInput) fetchedInput).getOutputStream(),
+            (host + ":" + port), input, compressedLength, decompressedLength, LOG,
+            srcAttemptId, ifileReadAhead, ifileReadAheadLength, verifyDiskChecksum);
+      } else {
+        throw new TezUncheckedException("Bad fetchedInput type while fetching merged data " +
+            fetchedInput);
+      }
+      fetcherCallback.fetchSucceeded(host, srcAttemptId, fetchedInput, compressedLength,
+          decompressedLength, System.currentTimeMillis() - startTime);
+      succeeded = true;
+    } finally {
+      if (!succeeded) {
+        fetchedInput.abort();
+      }
+    }
+  }
+}
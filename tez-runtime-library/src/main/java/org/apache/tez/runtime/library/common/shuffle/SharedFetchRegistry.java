@@ -0,0 +1,232 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.runtime.library.common.shuffle;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.classification.InterfaceAudience.Private;
+import org.apache.tez.runtime.api.ObjectRegistry;
+import org.apache.tez.runtime.library.common.InputAttemptIdentifier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+
+/**
+ * Deduplicates the fetches of shared inputs by the inputs running concurrently
+ * in the same process, e.g. the broadcast inputs of the tasks of a multi task
+ * container. The first fetcher asking for a source output fetches it, the
+ * others wait for it and read the same buffer. Buffers are reference counted
+ * and stay charged to the allocator of the input which fetched them until the
+ * last input using them freed them. Only inputs fetched to memory are shared
+ * here, sharing across processes still goes through the local disk.
+ */
+@Private
+public class SharedFetchRegistry {
+
+  private static final Logger LOG = LoggerFactory.getLogger(SharedFetchRegistry.class);
+
+  private static final String OBJECT_REGISTRY_KEY = SharedFetchRegistry.class.getName();
+
+  private final Map<String, Entry> entries = new HashMap<String, Entry>();
+
+  @VisibleForTesting
+  SharedFetchRegistry() {
+  }
+
+  /**
+   * @return the registry shared by the tasks of the current DAG in this process
+   */
+  public static SharedFetchRegistry getInstance(ObjectRegistry objectRegistry) {
+    synchronized (SharedFetchRegistry.class) {
+      Object registry = objectRegistry.get(OBJECT_REGISTRY_KEY);
+      if (registry instanceof SharedFetchRegistry) {
+        return (SharedFetchRegistry) registry;
+      }
+      SharedFetchRegistry newRegistry = new SharedFetchRegistry();
+      objectRegistry.cacheForDAG(OBJECT_REGISTRY_KEY, newRegistry);
+      return newRegistry;
+    }
+  }
+
+  /**
+   * Asks for the output with the given key. The caller either becomes the
+   * owner, which has to fetch the output and {@link #publish} or
+   * {@link #abandon} it, or gets the entry of another owner.
+   * @return null if the caller is the owner
+   */
+  public synchronized Entry claim(String key) {
+    Entry entry = entries.get(key);
+    if (entry == null) {
+      entries.put(key, new Entry(key));
+      return null;
+    }
+    return entry;
+  }
+
+  /**
+   * Shares an output fetched by its owner.
+   * @param key The key the owner claimed
+   * @param fetchedInput The pending input the output was fetched into
+   * @return the input to be used by the owner in place of fetchedInput
+   */
+  public MemoryFetchedInput publish(String key, MemoryFetchedInput fetchedInput,
+      long compressedLength) {
+    Entry entry;
+    synchronized (this) {
+      entry = entries.get(key);
+    }
+    Preconditions.checkState(entry != null, "Output %s was not claimed", key);
+    // The owner's input is kept committed until all the views are freed
+    fetchedInput.commit();
+    return entry.publish(fetchedInput, compressedLength);
+  }
+
+  /**
+   * Gives up on an output the caller claimed but did not publish, waiters
+   * fetch it themselves.
+   */
+  public void abandon(String key) {
+    Entry entry;
+    synchronized (this) {
+      entry = entries.get(key);
+      if (entry == null || entry.isPublished()) {
+        return;
+      }
+      entries.remove(key);
+    }
+    entry.abandon();
+  }
+
+  private synchronized void remove(Entry entry) {
+    if (entries.get(entry.key) == entry) {
+      entries.remove(entry.key);
+    }
+  }
+
+  @VisibleForTesting
+  synchronized int size() {
+    return entries.size();
+  }
+
+  /**
+   * An output fetched or being fetched by one of the inputs.
+   */
+  public class Entry implements FetchedInputCallback {
+    private final String key;
+    private final CountDownLatch published = new CountDownLatch(1);
+    private MemoryFetchedInput fetchedInput;
+    private long compressedLength;
+    private int refCount = 0;
+    private boolean available = false;
+
+    Entry(String key) {
+      this.key = key;
+    }
+
+    private synchronized boolean isPublished() {
+      return fetchedInput != null;
+    }
+
+    private MemoryFetchedInput publish(MemoryFetchedInput fetchedInput, long compressedLength) {
+      MemoryFetchedInput ownerView;
+      synchronized (this) {
+        this.fetchedInput = fetchedInput;
+        this.compressedLength = compressedLength;
+        this.available = true;
+        ownerView = newView(fetchedInput.getInputAttemptIdentifier());
+      }
+      published.countDown();
+      return ownerView;
+    }
+
+    private void abandon() {
+      published.countDown();
+    }
+
+    /**
+     * Waits for the owner to publish the output.
+     * @return a view of the output for the given input, or null if the owner
+     *         gave up or did not publish it in time
+     */
+    public MemoryFetchedInput await(InputAttemptIdentifier inputAttemptIdentifier,
+        long timeout, TimeUnit unit) throws InterruptedException {
+      published.await(timeout, unit);
+      return acquire(inputAttemptIdentifier);
+    }
+
+    /**
+     * @return a view of the output if it was published and is still in use
+     */
+    public synchronized MemoryFetchedInput acquire(InputAttemptIdentifier inputAttemptIdentifier) {
+      if (!available) {
+        return null;
+      }
+      return newView(inputAttemptIdentifier);
+    }
+
+    public synchronized long getCompressedLength() {
+      return compressedLength;
+    }
+
+    private MemoryFetchedInput newView(InputAttemptIdentifier inputAttemptIdentifier) {
+      refCount++;
+      return new MemoryFetchedInput(fetchedInput.getBytes(), (int) fetchedInput.getSize(),
+          inputAttemptIdentifier, this);
+    }
+
+    private void release() {
+      MemoryFetchedInput toFree = null;
+      synchronized (this) {
+        refCount--;
+        if (refCount == 0) {
+          available = false;
+          toFree = fetchedInput;
+          fetchedInput = null;
+        }
+      }
+      if (toFree != null) {
+        remove(this);
+        if (LOG.isDebugEnabled()) {
+          LOG.debug("Freeing shared input " + key);
+        }
+        toFree.free();
+      }
+    }
+
+    @Override
+    public void fetchComplete(FetchedInput fetchedInput) {
+      // The owner already accounted for the memory
+    }
+
+    @Override
+    public void fetchFailed(FetchedInput fetchedInput) {
+      release();
+    }
+
+    @Override
+    public void freeResources(FetchedInput fetchedInput) {
+      release();
+    }
+  }
+}
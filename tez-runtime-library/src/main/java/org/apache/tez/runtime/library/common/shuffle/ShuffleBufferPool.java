@@ -0,0 +1,208 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.runtime.library.common.shuffle;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.apache.hadoop.classification.InterfaceAudience.Private;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.tez.common.counters.TezCounter;
+import org.apache.tez.runtime.library.api.TezRuntimeConfiguration;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+
+/**
+ * Pool of the buffers inputs are shuffled to memory into. Buffer sizes are
+ * rounded up to one of eight size classes per power of two, so a buffer is
+ * at most 12.5% larger than requested, and released buffers are reused for
+ * the next requests of the same size class. Only buffers allocated by the
+ * pool are taken back, buffers larger than the max buffer size are not
+ * pooled. The idle buffers are meant to be counted against the shuffle memory
+ * limit by the caller, which trims them when it needs the memory, and which
+ * reserves {@link #getAllocationSize(int)} bytes for every buffer. Once no more
+ * buffers are needed, {@link #close()} drops the idle ones.
+ */
+@Private
+public class ShuffleBufferPool {
+
+  @VisibleForTesting
+  static final int MIN_BUFFER_SIZE = 4 * 1024;
+  private static final int SIZE_CLASSES_PER_POWER_OF_TWO = 8;
+
+  private final int maxBufferSize;
+  private final long maxIdleBytes;
+  private final TezCounter hitsCounter;
+  private final TezCounter missesCounter;
+
+  // Idle buffers by size, largest trimmed first
+  private final TreeMap<Integer, ArrayDeque<byte[]>> idleBuffers =
+      new TreeMap<Integer, ArrayDeque<byte[]>>(Collections.<Integer>reverseOrder());
+  private final Set<byte[]> allocatedBuffers =
+      Collections.newSetFromMap(new IdentityHashMap<byte[], Boolean>());
+  private long idleBytes = 0;
+  private boolean closed = false;
+
+  public ShuffleBufferPool(int maxBufferSize, long maxIdleBytes, TezCounter hitsCounter,
+      TezCounter missesCounter) {
+    Preconditions.checkArgument(maxBufferSize > 0, "maxBufferSize must be positive");
+    this.maxBufferSize = maxBufferSize;
+    this.maxIdleBytes = maxIdleBytes;
+    this.hitsCounter = hitsCounter;
+    this.missesCounter = missesCounter;
+  }
+
+  /**
+   * @return a pool for an input with the given shuffle memory limit, or null
+   *         if pooling is disabled
+   */
+  public static ShuffleBufferPool create(Configuration conf, long memoryLimit,
+      TezCounter hitsCounter, TezCounter missesCounter) {
+    if (!conf.getBoolean(TezRuntimeConfiguration.TEZ_RUNTIME_SHUFFLE_BUFFER_POOL_ENABLED,
+        TezRuntimeConfiguration.TEZ_RUNTIME_SHUFFLE_BUFFER_POOL_ENABLED_DEFAULT)) {
+      return null;
+    }
+    int maxBufferSize = conf.getInt(
+        TezRuntimeConfiguration.TEZ_RUNTIME_SHUFFLE_BUFFER_POOL_MAX_BUFFER_SIZE,
+        TezRuntimeConfiguration.TEZ_RUNTIME_SHUFFLE_BUFFER_POOL_MAX_BUFFER_SIZE_DEFAULT);
+    return new ShuffleBufferPool(maxBufferSize, memoryLimit, hitsCounter, missesCounter);
+  }
+
+  @VisibleForTesting
+  static int getBufferSize(int size) {
+    if (size <= MIN_BUFFER_SIZE) {
+      return MIN_BUFFER_SIZE;
+    }
+    int step = Integer.highestOneBit(size - 1) / SIZE_CLASSES_PER_POWER_OF_TWO;
+    long bufferSize = ((long) size + step - 1) / step * step;
+    return (int) Math.min(bufferSize, Integer.MAX_VALUE);
+  }
+
+  /**
+   * @return the length of the buffer {@link #allocate(int)} returns for the
+   *         given size, i.e. the memory to reserve for it
+   */
+  public int getAllocationSize(int size) {
+    return (size > maxBufferSize) ? size : getBufferSize(size);
+  }
+
+  /**
+   * @return a buffer of {@link #getAllocationSize(int)} bytes, with undefined
+   *         content
+   */
+  public byte[] allocate(int size) {
+    if (size > maxBufferSize) {
+      return new byte[size];
+    }
+    int bufferSize = getBufferSize(size);
+    byte[] buffer = null;
+    synchronized (this) {
+      ArrayDeque<byte[]> buffers = idleBuffers.get(bufferSize);
+      if (buffers != null) {
+        buffer = buffers.poll();
+        if (buffers.isEmpty()) {
+          idleBuffers.remove(bufferSize);
+        }
+      }
+      if (buffer != null) {
+        idleBytes -= bufferSize;
+        allocatedBuffers.add(buffer);
+      }
+    }
+    if (buffer != null) {
+      increment(hitsCounter);
+      return buffer;
+    }
+    increment(missesCounter);
+    buffer = new byte[bufferSize];
+    synchronized (this) {
+      if (!closed) {
+        allocatedBuffers.add(buffer);
+      }
+    }
+    return buffer;
+  }
+
+  /**
+   * Returns a buffer to the pool. Buffers which were not allocated by the
+   * pool, or were already released, are ignored.
+   */
+  public synchronized void release(byte[] buffer) {
+    if (closed || buffer == null || !allocatedBuffers.remove(buffer)
+        || idleBytes + buffer.length > maxIdleBytes) {
+      return;
+    }
+    ArrayDeque<byte[]> buffers = idleBuffers.get(buffer.length);
+    if (buffers == null) {
+      buffers = new ArrayDeque<byte[]>();
+      idleBuffers.put(buffer.length, buffers);
+    }
+    buffers.push(buffer);
+    idleBytes += buffer.length;
+  }
+
+  /**
+   * Drops idle buffers, largest first, until at least the given number of
+   * bytes is freed or no idle buffer is left.
+   * @return the number of bytes freed
+   */
+  public synchronized long trim(long bytes) {
+    long freed = 0;
+    Iterator<Map.Entry<Integer, ArrayDeque<byte[]>>> it = idleBuffers.entrySet().iterator();
+    while (freed < bytes && it.hasNext()) {
+      Map.Entry<Integer, ArrayDeque<byte[]>> entry = it.next();
+      ArrayDeque<byte[]> buffers = entry.getValue();
+      while (freed < bytes && !buffers.isEmpty()) {
+        buffers.pop();
+        freed += entry.getKey();
+      }
+      if (buffers.isEmpty()) {
+        it.remove();
+      }
+    }
+    idleBytes -= freed;
+    return freed;
+  }
+
+  /**
+   * Drops the idle buffers. Buffers released afterwards are not kept, and
+   * buffers allocated afterwards are not pooled.
+   */
+  public synchronized void close() {
+    closed = true;
+    trim(Long.MAX_VALUE);
+    allocatedBuffers.clear();
+  }
+
+  public synchronized long getIdleBytes() {
+    return idleBytes;
+  }
+
+  private static void increment(TezCounter counter) {
+    if (counter != null) {
+      counter.increment(1);
+    }
+  }
+}
@@ -0,0 +1,308 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.runtime.library.common.shuffle;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.hadoop.classification.InterfaceAudience.Private;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.IOUtils;
+import org.apache.tez.common.counters.TaskCounter;
+import org.apache.tez.common.counters.TezCounter;
+import org.apache.tez.common.security.JobTokenSecretManager;
+import org.apache.tez.dag.api.TezConfiguration;
+import org.apache.tez.http.HttpConnectionParams;
+import org.apache.tez.http.SSLFactory;
+import org.apache.tez.runtime.api.OutputContext;
+import org.apache.tez.runtime.library.api.TezRuntimeConfiguration;
+import org.apache.tez.runtime.library.common.security.SecureShuffleUtils;
+import org.apache.tez.runtime.library.common.sort.impl.TezIndexRecord;
+import org.apache.tez.runtime.library.common.sort.impl.TezSpillRecord;
+import org.apache.tez.runtime.library.common.shuffle.orderedgrouped.ShuffleHeader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Pushes the partitions of a finished unordered output to the shuffle
+ * handlers merging them for the consumers, see
+ * {@link TezRuntimeConfiguration#TEZ_RUNTIME_SHUFFLE_PUSH_ENABLED}. Pushing is
+ * best effort: the output is still served by the local shuffle handler, so
+ * the consumers pull whatever could not be pushed.
+ *
+ * The merger hosts are pushed to in parallel, the partitions of one host one
+ * after the other. Pushing is bounded by
+ * {@link TezRuntimeConfiguration#TEZ_RUNTIME_SHUFFLE_PUSH_TIMEOUT_MS}, so a
+ * slow merger does not hold up the producer.
+ */
+@Private
+public class ShufflePartitionPusher {
+
+  private static final Logger LOG = LoggerFactory.getLogger(ShufflePartitionPusher.class);
+
+  private final OutputContext outputContext;
+  private final Configuration conf;
+  private final String[] mergerHosts;
+  private final int maxBlockSize;
+  private final int parallelism;
+  private final long timeoutMs;
+  private final String edgeName;
+  private final TezCounter bytesPushedCounter;
+
+  public ShufflePartitionPusher(OutputContext outputContext, Configuration conf) {
+    this.outputContext = outputContext;
+    this.conf = conf;
+    this.mergerHosts = conf.getTrimmedStrings(
+        TezRuntimeConfiguration.TEZ_RUNTIME_SHUFFLE_PUSH_MERGER_HOSTS);
+    this.maxBlockSize = conf.getInt(TezRuntimeConfiguration.TEZ_RUNTIME_SHUFFLE_PUSH_MAX_BLOCK_SIZE,
+        TezRuntimeConfiguration.TEZ_RUNTIME_SHUFFLE_PUSH_MAX_BLOCK_SIZE_DEFAULT);
+    this.parallelism = Math.max(1, conf.getInt(
+        TezRuntimeConfiguration.TEZ_RUNTIME_SHUFFLE_PUSH_PARALLELISM,
+        TezRuntimeConfiguration.TEZ_RUNTIME_SHUFFLE_PUSH_PARALLELISM_DEFAULT));
+    this.timeoutMs = conf.getInt(TezRuntimeConfiguration.TEZ_RUNTIME_SHUFFLE_PUSH_TIMEOUT_MS,
+        TezRuntimeConfiguration.TEZ_RUNTIME_SHUFFLE_PUSH_TIMEOUT_MS_DEFAULT);
+    this.edgeName = ShuffleUtils.getPushEdgeName(outputContext.getTaskVertexName(),
+        outputContext.getDestinationVertexName());
+    this.bytesPushedCounter = outputContext.getCounters().findCounter(
+        TaskCounter.SHUFFLE_BYTES_PUSHED);
+  }
+
+  public static boolean isEnabled(Configuration conf) {
+    return conf.getBoolean(TezRuntimeConfiguration.TEZ_RUNTIME_SHUFFLE_PUSH_ENABLED,
+        TezRuntimeConfiguration.TEZ_RUNTIME_SHUFFLE_PUSH_ENABLED_DEFAULT)
+        && conf.getTrimmedStrings(
+            TezRuntimeConfiguration.TEZ_RUNTIME_SHUFFLE_PUSH_MERGER_HOSTS).length > 0;
+  }
+
+  /**
+   * Pushes the non empty partitions of a final output file which are not
+   * larger than the max block size. Failures are logged and not thrown.
+   * @param fs The local file system holding the output
+   * @param outputPath The final output file
+   * @param spillRecord The index of the output file
+   * @param emptyPartitions Partitions without records, which are not pushed
+   * @param pathComponent The path component the output is fetched with
+   * @return the number of partitions pushed before the timeout
+   */
+  public int push(FileSystem fs, Path outputPath, TezSpillRecord spillRecord,
+      BitSet emptyPartitions, String pathComponent) {
+    long startTime = System.currentTimeMillis();
+    Map<String, List<Integer>> partitionsByHost = new LinkedHashMap<String, List<Integer>>();
+    for (int partition = 0; partition < spillRecord.size(); partition++) {
+      TezIndexRecord record = spillRecord.getIndex(partition);
+      if (emptyPartitions.get(partition) || record.getPartLength() <= 0
+          || record.getPartLength() > maxBlockSize) {
+        continue;
+      }
+      String host = ShuffleUtils.getPushMergerHost(mergerHosts, partition);
+      List<Integer> partitions = partitionsByHost.get(host);
+      if (partitions == null) {
+        partitions = new ArrayList<Integer>();
+        partitionsByHost.put(host, partitions);
+      }
+      partitions.add(partition);
+    }
+    if (partitionsByHost.isEmpty()) {
+      return 0;
+    }
+
+    AtomicInteger pushed = new AtomicInteger();
+    AtomicLong pushedBytes = new AtomicLong();
+    ExecutorService executor = null;
+    try {
+      HttpConnectionParams httpConnectionParams = ShuffleUtils.getHttpConnectionParams(conf);
+      String auxiliaryService = conf.get(TezConfiguration.TEZ_AM_SHUFFLE_AUXILIARY_SERVICE_ID,
+          TezConfiguration.TEZ_AM_SHUFFLE_AUXILIARY_SERVICE_ID_DEFAULT);
+      JobTokenSecretManager jobTokenSecretMgr = new JobTokenSecretManager(
+          ShuffleUtils.getJobTokenSecretFromTokenBytes(
+              outputContext.getServiceConsumerMetaData(auxiliaryService)));
+      int port = ShuffleUtils.deserializeShuffleProviderMetaData(
+          outputContext.getServiceProviderMetaData(auxiliaryService));
+      executor = Executors.newFixedThreadPool(Math.min(parallelism, partitionsByHost.size()),
+          new ThreadFactoryBuilder().setDaemon(true)
+              .setNameFormat("ShufflePartitionPusher {" + edgeName + "} #%d").build());
+      for (Map.Entry<String, List<Integer>> entry : partitionsByHost.entrySet()) {
+        executor.execute(new HostPusher(entry.getKey(), entry.getValue(), fs, outputPath,
+            spillRecord, pathComponent, port, httpConnectionParams, jobTokenSecretMgr, pushed,
+            pushedBytes));
+      }
+      executor.shutdown();
+      if (!executor.awaitTermination(timeoutMs, TimeUnit.MILLISECONDS)) {
+        LOG.warn("Pushing the partitions of " + pathComponent + " did not complete in "
+            + timeoutMs + " ms, the remaining ones will be pulled by the consumers");
+      }
+    } catch (IOException e) {
+      LOG.warn("Failed to push the partitions of " + outputPath
+          + ", they will be pulled by the consumers", e);
+    } catch (InterruptedException e) {
+      LOG.info("Interrupted while pushing the partitions of " + pathComponent);
+      Thread.currentThread().interrupt();
+    } finally {
+      if (executor != null) {
+        executor.shutdownNow();
+      }
+    }
+    bytesPushedCounter.increment(pushedBytes.get());
+    LOG.info("Pushed " + pushed.get() + " partitions, " + pushedBytes.get() + " bytes of "
+        + pathComponent + " to " + partitionsByHost.size() + " hosts in "
+        + (System.currentTimeMillis() - startTime) + " ms");
+    return pushed.get();
+  }
+
+  /**
+   * Pushes the partitions of one merger host. The remaining partitions of a
+   * host which failed are not pushed.
+   */
+  private class HostPusher implements Runnable {
+    private final String host;
+    private final List<Integer> partitions;
+    private final FileSystem fs;
+    private final Path outputPath;
+    private final TezSpillRecord spillRecord;
+    private final String pathComponent;
+    private final int port;
+    private final HttpConnectionParams httpConnectionParams;
+    private final JobTokenSecretManager jobTokenSecretMgr;
+    private final AtomicInteger pushed;
+    private final AtomicLong pushedBytes;
+
+    HostPusher(String host, List<Integer> partitions, FileSystem fs, Path outputPath,
+        TezSpillRecord spillRecord, String pathComponent, int port,
+        HttpConnectionParams httpConnectionParams, JobTokenSecretManager jobTokenSecretMgr,
+        AtomicInteger pushed, AtomicLong pushedBytes) {
+      this.host = host;
+      this.partitions = partitions;
+      this.fs = fs;
+      this.outputPath = outputPath;
+      this.spillRecord = spillRecord;
+      this.pathComponent = pathComponent;
+      this.port = port;
+      this.httpConnectionParams = httpConnectionParams;
+      this.jobTokenSecretMgr = jobTokenSecretMgr;
+      this.pushed = pushed;
+      this.pushedBytes = pushedBytes;
+    }
+
+    @Override
+    public void run() {
+      FSDataInputStream in = null;
+      int partition = -1;
+      try {
+        byte[] buffer = null;
+        for (int i = 0; i < partitions.size() && !Thread.currentThread().isInterrupted(); i++) {
+          partition = partitions.get(i);
+          TezIndexRecord record = spillRecord.getIndex(partition);
+          int length = (int) record.getPartLength();
+          if (buffer == null || buffer.length < length) {
+            buffer = new byte[length];
+          }
+          if (in == null) {
+            in = fs.open(outputPath);
+          }
+          in.readFully(record.getStartOffset(), buffer, 0, length);
+          URL url = ShuffleUtils.constructPushURL(host, port, partition,
+              outputContext.getApplicationId().toString(), outputContext.getDagIdentifier(),
+              httpConnectionParams.isSslShuffle(), edgeName, pathComponent,
+              record.getRawLength());
+          pushBlock(url, buffer, length, httpConnectionParams, jobTokenSecretMgr);
+          pushed.incrementAndGet();
+          pushedBytes.addAndGet(length);
+        }
+      } catch (IOException e) {
+        LOG.warn("Failed to push partition " + partition + " of " + pathComponent + " to "
+            + host + ", the remaining partitions of the host will be pulled by the consumers: "
+            + e.getMessage());
+      } finally {
+        IOUtils.closeStream(in);
+      }
+    }
+  }
+
+  private void pushBlock(URL url, byte[] data, int length,
+      HttpConnectionParams httpConnectionParams, JobTokenSecretManager jobTokenSecretMgr)
+      throws IOException {
+    HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+    try {
+      if (httpConnectionParams.isSslShuffle()) {
+        SSLFactory sslFactory = httpConnectionParams.getSslFactory();
+        if (sslFactory == null) {
+          throw new IOException("SSLFactory can not be null");
+        }
+        sslFactory.configure(connection);
+      }
+      String encHash = SecureShuffleUtils.hashFromString(
+          SecureShuffleUtils.buildMsgFrom(url), jobTokenSecretMgr);
+      connection.setRequestMethod("POST");
+      connection.setDoOutput(true);
+      connection.setFixedLengthStreamingMode(length);
+      connection.setConnectTimeout(httpConnectionParams.getConnectionTimeout());
+      connection.setReadTimeout(httpConnectionParams.getReadTimeout());
+      connection.addRequestProperty(SecureShuffleUtils.HTTP_HEADER_URL_HASH, encHash);
+      connection.addRequestProperty(ShuffleHeader.HTTP_HEADER_NAME,
+          ShuffleHeader.DEFAULT_HTTP_HEADER_NAME);
+      connection.addRequestProperty(ShuffleHeader.HTTP_HEADER_VERSION,
+          ShuffleHeader.DEFAULT_HTTP_HEADER_VERSION);
+      OutputStream out = connection.getOutputStream();
+      try {
+        out.write(data, 0, length);
+      } finally {
+        out.close();
+      }
+      int rc = connection.getResponseCode();
+      if (rc != HttpURLConnection.HTTP_OK) {
+        throw new IOException("Got invalid response code " + rc + " from " + url
+            + ": " + connection.getResponseMessage());
+      }
+      String replyHash = connection.getHeaderField(SecureShuffleUtils.HTTP_HEADER_REPLY_URL_HASH);
+      if (replyHash == null) {
+        throw new IOException("security validation of the push to " + url + " failed");
+      }
+      SecureShuffleUtils.verifyReply(replyHash, encHash, jobTokenSecretMgr);
+      // Drain the empty response so the connection can be reused
+      InputStream in = connection.getInputStream();
+      try {
+        while (in.read() >= 0) {
+        }
+      } finally {
+        in.close();
+      }
+    } catch (IOException e) {
+      connection.disconnect();
+      throw e;
+    }
+  }
+}
@@ -67,6 +67,7 @@ import org.apache.tez.runtime.library.common.InputAttemptIdentifier;
 import org.apache.tez.runtime.library.common.sort.impl.IFile;
 import org.apache.tez.runtime.library.common.sort.impl.TezIndexRecord;
 import org.apache.tez.runtime.library.common.sort.impl.TezSpillRecord;
+import org.apache.tez.runtime.library.common.shuffle.orderedgrouped.ShuffleRangeHeader;
 import org.apache.tez.runtime.library.shuffle.impl.ShuffleUserPayloads;
 import org.apache.tez.runtime.library.shuffle.impl.ShuffleUserPayloads.DataMovementEventPayloadProto;
 import org.apache.tez.runtime.library.shuffle.impl.ShuffleUserPayloads.DetailedPartitionStatsProto;
@@ -76,6 +77,15 @@ public class ShuffleUtils {
   private static final Logger LOG = LoggerFactory.getLogger(ShuffleUtils.class);
   private static final long MB = 1024l * 1024l;
 
+  /** Request parameter asking for the blocks pushed for a partition */
+  public static final String MERGED_HTTP_PARAM_NAME = "merged";
+  /** Request parameter with the number of pushed blocks already read */
+  public static final String MERGED_FROM_BLOCK_HTTP_PARAM_NAME = "fromBlock";
+  /** Request parameter naming the edge of a pushed partition */
+  public static final String PUSH_EDGE_HTTP_PARAM_NAME = "edge";
+  /** Request parameter with the uncompressed length of a pushed partition */
+  public static final String PUSH_RAW_LENGTH_HTTP_PARAM_NAME = "rawLength";
+
   static final ThreadLocal<DecimalFormat> MBPS_FORMAT =
       new ThreadLocal<DecimalFormat>() {
         @Override
@@ -118,11 +128,11 @@ public class ShuffleUtils {
       CompressionCodec codec, boolean ifileReadAhead, int ifileReadAheadLength,
       Logger LOG, InputAttemptIdentifier identifier) throws IOException {
     try {
-      IFile.Reader.readToMemory(shuffleData, input, compressedLength, codec,
+      IFile.Reader.readToMemory(shuffleData, decompressedLength, input, compressedLength, codec,
           ifileReadAhead, ifileReadAheadLength);
       // metrics.inputBytes(shuffleData.length);
       if (LOG.isDebugEnabled()) {
-        LOG.debug("Read " + shuffleData.length + " bytes from input for "
+        LOG.debug("Read " + decompressedLength + " bytes from input for "
             + identifier);
       }
     } catch (InternalError | Exception e) {
@@ -208,6 +218,17 @@ public class ShuffleUtils {
 
   public static StringBuilder constructBaseURIForShuffleHandler(String host,
       int port, int partition, int partitionCount, String appId, int dagIdentifier, boolean sslShuffle) {
+    return constructBaseURIForShuffleHandler(host, port, partition, partitionCount, appId,
+        dagIdentifier, sslShuffle, false);
+  }
+
+  /**
+   * @param compactRangeHeader whether to ask for a {@link ShuffleRangeHeader}
+   *                           when fetching more than one partition
+   */
+  public static StringBuilder constructBaseURIForShuffleHandler(String host,
+      int port, int partition, int partitionCount, String appId, int dagIdentifier,
+      boolean sslShuffle, boolean compactRangeHeader) {
     final String http_protocol = (sslShuffle) ? "https://" : "http://";
     StringBuilder sb = new StringBuilder(http_protocol);
     sb.append(host);
@@ -223,11 +244,71 @@ public class ShuffleUtils {
     if (partitionCount > 1) {
       sb.append("-");
       sb.append(String.valueOf(partition + partitionCount - 1));
+      if (compactRangeHeader) {
+        sb.append("&").append(ShuffleRangeHeader.HTTP_PARAM_NAME).append("=true");
+      }
     }
     sb.append("&map=");
     return sb;
   }
 
+  /**
+   * The name the partitions pushed for an edge are stored under by the
+   * shuffle handlers, which both the producers and the consumers can derive.
+   */
+  public static String getPushEdgeName(String sourceVertexName, String destinationVertexName) {
+    return TezUtilsInternal.cleanVertexName(sourceVertexName) + "-"
+        + TezUtilsInternal.cleanVertexName(destinationVertexName);
+  }
+
+  /**
+   * The host the blocks of a partition are pushed to, chosen the same way by
+   * all the producers and the consumer of the partition.
+   * @param mergerHosts The hosts from
+   *          {@link org.apache.tez.runtime.library.api.TezRuntimeConfiguration#TEZ_RUNTIME_SHUFFLE_PUSH_MERGER_HOSTS}
+   * @return the host, or null if no hosts are configured
+   */
+  @Nullable
+  public static String getPushMergerHost(String[] mergerHosts, int partition) {
+    if (mergerHosts == null || mergerHosts.length == 0) {
+      return null;
+    }
+    return mergerHosts[partition % mergerHosts.length];
+  }
+
+  /**
+   * URL to push the block of a map output for one partition to.
+   */
+  public static URL constructPushURL(String host, int port, int partition, String appId,
+      int dagIdentifier, boolean sslShuffle, String edgeName, String pathComponent,
+      long rawLength) throws MalformedURLException {
+    StringBuilder sb = constructBaseURIForShuffleHandler(host, port, partition, 1, appId,
+        dagIdentifier, sslShuffle);
+    sb.append(pathComponent);
+    sb.append("&").append(PUSH_EDGE_HTTP_PARAM_NAME).append("=").append(edgeName);
+    sb.append("&").append(PUSH_RAW_LENGTH_HTTP_PARAM_NAME).append("=").append(rawLength);
+    return new URL(sb.toString());
+  }
+
+  /**
+   * URL to fetch the blocks pushed for a partition so far, skipping the
+   * given number of blocks which were read before.
+   */
+  public static URL constructMergedPartitionURL(String host, int port, int partition,
+      String appId, int dagIdentifier, boolean sslShuffle, String edgeName, int fromBlock)
+      throws MalformedURLException {
+    final String http_protocol = (sslShuffle) ? "https://" : "http://";
+    StringBuilder sb = new StringBuilder(http_protocol);
+    sb.append(host).append(":").append(port).append("/");
+    sb.append("mapOutput?job=").append(appId.replace("application", "job"));
+    sb.append("&dag=").append(dagIdentifier);
+    sb.append("&reduce=").append(partition);
+    sb.append("&").append(PUSH_EDGE_HTTP_PARAM_NAME).append("=").append(edgeName);
+    sb.append("&").append(MERGED_HTTP_PARAM_NAME).append("=true");
+    sb.append("&").append(MERGED_FROM_BLOCK_HTTP_PARAM_NAME).append("=").append(fromBlock);
+    return new URL(sb.toString());
+  }
+
   public static URL constructInputURL(String baseURI,
       Collection<InputAttemptIdentifier> inputs, boolean keepAlive) throws MalformedURLException {
     StringBuilder url = new StringBuilder(baseURI);
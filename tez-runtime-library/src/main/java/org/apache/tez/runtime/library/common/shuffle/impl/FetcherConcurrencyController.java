@@ -0,0 +1,170 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.runtime.library.common.shuffle.impl;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Adapts the number of fetchers an input runs, in the manner of TCP
+ * congestion control. Starting from the minimum, the number of fetchers
+ * doubles every interval in which all of them were busy on average (slow
+ * start), then grows by one while throughput keeps up. Fetch failures or
+ * memory pressure halve it, and an increase which made throughput drop is
+ * undone. Intervals without any completed fetch keep the current number.
+ */
+class FetcherConcurrencyController {
+
+  private static final Logger LOG = LoggerFactory.getLogger(FetcherConcurrencyController.class);
+
+  // Throughput drop after an increase which is considered as congestion
+  private static final double THROUGHPUT_DROP_FRACTION = 0.2;
+  // Average fraction of the fetchers running over an interval for them to be
+  // considered all busy
+  private static final double BUSY_FRACTION = 0.9;
+
+  private final String logIdentifier;
+  private final int minFetchers;
+  private final int maxFetchers;
+  private final long intervalMillis;
+  private final float memoryPressureThreshold;
+
+  private int targetFetchers;
+  private boolean slowStart = true;
+  private boolean increasedLastInterval = false;
+  // number of fetchers before the last increase
+  private int fetchersBeforeIncrease;
+
+  private long intervalStart;
+  private long intervalBytes = 0;
+  private int intervalCompletions = 0;
+  private int intervalFailures = 0;
+  // fetchers running since lastSampleTime, and the sum of the number of
+  // running fetchers over time in this interval, in fetcher milliseconds
+  private int runningFetchers = 0;
+  private long lastSampleTime;
+  private long intervalFetcherMillis = 0;
+  // bytes per second of the last interval with completed fetches
+  private double lastThroughput = -1;
+
+  FetcherConcurrencyController(String logIdentifier, int minFetchers, int maxFetchers,
+      long intervalMillis, float memoryPressureThreshold, long now) {
+    Preconditions.checkArgument(maxFetchers > 0, "maxFetchers must be positive");
+    Preconditions.checkArgument(intervalMillis > 0, "intervalMillis must be positive");
+    this.logIdentifier = logIdentifier;
+    this.maxFetchers = maxFetchers;
+    this.minFetchers = Math.max(1, Math.min(minFetchers, maxFetchers));
+    this.intervalMillis = intervalMillis;
+    this.memoryPressureThreshold = memoryPressureThreshold;
+    this.targetFetchers = this.minFetchers;
+    this.intervalStart = now;
+    this.lastSampleTime = now;
+  }
+
+  /**
+   * @return the number of fetchers to run at most
+   */
+  synchronized int getTargetFetchers() {
+    return targetFetchers;
+  }
+
+  synchronized void fetchSucceeded(long fetchedBytes) {
+    intervalBytes += fetchedBytes;
+    intervalCompletions++;
+  }
+
+  synchronized void fetchFailed() {
+    intervalFailures++;
+  }
+
+  /**
+   * Records a change of the number of running fetchers.
+   * @param now The current time in milliseconds
+   * @param runningFetchers The number of fetchers running from now on
+   */
+  synchronized void sampleRunningFetchers(long now, int runningFetchers) {
+    if (now > lastSampleTime) {
+      intervalFetcherMillis += (long) this.runningFetchers * (now - lastSampleTime);
+      lastSampleTime = now;
+    }
+    this.runningFetchers = runningFetchers;
+  }
+
+  /**
+   * Re-evaluates the number of fetchers once per interval.
+   * @param now The current time in milliseconds
+   * @param runningFetchers The number of fetchers currently running
+   * @param memoryUsage The fraction of the shuffle memory in use
+   * @return true if the number of fetchers changed
+   */
+  synchronized boolean update(long now, int runningFetchers, float memoryUsage) {
+    sampleRunningFetchers(now, runningFetchers);
+    long elapsed = now - intervalStart;
+    if (elapsed < intervalMillis) {
+      return false;
+    }
+    int previous = targetFetchers;
+    boolean increased = false;
+    double throughput = intervalBytes * 1000.0 / elapsed;
+    double averageRunning = (double) intervalFetcherMillis / elapsed;
+    String reason;
+    if (intervalFailures > 0 || memoryUsage >= memoryPressureThreshold) {
+      targetFetchers = Math.max(minFetchers, targetFetchers / 2);
+      slowStart = false;
+      reason = intervalFailures > 0 ? intervalFailures + " fetch failures"
+          : "memory usage " + memoryUsage;
+    } else if (intervalCompletions == 0) {
+      // Stalled or idle, nothing to learn from this interval
+      reason = "no completed fetches";
+    } else if (increasedLastInterval && lastThroughput > 0
+        && throughput < lastThroughput * (1 - THROUGHPUT_DROP_FRACTION)) {
+      targetFetchers = Math.max(minFetchers, fetchersBeforeIncrease);
+      slowStart = false;
+      reason = "throughput dropped to " + (long) throughput + " bytes/s";
+    } else if (averageRunning >= targetFetchers * BUSY_FRACTION
+        && targetFetchers < maxFetchers) {
+      // Only probe further when the current number of fetchers was used
+      fetchersBeforeIncrease = targetFetchers;
+      targetFetchers = Math.min(maxFetchers,
+          slowStart ? targetFetchers * 2 : targetFetchers + 1);
+      increased = true;
+      reason = "throughput " + (long) throughput + " bytes/s";
+    } else {
+      reason = "throughput " + (long) throughput + " bytes/s";
+    }
+    if (intervalCompletions > 0) {
+      lastThroughput = throughput;
+    }
+    increasedLastInterval = increased;
+    intervalStart = now;
+    intervalBytes = 0;
+    intervalCompletions = 0;
+    intervalFailures = 0;
+    intervalFetcherMillis = 0;
+
+    if (targetFetchers != previous) {
+      LOG.info(logIdentifier + ": Changing the number of fetchers from " + previous + " to "
+          + targetFetchers + ", " + reason);
+      return true;
+    }
+    return false;
+  }
+}
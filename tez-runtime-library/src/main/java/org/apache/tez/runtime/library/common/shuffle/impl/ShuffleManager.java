@@ -23,6 +23,7 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
 import java.text.DecimalFormat;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.BitSet;
 import java.util.Collections;
@@ -37,6 +38,7 @@ import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingDeque;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -81,6 +83,9 @@ import org.apache.tez.runtime.library.common.shuffle.FetcherCallback;
 import org.apache.tez.runtime.library.common.shuffle.HostPort;
 import org.apache.tez.runtime.library.common.shuffle.InputHost;
 import org.apache.tez.runtime.library.common.shuffle.InputHost.PartitionToInputs;
+import org.apache.tez.runtime.library.common.shuffle.MergedPartitionFetcher;
+import org.apache.tez.runtime.library.common.shuffle.SharedFetchRegistry;
+import org.apache.tez.runtime.library.common.shuffle.ShufflePartitionPusher;
 import org.apache.tez.runtime.library.common.shuffle.ShuffleUtils;
 import org.apache.tez.runtime.library.common.shuffle.ShuffleUtils.FetchStatsLogger;
 
@@ -138,6 +143,8 @@ public class ShuffleManager implements FetcherCallback {
   private final Condition wakeLoop = lock.newCondition();
   
   private final int numFetchers;
+  // Adapts the number of running fetchers, null if numFetchers is fixed
+  private final FetcherConcurrencyController concurrencyController;
   private final boolean asyncHttp;
   
   // Parameters required by Fetchers
@@ -145,6 +152,7 @@ public class ShuffleManager implements FetcherCallback {
   private final CompressionCodec codec;
   private final boolean localDiskFetchEnabled;
   private final boolean sharedFetchEnabled;
+  private final SharedFetchRegistry sharedFetchRegistry;
   private final boolean verifyDiskChecksum;
   private final boolean compositeFetch;
   
@@ -177,6 +185,16 @@ public class ShuffleManager implements FetcherCallback {
   private final int shufflePort;
 
   private final TezCounter shufflePhaseTime;
+  private final TezCounter bytesMergedCounter;
+
+  // Fetches the pushed partitions, null if push is disabled. Inputs which may
+  // have been pushed are only pulled after a round of merged fetches looked
+  // for them. The rounds run on their own thread while other inputs are
+  // pulled, the fields below are guarded by lock.
+  private final MergedPartitionFetcher mergedPartitionFetcher;
+  private final ListeningExecutorService mergedFetchExecutor;
+  private final List<PushedInput> mergedFetchInputs = new ArrayList<PushedInput>();
+  private boolean mergedFetchRunning = false;
   private final TezCounter firstEventReceived;
   private final TezCounter lastEventReceived;
 
@@ -209,6 +227,10 @@ public class ShuffleManager implements FetcherCallback {
         TezRuntimeConfiguration.TEZ_RUNTIME_OPTIMIZE_LOCAL_FETCH_DEFAULT);
     this.sharedFetchEnabled = conf.getBoolean(TezRuntimeConfiguration.TEZ_RUNTIME_OPTIMIZE_SHARED_FETCH,
         TezRuntimeConfiguration.TEZ_RUNTIME_OPTIMIZE_SHARED_FETCH_DEFAULT);
+    // Inputs of the tasks running in this process share their fetches in
+    // memory, the lock based sharing covers the other processes
+    this.sharedFetchRegistry = sharedFetchEnabled
+        ? SharedFetchRegistry.getInstance(inputContext.getObjectRegistry()) : null;
     this.verifyDiskChecksum = conf.getBoolean(
         TezRuntimeConfiguration.TEZ_RUNTIME_SHUFFLE_FETCH_VERIFY_DISK_CHECKSUM,
         TezRuntimeConfiguration.TEZ_RUNTIME_SHUFFLE_FETCH_VERIFY_DISK_CHECKSUM_DEFAULT);
@@ -237,6 +259,21 @@ public class ShuffleManager implements FetcherCallback {
             TezRuntimeConfiguration.TEZ_RUNTIME_SHUFFLE_PARALLEL_COPIES_DEFAULT);
     
     this.numFetchers = Math.min(maxConfiguredFetchers, numInputs);
+    if (numFetchers > 0 && conf.getBoolean(
+        TezRuntimeConfiguration.TEZ_RUNTIME_SHUFFLE_ADAPTIVE_FETCHERS_ENABLED,
+        TezRuntimeConfiguration.TEZ_RUNTIME_SHUFFLE_ADAPTIVE_FETCHERS_ENABLED_DEFAULT)) {
+      this.concurrencyController = new FetcherConcurrencyController(srcNameTrimmed,
+          conf.getInt(TezRuntimeConfiguration.TEZ_RUNTIME_SHUFFLE_ADAPTIVE_FETCHERS_MIN,
+              TezRuntimeConfiguration.TEZ_RUNTIME_SHUFFLE_ADAPTIVE_FETCHERS_MIN_DEFAULT),
+          numFetchers,
+          conf.getInt(TezRuntimeConfiguration.TEZ_RUNTIME_SHUFFLE_ADAPTIVE_FETCHERS_INTERVAL_MS,
+              TezRuntimeConfiguration.TEZ_RUNTIME_SHUFFLE_ADAPTIVE_FETCHERS_INTERVAL_MS_DEFAULT),
+          conf.getFloat(TezRuntimeConfiguration.TEZ_RUNTIME_SHUFFLE_ADAPTIVE_FETCHERS_MEMORY_PRESSURE,
+              TezRuntimeConfiguration.TEZ_RUNTIME_SHUFFLE_ADAPTIVE_FETCHERS_MEMORY_PRESSURE_DEFAULT),
+          System.currentTimeMillis());
+    } else {
+      this.concurrencyController = null;
+    }
 
     final ExecutorService fetcherRawExecutor;
     if (conf.getBoolean(TezRuntimeConfiguration.TEZ_RUNTIME_SHUFFLE_FETCHER_USE_SHARED_POOL,
@@ -286,13 +323,31 @@ public class ShuffleManager implements FetcherCallback {
         TezRuntimeConfiguration.TEZ_RUNTIME_SHUFFLE_FETCH_MAX_TASK_OUTPUT_AT_ONCE,
         TezRuntimeConfiguration.TEZ_RUNTIME_SHUFFLE_FETCH_MAX_TASK_OUTPUT_AT_ONCE_DEFAULT)));
 
+    this.bytesMergedCounter = inputContext.getCounters().findCounter(
+        TaskCounter.SHUFFLE_BYTES_MERGED);
+    if (ShufflePartitionPusher.isEnabled(conf)) {
+      mergedPartitionFetcher = createMergedPartitionFetcher(conf);
+      if (codec != null) {
+        mergedPartitionFetcher.setCompressionParameters(codec);
+      }
+      mergedPartitionFetcher.setIFileParams(ifileReadAhead, ifileReadAheadLength,
+          verifyDiskChecksum);
+      mergedFetchExecutor = MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(1,
+          new ThreadFactoryBuilder().setDaemon(true)
+              .setNameFormat("MergedFetcher {" + srcNameTrimmed + "}").build()));
+    } else {
+      mergedPartitionFetcher = null;
+      mergedFetchExecutor = null;
+    }
+
     Arrays.sort(this.localDisks);
 
     shuffleInfoEventsMap = new ConcurrentHashMap<Integer, ShuffleEventInfo>();
 
     LOG.info(srcNameTrimmed + ": numInputs=" + numInputs + ", compressionCodec="
         + (codec == null ? "NoCompressionCodec" : codec.getClass().getName()) + ", numFetchers="
-        + numFetchers + ", ifileBufferSize=" + ifileBufferSize + ", ifileReadAheadEnabled="
+        + numFetchers + ", adaptiveFetchers=" + (concurrencyController != null)
+        + ", ifileBufferSize=" + ifileBufferSize + ", ifileReadAheadEnabled="
         + ifileReadAhead + ", ifileReadAheadLength=" + ifileReadAheadLength +", "
         + "localDiskFetchEnabled=" + localDiskFetchEnabled + ", "
         + "sharedFetchEnabled=" + sharedFetchEnabled + ", "
@@ -321,7 +376,7 @@ public class ShuffleManager implements FetcherCallback {
       while (!isShutdown.get() && numCompletedInputs.get() < numInputs) {
         lock.lock();
         try {
-          while ((runningFetchers.size() >= numFetchers || pendingHosts.isEmpty())
+          while ((runningFetchers.size() >= getMaxRunningFetchers() || pendingHosts.isEmpty())
               && numCompletedInputs.get() < numInputs) {
             inputContext.notifyProgress();
             boolean ret = wakeLoop.await(1000, TimeUnit.MILLISECONDS);
@@ -345,7 +400,7 @@ public class ShuffleManager implements FetcherCallback {
         if (numCompletedInputs.get() < numInputs && !isShutdown.get()) {
           lock.lock();
           try {
-            int maxFetchersToRun = numFetchers - runningFetchers.size();
+            int maxFetchersToRun = getMaxRunningFetchers() - runningFetchers.size();
             int count = 0;
             while (pendingHosts.peek() != null && !isShutdown.get()) {
               InputHost inputHost = null;
@@ -367,6 +422,7 @@ public class ShuffleManager implements FetcherCallback {
               if (inputHost.getNumPendingPartitions() > 0 && !isShutdown.get()) {
                 Fetcher fetcher = constructFetcherForHost(inputHost, conf);
                 runningFetchers.add(fetcher);
+                runningFetchersChanged();
                 if (isShutdown.get()) {
                   LOG.info(srcNameTrimmed + ": " + "hasBeenShutdown," +
                       "Breaking out of ShuffleScheduler Loop");
@@ -400,6 +456,105 @@ public class ShuffleManager implements FetcherCallback {
     }
   }
 
+  @VisibleForTesting
+  MergedPartitionFetcher createMergedPartitionFetcher(Configuration conf) {
+    return new MergedPartitionFetcher(this, inputManager, httpConnectionParams,
+        jobTokenSecretMgr, inputContext.getApplicationId(), inputContext.getDagIdentifier(),
+        ShuffleUtils.getPushEdgeName(inputContext.getSourceVertexName(),
+            inputContext.getTaskVertexName()),
+        conf.getTrimmedStrings(TezRuntimeConfiguration.TEZ_RUNTIME_SHUFFLE_PUSH_MERGER_HOSTS),
+        shufflePort, srcNameTrimmed);
+  }
+
+  /**
+   * An input which may have been pushed, waiting for a round of merged
+   * fetches before it is pulled.
+   */
+  private static class PushedInput {
+    final InputHost host;
+    final CompositeInputAttemptIdentifier input;
+    final int srcPhysicalIndex;
+
+    PushedInput(InputHost host, CompositeInputAttemptIdentifier input, int srcPhysicalIndex) {
+      this.host = host;
+      this.input = input;
+      this.srcPhysicalIndex = srcPhysicalIndex;
+    }
+  }
+
+  /**
+   * Starts a round of merged fetches unless one is running, which picks up
+   * the new inputs once it is done. Needs to be called with the lock held.
+   */
+  private void scheduleMergedFetch() {
+    if (mergedFetchRunning || isShutdown.get()) {
+      return;
+    }
+    ListenableFuture<Void> future;
+    try {
+      future = mergedFetchExecutor.submit(new MergedFetchCallable());
+    } catch (RejectedExecutionException e) {
+      // Shutting down
+      return;
+    }
+    mergedFetchRunning = true;
+    Futures.addCallback(future, new MergedFetchFutureCallback());
+  }
+
+  private class MergedFetchCallable extends CallableWithNdc<Void> {
+    @Override
+    protected Void callInternal() {
+      while (!isShutdown.get()) {
+        List<PushedInput> inputs;
+        lock.lock();
+        try {
+          if (mergedFetchInputs.isEmpty()) {
+            mergedFetchRunning = false;
+            return null;
+          }
+          inputs = new ArrayList<PushedInput>(mergedFetchInputs);
+          mergedFetchInputs.clear();
+        } finally {
+          lock.unlock();
+        }
+        fetchMergedPartitions(inputs);
+      }
+      return null;
+    }
+  }
+
+  private void fetchMergedPartitions(List<PushedInput> inputs) {
+    long startTime = System.currentTimeMillis();
+    long fetchedBytes = mergedPartitionFetcher.getFetchedBytes();
+    int fetched = 0;
+    try {
+      fetched = mergedPartitionFetcher.fetch();
+    } finally {
+      fetchedBytes = mergedPartitionFetcher.getFetchedBytes() - fetchedBytes;
+      bytesMergedCounter.increment(fetchedBytes);
+      // Whatever was not in the merged partitions is pulled from the producer
+      for (PushedInput input : inputs) {
+        if (!isCompleted(input.input)) {
+          addPendingInput(input.host, input.input, input.srcPhysicalIndex);
+        }
+      }
+    }
+    LOG.info(srcNameTrimmed + ": Fetched " + fetched + " of " + inputs.size()
+        + " new inputs from merged partitions, " + fetchedBytes + " bytes in "
+        + (System.currentTimeMillis() - startTime) + " ms");
+  }
+
+  private boolean isCompleted(CompositeInputAttemptIdentifier input) {
+    lock.lock();
+    try {
+      int inputIdentifier = input.getInputIdentifier();
+      return completedInputSet.nextClearBit(inputIdentifier)
+          >= inputIdentifier + input.getInputIdentifierCount();
+    } finally {
+      lock.unlock();
+    }
+  }
+
   private boolean validateInputAttemptForPipelinedShuffle(InputAttemptIdentifier input) {
     //For pipelined shuffle.
     //TODO: TEZ-2132 for error handling. As of now, fail fast if there is a different attempt
@@ -428,6 +583,34 @@ public class ShuffleManager implements FetcherCallback {
     this.inputContext.killSelf(exception, message);
   }
 
+  /**
+   * @return the number of fetchers which can run at the moment. Needs to be
+   *         called with the lock held.
+   */
+  private int getMaxRunningFetchers() {
+    if (concurrencyController == null) {
+      return numFetchers;
+    }
+    float memoryUsage = 0;
+    if (inputManager instanceof SimpleFetchedInputAllocator) {
+      memoryUsage = ((SimpleFetchedInputAllocator) inputManager).getMemoryUsage();
+    }
+    concurrencyController.update(System.currentTimeMillis(), runningFetchers.size(),
+        memoryUsage);
+    return concurrencyController.getTargetFetchers();
+  }
+
+  /**
+   * Lets the concurrency controller track how busy the fetchers are. Needs to
+   * be called with the lock held.
+   */
+  private void runningFetchersChanged() {
+    if (concurrencyController != null) {
+      concurrencyController.sampleRunningFetchers(System.currentTimeMillis(),
+          runningFetchers.size());
+    }
+  }
+
   @VisibleForTesting
   Fetcher constructFetcherForHost(InputHost inputHost, Configuration conf) {
 
@@ -449,6 +632,9 @@ public class ShuffleManager implements FetcherCallback {
       fetcherBuilder.setCompressionParameters(codec);
     }
     fetcherBuilder.setIFileParams(ifileReadAhead, ifileReadAheadLength);
+    if (sharedFetchRegistry != null) {
+      fetcherBuilder.setSharedFetchRegistry(sharedFetchRegistry);
+    }
 
     // Remove obsolete inputs from the list being given to the fetcher. Also
     // remove from the obsolete list.
@@ -540,6 +726,25 @@ public class ShuffleManager implements FetcherCallback {
       }
     }
 
+    // Spills of pipelined outputs are not pushed
+    if (mergedPartitionFetcher != null && !srcAttemptIdentifier.canRetrieveInputInChunks()) {
+      lock.lock();
+      try {
+        for (int i = 0; i < srcAttemptIdentifier.getInputIdentifierCount(); i++) {
+          mergedPartitionFetcher.addInput(srcPhysicalIndex + i, srcAttemptIdentifier.expand(i));
+        }
+        mergedFetchInputs.add(new PushedInput(host, srcAttemptIdentifier, srcPhysicalIndex));
+        scheduleMergedFetch();
+      } finally {
+        lock.unlock();
+      }
+      return;
+    }
+    addPendingInput(host, srcAttemptIdentifier, srcPhysicalIndex);
+  }
+
+  private void addPendingInput(InputHost host,
+      CompositeInputAttemptIdentifier srcAttemptIdentifier, int srcPhysicalIndex) {
     host.addKnownInput(srcPhysicalIndex, srcAttemptIdentifier.getInputIdentifierCount(), srcAttemptIdentifier);
     lock.lock();
     try {
@@ -591,6 +796,9 @@ public class ShuffleManager implements FetcherCallback {
 
   void obsoleteKnownInput(InputAttemptIdentifier srcAttemptIdentifier) {
     obsoletedInputs.add(srcAttemptIdentifier);
+    if (mergedPartitionFetcher != null) {
+      mergedPartitionFetcher.removeInput(srcAttemptIdentifier);
+    }
     // TODO NEWTEZ Maybe inform the fetcher about this. For now, this is used during the initial fetch list construction.
   }
 
@@ -649,6 +857,10 @@ public class ShuffleManager implements FetcherCallback {
       throws IOException {
     int inputIdentifier = srcAttemptIdentifier.getInputIdentifier();
 
+    if (concurrencyController != null) {
+      concurrencyController.fetchSucceeded(fetchedBytes);
+    }
+
     // Count irrespective of whether this is a copy of an already fetched input
     lock.lock();
     try {
@@ -729,6 +941,9 @@ public class ShuffleManager implements FetcherCallback {
           completedInputs.add(fetchedInput);
         }
         LOG.info("All inputs fetched for input vertex : " + inputContext.getSourceVertexName());
+        if (inputManager instanceof SimpleFetchedInputAllocator) {
+          ((SimpleFetchedInputAllocator) inputManager).closeBufferPool();
+        }
       }
     } finally {
       lock.unlock();
@@ -800,6 +1015,9 @@ public class ShuffleManager implements FetcherCallback {
         + "InputIdentifier: " + srcAttemptIdentifier + ", connectFailed: "
         + connectFailed);
     failedShufflesCounter.increment(1);
+    if (concurrencyController != null) {
+      concurrencyController.fetchFailed();
+    }
     inputContext.notifyProgress();
     if (srcAttemptIdentifier == null) {
       reportFatalError(null, "Received fetchFailure for an unknown src (null)");
@@ -852,6 +1070,12 @@ public class ShuffleManager implements FetcherCallback {
       if (this.fetcherExecutor != null && !this.fetcherExecutor.isShutdown()) {
         this.fetcherExecutor.shutdownNow(); // Interrupts all running fetchers.
       }
+      if (this.mergedFetchExecutor != null && !this.mergedFetchExecutor.isShutdown()) {
+        this.mergedFetchExecutor.shutdownNow();
+      }
+      if (inputManager instanceof SimpleFetchedInputAllocator) {
+        ((SimpleFetchedInputAllocator) inputManager).closeBufferPool();
+      }
     }
   }
 
@@ -989,6 +1213,33 @@ public class ShuffleManager implements FetcherCallback {
     
   }
   
+  private class MergedFetchFutureCallback implements FutureCallback<Void> {
+
+    @Override
+    public void onSuccess(Void result) {
+    }
+
+    @Override
+    public void onFailure(Throwable t) {
+      if (isShutdown.get()) {
+        if (LOG.isDebugEnabled()) {
+          LOG.debug(srcNameTrimmed + ": " + "Already shutdown. Ignoring error from merged fetch: "
+              + t);
+        }
+      } else {
+        LOG.error(srcNameTrimmed + ": " + "Merged fetch failed with error: ", t);
+        shuffleError = t;
+        inputContext.reportFailure(TaskFailureType.NON_FATAL, t, "Merged fetch failed");
+        lock.lock();
+        try {
+          wakeLoop.signal();
+        } finally {
+          lock.unlock();
+        }
+      }
+    }
+  }
+
   private class FetchFutureCallback implements FutureCallback<FetchResult> {
 
     private final Fetcher fetcher;
@@ -1001,6 +1252,7 @@ public class ShuffleManager implements FetcherCallback {
       lock.lock();
       try {
         runningFetchers.remove(fetcher);
+        runningFetchersChanged();
         wakeLoop.signal();
       } finally {
         lock.unlock();
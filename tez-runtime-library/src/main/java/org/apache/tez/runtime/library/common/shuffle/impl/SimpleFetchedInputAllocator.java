@@ -26,6 +26,9 @@ import org.apache.hadoop.classification.InterfaceAudience.Private;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.LocalDirAllocator;
 import org.apache.tez.common.TezRuntimeFrameworkConfigs;
+import org.apache.tez.common.counters.TaskCounter;
+import org.apache.tez.common.counters.TezCounter;
+import org.apache.tez.common.counters.TezCounters;
 import org.apache.tez.dag.api.TezUncheckedException;
 import org.apache.tez.runtime.library.api.TezRuntimeConfiguration;
 import org.apache.tez.runtime.library.common.Constants;
@@ -37,6 +40,7 @@ import org.apache.tez.runtime.library.common.shuffle.FetchedInput.Type;
 import org.apache.tez.runtime.library.common.shuffle.FetchedInputAllocator;
 import org.apache.tez.runtime.library.common.shuffle.FetchedInputCallback;
 import org.apache.tez.runtime.library.common.shuffle.MemoryFetchedInput;
+import org.apache.tez.runtime.library.common.shuffle.ShuffleBufferPool;
 
 
 /**
@@ -65,11 +69,25 @@ public class SimpleFetchedInputAllocator implements FetchedInputAllocator,
   
   private volatile long usedMemory = 0;
 
+  // Pooled buffers for MemoryFetchedInputs, null if disabled
+  private final ShuffleBufferPool bufferPool;
+  private final TezCounter memToDiskFallbacks;
+
   public SimpleFetchedInputAllocator(String srcNameTrimmed,
                                      String uniqueIdentifier, int dagID,
                                      Configuration conf,
                                      long maxTaskAvailableMemory,
                                      long memoryAvailable) {
+    this(srcNameTrimmed, uniqueIdentifier, dagID, conf, maxTaskAvailableMemory,
+        memoryAvailable, null);
+  }
+
+  public SimpleFetchedInputAllocator(String srcNameTrimmed,
+                                     String uniqueIdentifier, int dagID,
+                                     Configuration conf,
+                                     long maxTaskAvailableMemory,
+                                     long memoryAvailable,
+                                     TezCounters counters) {
     this.srcNameTrimmed = srcNameTrimmed;
     this.conf = conf;    
     this.maxAvailableTaskMemory = maxTaskAvailableMemory;
@@ -112,10 +130,17 @@ public class SimpleFetchedInputAllocator implements FetchedInputAllocator,
     this.maxSingleShuffleLimit = (long) Math.min((memoryLimit * singleShuffleMemoryLimitPercent),
         Integer.MAX_VALUE);
 
+    this.bufferPool = ShuffleBufferPool.create(conf, memoryLimit,
+        counters == null ? null : counters.findCounter(TaskCounter.SHUFFLE_BUFFER_POOL_HITS),
+        counters == null ? null : counters.findCounter(TaskCounter.SHUFFLE_BUFFER_POOL_MISSES));
+    this.memToDiskFallbacks = counters == null ? null
+        : counters.findCounter(TaskCounter.SHUFFLE_MEM_TO_DISK_FALLBACKS);
+
     LOG.info(srcNameTrimmed + ": "
         + "RequestedMemory=" + memReq
         + ", AssignedMemory=" + this.memoryLimit
         + ", maxSingleShuffleLimit=" + this.maxSingleShuffleLimit
+        + ", bufferPool=" + (bufferPool != null)
     );
 
   }
@@ -139,20 +164,51 @@ public class SimpleFetchedInputAllocator implements FetchedInputAllocator,
   public synchronized FetchedInput allocate(long actualSize, long compressedSize,
       InputAttemptIdentifier inputAttemptIdentifier) throws IOException {
     if (actualSize > maxSingleShuffleLimit
-        || this.usedMemory + actualSize > this.memoryLimit) {
+        || this.usedMemory + getReservedSize(actualSize) > this.memoryLimit) {
+      if (memToDiskFallbacks != null) {
+        memToDiskFallbacks.increment(1);
+      }
       return new DiskFetchedInput(compressedSize,
           inputAttemptIdentifier, this, conf, localDirAllocator,
           fileNameAllocator);
     } else {
-      this.usedMemory += actualSize;
+      this.usedMemory += getReservedSize(actualSize);
       if (LOG.isDebugEnabled()) {
         LOG.info(srcNameTrimmed + ": " + "Used memory after allocating " + actualSize + " : " +
             usedMemory);
       }
+      if (bufferPool != null) {
+        byte[] buffer = bufferPool.allocate((int) actualSize);
+        // Idle pooled buffers share the memory limit with the inputs
+        long excess = usedMemory + bufferPool.getIdleBytes() - memoryLimit;
+        if (excess > 0) {
+          bufferPool.trim(excess);
+        }
+        return new MemoryFetchedInput(buffer, (int) actualSize, inputAttemptIdentifier, this);
+      }
       return new MemoryFetchedInput(actualSize, inputAttemptIdentifier, this);
     }
   }
 
+  /**
+   * @return the memory accounted for an in-memory input of the given size,
+   *         which includes the rounding of pooled buffers
+   */
+  private long getReservedSize(long size) {
+    return (bufferPool == null) ? size : bufferPool.getAllocationSize((int) size);
+  }
+
+  /**
+   * Called once no more inputs are fetched, i.e. all inputs have been fetched
+   * or the shuffle is shut down. The idle pooled buffers are dropped, and the
+   * buffers of the fetched inputs are not pooled anymore once they are consumed.
+   */
+  public void closeBufferPool() {
+    if (bufferPool != null) {
+      bufferPool.close();
+    }
+  }
+
   @Override
   public synchronized FetchedInput allocateType(Type type, long actualSize,
       long compressedSize, InputAttemptIdentifier inputAttemptIdentifier)
@@ -197,7 +253,10 @@ public class SimpleFetchedInputAllocator implements FetchedInputAllocator,
     case DISK:
       break;
     case MEMORY:
-      unreserve(((MemoryFetchedInput) fetchedInput).getSize());
+      unreserve(getReservedSize(((MemoryFetchedInput) fetchedInput).getSize()));
+      if (bufferPool != null) {
+        bufferPool.release(((MemoryFetchedInput) fetchedInput).getBytes());
+      }
       break;
     default:
       throw new TezUncheckedException("InputType: " + fetchedInput.getType()
@@ -205,6 +264,13 @@ public class SimpleFetchedInputAllocator implements FetchedInputAllocator,
     }
   }
 
+  /**
+   * @return the fraction of the shuffle memory in use
+   */
+  public synchronized float getMemoryUsage() {
+    return memoryLimit <= 0 ? 0 : (float) usedMemory / memoryLimit;
+  }
+
   private synchronized void unreserve(long size) {
     this.usedMemory -= size;
     if (LOG.isDebugEnabled()) {
@@ -37,4 +37,9 @@ public interface FetchedInputAllocatorOrderedGrouped {
   void unreserve(long bytes);
 
   void releaseCommittedMemory(long bytes);
+
+  /**
+   * Takes back the buffer of an in-memory map output which is not used anymore.
+   */
+  void releaseBuffer(byte[] buffer);
 }
@@ -43,6 +43,7 @@ import org.apache.hadoop.io.compress.CompressionCodec;
 import org.apache.tez.common.TezRuntimeFrameworkConfigs;
 import org.apache.tez.common.counters.TezCounter;
 import org.apache.tez.common.security.JobTokenSecretManager;
+import org.apache.tez.runtime.library.api.TezRuntimeConfiguration;
 import org.apache.tez.runtime.library.common.Constants;
 import org.apache.tez.runtime.library.common.InputAttemptIdentifier;
 import org.apache.tez.runtime.library.common.shuffle.orderedgrouped.MapOutput.Type;
@@ -102,6 +103,7 @@ class FetcherOrderedGrouped extends CallableWithNdc<Void> {
   volatile BaseHttpConnection httpConnection;
   private final boolean asyncHttp;
   private final boolean compositeFetch;
+  private final boolean compactRangeHeader;
 
 
   // Initiative value is 0, which means it hasn't retried yet.
@@ -166,6 +168,9 @@ class FetcherOrderedGrouped extends CallableWithNdc<Void> {
     this.sslShuffle = sslShuffle;
     this.verifyDiskChecksum = verifyDiskChecksum;
     this.compositeFetch = compositeFetch;
+    this.compactRangeHeader = compositeFetch && conf.getBoolean(
+        TezRuntimeConfiguration.TEZ_RUNTIME_SHUFFLE_FETCH_COMPACT_RANGE_HEADER,
+        TezRuntimeConfiguration.TEZ_RUNTIME_SHUFFLE_FETCH_COMPACT_RANGE_HEADER_DEFAULT);
 
     this.logIdentifier = "fetcher [" + srcNameTrimmed + "] #" + id;
   }
@@ -336,7 +341,8 @@ class FetcherOrderedGrouped extends CallableWithNdc<Void> {
     boolean connectSucceeded = false;
     try {
       StringBuilder baseURI = ShuffleUtils.constructBaseURIForShuffleHandler(host.getHost(),
-          host.getPort(), host.getPartitionId(), host.getPartitionCount(), applicationId, dagId, sslShuffle);
+          host.getPort(), host.getPartitionId(), host.getPartitionCount(), applicationId, dagId, sslShuffle,
+          compactRangeHeader);
       URL url = ShuffleUtils.constructInputURL(baseURI.toString(), attempts, httpConnectionParams.isKeepAlive());
       httpConnection = ShuffleUtils.getHttpConnection(asyncHttp, url, httpConnectionParams,
           logIdentifier, jobTokenSecretManager);
@@ -431,18 +437,32 @@ class FetcherOrderedGrouped extends CallableWithNdc<Void> {
       long startTime = System.currentTimeMillis();
       int partitionCount = 1;
 
+      ShuffleRangeHeader rangeHeader = null;
       if (this.compositeFetch) {
         // Multiple partitions are fetched
-        partitionCount = WritableUtils.readVInt(input);
+        int count = WritableUtils.readVInt(input);
+        partitionCount = ShuffleRangeHeader.getPartitionCount(count);
+        if (ShuffleRangeHeader.isCompact(count)) {
+          rangeHeader = new ShuffleRangeHeader(partitionCount);
+        }
       }
       ArrayList<MapOutputStat> mapOutputStats = new ArrayList<>(partitionCount);
       for (int mapOutputIndex = 0; mapOutputIndex < partitionCount; mapOutputIndex++) {
         MapOutputStat mapOutputStat = null;
         try {
           //Read the shuffle header
-          ShuffleHeader header = new ShuffleHeader();
-          // TODO Review: Multiple header reads in case of status WAIT ?
-          header.readFields(input);
+          ShuffleHeader header;
+          if (rangeHeader != null) {
+            // All the headers are read from the table at once
+            if (mapOutputIndex == 0) {
+              rangeHeader.readFields(input);
+            }
+            header = rangeHeader.getHeader(mapOutputIndex);
+          } else {
+            header = new ShuffleHeader();
+            // TODO Review: Multiple header reads in case of status WAIT ?
+            header.readFields(input);
+          }
           if (!header.mapId.startsWith(InputAttemptIdentifier.PATH_PREFIX)) {
             if (!stopped) {
               badIdErrs.increment(1);
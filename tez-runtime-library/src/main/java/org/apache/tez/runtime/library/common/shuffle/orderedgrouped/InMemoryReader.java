@@ -137,7 +137,11 @@ public class InMemoryReader extends Reader {
   ByteArrayDataInput memDataIn;
   private int start;
   private int length;
+  // Location of the last new key, either in the buffer or, for front coded
+  // keys, in keyBytes
+  private byte[] originalKeyData;
   private int originalKeyPos;
+  private byte[] frontCodedKeyBytes = new byte[0];
 
   public InMemoryReader(MergeManager merger,
       InputAttemptIdentifier taskAttemptId, byte[] data, int start,
@@ -195,13 +199,6 @@ public class InMemoryReader extends Reader {
     }
   }
 
-  protected void readKeyValueLength(DataInput dIn) throws IOException {
-    super.readKeyValueLength(dIn);
-    if (currentKeyLength != IFile.RLE_MARKER) {
-      originalKeyPos = memDataIn.getPosition();
-    }
-  }
-
   public KeyState readRawKey(DataInputBuffer key) throws IOException {
     try {
       if (!positionToNextRecord(memDataIn)) {
@@ -212,18 +209,42 @@ public class InMemoryReader extends Reader {
       byte[] data = memDataIn.getData();
       if (currentKeyLength == IFile.RLE_MARKER) {
         // get key length from original key
-        key.reset(data, originalKeyPos, originalKeyLength);
+        key.reset(originalKeyData, originalKeyPos, originalKeyLength);
         return KeyState.SAME_KEY;
       }
-      key.reset(data, pos, currentKeyLength);
+      int prefixLength = currentKeyPrefixLength;
+      int suffixLength = currentKeyLength - prefixLength;
+      if (suffixLength < 0 || suffixLength > memDataIn.available()) {
+        throw new IOException("Rec# " + recNo + ": key of length " + currentKeyLength
+            + " with a prefix of " + prefixLength + " bytes exceeds the remaining "
+            + memDataIn.available() + " bytes");
+      }
+      if (prefixLength > 0) {
+        // Front coded key, rebuild it from the previous key and the suffix
+        byte[] rebuiltKey = frontCodedKeyBytes;
+        if (rebuiltKey.length < currentKeyLength) {
+          rebuiltKey = new byte[currentKeyLength << 1];
+        }
+        if (originalKeyData != rebuiltKey || originalKeyPos != 0) {
+          System.arraycopy(originalKeyData, originalKeyPos, rebuiltKey, 0, prefixLength);
+        }
+        System.arraycopy(data, pos, rebuiltKey, prefixLength, suffixLength);
+        frontCodedKeyBytes = rebuiltKey;
+        originalKeyData = rebuiltKey;
+        originalKeyPos = 0;
+      } else {
+        originalKeyData = data;
+        originalKeyPos = pos;
+      }
+      key.reset(originalKeyData, originalKeyPos, currentKeyLength);
       // Position for the next value
-      long skipped = memDataIn.skip(currentKeyLength);
-      if (skipped != currentKeyLength) {
+      long skipped = memDataIn.skip(suffixLength);
+      if (skipped != suffixLength) {
         throw new IOException("Rec# " + recNo +
             ": Failed to skip past key of length: " +
             currentKeyLength);
       }
-      bytesRead += currentKeyLength;
+      bytesRead += suffixLength;
       return KeyState.NEW_KEY;
     } catch (IOException ioe) {
       dumpOnError();
@@ -254,11 +275,12 @@ public class InMemoryReader extends Reader {
   }
 
   public void close() {
-    // Release
-    buffer = null;
     // Inform the MergeManager
     if (merger != null) {
+      merger.releaseBuffer(buffer);
       merger.releaseCommittedMemory(bufferSize);
     }
+    // Release
+    buffer = null;
   }
 }
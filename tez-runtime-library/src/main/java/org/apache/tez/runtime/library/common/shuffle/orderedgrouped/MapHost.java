@@ -105,7 +105,7 @@ class MapHost {
     return partitionCount;
   }
 
-  public State getState() {
+  public synchronized State getState() {
     return state;
   }
 
@@ -88,7 +88,19 @@ abstract class MapOutput {
   public static MapOutput createMemoryMapOutput(InputAttemptIdentifier attemptIdentifier,
                                                 FetchedInputAllocatorOrderedGrouped callback, int size,
                                                 boolean primaryMapOutput)  {
-    return new InMemoryMapOutput(attemptIdentifier, callback, size, primaryMapOutput);
+    return new InMemoryMapOutput(attemptIdentifier, callback, new byte[size], size,
+        primaryMapOutput);
+  }
+
+  /**
+   * Creates an in-memory map output stored in the first size bytes of the
+   * given buffer.
+   */
+  public static MapOutput createMemoryMapOutput(InputAttemptIdentifier attemptIdentifier,
+                                                FetchedInputAllocatorOrderedGrouped callback,
+                                                byte[] buffer, int size,
+                                                boolean primaryMapOutput)  {
+    return new InMemoryMapOutput(attemptIdentifier, callback, buffer, size, primaryMapOutput);
   }
 
   public static MapOutput createWaitMapOutput(InputAttemptIdentifier attemptIdentifier) {
@@ -250,11 +262,13 @@ abstract class MapOutput {
 
   private static class InMemoryMapOutput extends MapOutput {
     private byte[] byteArray;
+    private final int size;
     private InMemoryMapOutput(InputAttemptIdentifier attemptIdentifier,
                               FetchedInputAllocatorOrderedGrouped callback,
-                              long size, boolean primaryMapOutput) {
+                              byte[] byteArray, int size, boolean primaryMapOutput) {
       super(attemptIdentifier, callback, primaryMapOutput);
-      this.byteArray = new byte[(int)size];
+      this.byteArray = byteArray;
+      this.size = size;
     }
 
     @Override
@@ -264,7 +278,7 @@ abstract class MapOutput {
 
     @Override
     public long getSize() {
-      return byteArray.length;
+      return size;
     }
 
     @Override
@@ -274,7 +288,8 @@ abstract class MapOutput {
 
     @Override
     public void abort() {
-      callback.unreserve(byteArray.length);
+      callback.unreserve(size);
+      callback.releaseBuffer(byteArray);
     }
 
     @Override
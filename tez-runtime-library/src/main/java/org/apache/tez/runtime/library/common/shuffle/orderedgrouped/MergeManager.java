@@ -47,8 +47,10 @@ import org.apache.tez.runtime.library.common.ConfigUtils;
 import org.apache.tez.runtime.library.common.Constants;
 import org.apache.tez.runtime.library.common.InputAttemptIdentifier;
 import org.apache.tez.runtime.library.common.combine.Combiner;
+import org.apache.tez.runtime.library.common.shuffle.ShuffleBufferPool;
 import org.apache.tez.runtime.library.common.sort.impl.IFile;
 import org.apache.tez.runtime.library.common.sort.impl.IFile.Writer;
+import org.apache.tez.runtime.library.common.sort.impl.TezMergePlanner;
 import org.apache.tez.runtime.library.common.sort.impl.TezMerger;
 import org.apache.tez.runtime.library.common.sort.impl.TezMerger.DiskSegment;
 import org.apache.tez.runtime.library.common.sort.impl.TezMerger.Segment;
@@ -115,6 +117,9 @@ public class MergeManager implements FetchedInputAllocatorOrderedGrouped {
   final long postMergeMemLimit;
   private long usedMemory;
   private long commitMemory;
+
+  // Pooled buffers for in-memory map outputs, null if disabled
+  private final ShuffleBufferPool bufferPool;
   private final int ioSortFactor;
   private final long maxSingleShuffleLimit;
 
@@ -139,6 +144,7 @@ public class MergeManager implements FetchedInputAllocatorOrderedGrouped {
   private final TezCounter numDiskToDiskMerges;
   private final TezCounter additionalBytesWritten;
   private final TezCounter additionalBytesRead;
+  private final TezCounter memToDiskFallbacks;
   
   private final CompressionCodec codec;
   
@@ -196,6 +202,8 @@ public class MergeManager implements FetchedInputAllocatorOrderedGrouped {
     this.numMemToDiskMerges = inputContext.getCounters().findCounter(TaskCounter.NUM_MEM_TO_DISK_MERGES);
     this.additionalBytesWritten = inputContext.getCounters().findCounter(TaskCounter.ADDITIONAL_SPILLS_BYTES_WRITTEN);
     this.additionalBytesRead = inputContext.getCounters().findCounter(TaskCounter.ADDITIONAL_SPILLS_BYTES_READ);
+    this.memToDiskFallbacks =
+        inputContext.getCounters().findCounter(TaskCounter.SHUFFLE_MEM_TO_DISK_FALLBACKS);
 
     this.cleanup = conf.getBoolean(TezRuntimeConfiguration.TEZ_RUNTIME_CLEANUP_FILES_ON_INTERRUPT,
         TezRuntimeConfiguration.TEZ_RUNTIME_CLEANUP_FILES_ON_INTERRUPT_DEFAULT);
@@ -255,6 +263,10 @@ public class MergeManager implements FetchedInputAllocatorOrderedGrouped {
               + this.memoryLimit + ", postMergeMem: " + this.postMergeMemLimit);
     }
 
+    this.bufferPool = ShuffleBufferPool.create(conf, memoryLimit,
+        inputContext.getCounters().findCounter(TaskCounter.SHUFFLE_BUFFER_POOL_HITS),
+        inputContext.getCounters().findCounter(TaskCounter.SHUFFLE_BUFFER_POOL_MISSES));
+
     this.ioSortFactor = 
         conf.getInt(
             TezRuntimeConfiguration.TEZ_RUNTIME_IO_SORT_FACTOR, 
@@ -411,6 +423,7 @@ public class MergeManager implements FetchedInputAllocatorOrderedGrouped {
             " is greater than maxSingleShuffleLimit (" +
             maxSingleShuffleLimit + ")");
       }
+      memToDiskFallbacks.increment(1);
       return MapOutput.createDiskMapOutput(srcAttemptIdentifier, this, compressedLength, conf,
           fetcher, true, mapOutputFile);
     }
@@ -454,14 +467,39 @@ public class MergeManager implements FetchedInputAllocatorOrderedGrouped {
   private synchronized MapOutput unconditionalReserve(
       InputAttemptIdentifier srcAttemptIdentifier, long requestedSize, boolean primaryMapOutput) throws
       IOException {
-    usedMemory += requestedSize;
+    usedMemory += getReservedSize(requestedSize);
+    if (bufferPool != null) {
+      byte[] buffer = bufferPool.allocate((int) requestedSize);
+      // Idle pooled buffers share the memory limit with the map outputs
+      long excess = usedMemory + bufferPool.getIdleBytes() - memoryLimit;
+      if (excess > 0) {
+        bufferPool.trim(excess);
+      }
+      return MapOutput.createMemoryMapOutput(srcAttemptIdentifier, this, buffer,
+          (int) requestedSize, primaryMapOutput);
+    }
     return MapOutput.createMemoryMapOutput(srcAttemptIdentifier, this, (int)requestedSize,
         primaryMapOutput);
   }
 
+  /**
+   * @return the memory accounted for an in-memory output of the given size,
+   *         which includes the rounding of pooled buffers
+   */
+  private long getReservedSize(long size) {
+    return (bufferPool == null) ? size : bufferPool.getAllocationSize((int) size);
+  }
+
+  @Override
+  public void releaseBuffer(byte[] buffer) {
+    if (bufferPool != null) {
+      bufferPool.release(buffer);
+    }
+  }
+
   @Override
   public synchronized void unreserve(long size) {
-    usedMemory -= size;
+    usedMemory -= getReservedSize(size);
     if (LOG.isDebugEnabled()) {
       LOG.debug("Notifying unreserve : size=" + size + ", commitMemory=" + commitMemory + ", usedMemory=" + usedMemory
           + ", mergeThreshold=" + mergeThreshold);
@@ -471,7 +509,7 @@ public class MergeManager implements FetchedInputAllocatorOrderedGrouped {
 
   @Override
   public synchronized void releaseCommittedMemory(long size) {
-    commitMemory -= size;
+    commitMemory -= getReservedSize(size);
     unreserve(size);
   }
 
@@ -481,7 +519,7 @@ public class MergeManager implements FetchedInputAllocatorOrderedGrouped {
     inMemoryMapOutputs.add(mapOutput);
     trackAndLogCloseInMemoryFile(mapOutput);
 
-    commitMemory+= mapOutput.getSize();
+    commitMemory += getReservedSize(mapOutput.getSize());
 
     if (commitMemory >= mergeThreshold) {
       startMemToDiskMerge();
@@ -536,11 +574,30 @@ public class MergeManager implements FetchedInputAllocatorOrderedGrouped {
     }
   }
 
+  /**
+   * Merges the outputs fetched so far while the last inputs are fetched. The
+   * in-memory outputs which the final merge would write to disk are merged to
+   * disk, and the on-disk outputs are merged if the final merge would need an
+   * intermediate merge for them.
+   */
+  public synchronized void startTailMerge() {
+    if (commitMemory > postMergeMemLimit) {
+      startMemToDiskMerge();
+    }
+    synchronized (onDiskMerger) {
+      if (!onDiskMerger.isInProgress() && onDiskMapOutputs.size() >= ioSortFactor) {
+        LOG.info(inputContext.getSourceVertexName() + ": " + "Starting onDiskMerger's merge of "
+            + onDiskMapOutputs.size() + " outputs before the final merge");
+        onDiskMerger.startMerge(onDiskMapOutputs);
+      }
+    }
+  }
+
   private void startMemToDiskMerge() {
     synchronized (inMemoryMerger) {
       if (!inMemoryMerger.isInProgress()) {
         LOG.info(inputContext.getSourceVertexName() + ": " + "Starting inMemoryMerger's merge since commitMemory=" +
-            commitMemory + " > mergeThreshold=" + mergeThreshold +
+            commitMemory + ", mergeThreshold=" + mergeThreshold +
             ". Current usedMemory=" + usedMemory);
         inMemoryMapOutputs.addAll(inMemoryMergedMapOutputs);
         inMemoryMergedMapOutputs.clear();
@@ -559,7 +616,7 @@ public class MergeManager implements FetchedInputAllocatorOrderedGrouped {
           inMemoryMergedMapOutputs.size());
     }
 
-    commitMemory += mapOutput.getSize();
+    commitMemory += getReservedSize(mapOutput.getSize());
 
     if (commitMemory >= mergeThreshold) {
       startMemToDiskMerge();
@@ -632,6 +689,10 @@ public class MergeManager implements FetchedInputAllocatorOrderedGrouped {
       }
       inMemoryMerger.close();
       onDiskMerger.close();
+      if (bufferPool != null) {
+        // Nothing is shuffled to memory anymore
+        bufferPool.close();
+      }
 
       List<MapOutput> memory =
           new ArrayList<MapOutput>(inMemoryMergedMapOutputs);
@@ -752,7 +813,7 @@ public class MergeManager implements FetchedInputAllocatorOrderedGrouped {
           } else {
             mergeOutputSize += mo.getSize();
             IFile.Reader reader = new InMemoryReader(MergeManager.this,
-                mo.getAttemptIdentifier(), mo.getMemory(), 0, mo.getMemory().length);
+                mo.getAttemptIdentifier(), mo.getMemory(), 0, (int) mo.getSize());
             inMemorySegments.add(new Segment(reader,
                 (mo.isPrimaryMapOutput() ? mergedMapOutputsCounter : null)));
             lastAddedMapOutput = mo;
@@ -1029,6 +1090,10 @@ public class MergeManager implements FetchedInputAllocatorOrderedGrouped {
             (RawComparator)ConfigUtils.getIntermediateInputKeyComparator(conf),
             progressable, true, spilledRecordsCounter, null,
             mergedMapOutputsCounter, null);
+        TezMergePlanner.MergePlan mergePlan = TezMerger.getMergePlan(iter);
+        if (mergePlan != null) {
+          mergePlan.updateCounters(inputContext.getCounters());
+        }
 
         // TODO Maybe differentiate between data written because of Merges and
         // the finalMerge (i.e. final mem available may be different from
@@ -1082,7 +1147,7 @@ public class MergeManager implements FetchedInputAllocatorOrderedGrouped {
     while((fullSize > leaveBytes) && !Thread.currentThread().isInterrupted()) {
       MapOutput mo = inMemoryMapOutputs.get(inMemoryMapOutputsOffset++);
       byte[] data = mo.getMemory();
-      long size = data.length;
+      long size = mo.getSize();
       totalSize += size;
       fullSize -= size;
       IFile.Reader reader = new InMemoryReader(MergeManager.this, 
@@ -1292,6 +1357,10 @@ public class MergeManager implements FetchedInputAllocatorOrderedGrouped {
           job, fs, keyClass, valueClass, codec, diskSegments,
           ioSortFactor, numInMemSegments, tmpDir, comparator,
           progressable, false, spilledRecordsCounter, null, additionalBytesRead, null);
+      TezMergePlanner.MergePlan mergePlan = TezMerger.getMergePlan(diskMerge);
+      if (mergePlan != null) {
+        mergePlan.updateCounters(inputContext.getCounters());
+      }
       diskSegments.clear();
       if (0 == finalSegments.size()) {
         return diskMerge;
@@ -0,0 +1,159 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.runtime.library.common.shuffle.orderedgrouped;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import org.apache.hadoop.classification.InterfaceAudience;
+import org.apache.hadoop.classification.InterfaceStability;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableUtils;
+
+/**
+ * Compact header of a contiguous range of partitions of one map output, sent
+ * instead of one {@link ShuffleHeader} per partition when the fetcher asks for
+ * it with the {@link #HTTP_PARAM_NAME} request parameter.
+ *
+ * The map id and first partition are written once, followed by a table of the
+ * compressed and uncompressed length of every partition in the range. The
+ * data of all the partitions follows the table as a single region.
+ *
+ * On the wire the table is preceded by the negated partition count, which
+ * tells it apart from the positive count of the per partition headers sent by
+ * shuffle handlers that do not know about the compact header.
+ */
+@InterfaceAudience.Private
+@InterfaceStability.Unstable
+public class ShuffleRangeHeader implements Writable {
+
+  /** Request parameter asking the shuffle handler for a compact range header */
+  public static final String HTTP_PARAM_NAME = "compactHeader";
+
+  /**
+   * The longest possible length of task attempt id that we will accept.
+   */
+  private static final int MAX_ID_LENGTH = 1000;
+
+  private String mapId;
+  private int firstPartition;
+  private long[] compressedLengths;
+  private long[] uncompressedLengths;
+
+  /**
+   * Creates a header to read the table of partitionCount partitions into.
+   */
+  public ShuffleRangeHeader(int partitionCount) {
+    this.compressedLengths = new long[partitionCount];
+    this.uncompressedLengths = new long[partitionCount];
+  }
+
+  public ShuffleRangeHeader(String mapId, int firstPartition, long[] compressedLengths,
+      long[] uncompressedLengths) {
+    if (compressedLengths.length != uncompressedLengths.length) {
+      throw new IllegalArgumentException("Mismatched number of lengths: "
+          + compressedLengths.length + " compressed, "
+          + uncompressedLengths.length + " uncompressed");
+    }
+    this.mapId = mapId;
+    this.firstPartition = firstPartition;
+    this.compressedLengths = compressedLengths;
+    this.uncompressedLengths = uncompressedLengths;
+  }
+
+  public String getMapId() {
+    return mapId;
+  }
+
+  public int getFirstPartition() {
+    return firstPartition;
+  }
+
+  public int getPartitionCount() {
+    return compressedLengths.length;
+  }
+
+  /**
+   * @return the header of the index-th partition of the range
+   */
+  public ShuffleHeader getHeader(int index) {
+    return new ShuffleHeader(mapId, compressedLengths[index], uncompressedLengths[index],
+        firstPartition + index);
+  }
+
+  /**
+   * Writes the negated partition count marking the start of a compact header.
+   */
+  public void writeCount(DataOutput out) throws IOException {
+    WritableUtils.writeVInt(out, -getPartitionCount());
+  }
+
+  /**
+   * @param count the partition count read from the start of a response
+   * @return whether the count is followed by a compact header
+   */
+  public static boolean isCompact(int count) {
+    return count < 0;
+  }
+
+  /**
+   * @return the number of partitions of a count read from the start of a response
+   */
+  public static int getPartitionCount(int count) {
+    return isCompact(count) ? -count : count;
+  }
+
+  @Override
+  public void readFields(DataInput in) throws IOException {
+    mapId = WritableUtils.readStringSafely(in, MAX_ID_LENGTH);
+    firstPartition = WritableUtils.readVInt(in);
+    for (int i = 0; i < compressedLengths.length; i++) {
+      compressedLengths[i] = WritableUtils.readVLong(in);
+      uncompressedLengths[i] = WritableUtils.readVLong(in);
+    }
+  }
+
+  /**
+   * @return the number of bytes written by {@link #writeCount(DataOutput)}
+   *         and {@link #write(DataOutput)}
+   */
+  public int writeLength() throws IOException {
+    int mapIdLength = Text.encode(mapId).limit();
+    int length = WritableUtils.getVIntSize(-getPartitionCount());
+    length += WritableUtils.getVIntSize(mapIdLength) + mapIdLength;
+    length += WritableUtils.getVIntSize(firstPartition);
+    for (int i = 0; i < compressedLengths.length; i++) {
+      length += WritableUtils.getVIntSize(compressedLengths[i]);
+      length += WritableUtils.getVIntSize(uncompressedLengths[i]);
+    }
+    return length;
+  }
+
+  @Override
+  public void write(DataOutput out) throws IOException {
+    Text.writeString(out, mapId);
+    WritableUtils.writeVInt(out, firstPartition);
+    for (int i = 0; i < compressedLengths.length; i++) {
+      WritableUtils.writeVLong(out, compressedLengths[i]);
+      WritableUtils.writeVLong(out, uncompressedLengths[i]);
+    }
+  }
+}
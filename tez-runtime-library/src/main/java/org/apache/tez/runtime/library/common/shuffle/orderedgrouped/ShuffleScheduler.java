@@ -24,7 +24,6 @@ import java.text.DecimalFormat;
 import java.util.ArrayList;
 import java.util.BitSet;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
@@ -41,13 +40,14 @@ import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.LinkedListMultimap;
 import com.google.common.collect.ListMultimap;
 import com.google.common.collect.Maps;
-import com.google.common.collect.Sets;
 import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
@@ -149,11 +149,15 @@ class ShuffleScheduler {
   static final long INITIAL_PENALTY = 2000L; // 2 seconds
   private static final float PENALTY_GROWTH_RATE = 1.3f;
 
+  // Number of locks the per input bookkeeping is striped over
+  private static final int NUM_INPUT_LOCKS = 64;
+
   private final BitSet finishedMaps;
   private final int numInputs;
-  private int numFetchedSpills;
+  private final AtomicInteger numFetchedSpills = new AtomicInteger(0);
   @VisibleForTesting
-  final Map<HostPortPartition, MapHost> mapLocations = new HashMap<HostPortPartition, MapHost>();
+  final ConcurrentMap<HostPortPartition, MapHost> mapLocations =
+      new ConcurrentHashMap<HostPortPartition, MapHost>();
   //TODO Clean this and other maps at some point
   @VisibleForTesting
   final ConcurrentMap<PathPartition, InputAttemptIdentifier> pathToIdentifierMap
@@ -166,16 +170,41 @@ class ShuffleScheduler {
 
   @VisibleForTesting
   final Set<MapHost> pendingHosts = new HashSet<MapHost>();
-  private final Set<InputAttemptIdentifier> obsoleteInputs = new HashSet<InputAttemptIdentifier>();
+  private final Set<InputAttemptIdentifier> obsoleteInputs =
+      Collections.newSetFromMap(new ConcurrentHashMap<InputAttemptIdentifier, Boolean>());
+
+  /**
+   * Fetchers only contend on these locks when they touch the same inputs or
+   * the scheduling state; each host synchronizes on itself.
+   * - hostLock guards pendingHosts, the BUSY/PENDING transitions of hosts
+   *   and wakes up the scheduler thread through hostsChanged.
+   * - inputLocks stripe the completion bookkeeping of inputs, so that
+   *   duplicate fetches of an input are committed once. Several stripes are
+   *   always locked in increasing order.
+   * - failureLock guards failureCounts, hostFailures and
+   *   failedShufflesSinceLastCompletion. It can be taken while holding input
+   *   locks, but not the other way around, and is not held while reporting
+   *   failures or checking the shuffle health.
+   */
+  private final ReentrantLock hostLock = new ReentrantLock();
+  private final Condition hostsChanged = hostLock.newCondition();
+  private final ReentrantLock[] inputLocks = new ReentrantLock[NUM_INPUT_LOCKS];
+  private final ReentrantLock failureLock = new ReentrantLock();
+  private final AtomicLong lockWaitNanos = new AtomicLong(0);
+  private final AtomicLong lockContentions = new AtomicLong(0);
+  private final TezCounter lockWaitTimeCounter;
 
   private final AtomicBoolean isShutdown = new AtomicBoolean(false);
   private final Random random = new Random(System.currentTimeMillis());
   private final DelayQueue<Penalty> penalties = new DelayQueue<Penalty>();
   private final Referee referee;
   @VisibleForTesting
-  final Map<InputAttemptIdentifier, IntWritable> failureCounts = new HashMap<InputAttemptIdentifier,IntWritable>();
-  final Set<HostPort> uniqueHosts = Sets.newHashSet();
-  private final Map<HostPort,IntWritable> hostFailures = new HashMap<HostPort,IntWritable>();
+  final Map<InputAttemptIdentifier, IntWritable> failureCounts =
+      new ConcurrentHashMap<InputAttemptIdentifier, IntWritable>();
+  final Set<HostPort> uniqueHosts =
+      Collections.newSetFromMap(new ConcurrentHashMap<HostPort, Boolean>());
+  private final Map<HostPort, IntWritable> hostFailures =
+      new ConcurrentHashMap<HostPort, IntWritable>();
   private final InputContext inputContext;
   private final TezCounter shuffledInputsCounter;
   private final TezCounter skippedInputCounter;
@@ -192,11 +221,15 @@ class ShuffleScheduler {
   private final String srcNameTrimmed;
   @VisibleForTesting
   final AtomicInteger remainingMaps;
+  // Number of remaining inputs at which the merge of the fetched outputs
+  // starts, 0 if disabled
+  private final int tailMergeInputs;
+  private final AtomicBoolean tailMergeStarted = new AtomicBoolean(false);
   private final long startTime;
   @VisibleForTesting
-  long lastProgressTime;
+  volatile long lastProgressTime;
   @VisibleForTesting
-  long failedShufflesSinceLastCompletion;
+  volatile long failedShufflesSinceLastCompletion;
 
   private final int numFetchers;
   private final Set<FetcherOrderedGrouped> runningFetchers =
@@ -246,7 +279,7 @@ class ShuffleScheduler {
   private volatile Thread shuffleSchedulerThread = null;
   private final int maxPenaltyTime;
 
-  private long totalBytesShuffledTillNow = 0;
+  private final AtomicLong totalBytesShuffledTillNow = new AtomicLong(0);
   private final DecimalFormat  mbpsFormat = new DecimalFormat("0.00");
 
   public ShuffleScheduler(InputContext inputContext,
@@ -276,6 +309,14 @@ class ShuffleScheduler {
       abortFailureLimit = abortFailureLimitConf;
     }
     remainingMaps = new AtomicInteger(numberOfInputs);
+    float tailMergePercent = conf.getFloat(
+        TezRuntimeConfiguration.TEZ_RUNTIME_SHUFFLE_MERGE_TAIL_INPUTS_PERCENT,
+        TezRuntimeConfiguration.TEZ_RUNTIME_SHUFFLE_MERGE_TAIL_INPUTS_PERCENT_DEFAULT);
+    Preconditions.checkArgument(tailMergePercent >= 0.0f && tailMergePercent <= 1.0f,
+        TezRuntimeConfiguration.TEZ_RUNTIME_SHUFFLE_MERGE_TAIL_INPUTS_PERCENT
+            + "=" + tailMergePercent + " should be between 0 and 1");
+    tailMergeInputs = tailMergePercent > 0.0f
+        ? Math.max(1, (int) Math.ceil(numberOfInputs * tailMergePercent)) : 0;
     finishedMaps = new BitSet(numberOfInputs);
     this.ifileReadAhead = ifileReadAhead;
     this.ifileReadAheadLength = ifileReadAheadLength;
@@ -349,6 +390,11 @@ class ShuffleScheduler {
         TaskCounter.SHUFFLE_BYTES_DECOMPRESSED);
     this.failedShuffleCounter = inputContext.getCounters().findCounter(
         TaskCounter.NUM_FAILED_SHUFFLE_INPUTS);
+    this.lockWaitTimeCounter = inputContext.getCounters().findCounter(
+        TaskCounter.SHUFFLE_SCHEDULER_LOCK_WAIT_TIME);
+    for (int i = 0; i < inputLocks.length; i++) {
+      inputLocks[i] = new ReentrantLock();
+    }
     this.bytesShuffledToDisk = inputContext.getCounters().findCounter(
         TaskCounter.SHUFFLE_BYTES_TO_DISK);
     this.bytesShuffledToDiskDirect =  inputContext.getCounters().findCounter(TaskCounter.SHUFFLE_BYTES_DISK_DIRECT);
@@ -454,10 +500,12 @@ class ShuffleScheduler {
               e.getMessage());
         }
 
+        lockWaitTimeCounter.increment(TimeUnit.NANOSECONDS.toMillis(lockWaitNanos.get()));
+        LOG.info(srcNameTrimmed + ": " + "Scheduler locks were contended " + lockContentions.get()
+            + " times, waitTime=" + TimeUnit.NANOSECONDS.toMillis(lockWaitNanos.get()) + " ms");
+
         // Notify and interrupt the waiting scheduler thread
-        synchronized (this) {
-          notifyAll();
-        }
+        signalHostsChanged();
         // Interrupt the ShuffleScheduler thread only if the close is invoked by another thread.
         // If this is invoked on the same thread, then the shuffleRunner has already complete, and there's
         // no point interrupting it.
@@ -535,7 +583,7 @@ class ShuffleScheduler {
     int finalEventId = -1; //0 indexed
     int attemptNum;
     String id;
-    boolean scheduledForDownload; // whether chunks got scheduled for download (getMapHost)
+    volatile boolean scheduledForDownload; // whether chunks got scheduled for download (getMapHost)
 
 
     ShuffleEventInfo(InputAttemptIdentifier input) {
@@ -568,30 +616,108 @@ class ShuffleScheduler {
     }
   }
 
-  public synchronized void copySucceeded(InputAttemptIdentifier srcAttemptIdentifier,
-                                         MapHost host,
-                                         long bytesCompressed,
-                                         long bytesDecompressed,
-                                         long millis,
-                                         MapOutput output,
-                                         boolean isLocalFetch
-                                         ) throws IOException {
+  /**
+   * Acquire lock, recording the time spent waiting for it when it is held by
+   * another thread.
+   */
+  private void lock(ReentrantLock lock) {
+    if (!lock.tryLock()) {
+      long start = System.nanoTime();
+      lock.lock();
+      lockWaitNanos.addAndGet(System.nanoTime() - start);
+      lockContentions.incrementAndGet();
+    }
+  }
+
+  private ReentrantLock getInputLock(int inputIdentifier) {
+    return inputLocks[inputIdentifier & (NUM_INPUT_LOCKS - 1)];
+  }
+
+  /**
+   * Lock the stripes of the inputs [inputIdentifier, inputIdentifier + count),
+   * in increasing order.
+   *
+   * @return the locks taken, to be released with {@link #unlockInputs(List)}
+   */
+  private List<ReentrantLock> lockInputs(int inputIdentifier, int count) {
+    BitSet stripes = new BitSet(NUM_INPUT_LOCKS);
+    if (count >= NUM_INPUT_LOCKS) {
+      stripes.set(0, NUM_INPUT_LOCKS);
+    } else {
+      for (int i = 0; i < Math.max(1, count); i++) {
+        stripes.set((inputIdentifier + i) & (NUM_INPUT_LOCKS - 1));
+      }
+    }
+    List<ReentrantLock> locks = new ArrayList<ReentrantLock>(stripes.cardinality());
+    for (int i = stripes.nextSetBit(0); i >= 0; i = stripes.nextSetBit(i + 1)) {
+      lock(inputLocks[i]);
+      locks.add(inputLocks[i]);
+    }
+    return locks;
+  }
+
+  private static void unlockInputs(List<ReentrantLock> locks) {
+    for (int i = locks.size() - 1; i >= 0; i--) {
+      locks.get(i).unlock();
+    }
+  }
+
+  private void signalHostsChanged() {
+    lock(hostLock);
+    try {
+      hostsChanged.signalAll();
+    } finally {
+      hostLock.unlock();
+    }
+  }
+
+  public void copySucceeded(InputAttemptIdentifier srcAttemptIdentifier,
+                            MapHost host,
+                            long bytesCompressed,
+                            long bytesDecompressed,
+                            long millis,
+                            MapOutput output,
+                            boolean isLocalFetch
+                            ) throws IOException {
 
     inputContext.notifyProgress();
+    ReentrantLock inputLock = getInputLock(srcAttemptIdentifier.getInputIdentifier());
+    lock(inputLock);
+    try {
+      copySucceededLocked(srcAttemptIdentifier, host, bytesCompressed, bytesDecompressed, millis,
+          output, isLocalFetch);
+    } finally {
+      inputLock.unlock();
+    }
+  }
+
+  private void copySucceededLocked(InputAttemptIdentifier srcAttemptIdentifier,
+                                   MapHost host,
+                                   long bytesCompressed,
+                                   long bytesDecompressed,
+                                   long millis,
+                                   MapOutput output,
+                                   boolean isLocalFetch
+                                   ) throws IOException {
     if (!isInputFinished(srcAttemptIdentifier.getInputIdentifier())) {
-      if (!isLocalFetch) {
-        /**
-         * Reset it only when it is a non-local-disk copy.
-         */
-        failedShufflesSinceLastCompletion = 0;
+      lock(failureLock);
+      try {
+        if (!isLocalFetch) {
+          /**
+           * Reset it only when it is a non-local-disk copy.
+           */
+          failedShufflesSinceLastCompletion = 0;
+        }
+        if (output != null) {
+          failureCounts.remove(srcAttemptIdentifier);
+          if (host != null) {
+            hostFailures.remove(new HostPort(host.getHost(), host.getPort()));
+          }
+        }
+      } finally {
+        failureLock.unlock();
       }
       if (output != null) {
-
-        failureCounts.remove(srcAttemptIdentifier);
-        if (host != null) {
-          hostFailures.remove(new HostPort(host.getHost(), host.getPort()));
-        }
-
         output.commit();
         fetchStatsLogger.logIndividualFetchComplete(millis, bytesCompressed, bytesDecompressed,
             output.getType().toString(), srcAttemptIdentifier);
@@ -617,7 +743,7 @@ class ShuffleScheduler {
       if (!srcAttemptIdentifier.canRetrieveInputInChunks()) {
         remainingMaps.decrementAndGet();
         setInputFinished(srcAttemptIdentifier.getInputIdentifier());
-        numFetchedSpills++;
+        numFetchedSpills.incrementAndGet();
       } else {
         int inputIdentifier = srcAttemptIdentifier.getInputIdentifier();
         //Allow only one task attempt to proceed.
@@ -635,7 +761,7 @@ class ShuffleScheduler {
 
         assert(eventInfo != null);
         eventInfo.spillProcessed(srcAttemptIdentifier.getSpillEventId());
-        numFetchedSpills++;
+        numFetchedSpills.incrementAndGet();
 
         if (srcAttemptIdentifier.getFetchTypeInfo() == InputAttemptIdentifier.SPILL_INFO.FINAL_UPDATE) {
           eventInfo.setFinalEventId(srcAttemptIdentifier.getSpillEventId());
@@ -657,14 +783,22 @@ class ShuffleScheduler {
         }
       }
 
+      int remaining = remainingMaps.get();
+      if (remaining > 0 && remaining <= tailMergeInputs && mergeManager != null
+          && tailMergeStarted.compareAndSet(false, true)) {
+        LOG.info(srcNameTrimmed + ": " + remaining
+            + " inputs left to fetch, merging the fetched outputs");
+        mergeManager.startTailMerge();
+      }
+
       if (remainingMaps.get() == 0) {
-        notifyAll(); // Notify the getHost() method.
+        signalHostsChanged(); // Notify the getHost() method.
         LOG.info("All inputs fetched for input vertex : " + inputContext.getSourceVertexName());
       }
 
       // update the status
       lastProgressTime = System.currentTimeMillis();
-      totalBytesShuffledTillNow += bytesCompressed;
+      totalBytesShuffledTillNow.addAndGet(bytesCompressed);
       logProgress();
       reduceShuffleBytes.increment(bytesCompressed);
       reduceBytesDecompressed.increment(bytesDecompressed);
@@ -739,7 +873,7 @@ class ShuffleScheduler {
     int inputsDone = numInputs - remainingMaps.get();
     if (inputsDone > nextProgressLineEventCount.get() || inputsDone == numInputs || isShutdown.get()) {
       nextProgressLineEventCount.addAndGet(50);
-      double mbs = (double) totalBytesShuffledTillNow / (1024 * 1024);
+      double mbs = (double) totalBytesShuffledTillNow.get() / (1024 * 1024);
       long secsSinceStart = (System.currentTimeMillis() - startTime) / 1000 + 1;
 
       double transferRate = mbs / secsSinceStart;
@@ -749,21 +883,26 @@ class ShuffleScheduler {
     }
   }
 
-  public synchronized void copyFailed(InputAttemptIdentifier srcAttempt,
-                                      MapHost host,
-                                      boolean readError,
-                                      boolean connectError,
-                                      boolean isLocalFetch) {
-    failedShuffleCounter.increment(1);
+  public void copyFailed(InputAttemptIdentifier srcAttempt,
+                         MapHost host,
+                         boolean readError,
+                         boolean connectError,
+                         boolean isLocalFetch) {
     inputContext.notifyProgress();
-    int failures = incrementAndGetFailureAttempt(srcAttempt);
-
-    if (!isLocalFetch) {
-      /**
-       * Track the number of failures that has happened since last completion.
-       * This gets reset on a successful copy.
-       */
-      failedShufflesSinceLastCompletion++;
+    int failures;
+    lock(failureLock);
+    try {
+      failedShuffleCounter.increment(1);
+      failures = incrementAndGetFailureAttempt(srcAttempt);
+      if (!isLocalFetch) {
+        /**
+         * Track the number of failures that has happened since last completion.
+         * This gets reset on a successful copy.
+         */
+        failedShufflesSinceLastCompletion++;
+      }
+    } finally {
+      failureLock.unlock();
     }
 
     /**
@@ -824,11 +963,16 @@ class ShuffleScheduler {
     // TODO TEZ-922 hostFailures isn't really used for anything apart from
     // hasFailedAcrossNodes().Factor it into error
     // reporting / potential blacklisting of hosts.
-    if (hostFailures.containsKey(hostPort)) {
-      IntWritable x = hostFailures.get(hostPort);
-      x.set(x.get() + 1);
-    } else {
-      hostFailures.put(hostPort, new IntWritable(1));
+    lock(failureLock);
+    try {
+      if (hostFailures.containsKey(hostPort)) {
+        IntWritable x = hostFailures.get(hostPort);
+        x.set(x.get() + 1);
+      } else {
+        hostFailures.put(hostPort, new IntWritable(1));
+      }
+    } finally {
+      failureLock.unlock();
     }
 
     long delay = (long) (INITIAL_PENALTY *
@@ -1053,22 +1197,31 @@ class ShuffleScheduler {
     return true;
   }
 
-  public synchronized void addKnownMapOutput(String inputHostName,
-                                             int port,
-                                             int partitionId,
-                                             CompositeInputAttemptIdentifier srcAttempt) {
+  public void addKnownMapOutput(String inputHostName,
+                                int port,
+                                int partitionId,
+                                CompositeInputAttemptIdentifier srcAttempt) {
     uniqueHosts.add(new HostPort(inputHostName, port));
     HostPortPartition identifier = new HostPortPartition(inputHostName, port, partitionId);
 
     MapHost host = mapLocations.get(identifier);
     if (host == null) {
       host = new MapHost(inputHostName, port, partitionId, srcAttempt.getInputIdentifierCount());
-      mapLocations.put(identifier, host);
+      MapHost existing = mapLocations.putIfAbsent(identifier, host);
+      if (existing != null) {
+        host = existing;
+      }
     }
 
     //Allow only one task attempt to proceed.
-    if (!validateInputAttemptForPipelinedShuffle(srcAttempt)) {
-      return;
+    List<ReentrantLock> locks = lockInputs(srcAttempt.getInputIdentifier(),
+        srcAttempt.getInputIdentifierCount());
+    try {
+      if (!validateInputAttemptForPipelinedShuffle(srcAttempt)) {
+        return;
+      }
+    } finally {
+      unlockInputs(locks);
     }
 
     host.addKnownMap(srcAttempt);
@@ -1078,15 +1231,30 @@ class ShuffleScheduler {
     }
 
     // Mark the host as pending
-    if (host.getState() == MapHost.State.PENDING) {
-      pendingHosts.add(host);
-      notifyAll();
+    lock(hostLock);
+    try {
+      if (host.getState() == MapHost.State.PENDING) {
+        pendingHosts.add(host);
+        hostsChanged.signalAll();
+      }
+    } finally {
+      hostLock.unlock();
     }
   }
   
   public void obsoleteInput(InputAttemptIdentifier srcAttempt) {
     // The incoming srcAttempt does not contain a path component.
     LOG.info(srcNameTrimmed + ": " + "Adding obsolete input: " + srcAttempt);
+    ReentrantLock inputLock = getInputLock(srcAttempt.getInputIdentifier());
+    lock(inputLock);
+    try {
+      obsoleteInputLocked(srcAttempt);
+    } finally {
+      inputLock.unlock();
+    }
+  }
+
+  private void obsoleteInputLocked(InputAttemptIdentifier srcAttempt) {
     ShuffleEventInfo eventInfo = pipelinedShuffleInfoEventsMap.get(srcAttempt.getInputIdentifier());
 
     //Pipelined shuffle case (where pipelinedShuffleInfoEventsMap gets populated).
@@ -1108,17 +1276,24 @@ class ShuffleScheduler {
       killSelf(exception, message);
       return;
     }
-    synchronized (this) {
-      obsoleteInputs.add(srcAttempt);
-    }
+    obsoleteInputs.add(srcAttempt);
   }
   
-  public synchronized void putBackKnownMapOutput(MapHost host,
-                                                 InputAttemptIdentifier srcAttempt) {
+  public void putBackKnownMapOutput(MapHost host,
+                                    InputAttemptIdentifier srcAttempt) {
     host.addKnownMap(srcAttempt);
   }
 
-  public synchronized MapHost getHost() throws InterruptedException {
+  public MapHost getHost() throws InterruptedException {
+    lock(hostLock);
+    try {
+      return getHostLocked();
+    } finally {
+      hostLock.unlock();
+    }
+  }
+
+  private MapHost getHostLocked() throws InterruptedException {
     while (pendingHosts.isEmpty() && remainingMaps.get() > 0) {
       if (LOG.isDebugEnabled()) {
         LOG.debug("PendingHosts=" + pendingHosts);
@@ -1158,7 +1333,7 @@ class ShuffleScheduler {
     return penalties;
   }
 
-  private synchronized boolean inputShouldBeConsumed(InputAttemptIdentifier id) {
+  private boolean inputShouldBeConsumed(InputAttemptIdentifier id) {
     boolean isInputFinished = false;
     if (id instanceof CompositeInputAttemptIdentifier) {
       CompositeInputAttemptIdentifier cid = (CompositeInputAttemptIdentifier)id;
@@ -1169,7 +1344,7 @@ class ShuffleScheduler {
     return !obsoleteInputs.contains(id) && !isInputFinished;
   }
 
-  public synchronized List<InputAttemptIdentifier> getMapsForHost(MapHost host) {
+  public List<InputAttemptIdentifier> getMapsForHost(MapHost host) {
     List<InputAttemptIdentifier> origList = host.getAndClearKnownMaps();
 
     ListMultimap<Integer, InputAttemptIdentifier> dedupedList = LinkedListMultimap.create();
@@ -1244,7 +1419,13 @@ class ShuffleScheduler {
             ShuffleEventInfo shuffleEventInfo =
                 pipelinedShuffleInfoEventsMap.get(inputAttemptIdentifier.getInputIdentifier());
             if (shuffleEventInfo != null) {
-              shuffleEventInfo.scheduledForDownload = true;
+              ReentrantLock inputLock = getInputLock(inputAttemptIdentifier.getInputIdentifier());
+              lock(inputLock);
+              try {
+                shuffleEventInfo.scheduledForDownload = true;
+              } finally {
+                inputLock.unlock();
+              }
             }
           }
           result.add(inputAttemptIdentifier);
@@ -1258,12 +1439,17 @@ class ShuffleScheduler {
     return result;
   }
 
-  public synchronized void freeHost(MapHost host) {
-    if (host.getState() != MapHost.State.PENALIZED) {
-      if (host.markAvailable() == MapHost.State.PENDING) {
-        pendingHosts.add(host);
-        notifyAll();
+  public void freeHost(MapHost host) {
+    lock(hostLock);
+    try {
+      if (host.getState() != MapHost.State.PENALIZED) {
+        if (host.markAvailable() == MapHost.State.PENDING) {
+          pendingHosts.add(host);
+          hostsChanged.signalAll();
+        }
       }
+    } finally {
+      hostLock.unlock();
     }
     if (LOG.isDebugEnabled()) {
       LOG.debug(host + " freed by " + Thread.currentThread().getName() + " in " +
@@ -1271,18 +1457,23 @@ class ShuffleScheduler {
     }
   }
 
-  public synchronized void resetKnownMaps() {
-    mapLocations.clear();
-    obsoleteInputs.clear();
-    pendingHosts.clear();
-    pathToIdentifierMap.clear();
+  public void resetKnownMaps() {
+    lock(hostLock);
+    try {
+      mapLocations.clear();
+      obsoleteInputs.clear();
+      pendingHosts.clear();
+      pathToIdentifierMap.clear();
+    } finally {
+      hostLock.unlock();
+    }
   }
 
   /**
    * Utility method to check if the Shuffle data fetch is complete.
    * @return true if complete
    */
-  public synchronized boolean isDone() {
+  public boolean isDone() {
     return remainingMaps.get() == 0;
   }
 
@@ -1325,11 +1516,14 @@ class ShuffleScheduler {
         while (!isShutdown.get()) {
           // take the first host that has an expired penalty
           MapHost host = penalties.take().host;
-          synchronized (ShuffleScheduler.this) {
+          lock(hostLock);
+          try {
             if (host.markAvailable() == MapHost.State.PENDING) {
               pendingHosts.add(host);
-              ShuffleScheduler.this.notifyAll();
+              hostsChanged.signalAll();
             }
+          } finally {
+            hostLock.unlock();
           }
         }
       } catch (InterruptedException ie) {
@@ -1367,7 +1561,8 @@ class ShuffleScheduler {
     @Override
     protected Void callInternal() throws InterruptedException {
       while (!isShutdown.get() && remainingMaps.get() > 0) {
-        synchronized (ShuffleScheduler.this) {
+        lock(hostLock);
+        try {
           while ((runningFetchers.size() >= numFetchers || pendingHosts.isEmpty())
               && remainingMaps.get() > 0) {
             try {
@@ -1384,6 +1579,8 @@ class ShuffleScheduler {
               }
             }
           }
+        } finally {
+          hostLock.unlock();
         }
 
         if (LOG.isDebugEnabled()) {
@@ -1408,7 +1605,8 @@ class ShuffleScheduler {
         }
 
         if (!isShutdown.get() && remainingMaps.get() > 0) {
-          synchronized (ShuffleScheduler.this) {
+          lock(hostLock);
+          try {
             int numFetchersToRun = numFetchers - runningFetchers.size();
             int count = 0;
             while (count < numFetchersToRun && !isShutdown.get() && remainingMaps.get() > 0) {
@@ -1443,6 +1641,8 @@ class ShuffleScheduler {
                 Futures.addCallback(future, new FetchFutureCallback(fetcherOrderedGrouped));
               }
             }
+          } finally {
+            hostLock.unlock();
           }
         }
       }
@@ -1454,9 +1654,10 @@ class ShuffleScheduler {
     }
   }
 
-  private synchronized void waitAndNotifyProgress() throws InterruptedException {
+  // Must be called with hostLock held
+  private void waitAndNotifyProgress() throws InterruptedException {
       inputContext.notifyProgress();
-      wait(1000);
+      hostsChanged.await(1000, TimeUnit.MILLISECONDS);
   }
 
   @VisibleForTesting
@@ -1479,9 +1680,12 @@ class ShuffleScheduler {
     }
 
     private void doBookKeepingForFetcherComplete() {
-      synchronized (ShuffleScheduler.this) {
+      lock(hostLock);
+      try {
         runningFetchers.remove(fetcherOrderedGrouped);
-        ShuffleScheduler.this.notifyAll();
+        hostsChanged.signalAll();
+      } finally {
+        hostLock.unlock();
       }
     }
 
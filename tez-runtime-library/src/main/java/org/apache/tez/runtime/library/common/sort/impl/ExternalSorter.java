@@ -60,6 +60,7 @@ import org.apache.tez.runtime.library.api.TezRuntimeConfiguration.ReportPartitio
 import org.apache.tez.runtime.library.common.ConfigUtils;
 import org.apache.tez.runtime.library.common.TezRuntimeUtils;
 import org.apache.tez.runtime.library.common.combine.Combiner;
+import org.apache.tez.runtime.library.common.combine.HashCombineBuffer;
 import org.apache.tez.runtime.library.common.shuffle.orderedgrouped.ShuffleHeader;
 import org.apache.tez.runtime.library.common.sort.impl.IFile.Writer;
 import org.apache.tez.runtime.library.common.task.local.output.TezTaskOutput;
@@ -100,6 +101,8 @@ public abstract class ExternalSorter {
 
   protected final OutputContext outputContext;
   protected final Combiner combiner;
+  // Size of the hash table records are combined in before the sort buffer, 0 if disabled
+  protected final int hashCombineBufferBytes;
   protected final Partitioner partitioner;
   protected final Configuration conf;
   protected final FileSystem rfs;
@@ -187,6 +190,22 @@ public abstract class ExternalSorter {
       LOG.debug(outputContext.getDestinationVertexName() + ": Initial Mem bytes : " +
           initialMemoryAvailable + ", in MB=" + ((initialMemoryAvailable >> 20)));
     }
+    // The hash table for the combiner was requested in addition to the sort
+    // buffer, leave it out of the memory the sort buffer is sized from
+    long hashCombineMemory = getHashCombineMemory(conf);
+    if (hashCombineMemory > 0 && ((initialMemoryAvailable - hashCombineMemory) >> 20) > 0) {
+      this.hashCombineBufferBytes = conf.getInt(
+          TezRuntimeConfiguration.TEZ_RUNTIME_COMBINE_HASH_BUFFER_BYTES,
+          TezRuntimeConfiguration.TEZ_RUNTIME_COMBINE_HASH_BUFFER_BYTES_DEFAULT);
+      initialMemoryAvailable -= hashCombineMemory;
+    } else {
+      if (hashCombineMemory > 0) {
+        LOG.warn(outputContext.getDestinationVertexName() + ": Not combining in a hash table of "
+            + hashCombineMemory + " bytes, the output was assigned " + initialMemoryAvailable
+            + " bytes");
+      }
+      this.hashCombineBufferBytes = 0;
+    }
     int assignedMb = (int) (initialMemoryAvailable >> 20);
     //Let the overflow checks happen in appropriate sorter impls
     this.availableMemoryMb = assignedMb;
@@ -366,7 +385,26 @@ public abstract class ExternalSorter {
           + TezRuntimeConfiguration.TEZ_RUNTIME_IO_SORT_MB + "): "
           + initialMemRequestMb);
     }
-    return reqBytes;
+    long hashCombineMemory = getHashCombineMemory(conf);
+    if (hashCombineMemory > 0) {
+      LOG.info("Requested memory for the hash table of "
+          + TezRuntimeConfiguration.TEZ_RUNTIME_COMBINE_HASH_BUFFER_BYTES + ": "
+          + hashCombineMemory);
+    }
+    return reqBytes + hashCombineMemory;
+  }
+
+  /**
+   * @return the memory taken by the hash table records are combined in before
+   *         the sort buffer, 0 if there is no combiner or the table is disabled
+   */
+  private static long getHashCombineMemory(Configuration conf) {
+    if (conf.get(TezRuntimeConfiguration.TEZ_RUNTIME_COMBINER_CLASS) == null) {
+      return 0;
+    }
+    int bufferBytes = conf.getInt(TezRuntimeConfiguration.TEZ_RUNTIME_COMBINE_HASH_BUFFER_BYTES,
+        TezRuntimeConfiguration.TEZ_RUNTIME_COMBINE_HASH_BUFFER_BYTES_DEFAULT);
+    return bufferBytes > 0 ? HashCombineBuffer.getMemoryRequirement(bufferBytes) : 0;
   }
 
   public int getNumSpills() {
@@ -49,6 +49,9 @@ import org.apache.hadoop.io.compress.Decompressor;
 import org.apache.hadoop.io.serializer.SerializationFactory;
 import org.apache.hadoop.io.serializer.Serializer;
 import org.apache.tez.common.counters.TezCounter;
+import org.apache.tez.runtime.library.common.compress.BlockCodec;
+import org.apache.tez.runtime.library.common.compress.BlockCodecs;
+import org.apache.tez.runtime.library.api.TezRuntimeConfiguration;
 
 /**
  * <code>IFile</code> is the simple <key-len, value-len, key, value> format
@@ -64,10 +67,17 @@ public class IFile {
   public static final int EOF_MARKER = -1; // End of File Marker
   public static final int RLE_MARKER = -2; // Repeat same key marker
   public static final int V_END_MARKER = -3; // End of values marker
+  public static final int PREFIX_MARKER = -4; // Key sharing a prefix with previous key marker
   public static final DataInputBuffer REPEAT_KEY = new DataInputBuffer();
   static final byte[] HEADER = new byte[] { (byte) 'T', (byte) 'I',
     (byte) 'F' , (byte) 0};
 
+  // Last byte of the header
+  static final byte HEADER_FLAG_PLAIN = 0;
+  static final byte HEADER_FLAG_COMPRESSED = 1;
+  static final byte HEADER_FLAG_BLOCK_COMPRESSED = 2;
+  static final byte HEADER_FLAG_BLOCK_CODEC = 3;
+
   private static final String INCOMPLETE_READ = "Requested to read %d got %d";
   private static final String REQ_BUFFER_SIZE_TOO_LARGE = "Size of data %d is greater than the max allowed of %d";
 
@@ -87,6 +97,8 @@ public class IFile {
     CompressionOutputStream compressedOut;
     Compressor compressor;
     boolean compressOutput = false;
+    IFileBlockFormat.BlockOutputStream blockOut;
+    private long blockStartRecords = 0;
 
     long decompressedBytesWritten = 0;
     long compressedBytesWritten = 0;
@@ -95,6 +107,7 @@ public class IFile {
     private long numRecordsWritten = 0;
     private long rleWritten = 0; //number of RLE markers written
     private long totalKeySaving = 0; //number of keys saved due to multi KV writes + RLE
+    private long keyPrefixSaving = 0; //number of key bytes saved due to front coding
     private final TezCounter writtenRecordsCounter;
     private final TezCounter serializedUncompressedBytes;
 
@@ -113,9 +126,12 @@ public class IFile {
 
     final int RLE_MARKER_SIZE = WritableUtils.getVIntSize(RLE_MARKER);
     final int V_END_MARKER_SIZE = WritableUtils.getVIntSize(V_END_MARKER);
+    final int PREFIX_MARKER_SIZE = WritableUtils.getVIntSize(PREFIX_MARKER);
 
     // de-dup keys or not
     protected final boolean rle;
+    // front code keys sharing a prefix with the previous key or not
+    protected final boolean keyPrefixCompression;
 
 
     public Writer(Configuration conf, FileSystem fs, Path file,
@@ -132,6 +148,7 @@ public class IFile {
       writtenRecordsCounter = writesCounter;
       serializedUncompressedBytes = serializedBytesCounter;
       this.rle = rle;
+      this.keyPrefixCompression = false;
     }
 
     public Writer(Configuration conf, FSDataOutputStream outputStream,
@@ -151,12 +168,31 @@ public class IFile {
       this.checksumOut = new IFileOutputStream(outputStream);
       this.start = this.rawOut.getPos();
       this.rle = rle;
-      if (codec != null) {
+      this.keyPrefixCompression = (conf != null) && conf.getBoolean(
+          TezRuntimeConfiguration.TEZ_RUNTIME_IFILE_KEY_PREFIX_COMPRESSION,
+          TezRuntimeConfiguration.TEZ_RUNTIME_IFILE_KEY_PREFIX_COMPRESSION_DEFAULT);
+      int blockSize = (conf == null) ? 0 : conf.getInt(
+          TezRuntimeConfiguration.TEZ_RUNTIME_IFILE_BLOCK_SIZE,
+          TezRuntimeConfiguration.TEZ_RUNTIME_IFILE_BLOCK_SIZE_DEFAULT);
+      // A block codec, when compression is enabled, takes precedence over the Hadoop codec
+      BlockCodec blockCodec = (conf == null) ? null : BlockCodecs.getConfiguredCodec(conf);
+      if (blockCodec != null) {
+        this.blockOut = new IFileBlockFormat.BlockOutputStream(checksumOut, blockCodec,
+            (blockSize > 0) ? blockSize : IFileBlockFormat.DEFAULT_BLOCK_SIZE);
+        this.out = new FSDataOutputStream(this.blockOut, null);
+        this.compressOutput = true;
+      } else if (codec != null) {
         this.compressor = CodecPool.getCompressor(codec);
         if (this.compressor != null) {
           this.compressor.reset();
-          this.compressedOut = codec.createOutputStream(checksumOut, compressor);
-          this.out = new FSDataOutputStream(this.compressedOut,  null);
+          if (blockSize > 0) {
+            this.blockOut = new IFileBlockFormat.BlockOutputStream(checksumOut, codec,
+                compressor, blockSize);
+            this.out = new FSDataOutputStream(this.blockOut, null);
+          } else {
+            this.compressedOut = codec.createOutputStream(checksumOut, compressor);
+            this.out = new FSDataOutputStream(this.compressedOut,  null);
+          }
           this.compressOutput = true;
         } else {
           LOG.warn("Could not obtain compressor from CodecPool");
@@ -187,11 +223,18 @@ public class IFile {
     protected void writeHeader(OutputStream outputStream) throws IOException {
       if (!headerWritten) {
         outputStream.write(HEADER, 0, HEADER.length - 1);
-        outputStream.write((compressOutput) ? (byte) 1 : (byte) 0);
+        outputStream.write(getHeaderFlag());
         headerWritten = true;
       }
     }
 
+    private byte getHeaderFlag() {
+      if (blockOut != null) {
+        return blockOut.hasBlockCodec() ? HEADER_FLAG_BLOCK_CODEC : HEADER_FLAG_BLOCK_COMPRESSED;
+      }
+      return (compressOutput) ? HEADER_FLAG_COMPRESSED : HEADER_FLAG_PLAIN;
+    }
+
     public void close() throws IOException {
       if (closed.getAndSet(true)) {
         throw new IOException("Writer was already closed earlier");
@@ -215,11 +258,16 @@ public class IFile {
       //account for header bytes
       decompressedBytesWritten += HEADER.length;
 
+      if (blockOut != null) {
+        // Last block and the block index
+        blockOut.finish(numRecordsWritten - blockStartRecords);
+      }
+
       // Close the underlying stream iff we own it...
       if (ownOutputStream) {
         out.close();
       } else {
-        if (compressOutput) {
+        if (compressedOut != null) {
           // Flush
           compressedOut.finish();
           compressedOut.resetState();
@@ -230,7 +278,7 @@ public class IFile {
       //header bytes are already included in rawOut
       compressedBytesWritten = rawOut.getPos() - start;
 
-      if (compressOutput) {
+      if (compressor != null) {
         // Return back the compressor
         CodecPool.returnCompressor(compressor);
         compressor = null;
@@ -243,8 +291,8 @@ public class IFile {
       if (LOG.isDebugEnabled()) {
         LOG.debug("Total keys written=" + numRecordsWritten + "; rleEnabled=" + rle + "; Savings" +
             "(due to multi-kv/rle)=" + totalKeySaving + "; number of RLEs written=" +
-            rleWritten + "; compressedLen=" + compressedBytesWritten + "; rawLen="
-            + decompressedBytesWritten);
+            rleWritten + "; key bytes saved by prefix compression=" + keyPrefixSaving +
+            "; compressedLen=" + compressedBytesWritten + "; rawLen=" + decompressedBytesWritten);
       }
     }
 
@@ -278,7 +326,7 @@ public class IFile {
         //dump entire key value pair
         writeKVPair(buffer.getData(), 0, keyLength, buffer.getData(),
             keyLength, buffer.getLength() - keyLength);
-        if (rle) {
+        if (rle || keyPrefixCompression) {
           previous.reset();
           previous.write(buffer.getData(), 0, keyLength); //store the key
         }
@@ -384,7 +432,7 @@ public class IFile {
       if (!sameKey) {
         writeKVPair(key.getData(), key.getPosition(), keyLength,
             value.getData(), value.getPosition(), valueLength);
-        if (rle) {
+        if (rle || keyPrefixCompression) {
           BufferUtils.copy(key, previous);
         }
       } else {
@@ -410,20 +458,72 @@ public class IFile {
     protected void writeKVPair(byte[] keyData, int keyPos, int keyLength,
         byte[] valueData, int valPos, int valueLength) throws IOException {
       writeValueMarker(out);
-      WritableUtils.writeVInt(out, keyLength);
-      WritableUtils.writeVInt(out, valueLength);
-      out.write(keyData, keyPos, keyLength);
+      boolean blockStart = false;
+      if (blockOut != null) {
+        // Blocks are only cut before a new key, so that every block starts
+        // with a complete key/value pair and can be decoded on its own
+        if (blockOut.isBlockFull()) {
+          blockOut.finishBlock(numRecordsWritten - blockStartRecords);
+          blockStartRecords = numRecordsWritten;
+        }
+        if (blockOut.isBlockEmpty()) {
+          blockOut.setFirstKey(keyData, keyPos, keyLength);
+          blockStart = true;
+        }
+      }
+      int prefixLength = (keyPrefixCompression && !blockStart)
+          ? getKeyPrefixLength(keyData, keyPos, keyLength) : 0;
+      if (prefixLength > 0) {
+        /**
+         * Front coded key, only the suffix following the prefix shared with
+         * the previous key is written
+         * {PREFIX_MARKER, VL, prefix length, suffix length, suffix, V}
+         */
+        int suffixLength = keyLength - prefixLength;
+        WritableUtils.writeVInt(out, PREFIX_MARKER);
+        WritableUtils.writeVInt(out, valueLength);
+        WritableUtils.writeVInt(out, prefixLength);
+        WritableUtils.writeVInt(out, suffixLength);
+        out.write(keyData, keyPos + prefixLength, suffixLength);
+        decompressedBytesWritten += PREFIX_MARKER_SIZE + WritableUtils.getVIntSize(valueLength)
+            + WritableUtils.getVIntSize(prefixLength) + WritableUtils.getVIntSize(suffixLength)
+            + suffixLength;
+        keyPrefixSaving += prefixLength;
+      } else {
+        WritableUtils.writeVInt(out, keyLength);
+        WritableUtils.writeVInt(out, valueLength);
+        out.write(keyData, keyPos, keyLength);
+        decompressedBytesWritten +=
+            keyLength + WritableUtils.getVIntSize(keyLength)
+                + WritableUtils.getVIntSize(valueLength);
+      }
       out.write(valueData, valPos, valueLength);
 
       // Update bytes written
-      decompressedBytesWritten +=
-          keyLength + valueLength + WritableUtils.getVIntSize(keyLength)
-              + WritableUtils.getVIntSize(valueLength);
+      decompressedBytesWritten += valueLength;
       if (serializedUncompressedBytes != null) {
         serializedUncompressedBytes.increment(keyLength + valueLength);
       }
     }
 
+    /**
+     * @return length of the prefix the key shares with the previous key, or 0
+     *         if front coding the key would not save any space
+     */
+    private int getKeyPrefixLength(byte[] keyData, int keyPos, int keyLength) {
+      int maxLength = Math.min(keyLength, previous.getLength());
+      byte[] previousData = previous.getData();
+      int prefixLength = 0;
+      while (prefixLength < maxLength
+          && previousData[prefixLength] == keyData[keyPos + prefixLength]) {
+        prefixLength++;
+      }
+      int overhead = PREFIX_MARKER_SIZE + WritableUtils.getVIntSize(prefixLength)
+          + WritableUtils.getVIntSize(keyLength - prefixLength)
+          - WritableUtils.getVIntSize(keyLength);
+      return (prefixLength > overhead) ? prefixLength : 0;
+    }
+
     protected void writeRLE(DataOutputStream out) throws IOException {
       /**
        * To strike a balance between 2 use cases (lots of unique KV in stream
@@ -512,6 +612,8 @@ public class IFile {
 
     protected int currentKeyLength;
     protected int currentValueLength;
+    // length of the prefix the current key shares with the previous key
+    protected int currentKeyPrefixLength;
     long startPos;
 
     /**
@@ -550,7 +652,7 @@ public class IFile {
         int bufferSize) throws IOException {
       this(in, ((in != null) ? (length - HEADER.length) : length), codec,
           readsCounter, bytesReadCounter, readAhead, readAheadLength,
-          bufferSize, ((in != null) ? isCompressedFlagEnabled(in) : false));
+          bufferSize, ((in != null) ? readHeaderFlag(in) : HEADER_FLAG_PLAIN));
       if (in != null && bytesReadCounter != null) {
         bytesReadCounter.increment(IFile.HEADER.length);
       }
@@ -571,10 +673,25 @@ public class IFile {
                   TezCounter readsCounter, TezCounter bytesReadCounter,
                   boolean readAhead, int readAheadLength,
                   int bufferSize, boolean isCompressed) throws IOException {
+      this(in, length, codec, readsCounter, bytesReadCounter, readAhead, readAheadLength,
+          bufferSize, (isCompressed) ? HEADER_FLAG_COMPRESSED : HEADER_FLAG_PLAIN);
+    }
+
+    private Reader(InputStream in, long length,
+                  CompressionCodec codec,
+                  TezCounter readsCounter, TezCounter bytesReadCounter,
+                  boolean readAhead, int readAheadLength,
+                  int bufferSize, byte headerFlag) throws IOException {
       if (in != null) {
         checksumIn = new IFileInputStream(in, length, readAhead,
             readAheadLength/* , isCompressed */);
-        if (isCompressed && codec != null) {
+        if (headerFlag == HEADER_FLAG_BLOCK_COMPRESSED) {
+          IFileBlockFormat.checkCodec(codec);
+          decompressor = CodecPool.getDecompressor(codec);
+          this.in = new IFileBlockFormat.BlockInputStream(checksumIn, codec, decompressor);
+        } else if (headerFlag == HEADER_FLAG_BLOCK_CODEC) {
+          this.in = new IFileBlockFormat.BlockInputStream(checksumIn);
+        } else if (headerFlag == HEADER_FLAG_COMPRESSED && codec != null) {
           decompressor = CodecPool.getDecompressor(codec);
           if (decompressor != null) {
             this.in = codec.createInputStream(checksumIn, decompressor);
@@ -613,13 +730,40 @@ public class IFile {
     public static void readToMemory(byte[] buffer, InputStream in, int compressedLength,
         CompressionCodec codec, boolean ifileReadAhead, int ifileReadAheadLength)
         throws IOException {
-      boolean isCompressed = IFile.Reader.isCompressedFlagEnabled(in);
+      readToMemory(buffer, buffer.length, in, compressedLength, codec, ifileReadAhead,
+          ifileReadAheadLength);
+    }
+
+    /**
+     * Read entire ifile content to the beginning of a buffer which may be
+     * larger than the content, e.g. a pooled one.
+     *
+     * @param buffer
+     * @param length the decompressed length of the content
+     * @param in
+     * @param compressedLength
+     * @param codec
+     * @param ifileReadAhead
+     * @param ifileReadAheadLength
+     * @throws IOException
+     */
+    public static void readToMemory(byte[] buffer, int length, InputStream in,
+        int compressedLength, CompressionCodec codec, boolean ifileReadAhead,
+        int ifileReadAheadLength) throws IOException {
+      byte headerFlag = readHeaderFlag(in);
       IFileInputStream checksumIn = new IFileInputStream(in,
           compressedLength - IFile.HEADER.length, ifileReadAhead,
           ifileReadAheadLength);
+      if (headerFlag == HEADER_FLAG_BLOCK_COMPRESSED || headerFlag == HEADER_FLAG_BLOCK_CODEC) {
+        readBlocksToMemory(buffer, length, checksumIn,
+            compressedLength - IFile.HEADER.length - (int) checksumIn.getSize(),
+            (headerFlag == HEADER_FLAG_BLOCK_COMPRESSED) ? codec : null,
+            headerFlag == HEADER_FLAG_BLOCK_CODEC);
+        return;
+      }
       in = checksumIn;
       Decompressor decompressor = null;
-      if (isCompressed && codec != null) {
+      if (headerFlag == HEADER_FLAG_COMPRESSED && codec != null) {
         decompressor = CodecPool.getDecompressor(codec);
         if (decompressor != null) {
           decompressor.reset();
@@ -630,7 +774,7 @@ public class IFile {
         }
       }
       try {
-        IOUtils.readFully(in, buffer, 0, buffer.length - IFile.HEADER.length);
+        IOUtils.readFully(in, buffer, 0, length - IFile.HEADER.length);
         /*
          * We've gotten the amount of data we were expecting. Verify the
          * decompressor has nothing more to offer. This action also forces the
@@ -659,6 +803,33 @@ public class IFile {
       }
     }
 
+    private static void readBlocksToMemory(byte[] buffer, int length, IFileInputStream checksumIn,
+        int dataLength, CompressionCodec codec, boolean blockCodec) throws IOException {
+      try {
+        if (!blockCodec) {
+          IFileBlockFormat.checkCodec(codec);
+        }
+        // The compressed data is read (and its checksum validated) as a whole,
+        // the blocks are then decompressed straight into the buffer.
+        byte[] data = new byte[dataLength];
+        IOUtils.readFully(checksumIn, data, 0, dataLength);
+        if (checksumIn.read() >= 0) {
+          throw new IOException("Unexpected extra bytes from input stream");
+        }
+        IFileBlockFormat.decompressAll(codec, data, dataLength, buffer, 0,
+            length - IFile.HEADER.length);
+      } catch (IOException ioe) {
+        try {
+          checksumIn.close();
+        } catch (IOException e) {
+          if (LOG.isDebugEnabled()) {
+            LOG.debug("Exception in closing " + checksumIn, e);
+          }
+        }
+        throw ioe;
+      }
+    }
+
     /**
      * Read entire IFile content to disk.
      *
@@ -737,13 +908,27 @@ public class IFile {
     protected void readKeyValueLength(DataInput dIn) throws IOException {
       currentKeyLength = WritableUtils.readVInt(dIn);
       currentValueLength = WritableUtils.readVInt(dIn);
+      bytesRead +=
+          WritableUtils.getVIntSize(currentKeyLength)
+              + WritableUtils.getVIntSize(currentValueLength);
+      currentKeyPrefixLength = 0;
+      if (currentKeyLength == PREFIX_MARKER) {
+        // Front coded key, the key length is the prefix plus the suffix length
+        int prefixLength = WritableUtils.readVInt(dIn);
+        int suffixLength = WritableUtils.readVInt(dIn);
+        bytesRead += WritableUtils.getVIntSize(prefixLength)
+            + WritableUtils.getVIntSize(suffixLength);
+        if (prefixLength <= 0 || prefixLength > originalKeyLength || suffixLength < 0) {
+          throw new IOException("Rec# " + recNo + ": Invalid key prefix-length: " + prefixLength
+              + " suffix-length: " + suffixLength + " PreviousKeyLen: " + originalKeyLength);
+        }
+        currentKeyPrefixLength = prefixLength;
+        currentKeyLength = prefixLength + suffixLength;
+      }
       if (currentKeyLength != RLE_MARKER) {
         // original key length
         originalKeyLength = currentKeyLength;
       }
-      bytesRead +=
-          WritableUtils.getVIntSize(currentKeyLength)
-              + WritableUtils.getVIntSize(currentValueLength);
     }
 
     /**
@@ -820,15 +1005,19 @@ public class IFile {
         key.reset(keyBytes, originalKeyLength);
         return KeyState.SAME_KEY;
       }
+      // The prefix of a front coded key is still in keyBytes
+      int prefixLength = currentKeyPrefixLength;
       if (keyBytes.length < currentKeyLength) {
-        keyBytes = createLargerArray(currentKeyLength);
+        byte[] largerKeyBytes = createLargerArray(currentKeyLength);
+        System.arraycopy(keyBytes, 0, largerKeyBytes, 0, prefixLength);
+        keyBytes = largerKeyBytes;
       }
-      int i = readData(keyBytes, 0, currentKeyLength);
-      if (i != currentKeyLength) {
-        throw new IOException(String.format(INCOMPLETE_READ, currentKeyLength, i));
+      int i = readData(keyBytes, prefixLength, currentKeyLength - prefixLength);
+      if (i != currentKeyLength - prefixLength) {
+        throw new IOException(String.format(INCOMPLETE_READ, currentKeyLength - prefixLength, i));
       }
       key.reset(keyBytes, currentKeyLength);
-      bytesRead += currentKeyLength;
+      bytesRead += currentKeyLength - prefixLength;
       return KeyState.NEW_KEY;
     }
 
@@ -861,10 +1050,26 @@ public class IFile {
     }
 
     public static boolean isCompressedFlagEnabled(InputStream in) throws IOException {
+      return readHeaderFlag(in) != HEADER_FLAG_PLAIN;
+    }
+
+    /**
+     * Read and verify the IFile header.
+     *
+     * @param in stream positioned at the start of the IFile
+     * @return the flag byte of the header, i.e. one of HEADER_FLAG_PLAIN,
+     *         HEADER_FLAG_COMPRESSED, HEADER_FLAG_BLOCK_COMPRESSED or
+     *         HEADER_FLAG_BLOCK_CODEC
+     * @throws IOException if the header is not a valid IFile header
+     */
+    static byte readHeaderFlag(InputStream in) throws IOException {
       byte[] header = new byte[HEADER.length];
       IOUtils.readFully(in, header, 0, HEADER.length);
       verifyHeaderMagic(header);
-      return (header[3] == 1);
+      if (header[3] < HEADER_FLAG_PLAIN || header[3] > HEADER_FLAG_BLOCK_CODEC) {
+        throw new IOException("Unknown ifile header flag " + header[3]);
+      }
+      return header[3];
     }
 
     public void close() throws IOException {
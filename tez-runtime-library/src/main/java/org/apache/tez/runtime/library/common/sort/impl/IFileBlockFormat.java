@@ -0,0 +1,608 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.runtime.library.common.sort.impl;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import org.apache.hadoop.classification.InterfaceAudience;
+import org.apache.hadoop.classification.InterfaceStability;
+import org.apache.hadoop.fs.ChecksumException;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.IOUtils;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableUtils;
+import org.apache.hadoop.io.compress.CodecPool;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.CompressionOutputStream;
+import org.apache.hadoop.io.compress.Compressor;
+import org.apache.hadoop.io.compress.Decompressor;
+import org.apache.tez.runtime.library.common.compress.BlockCodec;
+import org.apache.tez.runtime.library.common.compress.BlockCodecs;
+
+/**
+ * Block compressed layout of IFile data.
+ *
+ * Instead of running the whole record stream through a single codec stream,
+ * the records are cut into blocks of roughly
+ * {@link org.apache.tez.runtime.library.api.TezRuntimeConfiguration#TEZ_RUNTIME_IFILE_BLOCK_SIZE}
+ * raw bytes which are compressed independently. A block always starts with a
+ * full key/value pair (a run of values for the same key is never split), so
+ * every block can be decoded on its own. The data written after the IFile
+ * header (and covered by the IFile checksum) is
+ * <pre>
+ *   [ vint codecNameLength, codecName ]          -- only with a BlockCodec
+ *   { int rawLength, int compressedLength, compressed bytes }*
+ *   int 0                                        -- end of blocks
+ *   vint numBlocks
+ *   { vlong offset, vint compressedLength, vint rawLength, vlong records,
+ *     int crc32, vint firstKeyLength, firstKey }* -- block index
+ *   int indexLength
+ * </pre>
+ * Offsets in the index are relative to the end of the IFile header. Readers
+ * which only need the record stream go through {@link BlockInputStream}; readers
+ * holding the whole segment use the index to decompress the blocks one after
+ * the other straight into their buffer, see {@link #decompressAll}.
+ *
+ * Blocks are compressed either with the Hadoop {@link CompressionCodec} the
+ * reader is configured with, or with a {@link BlockCodec} whose name is
+ * stored at the start of the data, which is then used by readers regardless
+ * of their configuration.
+ */
+@InterfaceAudience.Private
+@InterfaceStability.Unstable
+public final class IFileBlockFormat {
+
+  /** Block size used with a BlockCodec when no block size is configured */
+  static final int DEFAULT_BLOCK_SIZE = 64 * 1024;
+
+  private static final int BLOCK_HEADER_SIZE = 8;
+
+  private IFileBlockFormat() {
+  }
+
+  /**
+   * Index entry of a single block.
+   */
+  public static class BlockIndexEntry {
+    private final long offset;
+    private final int compressedLength;
+    private final int rawLength;
+    private final long rawOffset;
+    private final long records;
+    private final int checksum;
+    private final byte[] firstKey;
+
+    BlockIndexEntry(long offset, int compressedLength, int rawLength, long rawOffset,
+        long records, int checksum, byte[] firstKey) {
+      this.offset = offset;
+      this.compressedLength = compressedLength;
+      this.rawLength = rawLength;
+      this.rawOffset = rawOffset;
+      this.records = records;
+      this.checksum = checksum;
+      this.firstKey = firstKey;
+    }
+
+    /**
+     * @return offset of the block header, relative to the end of the IFile header
+     */
+    public long getOffset() {
+      return offset;
+    }
+
+    public int getCompressedLength() {
+      return compressedLength;
+    }
+
+    public int getRawLength() {
+      return rawLength;
+    }
+
+    /**
+     * @return offset of the decompressed block within the record stream
+     */
+    public long getRawOffset() {
+      return rawOffset;
+    }
+
+    public long getRecords() {
+      return records;
+    }
+
+    /**
+     * @return CRC32 of the compressed bytes of the block
+     */
+    public int getChecksum() {
+      return checksum;
+    }
+
+    /**
+     * @return serialized first key of the block, empty if unknown
+     */
+    public byte[] getFirstKey() {
+      return firstKey;
+    }
+
+    @Override
+    public String toString() {
+      return "offset=" + offset + ", compressedLength=" + compressedLength
+          + ", rawLength=" + rawLength + ", records=" + records;
+    }
+  }
+
+  /**
+   * Read the block index at the end of the data of a block compressed IFile.
+   *
+   * @param data data of the segment, i.e. without the IFile header and checksum
+   * @param length length of the data
+   * @return index entries in file order
+   * @throws IOException if the index is corrupt
+   */
+  public static List<BlockIndexEntry> readBlockIndex(byte[] data, int length)
+      throws IOException {
+    if (length < 4) {
+      throw new IOException("Block compressed IFile is too short: " + length);
+    }
+    int indexLength = readInt(data, length - 4);
+    int indexStart = length - 4 - indexLength;
+    if (indexLength < 0 || indexStart < 0) {
+      throw new IOException("Invalid block index length " + indexLength + ", dataLength=" + length);
+    }
+    DataInputBuffer in = new DataInputBuffer();
+    in.reset(data, indexStart, indexLength);
+    int numBlocks = WritableUtils.readVInt(in);
+    List<BlockIndexEntry> entries = new ArrayList<BlockIndexEntry>(numBlocks);
+    long rawOffset = 0;
+    for (int i = 0; i < numBlocks; i++) {
+      long offset = WritableUtils.readVLong(in);
+      int compressedLength = WritableUtils.readVInt(in);
+      int rawLength = WritableUtils.readVInt(in);
+      long records = WritableUtils.readVLong(in);
+      int checksum = in.readInt();
+      byte[] firstKey = new byte[WritableUtils.readVInt(in)];
+      in.readFully(firstKey);
+      if (offset < 0 || offset + BLOCK_HEADER_SIZE + compressedLength > indexStart) {
+        throw new IOException("Block " + i + " at " + offset + " with compressedLength "
+            + compressedLength + " is beyond the block index at " + indexStart);
+      }
+      entries.add(new BlockIndexEntry(offset, compressedLength, rawLength, rawOffset,
+          records, checksum, firstKey));
+      rawOffset += rawLength;
+    }
+    return Collections.unmodifiableList(entries);
+  }
+
+  /**
+   * Decompress a single block.
+   *
+   * @param codec codec the block was compressed with
+   * @param decompressor decompressor to use, it is reset before use
+   * @param data data of the segment, i.e. without the IFile header and checksum
+   * @param entry index entry of the block
+   * @param dest buffer to decompress into
+   * @param destOffset offset within dest
+   * @param verifyChecksum whether to verify the CRC32 of the compressed bytes,
+   *                       not needed if the IFile checksum was validated
+   * @throws IOException
+   */
+  public static void decompressBlock(CompressionCodec codec, Decompressor decompressor,
+      byte[] data, BlockIndexEntry entry, byte[] dest, int destOffset,
+      boolean verifyChecksum) throws IOException {
+    if (verifyChecksum) {
+      verifyBlock(data, entry);
+    }
+    decompress(codec, decompressor, data, (int) entry.getOffset() + BLOCK_HEADER_SIZE,
+        entry.getCompressedLength(), dest, destOffset, entry.getRawLength());
+  }
+
+  /**
+   * Decompress a single block compressed with a {@link BlockCodec}.
+   *
+   * @param blockCodec codec of the segment, see {@link #readBlockCodec(byte[], int)}
+   * @param data data of the segment, i.e. without the IFile header and checksum
+   * @param entry index entry of the block
+   * @param dest buffer to decompress into
+   * @param destOffset offset within dest
+   * @param verifyChecksum whether to verify the CRC32 of the compressed bytes,
+   *                       not needed if the IFile checksum was validated
+   * @throws IOException
+   */
+  public static void decompressBlock(BlockCodec blockCodec, byte[] data, BlockIndexEntry entry,
+      byte[] dest, int destOffset, boolean verifyChecksum) throws IOException {
+    if (verifyChecksum) {
+      verifyBlock(data, entry);
+    }
+    blockCodec.decompress(data, (int) entry.getOffset() + BLOCK_HEADER_SIZE,
+        entry.getCompressedLength(), dest, destOffset, entry.getRawLength());
+  }
+
+  private static void verifyBlock(byte[] data, BlockIndexEntry entry) throws IOException {
+    CRC32 crc = new CRC32();
+    crc.update(data, (int) entry.getOffset() + BLOCK_HEADER_SIZE, entry.getCompressedLength());
+    if ((int) crc.getValue() != entry.getChecksum()) {
+      throw new ChecksumException("Checksum error in block at " + entry.getOffset()
+          + ", expected=" + entry.getChecksum() + ", actual=" + (int) crc.getValue(),
+          entry.getOffset());
+    }
+  }
+
+  /**
+   * Read the name of the {@link BlockCodec} at the start of the data of an
+   * IFile compressed with a block codec.
+   *
+   * @param data data of the segment, i.e. without the IFile header and checksum
+   * @param length length of the data
+   * @return the codec
+   * @throws IOException if the codec is unknown
+   */
+  public static BlockCodec readBlockCodec(byte[] data, int length) throws IOException {
+    DataInputBuffer in = new DataInputBuffer();
+    in.reset(data, length);
+    return BlockCodecs.getCodec(Text.readString(in));
+  }
+
+  /**
+   * Decompress all blocks of a segment into the record stream. The blocks are
+   * decompressed on the calling thread, fetchers already run in parallel.
+   *
+   * @param codec Hadoop codec the blocks were compressed with, or null if the
+   *              data starts with the name of a block codec
+   * @param data data of the segment, i.e. without the IFile header and checksum
+   * @param length length of the data
+   * @param dest buffer to decompress into
+   * @param destOffset offset within dest
+   * @param rawLength expected length of the record stream
+   * @throws IOException
+   */
+  static void decompressAll(CompressionCodec codec, byte[] data, int length,
+      byte[] dest, int destOffset, int rawLength) throws IOException {
+    BlockCodec blockCodec = (codec == null) ? readBlockCodec(data, length) : null;
+    List<BlockIndexEntry> entries = readBlockIndex(data, length);
+    long totalRaw = 0;
+    for (BlockIndexEntry entry : entries) {
+      totalRaw += entry.getRawLength();
+    }
+    if (totalRaw != rawLength) {
+      throw new IOException("Block index describes " + totalRaw
+          + " raw bytes, expected " + rawLength);
+    }
+    if (blockCodec != null) {
+      for (BlockIndexEntry entry : entries) {
+        decompressBlock(blockCodec, data, entry, dest, destOffset + (int) entry.getRawOffset(),
+            false);
+      }
+      return;
+    }
+    Decompressor decompressor = CodecPool.getDecompressor(codec);
+    try {
+      for (BlockIndexEntry entry : entries) {
+        decompressBlock(codec, decompressor, data, entry, dest,
+            destOffset + (int) entry.getRawOffset(), false);
+      }
+    } finally {
+      if (decompressor != null) {
+        CodecPool.returnDecompressor(decompressor);
+      }
+    }
+  }
+
+  private static void decompress(CompressionCodec codec, Decompressor decompressor,
+      byte[] src, int srcOffset, int srcLength, byte[] dest, int destOffset, int rawLength)
+      throws IOException {
+    if (decompressor == null) {
+      throw new IOException("Could not obtain decompressor for " + codec.getClass().getName());
+    }
+    decompressor.reset();
+    InputStream in = codec.createInputStream(
+        new ByteArrayInputStream(src, srcOffset, srcLength), decompressor);
+    IOUtils.readFully(in, dest, destOffset, rawLength);
+  }
+
+  private static int readInt(byte[] b, int off) {
+    return ((b[off] & 0xff) << 24) | ((b[off + 1] & 0xff) << 16)
+        | ((b[off + 2] & 0xff) << 8) | (b[off + 3] & 0xff);
+  }
+
+  /**
+   * Buffers the record stream written by {@link IFile.Writer} and writes it out
+   * as independently compressed blocks, followed by the block index.
+   */
+  static class BlockOutputStream extends OutputStream {
+    private final DataOutputStream out;
+    private final CompressionCodec codec;
+    private final Compressor compressor;
+    private final BlockCodec blockCodec;
+    private final int blockSize;
+    private final DataOutputBuffer raw = new DataOutputBuffer();
+    private final DataOutputBuffer compressed = new DataOutputBuffer();
+    private byte[] blockCodecBuffer = new byte[0];
+    private final List<BlockIndexEntry> entries = new ArrayList<BlockIndexEntry>();
+    private final CRC32 crc = new CRC32();
+    private byte[] firstKey = new byte[0];
+    private long offset = 0;
+    private long rawOffset = 0;
+    private boolean started = false;
+    private boolean finished = false;
+    private boolean closed = false;
+
+    BlockOutputStream(OutputStream out, CompressionCodec codec, Compressor compressor,
+        int blockSize) {
+      this.out = new DataOutputStream(out);
+      this.codec = codec;
+      this.compressor = compressor;
+      this.blockCodec = null;
+      this.blockSize = blockSize;
+    }
+
+    BlockOutputStream(OutputStream out, BlockCodec blockCodec, int blockSize) {
+      this.out = new DataOutputStream(out);
+      this.codec = null;
+      this.compressor = null;
+      this.blockCodec = blockCodec;
+      this.blockSize = blockSize;
+    }
+
+    boolean hasBlockCodec() {
+      return blockCodec != null;
+    }
+
+    private void start() throws IOException {
+      if (started) {
+        return;
+      }
+      started = true;
+      if (blockCodec != null) {
+        // Written lazily, the IFile header goes out after the stream is created
+        DataOutputBuffer name = new DataOutputBuffer();
+        Text.writeString(name, blockCodec.getName());
+        out.write(name.getData(), 0, name.getLength());
+        offset += name.getLength();
+      }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      raw.write(b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      raw.write(b, off, len);
+    }
+
+    boolean isBlockFull() {
+      return raw.getLength() >= blockSize;
+    }
+
+    boolean isBlockEmpty() {
+      return raw.getLength() == 0;
+    }
+
+    void setFirstKey(byte[] key, int off, int len) {
+      firstKey = new byte[len];
+      System.arraycopy(key, off, firstKey, 0, len);
+    }
+
+    /**
+     * Compress and write out the buffered records as a block.
+     * @param records number of records in the block
+     */
+    void finishBlock(long records) throws IOException {
+      start();
+      if (raw.getLength() == 0) {
+        return;
+      }
+      final byte[] compressedData;
+      final int compressedLength;
+      if (blockCodec != null) {
+        int maxLength = blockCodec.maxCompressedLength(raw.getLength());
+        if (blockCodecBuffer.length < maxLength) {
+          blockCodecBuffer = new byte[maxLength];
+        }
+        compressedData = blockCodecBuffer;
+        compressedLength = blockCodec.compress(raw.getData(), 0, raw.getLength(),
+            blockCodecBuffer, 0);
+      } else {
+        compressed.reset();
+        compressor.reset();
+        CompressionOutputStream cos = codec.createOutputStream(compressed, compressor);
+        cos.write(raw.getData(), 0, raw.getLength());
+        cos.finish();
+        compressedData = compressed.getData();
+        compressedLength = compressed.getLength();
+      }
+      crc.reset();
+      crc.update(compressedData, 0, compressedLength);
+
+      out.writeInt(raw.getLength());
+      out.writeInt(compressedLength);
+      out.write(compressedData, 0, compressedLength);
+      entries.add(new BlockIndexEntry(offset, compressedLength, raw.getLength(),
+          rawOffset, records, (int) crc.getValue(), firstKey));
+
+      offset += BLOCK_HEADER_SIZE + compressedLength;
+      rawOffset += raw.getLength();
+      raw.reset();
+      firstKey = new byte[0];
+    }
+
+    /**
+     * Write out the last block and the block index. The underlying stream is
+     * not closed.
+     * @param records number of records in the last block
+     */
+    void finish(long records) throws IOException {
+      if (finished) {
+        return;
+      }
+      finished = true;
+      finishBlock(records);
+      start();
+      out.writeInt(0);
+
+      DataOutputBuffer index = new DataOutputBuffer();
+      WritableUtils.writeVInt(index, entries.size());
+      for (BlockIndexEntry entry : entries) {
+        WritableUtils.writeVLong(index, entry.getOffset());
+        WritableUtils.writeVInt(index, entry.getCompressedLength());
+        WritableUtils.writeVInt(index, entry.getRawLength());
+        WritableUtils.writeVLong(index, entry.getRecords());
+        index.writeInt(entry.getChecksum());
+        WritableUtils.writeVInt(index, entry.getFirstKey().length);
+        index.write(entry.getFirstKey());
+      }
+      out.write(index.getData(), 0, index.getLength());
+      out.writeInt(index.getLength());
+      out.flush();
+    }
+
+    @Override
+    public void flush() throws IOException {
+      // Blocks are only written out once full
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      finish(0);
+      out.close();
+    }
+  }
+
+  /**
+   * Decompresses the blocks read from the underlying (checksummed) stream one
+   * after the other, yielding the record stream. Once the end of blocks is
+   * reached, the block index is consumed so that the underlying stream gets to
+   * validate its checksum.
+   */
+  static class BlockInputStream extends InputStream {
+    private final DataInputStream in;
+    private final CompressionCodec codec;
+    private final Decompressor decompressor;
+    private BlockCodec blockCodec;
+    private byte[] compressed = new byte[0];
+    private byte[] raw = new byte[0];
+    private int rawPos = 0;
+    private int rawLimit = 0;
+    private boolean eof = false;
+
+    BlockInputStream(InputStream in, CompressionCodec codec, Decompressor decompressor) {
+      this.in = new DataInputStream(in);
+      this.codec = codec;
+      this.decompressor = decompressor;
+    }
+
+    /**
+     * Stream over data compressed with the {@link BlockCodec} named at the
+     * start of the data.
+     */
+    BlockInputStream(InputStream in) {
+      this(in, null, null);
+    }
+
+    private boolean nextBlock() throws IOException {
+      if (codec == null && blockCodec == null) {
+        blockCodec = BlockCodecs.getCodec(Text.readString(in));
+      }
+      while (!eof && rawPos == rawLimit) {
+        int rawLength = in.readInt();
+        if (rawLength == 0) {
+          eof = true;
+          // Drain the block index
+          byte[] skip = new byte[4096];
+          while (in.read(skip) >= 0) {
+            // nothing
+          }
+          break;
+        }
+        int compressedLength = in.readInt();
+        if (rawLength < 0 || compressedLength < 0) {
+          throw new IOException("Invalid block header, rawLength=" + rawLength
+              + ", compressedLength=" + compressedLength);
+        }
+        if (compressed.length < compressedLength) {
+          compressed = new byte[compressedLength];
+        }
+        in.readFully(compressed, 0, compressedLength);
+        if (raw.length < rawLength) {
+          raw = new byte[rawLength];
+        }
+        if (blockCodec != null) {
+          blockCodec.decompress(compressed, 0, compressedLength, raw, 0, rawLength);
+        } else {
+          decompress(codec, decompressor, compressed, 0, compressedLength, raw, 0, rawLength);
+        }
+        rawPos = 0;
+        rawLimit = rawLength;
+      }
+      return rawPos < rawLimit;
+    }
+
+    @Override
+    public int read() throws IOException {
+      if (!nextBlock()) {
+        return -1;
+      }
+      return raw[rawPos++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (len == 0) {
+        return 0;
+      }
+      if (!nextBlock()) {
+        return -1;
+      }
+      int n = Math.min(len, rawLimit - rawPos);
+      System.arraycopy(raw, rawPos, b, off, n);
+      rawPos += n;
+      return n;
+    }
+
+    @Override
+    public int available() throws IOException {
+      return rawLimit - rawPos;
+    }
+
+    @Override
+    public void close() throws IOException {
+      in.close();
+    }
+  }
+
+  static void checkCodec(CompressionCodec codec) throws IOException {
+    if (codec == null) {
+      throw new IOException("Block compressed IFile can not be read without a codec");
+    }
+  }
+}
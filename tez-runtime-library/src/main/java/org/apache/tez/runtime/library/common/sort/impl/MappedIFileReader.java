@@ -0,0 +1,425 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.runtime.library.common.sort.impl;
+
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.CRC32;
+
+import org.apache.hadoop.classification.InterfaceAudience;
+import org.apache.hadoop.classification.InterfaceStability;
+import org.apache.hadoop.fs.ChecksumException;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.LocalFileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.RawLocalFileSystem;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.nativeio.NativeIO;
+import org.apache.tez.common.counters.TezCounter;
+import org.apache.tez.runtime.library.common.sort.impl.IFile.Reader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <code>IFile.Reader</code> which reads an uncompressed IFile segment of a local
+ * file through a memory mapped view of the segment.
+ *
+ * Record lengths are decoded straight from the mapping and key/value bytes are
+ * copied once into the buffers handed to the caller, instead of going through
+ * the {@link IFileInputStream} and {@link java.io.DataInputStream} buffers. The
+ * CRC32 trailer written by {@link IFileOutputStream} is validated when the end
+ * of the segment is reached, as with the stream based reader.
+ */
+@InterfaceAudience.Private
+@InterfaceStability.Unstable
+public class MappedIFileReader extends Reader {
+
+  private static final Logger LOG = LoggerFactory.getLogger(MappedIFileReader.class);
+
+  private static final int CHECKSUM_SIZE = 4;
+
+  // sun.misc.Unsafe#invokeCleaner(ByteBuffer), available since Java 9
+  private static final Object UNSAFE;
+  private static final Method INVOKE_CLEANER;
+  private static final AtomicBoolean UNMAP_FAILURE_LOGGED = new AtomicBoolean(false);
+
+  static {
+    Object unsafe = null;
+    Method invokeCleaner = null;
+    try {
+      Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+      invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+      Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+      theUnsafe.setAccessible(true);
+      unsafe = theUnsafe.get(null);
+    } catch (Throwable t) {
+      invokeCleaner = null;
+    }
+    UNSAFE = unsafe;
+    INVOKE_CLEANER = invokeCleaner;
+  }
+
+  private static class ByteBufferDataInput implements DataInput {
+
+    private final ByteBuffer buf;
+
+    ByteBufferDataInput(ByteBuffer buf) {
+      this.buf = buf;
+    }
+
+    @Override
+    public void readFully(byte[] b) throws IOException {
+      readFully(b, 0, b.length);
+    }
+
+    @Override
+    public void readFully(byte[] b, int off, int len) throws IOException {
+      try {
+        buf.get(b, off, len);
+      } catch (BufferUnderflowException e) {
+        throw new EOFException("Attempted to read " + len + " bytes, remaining=" + buf.remaining());
+      }
+    }
+
+    @Override
+    public int skipBytes(int n) throws IOException {
+      int skip = Math.min(n, buf.remaining());
+      buf.position(buf.position() + skip);
+      return skip;
+    }
+
+    @Override
+    public boolean readBoolean() throws IOException {
+      return readByte() != 0;
+    }
+
+    @Override
+    public byte readByte() throws IOException {
+      if (!buf.hasRemaining()) {
+        throw new EOFException("Reached end of mapped segment");
+      }
+      return buf.get();
+    }
+
+    @Override
+    public int readUnsignedByte() throws IOException {
+      return readByte() & 0xff;
+    }
+
+    @Override
+    public short readShort() throws IOException {
+      require(2);
+      return buf.getShort();
+    }
+
+    @Override
+    public int readUnsignedShort() throws IOException {
+      return readShort() & 0xffff;
+    }
+
+    @Override
+    public char readChar() throws IOException {
+      require(2);
+      return buf.getChar();
+    }
+
+    @Override
+    public int readInt() throws IOException {
+      require(4);
+      return buf.getInt();
+    }
+
+    @Override
+    public long readLong() throws IOException {
+      require(8);
+      return buf.getLong();
+    }
+
+    @Override
+    public float readFloat() throws IOException {
+      require(4);
+      return buf.getFloat();
+    }
+
+    @Override
+    public double readDouble() throws IOException {
+      require(8);
+      return buf.getDouble();
+    }
+
+    /**
+     * Reads a line the way {@link java.io.DataInputStream#readLine()} does, one
+     * byte per char.
+     */
+    @Override
+    public String readLine() throws IOException {
+      if (!buf.hasRemaining()) {
+        return null;
+      }
+      StringBuilder line = new StringBuilder();
+      while (buf.hasRemaining()) {
+        int c = buf.get() & 0xff;
+        if (c == '\n') {
+          break;
+        }
+        if (c == '\r') {
+          if (buf.hasRemaining() && buf.get(buf.position()) == '\n') {
+            buf.get();
+          }
+          break;
+        }
+        line.append((char) c);
+      }
+      return line.toString();
+    }
+
+    @Override
+    public String readUTF() throws IOException {
+      return DataInputStream.readUTF(this);
+    }
+
+    private void require(int bytes) throws EOFException {
+      if (buf.remaining() < bytes) {
+        throw new EOFException("Attempted to read " + bytes + " bytes, remaining="
+            + buf.remaining());
+      }
+    }
+  }
+
+  private final File file;
+  private final MappedByteBuffer mapped;
+  // Record data, i.e. the mapping without the header and the checksum trailer
+  private final ByteBuffer data;
+  private final ByteBufferDataInput dataInput;
+  private final TezCounter readRecordsCounter;
+  private final TezCounter bytesReadCounter;
+  private long numRecordsRead = 0;
+  private boolean checksumValidated = false;
+  private boolean disableChecksumValidation = false;
+  private boolean closed = false;
+
+  private MappedIFileReader(File file, MappedByteBuffer mapped,
+      TezCounter readsCounter, TezCounter bytesReadCounter) throws IOException {
+    super(null, mapped.capacity() - IFile.HEADER.length, null, null, null, false, 0, -1);
+    this.file = file;
+    this.mapped = mapped;
+    ByteBuffer dup = mapped.duplicate();
+    dup.position(IFile.HEADER.length);
+    dup.limit(mapped.capacity() - CHECKSUM_SIZE);
+    this.data = dup.slice();
+    this.dataInput = new ByteBufferDataInput(data);
+    this.readRecordsCounter = readsCounter;
+    this.bytesReadCounter = bytesReadCounter;
+  }
+
+  /**
+   * Map a segment of a local IFile for reading.
+   *
+   * @param fs filesystem the file belongs to
+   * @param path path of the file
+   * @param segmentOffset offset of the segment within the file
+   * @param segmentLength length of the segment, including the header and checksum bytes
+   * @param readsCounter counter for records read
+   * @param bytesReadCounter counter for bytes read
+   * @return a reader over the mapped segment, or null if the segment cannot be
+   *         mapped (non local filesystem, compressed or too large segment). Callers
+   *         should fall back to {@link Reader} in that case.
+   * @throws IOException
+   */
+  public static MappedIFileReader tryOpen(FileSystem fs, Path path,
+      long segmentOffset, long segmentLength,
+      TezCounter readsCounter, TezCounter bytesReadCounter) throws IOException {
+    File file = toLocalFile(fs, path);
+    if (file == null || segmentLength > Integer.MAX_VALUE
+        || segmentLength < IFile.HEADER.length + CHECKSUM_SIZE) {
+      return null;
+    }
+    MappedByteBuffer mapped;
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      FileChannel channel = raf.getChannel();
+      if (segmentOffset + segmentLength > channel.size()) {
+        throw new EOFException("Segment [" + segmentOffset + ", " + (segmentOffset + segmentLength)
+            + ") is beyond the end of " + file + ", size=" + channel.size());
+      }
+      // The mapping stays valid after the channel is closed
+      mapped = channel.map(FileChannel.MapMode.READ_ONLY, segmentOffset, segmentLength);
+    } finally {
+      raf.close();
+    }
+    if (!(mapped.get(0) == 'T' && mapped.get(1) == 'I' && mapped.get(2) == 'F')) {
+      unmap(mapped);
+      throw new IOException("Not a valid ifile header, file=" + file + ", offset=" + segmentOffset);
+    }
+    if (mapped.get(3) != IFile.HEADER_FLAG_PLAIN) {
+      // Compressed data has to go through the codec streams
+      unmap(mapped);
+      return null;
+    }
+    return new MappedIFileReader(file, mapped, readsCounter, bytesReadCounter);
+  }
+
+  private static File toLocalFile(FileSystem fs, Path path) {
+    if (fs instanceof LocalFileSystem) {
+      return ((LocalFileSystem) fs).pathToFile(path);
+    }
+    if (fs instanceof RawLocalFileSystem) {
+      return ((RawLocalFileSystem) fs).pathToFile(path);
+    }
+    return null;
+  }
+
+  private static void unmap(MappedByteBuffer buffer) {
+    Throwable failure;
+    try {
+      NativeIO.POSIX.munmap(buffer);
+      return;
+    } catch (Throwable t) {
+      failure = t;
+    }
+    // NativeIO relies on sun.misc.Cleaner, which is gone since Java 9
+    if (INVOKE_CLEANER != null) {
+      try {
+        INVOKE_CLEANER.invoke(UNSAFE, buffer);
+        return;
+      } catch (Throwable t) {
+        failure = t;
+      }
+    }
+    // Left for GC to reclaim
+    if (UNMAP_FAILURE_LOGGED.compareAndSet(false, true)) {
+      LOG.warn("Unable to unmap buffers, mappings are released by GC. "
+          + "Further failures are logged at debug level", failure);
+    } else if (LOG.isDebugEnabled()) {
+      LOG.debug("Unable to unmap buffer", failure);
+    }
+  }
+
+  private void validateChecksum() throws IOException {
+    if (checksumValidated || disableChecksumValidation) {
+      return;
+    }
+    CRC32 crc = new CRC32();
+    ByteBuffer checksummed = mapped.duplicate();
+    checksummed.position(IFile.HEADER.length);
+    checksummed.limit(mapped.capacity() - CHECKSUM_SIZE);
+    crc.update(checksummed);
+    int expected = mapped.getInt(mapped.capacity() - CHECKSUM_SIZE);
+    if ((int) crc.getValue() != expected) {
+      throw new ChecksumException("Checksum Error: file=" + file + ", dataLength="
+          + data.capacity() + ", expected=" + expected + ", actual=" + (int) crc.getValue(), 0);
+    }
+    checksumValidated = true;
+  }
+
+  @Override
+  public long getLength() {
+    return data.capacity();
+  }
+
+  @Override
+  public long getPosition() throws IOException {
+    return data.position();
+  }
+
+  /**
+   * The segment is unmapped on close, reading it afterwards would crash the JVM
+   */
+  private void checkOpen() throws IOException {
+    if (closed) {
+      throw new IOException("Reader for " + file + " is already closed");
+    }
+  }
+
+  @Override
+  public KeyState readRawKey(DataInputBuffer key) throws IOException {
+    checkOpen();
+    if (!positionToNextRecord(dataInput)) {
+      validateChecksum();
+      return KeyState.NO_KEY;
+    }
+    if (currentKeyLength == IFile.RLE_MARKER) {
+      key.reset(keyBytes, originalKeyLength);
+      return KeyState.SAME_KEY;
+    }
+    // The prefix of a front coded key is still in keyBytes
+    int prefixLength = currentKeyPrefixLength;
+    if (keyBytes.length < currentKeyLength) {
+      keyBytes = Arrays.copyOf(keyBytes, Math.max(currentKeyLength, keyBytes.length << 1));
+    }
+    dataInput.readFully(keyBytes, prefixLength, currentKeyLength - prefixLength);
+    key.reset(keyBytes, currentKeyLength);
+    bytesRead += currentKeyLength - prefixLength;
+    return KeyState.NEW_KEY;
+  }
+
+  @Override
+  public void nextRawValue(DataInputBuffer value) throws IOException {
+    checkOpen();
+    final byte[] valBytes;
+    if ((value.getData().length < currentValueLength) || (value.getData() == keyBytes)) {
+      valBytes = new byte[currentValueLength << 1];
+    } else {
+      valBytes = value.getData();
+    }
+    dataInput.readFully(valBytes, 0, currentValueLength);
+    value.reset(valBytes, currentValueLength);
+    bytesRead += currentValueLength;
+    ++recNo;
+    ++numRecordsRead;
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    try {
+      // Same as IFileInputStream, validate the checksum even if the reader
+      // did not reach the end of the segment.
+      validateChecksum();
+    } finally {
+      unmap(mapped);
+      if (readRecordsCounter != null) {
+        readRecordsCounter.increment(numRecordsRead);
+      }
+      if (bytesReadCounter != null) {
+        bytesReadCounter.increment(mapped.capacity());
+      }
+    }
+  }
+
+  @Override
+  public void disableChecksumValidation() {
+    disableChecksumValidation = true;
+  }
+}
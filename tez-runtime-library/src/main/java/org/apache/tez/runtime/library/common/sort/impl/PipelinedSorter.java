@@ -17,13 +17,17 @@
 */
 package org.apache.tez.runtime.library.common.sort.impl;
 
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.PriorityQueue;
 import java.util.concurrent.ExecutionException;
@@ -46,12 +50,14 @@ import org.slf4j.LoggerFactory;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FSDataOutputStream;
 import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.RawLocalFileSystem;
 import org.apache.hadoop.io.DataInputBuffer;
 import org.apache.tez.common.TezUtilsInternal;
 import org.apache.tez.common.CallableWithNdc;
 import org.apache.tez.common.io.NonSyncDataOutputStream;
 import org.apache.tez.runtime.api.Event;
 import org.apache.tez.runtime.library.common.comparator.ProxyComparator;
+import org.apache.tez.runtime.library.common.comparator.TezBytesComparator;
 import org.apache.hadoop.io.RawComparator;
 import org.apache.hadoop.util.IndexedSortable;
 import org.apache.hadoop.util.IndexedSorter;
@@ -60,10 +66,12 @@ import org.apache.tez.common.TezCommonUtils;
 import org.apache.tez.runtime.api.OutputContext;
 import org.apache.tez.runtime.library.api.TezRuntimeConfiguration;
 import org.apache.tez.runtime.library.common.ConfigUtils;
+import org.apache.tez.runtime.library.common.combine.HashCombineBuffer;
 import org.apache.tez.runtime.library.common.shuffle.ShuffleUtils;
 import org.apache.tez.runtime.library.common.sort.impl.IFile.Writer;
 import org.apache.tez.runtime.library.common.sort.impl.TezMerger.DiskSegment;
 import org.apache.tez.runtime.library.common.sort.impl.TezMerger.Segment;
+import org.apache.tez.runtime.library.utils.DirectBufferPool;
 import org.apache.tez.runtime.library.utils.LocalProgress;
 import org.apache.tez.util.StopWatch;
 
@@ -83,17 +91,32 @@ public class PipelinedSorter extends ExternalSorter {
 
   private final static int APPROX_HEADER_LENGTH = 150;
 
+  // Time to wait for the sort threads to stop after a failed flush, before
+  // giving up on reusing the sort buffers
+  private static final long SORT_THREADS_STOP_WAIT_MS = 1000;
+
   private final int partitionBits;
   
   private static final int PARTITION = 0;        // partition offset in acct
   private static final int KEYSTART = 1;         // key offset in acct
   private static final int VALSTART = 2;         // val offset in acct
   private static final int VALLEN = 3;           // val len in acct
+  private static final int PREFIXHI = 4;         // key prefix bytes 0-3 in acct (radix sort)
+  private static final int PREFIXLO = 5;         // key prefix bytes 4-7 in acct (radix sort)
   private static final int NMETA = 4;            // num meta ints
   private static final int METASIZE = NMETA * 4; // size in bytes
+  private static final int RADIX_NMETA = 6;      // num meta ints with radix sort
+
+  private static final int PREFIX_BYTES = 8;
+  // ranges smaller than this are left to the IndexedSorter
+  private static final int RADIX_SORT_THRESHOLD = 32;
 
   private final int minSpillsForCombine;
   private final ProxyComparator hasher;
+  private final boolean radixSort;
+  // num meta ints and their size in bytes, for the sort mode in use
+  private final int nmeta;
+  private final int metaSize;
   // SortSpans  
   private SortSpan span;
 
@@ -120,8 +143,12 @@ public class PipelinedSorter extends ExternalSorter {
   private int bufferIndex = -1;
   private final int MIN_BLOCK_SIZE;
   private final boolean lazyAllocateMem;
+  private final boolean useDirectBuffers;
+  private final int finalMergeThreads;
   private final Deflater deflater;
   private final String auxiliaryService;
+  // Combines records before they are collected, null if disabled
+  private final HashCombineBuffer hashCombineBuffer;
 
   /**
    * Store the events to be send in close.
@@ -137,6 +164,9 @@ public class PipelinedSorter extends ExternalSorter {
     lazyAllocateMem = this.conf.getBoolean(TezRuntimeConfiguration
         .TEZ_RUNTIME_PIPELINED_SORTER_LAZY_ALLOCATE_MEMORY, TezRuntimeConfiguration
         .TEZ_RUNTIME_PIPELINED_SORTER_LAZY_ALLOCATE_MEMORY_DEFAULT);
+    useDirectBuffers = this.conf.getBoolean(TezRuntimeConfiguration
+        .TEZ_RUNTIME_PIPELINED_SORTER_USE_DIRECT_BUFFERS, TezRuntimeConfiguration
+        .TEZ_RUNTIME_PIPELINED_SORTER_USE_DIRECT_BUFFERS_DEFAULT);
 
     if (lazyAllocateMem) {
       /**
@@ -175,9 +205,23 @@ public class PipelinedSorter extends ExternalSorter {
     // buffers and accounting
     long maxMemLimit = sortmb << 20;
 
+    boolean confRadixSort = this.conf.getBoolean(TezRuntimeConfiguration
+        .TEZ_RUNTIME_PIPELINED_SORTER_RADIX_SORT, TezRuntimeConfiguration
+        .TEZ_RUNTIME_PIPELINED_SORTER_RADIX_SORT_DEFAULT);
+    radixSort = confRadixSort && isPrefixComparable(comparator);
+    if (confRadixSort && !radixSort) {
+      LOG.warn(outputContext.getDestinationVertexName() + ": Ignoring "
+          + TezRuntimeConfiguration.TEZ_RUNTIME_PIPELINED_SORTER_RADIX_SORT
+          + " as comparator " + comparator.getClass().getName()
+          + " does not compare keys by their serialized bytes");
+    }
+    nmeta = radixSort ? RADIX_NMETA : NMETA;
+    metaSize = nmeta * 4;
+    initialSetupLogLine.append("radixSort=").append(radixSort);
+
     initialSetupLogLine.append(", UsingHashComparator=");
     // k/v serialization
-    if(comparator instanceof ProxyComparator) {
+    if(comparator instanceof ProxyComparator && !radixSort) {
       hasher = (ProxyComparator)comparator;
       initialSetupLogLine.append(true);
     } else {
@@ -212,6 +256,7 @@ public class PipelinedSorter extends ExternalSorter {
     initialSetupLogLine.append(", maxMemUsage=").append(maxMemLimit);
     initialSetupLogLine.append(", lazyAllocateMem=").append(
         lazyAllocateMem);
+    initialSetupLogLine.append(", useDirectBuffers=").append(useDirectBuffers);
     initialSetupLogLine.append(", minBlockSize=").append(MIN_BLOCK_SIZE);
     initialSetupLogLine.append(", initial BLOCK_SIZE=").append(buffers.get(0).capacity());
     initialSetupLogLine.append(", finalMergeEnabled=").append(isFinalMergeEnabled());
@@ -240,8 +285,30 @@ public class PipelinedSorter extends ExternalSorter {
     valSerializer.open(span.out);
     keySerializer.open(span.out);
     minSpillsForCombine = this.conf.getInt(TezRuntimeConfiguration.TEZ_RUNTIME_COMBINE_MIN_SPILLS, 3);
+    finalMergeThreads = this.conf.getInt(
+        TezRuntimeConfiguration.TEZ_RUNTIME_PIPELINED_SORTER_FINAL_MERGE_THREADS,
+        TezRuntimeConfiguration.TEZ_RUNTIME_PIPELINED_SORTER_FINAL_MERGE_THREADS_DEFAULT);
     deflater = TezCommonUtils.newBestCompressionDeflater();
     finalEvents = Lists.newLinkedList();
+
+    if (hashCombineBufferBytes > 0) {
+      LOG.info(outputContext.getDestinationVertexName() + ": Combining records in a hash table of "
+          + hashCombineBufferBytes + " bytes before the sort buffer");
+      hashCombineBuffer = new HashCombineBuffer(serializationFactory, keyClass, valClass,
+          partitions, hashCombineBufferBytes) {
+        @Override
+        protected void collect(Object key, Object value, int partition) throws IOException {
+          PipelinedSorter.this.collect(key, value, partition);
+        }
+
+        @Override
+        protected void combine(TezRawKeyValueIterator kvIter, Writer writer) throws IOException {
+          runCombineProcessor(kvIter, writer);
+        }
+      };
+    } else {
+      hashCombineBuffer = null;
+    }
   }
 
   ByteBuffer allocateSpace() {
@@ -253,7 +320,9 @@ public class PipelinedSorter extends ExternalSorter {
     int size = computeBlockSize(currentAllocatableMemory, availableMemoryMb << 20);
     currentAllocatableMemory -= size;
     int sizeWithoutMeta = (size) - (size % METASIZE);
-    ByteBuffer space = ByteBuffer.allocate(sizeWithoutMeta);
+    ByteBuffer space = useDirectBuffers
+        ? DirectBufferPool.getInstance().acquire(sizeWithoutMeta)
+        : ByteBuffer.allocate(sizeWithoutMeta);
 
     buffers.add(space);
     bufferIndex++;
@@ -311,6 +380,42 @@ public class PipelinedSorter extends ExternalSorter {
     return maxBlockSize;
   }
 
+  /**
+   * @param reusable false if a sort thread might still use the buffers, in
+   *                 which case they are left to the garbage collector instead
+   *                 of going back to the pool
+   */
+  private void releaseBuffers(boolean reusable) {
+    if (useDirectBuffers && reusable) {
+      for (ByteBuffer buffer : buffers) {
+        DirectBufferPool.getInstance().release(buffer);
+      }
+    }
+    buffers.clear();
+  }
+
+  /**
+   * Stops the sort threads after a failure.
+   * @return true if no sort thread runs anymore
+   */
+  private boolean stopSortThreads() {
+    sortmaster.shutdownNow();
+    try {
+      return sortmaster.awaitTermination(SORT_THREADS_STOP_WAIT_MS, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+  }
+
+  /**
+   * Radix sort on key prefixes is only valid when keys are ordered by the unsigned
+   * lexicographic order of their serialized bytes.
+   */
+  static boolean isPrefixComparable(RawComparator comparator) {
+    return comparator instanceof TezBytesComparator;
+  }
+
   private int bitcount(int n) {
     int bit = 0;
     while(n!=0) {
@@ -344,7 +449,7 @@ public class PipelinedSorter extends ExternalSorter {
       if(span.length() != 0) {
         items = span.length();
         perItem = span.kvbuffer.limit()/items;
-        items = (int) ((span.capacity)/(METASIZE+perItem));
+        items = (int) ((span.capacity)/(metaSize+perItem));
         if(items > 1024*1024) {
             // our goal is to have 1M splits and sort early
             items = 1024*1024;
@@ -382,8 +487,12 @@ public class PipelinedSorter extends ExternalSorter {
   @Override
   public void write(Object key, Object value)
       throws IOException {
-    collect(
-        key, value, partitioner.getPartition(key, value, partitions));
+    int partition = partitioner.getPartition(key, value, partitions);
+    if (hashCombineBuffer != null) {
+      hashCombineBuffer.add(key, value, partition);
+    } else {
+      collect(key, value, partition);
+    }
   }
 
   /**
@@ -408,7 +517,7 @@ public class PipelinedSorter extends ExternalSorter {
           partition + ")");
     }
     // TBD:FIX in TEZ-2574
-    if (span.kvmeta.remaining() < METASIZE) {
+    if (span.kvmeta.remaining() < metaSize) {
       this.sort();
       if (span.length() == 0) {
         spillSingleRecord(key, value, partition);
@@ -456,6 +565,11 @@ public class PipelinedSorter extends ExternalSorter {
     span.kvmeta.put(keystart);
     span.kvmeta.put(valstart);
     span.kvmeta.put(valend - valstart);
+    if (radixSort) {
+      final long keyPrefix = span.keyPrefix(keystart, valstart - keystart);
+      span.kvmeta.put((int) (keyPrefix >>> 32));
+      span.kvmeta.put((int) keyPrefix);
+    }
     mapOutputRecordCounter.increment(1);
     outputContext.notifyProgress();
     mapOutputByteCounter.increment(valend - keystart);
@@ -657,8 +771,6 @@ public class PipelinedSorter extends ExternalSorter {
 
   @Override
   public void flush() throws IOException {
-    final String uniqueIdentifier = outputContext.getUniqueIdentifier();
-
     outputContext.notifyProgress();
     /**
      * Possible that the thread got interrupted when flush was happening or when the flush was
@@ -666,10 +778,14 @@ public class PipelinedSorter extends ExternalSorter {
      * on all I/O. At that time, this is safe to cleanup
      */
     if (isThreadInterrupted()) {
+      releaseBuffers(stopSortThreads());
       return;
     }
 
     try {
+      if (hashCombineBuffer != null) {
+        hashCombineBuffer.flush();
+      }
       LOG.info(outputContext.getDestinationVertexName() + ": Starting flush of map output");
       span.end();
       merger.add(span.sort(sorter));
@@ -685,7 +801,7 @@ public class PipelinedSorter extends ExternalSorter {
       sortmaster.shutdown();
 
       //safe to clean up
-      buffers.clear();
+      releaseBuffers(true);
 
 
       if(indexCacheList.isEmpty()) {
@@ -767,74 +883,20 @@ public class PipelinedSorter extends ExternalSorter {
 
       final TezSpillRecord spillRec = new TezSpillRecord(partitions);
 
-      for (int parts = 0; parts < partitions; parts++) {
-        boolean shouldWrite = false;
-        //create the segments to be merged
-        List<Segment> segmentList =
-            new ArrayList<Segment>(numSpills);
-        for (int i = 0; i < numSpills; i++) {
-          Path spillFilename = spillFilePaths.get(i);
-          TezIndexRecord indexRecord = indexCacheList.get(i).getIndex(parts);
-          if (indexRecord.hasData() || !sendEmptyPartitionDetails) {
-            shouldWrite = true;
-            DiskSegment s =
-                new DiskSegment(rfs, spillFilename, indexRecord.getStartOffset(),
-                    indexRecord.getPartLength(), codec, ifileReadAhead,
-                    ifileReadAheadLength, ifileBufferSize, true);
-            segmentList.add(s);
-          }
-        }
-
-        int mergeFactor =
-            this.conf.getInt(TezRuntimeConfiguration.TEZ_RUNTIME_IO_SORT_FACTOR,
-                TezRuntimeConfiguration.TEZ_RUNTIME_IO_SORT_FACTOR_DEFAULT);
-        // sort the segments only if there are intermediate merges
-        boolean sortSegments = segmentList.size() > mergeFactor;
-        //merge
-        TezRawKeyValueIterator kvIter = TezMerger.merge(conf, rfs,
-            keyClass, valClass, codec,
-            segmentList, mergeFactor,
-            new Path(uniqueIdentifier),
-            (RawComparator) ConfigUtils.getIntermediateOutputKeyComparator(conf),
-            progressable, sortSegments, true,
-            null, spilledRecordsCounter, additionalSpillBytesRead,
-            null, merger.needsRLE()); // Not using any Progress in TezMerger. Should just work.
-        //write merged output to disk
-        long segmentStart = finalOut.getPos();
-        long rawLength = 0;
-        long partLength = 0;
-        if (shouldWrite) {
-          Writer writer =
-              new Writer(conf, finalOut, keyClass, valClass, codec,
-                  spilledRecordsCounter, null, merger.needsRLE());
-          if (combiner == null || numSpills < minSpillsForCombine) {
-            TezMerger.writeFile(kvIter, writer, progressable,
-                TezRuntimeConfiguration.TEZ_RUNTIME_RECORDS_BEFORE_PROGRESS_DEFAULT);
-          } else {
-            runCombineProcessor(kvIter, writer);
-          }
-
-          //close
-          writer.close();
-          rawLength = writer.getRawLength();
-          partLength = writer.getCompressedLength();
-        }
-        outputBytesWithOverheadCounter.increment(rawLength);
-
-        // record offsets
-        final TezIndexRecord rec =
-            new TezIndexRecord(segmentStart, rawLength, partLength);
-        spillRec.putIndex(rec, parts);
-        if (reportPartitionStats()) {
-          partitionStats[parts] += partLength;
+      final int mergeThreads = Math.min(finalMergeThreads, partitions);
+      if (mergeThreads > 1 && (combiner == null || numSpills < minSpillsForCombine)) {
+        parallelFinalMerge(finalOut, spillRec, mergeThreads);
+      } else {
+        for (int parts = 0; parts < partitions; parts++) {
+          mergePartition(parts, finalOut, spillRec);
         }
+        finalOut.close();
       }
 
       numShuffleChunks.setValue(1); //final merge has happened.
       fileOutputByteCounter.increment(rfs.getFileStatus(finalOutputFile).getLen());
 
       spillRec.writeToFile(finalIndexFile, conf);
-      finalOut.close();
       for (int i = 0; i < numSpills; i++) {
         Path indexFilename = spillFileIndexPaths.get(i);
         Path spillFilename = spillFilePaths.get(i);
@@ -850,6 +912,177 @@ public class PipelinedSorter extends ExternalSorter {
       }
       Thread.currentThread().interrupt();
       throw new IOInterruptedException("Interrupted while closing Output", ie);
+    } finally {
+      if (!buffers.isEmpty()) {
+        // Failed before the buffers were released
+        releaseBuffers(stopSortThreads());
+      }
+    }
+  }
+
+  /**
+   * Merge a single partition from all spills, and append it to the given stream.
+   * The index record is relative to the start of that stream.
+   */
+  private void mergePartition(int parts, FSDataOutputStream finalOut, TezSpillRecord spillRec)
+      throws IOException, InterruptedException {
+    boolean shouldWrite = false;
+    //create the segments to be merged
+    List<Segment> segmentList =
+        new ArrayList<Segment>(numSpills);
+    for (int i = 0; i < numSpills; i++) {
+      Path spillFilename = spillFilePaths.get(i);
+      TezIndexRecord indexRecord = indexCacheList.get(i).getIndex(parts);
+      if (indexRecord.hasData() || !sendEmptyPartitionDetails) {
+        shouldWrite = true;
+        DiskSegment s =
+            new DiskSegment(rfs, spillFilename, indexRecord.getStartOffset(),
+                indexRecord.getPartLength(), codec, ifileReadAhead,
+                ifileReadAheadLength, ifileBufferSize, true);
+        segmentList.add(s);
+      }
+    }
+
+    int mergeFactor =
+        this.conf.getInt(TezRuntimeConfiguration.TEZ_RUNTIME_IO_SORT_FACTOR,
+            TezRuntimeConfiguration.TEZ_RUNTIME_IO_SORT_FACTOR_DEFAULT);
+    // sort the segments only if there are intermediate merges
+    boolean sortSegments = segmentList.size() > mergeFactor;
+    //merge
+    TezRawKeyValueIterator kvIter = TezMerger.merge(conf, rfs,
+        keyClass, valClass, codec,
+        segmentList, mergeFactor,
+        // intermediate merge files must not clash with concurrently merged partitions
+        new Path(outputContext.getUniqueIdentifier() + "_" + parts),
+        (RawComparator) ConfigUtils.getIntermediateOutputKeyComparator(conf),
+        progressable, sortSegments, true,
+        null, spilledRecordsCounter, additionalSpillBytesRead,
+        null, merger.needsRLE()); // Not using any Progress in TezMerger. Should just work.
+    TezMergePlanner.MergePlan mergePlan = TezMerger.getMergePlan(kvIter);
+    if (mergePlan != null) {
+      mergePlan.updateCounters(outputContext.getCounters());
+    }
+    //write merged output to disk
+    long segmentStart = finalOut.getPos();
+    long rawLength = 0;
+    long partLength = 0;
+    if (shouldWrite) {
+      Writer writer =
+          new Writer(conf, finalOut, keyClass, valClass, codec,
+              spilledRecordsCounter, null, merger.needsRLE());
+      if (combiner == null || numSpills < minSpillsForCombine) {
+        TezMerger.writeFile(kvIter, writer, progressable,
+            TezRuntimeConfiguration.TEZ_RUNTIME_RECORDS_BEFORE_PROGRESS_DEFAULT);
+      } else {
+        runCombineProcessor(kvIter, writer);
+      }
+
+      //close
+      writer.close();
+      rawLength = writer.getRawLength();
+      partLength = writer.getCompressedLength();
+    }
+    outputBytesWithOverheadCounter.increment(rawLength);
+
+    // record offsets
+    final TezIndexRecord rec =
+        new TezIndexRecord(segmentStart, rawLength, partLength);
+    spillRec.putIndex(rec, parts);
+    if (reportPartitionStats()) {
+      partitionStats[parts] += partLength;
+    }
+  }
+
+  /**
+   * Merge partitions concurrently. Partitions are split into contiguous ranges, one per
+   * thread. Compressed partition sizes are not known upfront, so the first range is written
+   * to the final output directly while the others go to files of their own on the same
+   * volume, which are then appended to the final output (in kernel, via transferTo) and
+   * their index records shifted accordingly. Closes finalOut.
+   */
+  private void parallelFinalMerge(final FSDataOutputStream finalOut,
+      final TezSpillRecord spillRec, int mergeThreads)
+      throws IOException, InterruptedException {
+    LOG.info(outputContext.getDestinationVertexName() + ": Merging " + partitions
+        + " partitions from " + numSpills + " spills with " + mergeThreads + " threads");
+    final int[] rangeStart = new int[mergeThreads + 1];
+    for (int i = 0; i <= mergeThreads; i++) {
+      rangeStart[i] = (int) (((long) partitions * i) / mergeThreads);
+    }
+    final Path[] rangeFiles = new Path[mergeThreads];
+    ExecutorService finalMergers = Executors.newFixedThreadPool(mergeThreads,
+        new ThreadFactoryBuilder().setDaemon(true)
+            .setNameFormat("FinalMerger {" + TezUtilsInternal
+                .cleanVertexName(outputContext.getDestinationVertexName()) + "} #%d")
+            .build());
+    try {
+      List<Future<Void>> futures = Lists.newArrayListWithCapacity(mergeThreads);
+      for (int i = 0; i < mergeThreads; i++) {
+        final int range = i;
+        if (range > 0) {
+          rangeFiles[range] = finalOutputFile.suffix("_range" + range);
+        }
+        futures.add(finalMergers.submit(new CallableWithNdc<Void>() {
+          @Override
+          protected Void callInternal() throws Exception {
+            FSDataOutputStream out = finalOut;
+            if (range > 0) {
+              out = rfs.create(rangeFiles[range], true, 4096);
+            }
+            try {
+              for (int parts = rangeStart[range]; parts < rangeStart[range + 1]; parts++) {
+                mergePartition(parts, out, spillRec);
+              }
+            } finally {
+              if (range > 0) {
+                out.close();
+              } else {
+                out.flush();
+              }
+            }
+            return null;
+          }
+        }));
+      }
+      for (Future<Void> future : futures) {
+        try {
+          future.get();
+        } catch (ExecutionException e) {
+          throw new IOException("Final merge failed for "
+              + outputContext.getDestinationVertexName(), e.getCause());
+        }
+      }
+    } finally {
+      finalMergers.shutdownNow();
+    }
+
+    finalOut.close();
+    RawLocalFileSystem localFs = (RawLocalFileSystem) rfs;
+    FileOutputStream append = new FileOutputStream(localFs.pathToFile(finalOutputFile), true);
+    try {
+      FileChannel target = append.getChannel();
+      for (int range = 1; range < mergeThreads; range++) {
+        final long base = target.size();
+        FileInputStream rangeIn = new FileInputStream(localFs.pathToFile(rangeFiles[range]));
+        try {
+          FileChannel source = rangeIn.getChannel();
+          long transferred = 0;
+          final long size = source.size();
+          while (transferred < size) {
+            transferred += source.transferTo(transferred, size - transferred, target);
+          }
+        } finally {
+          rangeIn.close();
+        }
+        rfs.delete(rangeFiles[range], true);
+        for (int parts = rangeStart[range]; parts < rangeStart[range + 1]; parts++) {
+          TezIndexRecord rec = spillRec.getIndex(parts);
+          spillRec.putIndex(new TezIndexRecord(rec.getStartOffset() + base,
+              rec.getRawLength(), rec.getPartLength()), parts);
+        }
+      }
+    } finally {
+      append.close();
     }
   }
 
@@ -904,8 +1137,17 @@ public class PipelinedSorter extends ExternalSorter {
       super.reset(data, start, length);
     }
 
+    // deep copy from a (direct) buffer, which has no backing array
+    public void copy(ByteBuffer source, int start, int length) {
+      resize(length);
+      ByteBuffer src = source.duplicate();
+      src.limit(start + length);
+      src.position(start);
+      src.get(buffer, 0, length);
+      super.reset(buffer, 0, length);
+    }
+
     // deep copy
-    @SuppressWarnings("unused")
     public void copy(DataInputBuffer clone) {
       byte[] data = clone.getData();
       int start = clone.getPosition();
@@ -923,7 +1165,12 @@ public class PipelinedSorter extends ExternalSorter {
     final ByteBuffer kvbuffer;
     final NonSyncDataOutputStream out;
     final RawComparator comparator;
-    final byte[] imeta = new byte[METASIZE];
+    final byte[] imeta = new byte[metaSize];
+    // Keys in direct buffers are copied here before handing them to the comparator
+    private byte[] ikey;
+    private byte[] jkey;
+    // bucket boundaries for every digit of the radix sort, allocated on first use
+    private int[][] radixBuckets;
 
     private int index = 0;
     private long eq = 0;
@@ -933,11 +1180,11 @@ public class PipelinedSorter extends ExternalSorter {
 
     public SortSpan(ByteBuffer source, int maxItems, int perItem, RawComparator comparator) {
       capacity = source.remaining();
-      int metasize = METASIZE*maxItems;
+      int metasize = metaSize*maxItems;
       int dataSize = maxItems * perItem;
       if(capacity < (metasize+dataSize)) {
         // try to allocate less meta space, because we have sample data
-        metasize = METASIZE*(capacity/(perItem+METASIZE));
+        metasize = metaSize*(capacity/(perItem+metaSize));
       }
       ByteBuffer reserved = source.duplicate();
       reserved.mark();
@@ -948,8 +1195,13 @@ public class PipelinedSorter extends ExternalSorter {
       reserved.flip();
       reserved.limit(metasize);
       ByteBuffer kvmetabuffer = reserved.slice();
-      rawkvmeta = kvmetabuffer.array();
-      kvmetabase = kvmetabuffer.arrayOffset();
+      if (kvmetabuffer.hasArray()) {
+        rawkvmeta = kvmetabuffer.array();
+        kvmetabase = kvmetabuffer.arrayOffset();
+      } else {
+        rawkvmeta = null;
+        kvmetabase = 0;
+      }
       kvmeta = kvmetabuffer
                 .order(ByteOrder.nativeOrder())
                .asIntBuffer();
@@ -961,7 +1213,11 @@ public class PipelinedSorter extends ExternalSorter {
     public SpanIterator sort(IndexedSorter sorter) {
       long start = System.currentTimeMillis();
       if(length() > 1) {
-        sorter.sort(this, 0, length(), progressable);
+        if (radixSort) {
+          radixSort(sorter, 0, length(), 0);
+        } else {
+          sorter.sort(this, 0, length(), progressable);
+        }
       }
       LOG.info(outputContext.getDestinationVertexName() + ": " + "done sorting span=" + index + ", length=" + length() + ", "
           + "time=" + (System.currentTimeMillis() - start));
@@ -969,18 +1225,108 @@ public class PipelinedSorter extends ExternalSorter {
     }
 
     int offsetFor(int i) {
-      return (i * NMETA);
+      return (i * nmeta);
+    }
+
+    /**
+     * First {@link #PREFIX_BYTES} bytes of the serialized key as an unsigned value,
+     * zero padded for shorter keys.
+     */
+    long keyPrefix(final int keystart, final int keylen) {
+      long prefix = 0;
+      for (int i = 0; i < PREFIX_BYTES; i++) {
+        prefix <<= 8;
+        if (i < keylen) {
+          prefix |= (kvbuffer.get(keystart + i) & 0xff);
+        }
+      }
+      return prefix;
+    }
+
+    /**
+     * Digit 0 is the partition, digits 1 to {@link #PREFIX_BYTES} are the bytes of
+     * the key prefix.
+     */
+    private int radixDigit(final int mi, final int digit) {
+      final int kvi = offsetFor(mi);
+      if (digit == 0) {
+        return kvmeta.get(kvi + PARTITION) >>> (32 - partitionBits);
+      } else if (digit <= 4) {
+        return (kvmeta.get(kvi + PREFIXHI) >>> (8 * (4 - digit))) & 0xff;
+      } else {
+        return (kvmeta.get(kvi + PREFIXLO) >>> (8 * (PREFIX_BYTES - digit))) & 0xff;
+      }
+    }
+
+    /**
+     * In-place MSD radix sort (american flag sort) of [lo, hi) on the partition
+     * followed by the bytes of the key prefix. Small ranges, and ranges whose
+     * records share the same prefix, are handed over to the IndexedSorter which
+     * only needs to invoke the comparator on keys with equal prefixes.
+     */
+    private void radixSort(final IndexedSorter sorter, final int lo, final int hi,
+        final int digit) {
+      if (hi - lo < 2) {
+        return;
+      }
+      if (digit > PREFIX_BYTES || hi - lo <= RADIX_SORT_THRESHOLD) {
+        sorter.sort(this, lo, hi, progressable);
+        return;
+      }
+      if (radixBuckets == null) {
+        radixBuckets = new int[PREFIX_BYTES + 1][];
+        radixBuckets[0] = new int[partitions + 1];
+        for (int i = 1; i <= PREFIX_BYTES; i++) {
+          radixBuckets[i] = new int[256 + 1];
+        }
+      }
+      // bucket b occupies [buckets[b], buckets[b + 1])
+      final int[] buckets = radixBuckets[digit];
+      final int radix = buckets.length - 1;
+      Arrays.fill(buckets, 0);
+      for (int i = lo; i < hi; i++) {
+        buckets[radixDigit(i, digit) + 1]++;
+      }
+      buckets[0] = lo;
+      for (int b = 0; b < radix; b++) {
+        buckets[b + 1] += buckets[b];
+      }
+      // move every record into its bucket, filling the buckets front to back
+      final int[] next = Arrays.copyOf(buckets, radix);
+      for (int b = 0; b < radix; b++) {
+        final int end = buckets[b + 1];
+        while (next[b] < end) {
+          final int d = radixDigit(next[b], digit);
+          if (d == b) {
+            next[b]++;
+          } else {
+            swap(next[b], next[d]++);
+          }
+        }
+      }
+      for (int b = 0; b < radix; b++) {
+        radixSort(sorter, buckets[b], buckets[b + 1], digit + 1);
+      }
     }
 
     public void swap(final int mi, final int mj) {
       final int kvi = offsetFor(mi);
       final int kvj = offsetFor(mj);
 
+      if (rawkvmeta == null) {
+        for (int i = 0; i < nmeta; i++) {
+          final int tmp = kvmeta.get(kvi + i);
+          kvmeta.put(kvi + i, kvmeta.get(kvj + i));
+          kvmeta.put(kvj + i, tmp);
+        }
+        return;
+      }
+
       final int kvioff = kvmetabase + (kvi << 2);
       final int kvjoff = kvmetabase + (kvj << 2);
-      System.arraycopy(rawkvmeta, kvioff, imeta, 0, METASIZE);
-      System.arraycopy(rawkvmeta, kvjoff, rawkvmeta, kvioff, METASIZE);
-      System.arraycopy(imeta, 0, rawkvmeta, kvjoff, METASIZE);
+      System.arraycopy(rawkvmeta, kvioff, imeta, 0, metaSize);
+      System.arraycopy(rawkvmeta, kvjoff, rawkvmeta, kvioff, metaSize);
+      System.arraycopy(imeta, 0, rawkvmeta, kvjoff, metaSize);
     }
 
     protected int compareKeys(final int kvi, final int kvj) {
@@ -996,11 +1342,18 @@ public class PipelinedSorter extends ExternalSorter {
         return ilen - jlen;
       }
 
-      final byte[] buf = kvbuffer.array();
-      final int off = kvbuffer.arrayOffset();
+      final int cmp;
+      if (kvbuffer.hasArray()) {
+        final byte[] buf = kvbuffer.array();
+        final int off = kvbuffer.arrayOffset();
 
-      // sort by key
-      final int cmp = comparator.compare(buf, off + istart, ilen, buf, off + jstart, jlen);
+        // sort by key
+        cmp = comparator.compare(buf, off + istart, ilen, buf, off + jstart, jlen);
+      } else {
+        ikey = copyKey(ikey, istart, ilen);
+        jkey = copyKey(jkey, jstart, jlen);
+        cmp = comparator.compare(ikey, 0, ilen, jkey, 0, jlen);
+      }
       if(cmp == 0) eq++;
       return cmp;
     }
@@ -1015,6 +1368,16 @@ public class PipelinedSorter extends ExternalSorter {
       if (kvip != kvjp) {
         return kvip - kvjp;
       }
+      if (radixSort) {
+        // then by key prefix, only comparing keys when the prefixes match
+        int cmp = Integer.compareUnsigned(kvmeta.get(kvi + PREFIXHI), kvmeta.get(kvj + PREFIXHI));
+        if (cmp == 0) {
+          cmp = Integer.compareUnsigned(kvmeta.get(kvi + PREFIXLO), kvmeta.get(kvj + PREFIXLO));
+        }
+        if (cmp != 0) {
+          return cmp;
+        }
+      }
       return compareKeys(kvi, kvj);
     }
 
@@ -1047,7 +1410,7 @@ public class PipelinedSorter extends ExternalSorter {
     }
 
     public int length() {
-      return kvmeta.limit()/NMETA;
+      return kvmeta.limit()/nmeta;
     }
 
     public ByteBuffer end() {
@@ -1062,7 +1425,7 @@ public class PipelinedSorter extends ExternalSorter {
       }
       int perItem = kvbuffer.position()/items;
       LOG.info(outputContext.getDestinationVertexName() + ": " + String.format("Span%d.length = %d, perItem = %d", index, length(), perItem));
-      if(remaining.remaining() < METASIZE+perItem) {
+      if(remaining.remaining() < metaSize+perItem) {
         //Check if we can get the next Buffer from the main buffer list
         ByteBuffer space = allocateSpace();
         if (space != null) {
@@ -1087,15 +1450,34 @@ public class PipelinedSorter extends ExternalSorter {
       } else {
         keystart = kvmeta.get(this.offsetFor(index) + KEYSTART);
         valstart = kvmeta.get(this.offsetFor(index) + VALSTART);
-        final byte[] buf = kvbuffer.array();
-        final int off = kvbuffer.arrayOffset();
+        final byte[] buf;
+        final int off;
+        if (kvbuffer.hasArray()) {
+          buf = kvbuffer.array();
+          off = kvbuffer.arrayOffset() + keystart;
+        } else {
+          ikey = copyKey(ikey, keystart, valstart - keystart);
+          buf = ikey;
+          off = 0;
+        }
         cmp = comparator.compare(buf,
-            keystart + off , (valstart - keystart),
+            off, (valstart - keystart),
             needle.getData(),
             needle.getPosition(), (needle.getLength() - needle.getPosition()));
       }
       return cmp;
     }
+
+    private byte[] copyKey(byte[] dest, int start, int length) {
+      if (dest == null || dest.length < length) {
+        dest = new byte[Math.max(length, 256)];
+      }
+      ByteBuffer src = kvbuffer.duplicate();
+      src.limit(start + length);
+      src.position(start);
+      src.get(dest, 0, length);
+      return dest;
+    }
     
     public long getEq() {
       return eq;
@@ -1103,7 +1485,7 @@ public class PipelinedSorter extends ExternalSorter {
     
     @Override
     public String toString() {
-        return String.format("Span[%d,%d]", NMETA*kvmeta.capacity(), kvbuffer.limit());
+        return String.format("Span[%d,%d]", nmeta*kvmeta.capacity(), kvbuffer.limit());
     }
   }
 
@@ -1123,12 +1505,16 @@ public class PipelinedSorter extends ExternalSorter {
       this.kvmeta = span.kvmeta;
       this.kvbuffer = span.kvbuffer;
       this.span = span;
-      this.maxindex = (kvmeta.limit()/NMETA) - 1;
+      this.maxindex = span.length() - 1;
     }
 
     public DataInputBuffer getKey()  {
       final int keystart = kvmeta.get(span.offsetFor(kvindex) + KEYSTART);
       final int valstart = kvmeta.get(span.offsetFor(kvindex) + VALSTART);
+      if (!kvbuffer.hasArray()) {
+        key.copy(kvbuffer, keystart, valstart - keystart);
+        return key;
+      }
       final byte[] buf = kvbuffer.array();
       final int off = kvbuffer.arrayOffset();
       key.reset(buf, off + keystart, valstart - keystart);
@@ -1138,6 +1524,10 @@ public class PipelinedSorter extends ExternalSorter {
     public DataInputBuffer getValue() {
       final int valstart = kvmeta.get(span.offsetFor(kvindex) + VALSTART);
       final int vallen = kvmeta.get(span.offsetFor(kvindex) + VALLEN);
+      if (!kvbuffer.hasArray()) {
+        value.copy(kvbuffer, valstart, vallen);
+        return value;
+      }
       final byte[] buf = kvbuffer.array();
       final int off = kvbuffer.arrayOffset();
       value.reset(buf, off + valstart, vallen);
@@ -1444,8 +1834,15 @@ public class PipelinedSorter extends ExternalSorter {
 
       if(current != null) {
         partition = current.getPartition();
-        key.reset(current.getKey());
-        value.reset(current.getValue());
+        if (useDirectBuffers) {
+          // the iterators hand out copies which get overwritten while
+          // re-inserting into the heap, so these need a copy of their own
+          key.copy(current.getKey());
+          value.copy(current.getValue());
+        } else {
+          key.reset(current.getKey());
+          value.reset(current.getValue());
+        }
         if(gallop <= 0) {
           // since all keys and values are references to the kvbuffer, no more deep copies
           this.add(current);
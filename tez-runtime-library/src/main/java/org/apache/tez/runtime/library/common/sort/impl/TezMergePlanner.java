@@ -0,0 +1,197 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.runtime.library.common.sort.impl;
+
+import java.util.List;
+import java.util.PriorityQueue;
+
+import org.apache.hadoop.classification.InterfaceAudience;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.tez.common.TezRuntimeFrameworkConfigs;
+import org.apache.tez.common.counters.TaskCounter;
+import org.apache.tez.common.counters.TezCounters;
+import org.apache.tez.runtime.library.api.TezRuntimeConfiguration;
+import org.apache.tez.runtime.library.common.sort.impl.TezMerger.Segment;
+
+import com.google.common.annotations.VisibleForTesting;
+
+/**
+ * Picks the merge factor used by {@link TezMerger} based on the segments
+ * being merged.
+ *
+ * With a fixed factor, a merge over slightly more segments than the factor
+ * needs an intermediate pass which rewrites part of the data, even if the
+ * task could afford to read all of them at once. The planner looks at the
+ * sizes of the segments and raises the factor (it never goes below the
+ * configured one) up to the limit given by the memory budget for segment
+ * buffers and the number of local directories. Within that range it simulates
+ * the passes TezMerger would make and picks the smallest factor which
+ * minimizes the bytes written by intermediate passes.
+ */
+@InterfaceAudience.Private
+public class TezMergePlanner {
+
+  /**
+   * Merge plan, i.e. the factor to merge with and what it is expected to cost.
+   */
+  public static class MergePlan {
+    private final int factor;
+    private final int intermediatePasses;
+    private final long intermediateBytes;
+
+    MergePlan(int factor, int intermediatePasses, long intermediateBytes) {
+      this.factor = factor;
+      this.intermediatePasses = intermediatePasses;
+      this.intermediateBytes = intermediateBytes;
+    }
+
+    public int getFactor() {
+      return factor;
+    }
+
+    public int getIntermediatePasses() {
+      return intermediatePasses;
+    }
+
+    public long getIntermediateBytes() {
+      return intermediateBytes;
+    }
+
+    public void updateCounters(TezCounters counters) {
+      counters.findCounter(TaskCounter.MERGE_PLANS).increment(1);
+      counters.findCounter(TaskCounter.MERGE_PLAN_FACTOR).increment(factor);
+      counters.findCounter(TaskCounter.MERGE_PLAN_INTERMEDIATE_PASSES).increment(intermediatePasses);
+      counters.findCounter(TaskCounter.MERGE_PLAN_INTERMEDIATE_BYTES).increment(intermediateBytes);
+    }
+
+    @Override
+    public String toString() {
+      return "factor=" + factor + ", intermediatePasses=" + intermediatePasses
+          + ", intermediateBytes=" + intermediateBytes;
+    }
+  }
+
+  private final int maxFactor;
+
+  public TezMergePlanner(Configuration conf) {
+    this(conf, Runtime.getRuntime().maxMemory());
+  }
+
+  @VisibleForTesting
+  TezMergePlanner(Configuration conf, long maxMemory) {
+    float memoryFraction = conf.getFloat(
+        TezRuntimeConfiguration.TEZ_RUNTIME_MERGE_PLANNER_MEMORY_FRACTION,
+        TezRuntimeConfiguration.TEZ_RUNTIME_MERGE_PLANNER_MEMORY_FRACTION_DEFAULT);
+    int segmentBytes = Math.max(1, conf.getInt(
+        TezRuntimeConfiguration.TEZ_RUNTIME_MERGE_PLANNER_SEGMENT_BYTES,
+        TezRuntimeConfiguration.TEZ_RUNTIME_MERGE_PLANNER_SEGMENT_BYTES_DEFAULT));
+    int segmentsPerDisk = conf.getInt(
+        TezRuntimeConfiguration.TEZ_RUNTIME_MERGE_PLANNER_SEGMENTS_PER_DISK,
+        TezRuntimeConfiguration.TEZ_RUNTIME_MERGE_PLANNER_SEGMENTS_PER_DISK_DEFAULT);
+    int numDisks = Math.max(1,
+        conf.getTrimmedStrings(TezRuntimeFrameworkConfigs.LOCAL_DIRS).length);
+
+    long memoryLimit = (long) (maxMemory * memoryFraction) / segmentBytes;
+    long diskLimit = (long) segmentsPerDisk * numDisks;
+    this.maxFactor = (int) Math.min(Integer.MAX_VALUE, Math.min(memoryLimit, diskLimit));
+  }
+
+  @VisibleForTesting
+  int getMaxFactor() {
+    return maxFactor;
+  }
+
+  /**
+   * Plan a merge.
+   *
+   * @param segments segments in the order TezMerger will merge them, i.e. the
+   *                 in-memory segments first followed by the on-disk segments
+   *                 sorted by length
+   * @param inMem number of in-memory segments at the start of the list
+   * @param factor configured merge factor
+   * @return the plan to merge with
+   */
+  public MergePlan plan(List<Segment> segments, int inMem, int factor) {
+    long[] sizes = new long[segments.size()];
+    for (int i = 0; i < sizes.length; i++) {
+      sizes[i] = segments.get(i).getLength();
+    }
+    return plan(sizes, inMem, factor);
+  }
+
+  @VisibleForTesting
+  MergePlan plan(long[] sizes, int inMem, int factor) {
+    int onDisk = sizes.length - inMem;
+    if (factor < 2) {
+      // Nothing to plan, such a merge can never reduce the number of segments
+      return new MergePlan(factor, 0, 0);
+    }
+    int upper = Math.max(factor, maxFactor);
+    if (onDisk <= upper) {
+      // Everything can be read at once, so no intermediate passes
+      return new MergePlan(Math.max(factor, onDisk), 0, 0);
+    }
+
+    MergePlan best = simulate(sizes, inMem, factor);
+    for (int f = factor + 1; f <= upper && best.getIntermediateBytes() > 0; f++) {
+      MergePlan candidate = simulate(sizes, inMem, f);
+      if (candidate.getIntermediateBytes() < best.getIntermediateBytes()
+          || (candidate.getIntermediateBytes() == best.getIntermediateBytes()
+              && candidate.getIntermediatePasses() < best.getIntermediatePasses())) {
+        best = candidate;
+      }
+    }
+    return best;
+  }
+
+  /**
+   * Simulate the passes TezMerger makes with the given factor: the first pass
+   * is sized so that the remaining passes are full, every pass merges the
+   * smallest segments, and the last pass is not materialized.
+   */
+  @VisibleForTesting
+  static MergePlan simulate(long[] sizes, int inMem, int factor) {
+    int n = sizes.length;
+    int first = TezMerger.MergeQueue.getPassFactor(factor, 1, n - inMem) + inMem;
+    if (n <= first) {
+      return new MergePlan(factor, 0, 0);
+    }
+    long merged = 0;
+    for (int i = 0; i < first; i++) {
+      merged += sizes[i];
+    }
+    PriorityQueue<Long> remaining = new PriorityQueue<Long>(n - first + 1);
+    for (int i = first; i < n; i++) {
+      remaining.add(sizes[i]);
+    }
+    remaining.add(merged);
+    long bytes = merged;
+    int passes = 1;
+    while (remaining.size() > factor) {
+      merged = 0;
+      for (int i = 0; i < factor; i++) {
+        merged += remaining.poll();
+      }
+      remaining.add(merged);
+      bytes += merged;
+      passes++;
+    }
+    return new MergePlan(factor, passes, bytes);
+  }
+}
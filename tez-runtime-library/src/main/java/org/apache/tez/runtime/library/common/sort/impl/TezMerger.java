@@ -228,6 +228,18 @@ public class TezMerger {
     }
   }
 
+  /**
+   * @param iter iterator returned by one of the merge methods
+   * @return the plan the merge was made with, or null if the merge did not
+   *         go through {@link TezMergePlanner}
+   */
+  public static TezMergePlanner.MergePlan getMergePlan(TezRawKeyValueIterator iter) {
+    if (iter instanceof MergeQueue) {
+      return ((MergeQueue) iter).mergePlan;
+    }
+    return null;
+  }
+
   @InterfaceAudience.Private
   @InterfaceStability.Unstable
   static class KeyValueBuffer {
@@ -352,6 +364,7 @@ public class TezMerger {
     boolean ifileReadAhead;
     int ifileReadAheadLength;
     int bufferSize = -1;
+    boolean mappedReads = false;
 
     public DiskSegment(FileSystem fs, Path file,
         CompressionCodec codec, boolean ifileReadAhead,
@@ -400,12 +413,27 @@ public class TezMerger {
     @Override
     void init(TezCounter readsCounter, TezCounter bytesReadCounter) throws IOException {
       super.init(readsCounter, bytesReadCounter);
+      if (mappedReads) {
+        reader = MappedIFileReader.tryOpen(fs, file, segmentOffset, segmentLength,
+            readsCounter, bytesReadCounter);
+        if (reader != null) {
+          return;
+        }
+      }
       FSDataInputStream in = fs.open(file);
       in.seek(segmentOffset);
       reader = new Reader(in, segmentLength, codec, readsCounter, bytesReadCounter, ifileReadAhead,
           ifileReadAheadLength, bufferSize);
     }
 
+    /**
+     * Read the segment through a memory mapped view of the file when it is an
+     * uncompressed segment on the local filesystem. Must be set before init.
+     */
+    void setMappedReads(boolean mappedReads) {
+      this.mappedReads = mappedReads;
+    }
+
     @Override
     boolean inMemory() {
       return false;
@@ -451,6 +479,9 @@ public class TezMerger {
     final FileSystem fs;
     final CompressionCodec codec;
     final boolean checkForSameKeys;
+    final boolean mappedReads;
+    final TezMergePlanner planner;
+    TezMergePlanner.MergePlan mergePlan;
     static final boolean ifileReadAhead = TezRuntimeConfiguration.TEZ_RUNTIME_IFILE_READAHEAD_DEFAULT;
     static final int ifileReadAheadLength = TezRuntimeConfiguration.TEZ_RUNTIME_IFILE_READAHEAD_BYTES_DEFAULT;
     static final int ifileBufferSize = TezRuntimeConfiguration.TEZ_RUNTIME_IFILE_BUFFER_SIZE_DEFAULT;
@@ -500,6 +531,8 @@ public class TezMerger {
     throws IOException {
       this.conf = conf;
       this.checkForSameKeys = true;
+      this.mappedReads = useMappedReads(conf);
+      this.planner = createPlanner(conf);
       // this.recordsBeforeProgress =
       // conf.getLong(TezJobConfig.TEZ_RUNTIME_RECORDS_BEFORE_PROGRESS,
       // TezJobConfig.TEZ_RUNTIME_RECORDS_BEFORE_PROGRESS_DEFAULT);
@@ -555,6 +588,21 @@ public class TezMerger {
       }
       this.checkForSameKeys = checkForSameKeys;
       this.codec = codec;
+      this.mappedReads = useMappedReads(conf);
+      this.planner = createPlanner(conf);
+    }
+
+    private static TezMergePlanner createPlanner(Configuration conf) {
+      if (conf != null && conf.getBoolean(TezRuntimeConfiguration.TEZ_RUNTIME_MERGE_PLANNER_ENABLED,
+          TezRuntimeConfiguration.TEZ_RUNTIME_MERGE_PLANNER_ENABLED_DEFAULT)) {
+        return new TezMergePlanner(conf);
+      }
+      return null;
+    }
+
+    private static boolean useMappedReads(Configuration conf) {
+      return conf != null && conf.getBoolean(TezRuntimeConfiguration.TEZ_RUNTIME_IFILE_MMAP_READS,
+          TezRuntimeConfiguration.TEZ_RUNTIME_IFILE_MMAP_READS_DEFAULT);
     }
 
     public void close() throws IOException {
@@ -722,6 +770,14 @@ public class TezMerger {
        * factor segments in the segments list.
        */
       int numSegments = segments.size();
+      if (planner != null && numSegments - inMem > factor) {
+        mergePlan = planner.plan(segments, inMem, factor);
+        if (mergePlan.getFactor() != factor) {
+          LOG.info("Merging " + numSegments + " segments with a planned merge factor of "
+              + mergePlan + ", configured factor=" + factor);
+        }
+        factor = mergePlan.getFactor();
+      }
       int origFactor = factor;
       int passNo = 1;
       if (mergePhase != null) {
@@ -756,7 +812,9 @@ public class TezMerger {
           for (Segment segment : mStream) {
             // Initialize the segment at the last possible moment;
             // this helps in ensuring we don't use buffers until we need them
-
+            if (mappedReads && segment instanceof DiskSegment) {
+              ((DiskSegment) segment).setMappedReads(true);
+            }
             segment.init(readsCounter, bytesReadCounter);
             long startPos = segment.getPosition();
             boolean hasNext = segment.nextRawKey(nextKey);
@@ -902,7 +960,7 @@ public class TezMerger {
      * number of segments - 1 to be divisible by the factor - 1 (each pass
      * takes X segments and produces 1) to minimize the number of merges.
      */
-    private static int getPassFactor(int factor, int passNo, int numSegments) {
+    static int getPassFactor(int factor, int passNo, int numSegments) {
       // passNo > 1 in the OR list - is that correct ?
       if (passNo > 1 || numSegments <= factor || factor == 1) 
         return factor;
@@ -58,6 +58,12 @@ public class TezSpillRecord {
     this(indexFileName, job, new PureJavaCrc32(), expectedIndexOwner);
   }
 
+  /**
+   * Reads an index file into a heap buffer. The index is not memory mapped like
+   * the spill data read by {@link MappedIFileReader}: it is only 24 bytes per
+   * partition, read once per spill, and has to stay writable for
+   * {@link #putIndex} and {@link #writeToFile}.
+   */
   public TezSpillRecord(Path indexFileName, Configuration job, Checksum crc,
                      String expectedIndexOwner)
       throws IOException {
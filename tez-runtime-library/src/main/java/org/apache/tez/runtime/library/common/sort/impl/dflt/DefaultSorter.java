@@ -51,10 +51,12 @@ import org.apache.tez.runtime.api.Event;
 import org.apache.tez.runtime.api.OutputContext;
 import org.apache.tez.runtime.library.api.TezRuntimeConfiguration;
 import org.apache.tez.runtime.library.common.ConfigUtils;
+import org.apache.tez.runtime.library.common.combine.HashCombineBuffer;
 import org.apache.tez.runtime.library.common.shuffle.ShuffleUtils;
 import org.apache.tez.runtime.library.common.sort.impl.ExternalSorter;
 import org.apache.tez.runtime.library.common.sort.impl.IFile;
 import org.apache.tez.runtime.library.common.sort.impl.TezIndexRecord;
+import org.apache.tez.runtime.library.common.sort.impl.TezMergePlanner;
 import org.apache.tez.runtime.library.common.sort.impl.TezMerger;
 import org.apache.tez.runtime.library.common.sort.impl.TezRawKeyValueIterator;
 import org.apache.tez.runtime.library.common.sort.impl.TezSpillRecord;
@@ -120,6 +122,8 @@ public final class DefaultSorter extends ExternalSorter implements IndexedSortab
   final SpillThread spillThread = new SpillThread();
   private final Deflater deflater;
   private final String auxiliaryService;
+  // Combines records before they are collected, null if disabled
+  private final HashCombineBuffer hashCombineBuffer;
 
   final ArrayList<TezSpillRecord> indexCacheList =
     new ArrayList<TezSpillRecord>();
@@ -191,6 +195,25 @@ public final class DefaultSorter extends ExternalSorter implements IndexedSortab
     valSerializer.open(bb);
     keySerializer.open(bb);
 
+    if (hashCombineBufferBytes > 0) {
+      LOG.info(outputContext.getDestinationVertexName() + ": Combining records in a hash table of "
+          + hashCombineBufferBytes + " bytes before the sort buffer");
+      hashCombineBuffer = new HashCombineBuffer(serializationFactory, keyClass, valClass,
+          partitions, hashCombineBufferBytes) {
+        @Override
+        protected void collect(Object key, Object value, int partition) throws IOException {
+          DefaultSorter.this.collect(key, value, partition);
+        }
+
+        @Override
+        protected void combine(TezRawKeyValueIterator kvIter, Writer writer) throws IOException {
+          runCombineProcessor(kvIter, writer);
+        }
+      };
+    } else {
+      hashCombineBuffer = null;
+    }
+
     spillInProgress = false;
     minSpillsForCombine = this.conf.getInt(TezRuntimeConfiguration.TEZ_RUNTIME_COMBINE_MIN_SPILLS, 3);
     spillThread.setDaemon(true);
@@ -238,8 +261,12 @@ public final class DefaultSorter extends ExternalSorter implements IndexedSortab
   @Override
   public void write(Object key, Object value)
       throws IOException {
-    collect(
-        key, value, partitioner.getPartition(key, value, partitions));
+    int partition = partitioner.getPartition(key, value, partitions);
+    if (hashCombineBuffer != null) {
+      hashCombineBuffer.add(key, value, partition);
+    } else {
+      collect(key, value, partition);
+    }
   }
 
   /**
@@ -693,6 +720,10 @@ public final class DefaultSorter extends ExternalSorter implements IndexedSortab
       return;
     }
 
+    if (hashCombineBuffer != null) {
+      hashCombineBuffer.flush();
+    }
+
     spillLock.lock();
     try {
       while (spillInProgress) {
@@ -1363,6 +1394,10 @@ public final class DefaultSorter extends ExternalSorter implements IndexedSortab
                        progressable, sortSegments, true,
                        null, spilledRecordsCounter, additionalSpillBytesRead,
                        null); // Not using any Progress in TezMerger. Should just work.
+        TezMergePlanner.MergePlan mergePlan = TezMerger.getMergePlan(kvIter);
+        if (mergePlan != null) {
+          mergePlan.updateCounters(outputContext.getCounters());
+        }
 
         //write merged output to disk
         long segmentStart = finalOut.getPos();
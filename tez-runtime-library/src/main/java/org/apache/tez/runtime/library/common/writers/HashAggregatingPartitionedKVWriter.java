@@ -0,0 +1,154 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.runtime.library.common.writers;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.tez.common.TezUtilsInternal;
+import org.apache.tez.runtime.api.Event;
+import org.apache.tez.runtime.api.OutputContext;
+import org.apache.tez.runtime.library.api.IOInterruptedException;
+import org.apache.tez.runtime.library.api.TezRuntimeConfiguration;
+import org.apache.tez.runtime.library.common.TezRuntimeUtils;
+import org.apache.tez.runtime.library.common.combine.Combiner;
+import org.apache.tez.runtime.library.common.combine.HashCombineBuffer;
+import org.apache.tez.runtime.library.common.sort.impl.IFile.Writer;
+import org.apache.tez.runtime.library.common.sort.impl.TezRawKeyValueIterator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.annotations.VisibleForTesting;
+
+/**
+ * {@link UnorderedPartitionedKVWriter} which runs the configured combiner on
+ * the records of each partition in a bounded hash table before buffering
+ * them. Every time the table fills up, the partially aggregated records are
+ * written out, so a key may still show up several times in the output, and
+ * the consumer is expected to aggregate them again.
+ *
+ * Without a combiner, records are written as by {@link UnorderedPartitionedKVWriter}.
+ */
+public class HashAggregatingPartitionedKVWriter extends UnorderedPartitionedKVWriter {
+
+  private static final Logger LOG =
+      LoggerFactory.getLogger(HashAggregatingPartitionedKVWriter.class);
+
+  // The hash table needs about twice its data size for the group and value arrays
+  private static final int HASH_MEMORY_PER_DATA_BYTE = 2;
+  private static final int MAX_HASH_BUFFER_BYTES = 1 << 30;
+
+  private final Combiner combiner;
+  private final HashCombineBuffer hashCombineBuffer;
+
+  public HashAggregatingPartitionedKVWriter(OutputContext outputContext, Configuration conf,
+      int numOutputs, long availableMemoryBytes) throws IOException {
+    super(outputContext, conf, numOutputs,
+        availableMemoryBytes - getHashMemory(conf, availableMemoryBytes));
+    this.combiner = TezRuntimeUtils.instantiateCombiner(conf, outputContext);
+    String destName = TezUtilsInternal.cleanVertexName(outputContext.getDestinationVertexName());
+    int hashBufferBytes = (int) Math.min(MAX_HASH_BUFFER_BYTES,
+        getHashMemory(conf, availableMemoryBytes) / HASH_MEMORY_PER_DATA_BYTE);
+    if (combiner != null && hashBufferBytes > 0) {
+      LOG.info(destName + ": Aggregating records with " + combiner.getClass().getName()
+          + " in a hash table of " + hashBufferBytes + " bytes");
+      hashCombineBuffer = new HashCombineBuffer(serializationFactory, keyClass, valClass,
+          numPartitions, hashBufferBytes) {
+        @Override
+        protected void collect(Object key, Object value, int partition) throws IOException {
+          HashAggregatingPartitionedKVWriter.super.write(key, value, partition);
+        }
+
+        @Override
+        protected void combine(TezRawKeyValueIterator kvIter, Writer writer) throws IOException {
+          runCombiner(kvIter, writer);
+        }
+      };
+    } else {
+      LOG.info(destName + ": Records are not aggregated, "
+          + TezRuntimeConfiguration.TEZ_RUNTIME_COMBINER_CLASS + "=" + combiner
+          + ", hashBufferBytes=" + hashBufferBytes);
+      hashCombineBuffer = null;
+    }
+  }
+
+  /**
+   * Memory taken from the assigned memory for the hash table, which is shared
+   * with the output buffers in the proportion they were requested in.
+   */
+  @VisibleForTesting
+  static long getHashMemory(Configuration conf, long availableMemoryBytes) {
+    if (conf.get(TezRuntimeConfiguration.TEZ_RUNTIME_COMBINER_CLASS) == null) {
+      return 0;
+    }
+    long hashMb = getHashMemoryRequestMb(conf);
+    long bufferMb = conf.getInt(
+        TezRuntimeConfiguration.TEZ_RUNTIME_UNORDERED_OUTPUT_BUFFER_SIZE_MB,
+        TezRuntimeConfiguration.TEZ_RUNTIME_UNORDERED_OUTPUT_BUFFER_SIZE_MB_DEFAULT);
+    if (hashMb <= 0 || bufferMb <= 0) {
+      return 0;
+    }
+    return (long) (availableMemoryBytes * ((double) hashMb / (hashMb + bufferMb)));
+  }
+
+  private static long getHashMemoryRequestMb(Configuration conf) {
+    return conf.getInt(TezRuntimeConfiguration.TEZ_RUNTIME_HASH_AGGREGATION_BUFFER_SIZE_MB,
+        TezRuntimeConfiguration.TEZ_RUNTIME_HASH_AGGREGATION_BUFFER_SIZE_MB_DEFAULT);
+  }
+
+  public static long getInitialMemoryRequirement(Configuration conf, long maxAvailableTaskMemory) {
+    long reqBytes = UnorderedPartitionedKVWriter.getInitialMemoryRequirement(conf,
+        maxAvailableTaskMemory);
+    if (conf.get(TezRuntimeConfiguration.TEZ_RUNTIME_COMBINER_CLASS) != null) {
+      long hashMb = Math.max(0, getHashMemoryRequestMb(conf));
+      LOG.info("Requested hash aggregation buffer ("
+          + TezRuntimeConfiguration.TEZ_RUNTIME_HASH_AGGREGATION_BUFFER_SIZE_MB + ") : " + hashMb);
+      reqBytes += hashMb << 20;
+    }
+    return reqBytes;
+  }
+
+  private void runCombiner(TezRawKeyValueIterator kvIter, Writer writer) throws IOException {
+    try {
+      outputContext.notifyProgress();
+      combiner.combine(kvIter, writer);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOInterruptedException("Combiner interrupted", e);
+    }
+  }
+
+  @Override
+  protected void write(Object key, Object value, int partition) throws IOException {
+    if (hashCombineBuffer != null) {
+      hashCombineBuffer.add(key, value, partition);
+    } else {
+      super.write(key, value, partition);
+    }
+  }
+
+  @Override
+  public List<Event> close() throws IOException, InterruptedException {
+    if (hashCombineBuffer != null) {
+      hashCombineBuffer.flush();
+    }
+    return super.close();
+  }
+}
@@ -69,6 +69,7 @@ import org.apache.tez.runtime.library.common.sort.impl.IFile;
 import org.apache.tez.runtime.library.common.sort.impl.TezIndexRecord;
 import org.apache.tez.runtime.library.common.sort.impl.IFile.Writer;
 import org.apache.tez.runtime.library.common.sort.impl.TezSpillRecord;
+import org.apache.tez.runtime.library.common.shuffle.ShufflePartitionPusher;
 import org.apache.tez.runtime.library.common.shuffle.ShuffleUtils;
 import org.apache.tez.runtime.library.shuffle.impl.ShuffleUserPayloads.DataMovementEventPayloadProto;
 import org.slf4j.Logger;
@@ -190,6 +191,9 @@ public class UnorderedPartitionedKVWriter extends BaseUnorderedPartitionedKVWrit
 
   private final long indexFileSizeEstimate;
 
+  // Pushes the final output to the merging shuffle handlers, null if disabled
+  private final ShufflePartitionPusher partitionPusher;
+
   private List<WrappedBuffer> filledBuffers = new ArrayList<>();
 
   public UnorderedPartitionedKVWriter(OutputContext outputContext, Configuration conf,
@@ -285,6 +289,10 @@ public class UnorderedPartitionedKVWriter extends BaseUnorderedPartitionedKVWrit
       skipBuffers = false;
       writer = null;
     }
+    // Only outputs fetched as a whole can be pushed, spills are pulled
+    partitionPusher = (!pipelinedShuffle && (skipBuffers || isFinalMergeEnabled)
+        && ShufflePartitionPusher.isEnabled(conf))
+        ? new ShufflePartitionPusher(outputContext, conf) : null;
     LOG.info(destNameTrimmed + ": "
         + "numBuffers=" + numBuffers
         + ", sizePerBuffer=" + sizePerBuffer
@@ -344,6 +352,14 @@ public class UnorderedPartitionedKVWriter extends BaseUnorderedPartitionedKVWrit
 
   @Override
   public void write(Object key, Object value) throws IOException {
+    // The partitioner is not needed when writing straight to the single partition
+    write(key, value, skipBuffers ? 0 : partitioner.getPartition(key, value, numPartitions));
+  }
+
+  /**
+   * Write a record to the given partition.
+   */
+  protected void write(Object key, Object value, int partition) throws IOException {
     // Skipping checks for key-value types. IFile takes care of these, but should be removed from
     // there as well.
 
@@ -364,13 +380,12 @@ public class UnorderedPartitionedKVWriter extends BaseUnorderedPartitionedKVWrit
       writer.append(key, value);
       outputContext.notifyProgress();
     } else {
-      int partition = partitioner.getPartition(key, value, numPartitions);
-      write(key, value, partition);
+      writeToBuffer(key, value, partition);
     }
   }
 
   @SuppressWarnings("unchecked")
-  private void write(Object key, Object value, int partition) throws IOException {
+  private void writeToBuffer(Object key, Object value, int partition) throws IOException {
     // Wrap to 4 byte (Int) boundary for metaData
     int mod = currentBuffer.nextPosition % INT_SIZE;
     int metaSkip = mod == 0 ? 0 : (INT_SIZE - mod);
@@ -396,7 +411,7 @@ public class UnorderedPartitionedKVWriter extends BaseUnorderedPartitionedKVWrit
         // Try resetting the buffer to the next one, if this was not the start of a buffer,
         // and begin spilling the current buffer to disk if it has any records.
         setupNextBuffer();
-        write(key, value, partition);
+        writeToBuffer(key, value, partition);
         return;
       }
     }
@@ -414,7 +429,7 @@ public class UnorderedPartitionedKVWriter extends BaseUnorderedPartitionedKVWrit
       } else { // Exceeded length on current buffer.
         // Try writing key+value to a new buffer - will fall back to disk if that fails.
         setupNextBuffer();
-        write(key, value, partition);
+        writeToBuffer(key, value, partition);
         return;
       }
     }
@@ -737,6 +752,10 @@ public class UnorderedPartitionedKVWriter extends BaseUnorderedPartitionedKVWrit
           if (outputRecordsCounter.getValue() > 0) {
             outputBytesWithOverheadCounter.increment(rawLen);
             fileOutputBytesCounter.increment(compLen + indexFileSizeEstimate);
+            if (partitionPusher != null) {
+              partitionPusher.push(rfs, finalOutPath, sr, emptyPartitions,
+                  outputContext.getUniqueIdentifier());
+            }
           }
           eventList.add(generateVMEvent());
           eventList.add(generateDMEvent(false, -1, false, outputContext
@@ -759,6 +778,11 @@ public class UnorderedPartitionedKVWriter extends BaseUnorderedPartitionedKVWrit
             finalSpill();
           }
           updateTezCountersAndNotify();
+          if (partitionPusher != null && finalIndexPath != null) {
+            // Pushed before the consumers learn about the output
+            partitionPusher.push(rfs, finalOutPath, new TezSpillRecord(finalIndexPath, conf),
+                getEmptyPartitions(numRecordsPerPartition), outputContext.getUniqueIdentifier());
+          }
           eventList.add(generateVMEvent());
           eventList.add(generateDMEvent());
         } else {
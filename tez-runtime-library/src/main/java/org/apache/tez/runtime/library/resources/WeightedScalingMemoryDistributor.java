@@ -37,6 +37,7 @@ import org.apache.tez.runtime.common.resources.InitialMemoryRequestContext.Compo
 import org.apache.tez.runtime.library.input.OrderedGroupedKVInput;
 import org.apache.tez.runtime.library.input.OrderedGroupedInputLegacy;
 import org.apache.tez.runtime.library.input.UnorderedKVInput;
+import org.apache.tez.runtime.library.output.HashAggregatedPartitionedKVOutput;
 import org.apache.tez.runtime.library.output.OrderedPartitionedKVOutput;
 import org.apache.tez.runtime.library.output.UnorderedPartitionedKVOutput;
 
@@ -240,7 +241,8 @@ public class WeightedScalingMemoryDistributor implements InitialMemoryAllocator
       requestType = RequestType.SORTED_MERGED_INPUT;
     } else if (className.equals(UnorderedKVInput.class.getName())) {
       requestType = RequestType.UNSORTED_INPUT;
-    } else if (className.equals(UnorderedPartitionedKVOutput.class.getName())) {
+    } else if (className.equals(UnorderedPartitionedKVOutput.class.getName())
+        || className.equals(HashAggregatedPartitionedKVOutput.class.getName())) {
       requestType = RequestType.PARTITIONED_UNSORTED_OUTPUT;
     } else {
       requestType = RequestType.OTHER;
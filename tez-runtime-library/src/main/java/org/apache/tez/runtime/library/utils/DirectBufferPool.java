@@ -0,0 +1,119 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.runtime.library.utils;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.hadoop.classification.InterfaceAudience.Private;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+
+/**
+ * JVM wide pool of direct {@link ByteBuffer}s.
+ *
+ * Direct buffers are expensive to allocate and are only freed once the owning
+ * object is garbage collected. With container reuse, consecutive tasks tend to
+ * ask for buffers of the same sizes (e.g. sort blocks derived from
+ * tez.runtime.io.sort.mb), so released buffers are kept around and handed out
+ * again for requests of the exact same capacity. When a request cannot be served
+ * from the pool, all pooled buffers are dropped before allocating, so that the
+ * pool never holds on to more memory than what was in use at the same time.
+ */
+@Private
+public final class DirectBufferPool {
+
+  private static final Logger LOG = LoggerFactory.getLogger(DirectBufferPool.class);
+
+  private static final DirectBufferPool INSTANCE = new DirectBufferPool();
+
+  private final Map<Integer, Deque<ByteBuffer>> pooled = new HashMap<Integer, Deque<ByteBuffer>>();
+  private long pooledBytes = 0;
+  private long allocatedBytes = 0;
+
+  @VisibleForTesting
+  DirectBufferPool() {
+  }
+
+  public static DirectBufferPool getInstance() {
+    return INSTANCE;
+  }
+
+  /**
+   * Get a cleared direct buffer with the given capacity.
+   * @param capacity capacity of the buffer in bytes
+   * @return a direct buffer, either reused from the pool or freshly allocated
+   */
+  public synchronized ByteBuffer acquire(int capacity) {
+    Preconditions.checkArgument(capacity >= 0, "capacity should be non-negative: " + capacity);
+    Deque<ByteBuffer> sameSize = pooled.get(capacity);
+    if (sameSize != null && !sameSize.isEmpty()) {
+      ByteBuffer buffer = sameSize.pop();
+      pooledBytes -= capacity;
+      buffer.clear();
+      return buffer;
+    }
+    if (pooledBytes > 0) {
+      // Nothing to reuse. Let go of whatever is pooled, the sizes in use have changed.
+      LOG.info("Releasing " + pooledBytes + " pooled direct bytes, requested capacity=" + capacity);
+      pooled.clear();
+      pooledBytes = 0;
+    }
+    allocatedBytes += capacity;
+    return ByteBuffer.allocateDirect(capacity);
+  }
+
+  /**
+   * Return a buffer obtained from {@link #acquire(int)} to the pool. The caller
+   * must not use the buffer (or any slice of it) afterwards.
+   * @param buffer buffer to return, heap buffers are ignored
+   */
+  public synchronized void release(ByteBuffer buffer) {
+    if (buffer == null || !buffer.isDirect()) {
+      return;
+    }
+    Deque<ByteBuffer> sameSize = pooled.get(buffer.capacity());
+    if (sameSize == null) {
+      sameSize = new ArrayDeque<ByteBuffer>();
+      pooled.put(buffer.capacity(), sameSize);
+    }
+    sameSize.push(buffer);
+    pooledBytes += buffer.capacity();
+  }
+
+  /**
+   * @return bytes held by the pool, waiting to be reused
+   */
+  public synchronized long getPooledBytes() {
+    return pooledBytes;
+  }
+
+  /**
+   * @return total bytes allocated by the pool so far (excluding reuse)
+   */
+  public synchronized long getAllocatedBytes() {
+    return allocatedBytes;
+  }
+}
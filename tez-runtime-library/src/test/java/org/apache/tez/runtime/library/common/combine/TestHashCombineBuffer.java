@@ -0,0 +1,191 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.runtime.library.common.combine;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.serializer.SerializationFactory;
+import org.apache.tez.runtime.library.common.sort.impl.IFile;
+import org.apache.tez.runtime.library.common.sort.impl.IFile.Writer;
+import org.apache.tez.runtime.library.common.sort.impl.TezRawKeyValueIterator;
+import org.junit.Test;
+
+public class TestHashCombineBuffer {
+
+  private static final int PARTITIONS = 3;
+
+  /**
+   * Sums the values of each key, writing them either as objects or raw.
+   */
+  private static class SumBuffer extends HashCombineBuffer {
+    private final boolean raw;
+    // partition -> key -> sum of the collected values
+    final Map<Integer, Map<String, Integer>> collected =
+        new HashMap<Integer, Map<String, Integer>>();
+    int collectedRecords = 0;
+    int combineCalls = 0;
+
+    SumBuffer(int bufferBytes, boolean raw) throws IOException {
+      super(new SerializationFactory(new Configuration()), Text.class, IntWritable.class,
+          PARTITIONS, bufferBytes);
+      this.raw = raw;
+    }
+
+    @Override
+    protected void collect(Object key, Object value, int partition) throws IOException {
+      assertTrue(key instanceof Text);
+      assertTrue(value instanceof IntWritable);
+      collectedRecords++;
+      Map<String, Integer> sums = collected.get(partition);
+      if (sums == null) {
+        sums = new HashMap<String, Integer>();
+        collected.put(partition, sums);
+      }
+      Integer sum = sums.get(key.toString());
+      sums.put(key.toString(), (sum == null ? 0 : sum) + ((IntWritable) value).get());
+    }
+
+    @Override
+    protected void combine(TezRawKeyValueIterator kvIter, Writer writer) throws IOException {
+      combineCalls++;
+      Text key = new Text();
+      IntWritable value = new IntWritable();
+      DataInputBuffer lastKey = null;
+      int sum = 0;
+      boolean first = true;
+      while (kvIter.next()) {
+        if (!kvIter.isSameKey() && !first) {
+          write(writer, key, lastKey, sum);
+          sum = 0;
+        }
+        first = false;
+        DataInputBuffer keyIn = kvIter.getKey();
+        lastKey = new DataInputBuffer();
+        lastKey.reset(keyIn.getData(), keyIn.getPosition(),
+            keyIn.getLength() - keyIn.getPosition());
+        key.readFields(kvIter.getKey());
+        value.readFields(kvIter.getValue());
+        sum += value.get();
+      }
+      if (!first) {
+        write(writer, key, lastKey, sum);
+      }
+    }
+
+    private void write(Writer writer, Text key, DataInputBuffer rawKey, int sum)
+        throws IOException {
+      if (raw) {
+        DataOutputBuffer out = new DataOutputBuffer();
+        new IntWritable(sum).write(out);
+        DataInputBuffer rawValue = new DataInputBuffer();
+        rawValue.reset(out.getData(), 0, out.getLength());
+        writer.append(rawKey, rawValue);
+      } else {
+        // Write the sum as two records to cover REPEAT_KEY
+        writer.append(key, new IntWritable(sum - 1));
+        writer.append(IFile.REPEAT_KEY, new IntWritable(1));
+      }
+    }
+  }
+
+  private static Map<Integer, Map<String, Integer>> addRecords(HashCombineBuffer buffer,
+      int records, int keys) throws IOException {
+    Map<Integer, Map<String, Integer>> expected = new HashMap<Integer, Map<String, Integer>>();
+    for (int i = 0; i < records; i++) {
+      String key = "key" + (i % keys);
+      // The same key may go to different partitions
+      int partition = (i / keys) % PARTITIONS;
+      buffer.add(new Text(key), new IntWritable(i), partition);
+      Map<String, Integer> sums = expected.get(partition);
+      if (sums == null) {
+        sums = new HashMap<String, Integer>();
+        expected.put(partition, sums);
+      }
+      Integer sum = sums.get(key);
+      sums.put(key, (sum == null ? 0 : sum) + i);
+    }
+    return expected;
+  }
+
+  @Test(timeout = 5000)
+  public void testCombine() throws IOException {
+    for (boolean raw : new boolean[] { false, true }) {
+      SumBuffer buffer = new SumBuffer(64 * 1024, raw);
+      Map<Integer, Map<String, Integer>> expected = addRecords(buffer, 1000, 10);
+      assertEquals(0, buffer.collectedRecords);
+      buffer.flush();
+      assertEquals(expected, buffer.collected);
+      assertEquals(PARTITIONS, buffer.combineCalls);
+      // Each partition received every key
+      assertEquals(PARTITIONS * 10 * (raw ? 1 : 2), buffer.collectedRecords);
+      assertFalse(buffer.isBypassed());
+
+      // A flush of the empty table does nothing
+      buffer.flush();
+      assertEquals(PARTITIONS, buffer.combineCalls);
+    }
+  }
+
+  @Test(timeout = 5000)
+  public void testFlushWhenFull() throws IOException {
+    SumBuffer buffer = new SumBuffer(16 * 1024, true);
+    Map<Integer, Map<String, Integer>> expected = addRecords(buffer, 5000, 5);
+    assertTrue(buffer.collectedRecords > 0);
+    buffer.flush();
+    assertEquals(expected, buffer.collected);
+    assertTrue(buffer.collectedRecords < 5000);
+    assertFalse(buffer.isBypassed());
+  }
+
+  @Test(timeout = 5000)
+  public void testBypass() throws IOException {
+    SumBuffer buffer = new SumBuffer(1024, true);
+    Map<Integer, Map<String, Integer>> expected = addRecords(buffer, 5000, 5000);
+    buffer.flush();
+    assertTrue(buffer.isBypassed());
+    assertEquals(expected, buffer.collected);
+    assertEquals(5000, buffer.collectedRecords);
+  }
+
+  @Test(timeout = 5000)
+  public void testLargeRecord() throws IOException {
+    SumBuffer buffer = new SumBuffer(64, true);
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < 100; i++) {
+      sb.append('x');
+    }
+    buffer.add(new Text("a"), new IntWritable(1), 0);
+    // Does not fit in the table, so it is collected directly after a flush
+    buffer.add(new Text(sb.toString()), new IntWritable(2), 1);
+    assertEquals(2, buffer.collectedRecords);
+    assertEquals(Integer.valueOf(1), buffer.collected.get(0).get("a"));
+    assertEquals(Integer.valueOf(2), buffer.collected.get(1).get(sb.toString()));
+  }
+}
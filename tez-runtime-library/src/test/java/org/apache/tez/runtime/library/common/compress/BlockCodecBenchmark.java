@@ -0,0 +1,134 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.runtime.library.common.compress;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.DefaultCodec;
+import org.apache.hadoop.util.ReflectionUtils;
+import org.apache.tez.runtime.library.api.TezRuntimeConfiguration;
+import org.apache.tez.runtime.library.common.sort.impl.IFile;
+
+/**
+ * Microbenchmark comparing the Hadoop codec path with {@link BlockCodec}s on
+ * IFile data, covering what a map output goes through: IFile.Writer on the
+ * producer and IFile.Reader.readToMemory on the fetcher.
+ *
+ * Not a unit test, run it with the test classpath:
+ * <pre>
+ *   java -cp ... org.apache.tez.runtime.library.common.compress.BlockCodecBenchmark \
+ *     [records] [iterations]
+ * </pre>
+ */
+public class BlockCodecBenchmark {
+
+  private static final String[] PATHS = { "/index.html", "/api/v1/orders", "/api/v1/users",
+      "/static/app.js", "/static/style.css", "/search" };
+
+  private final Text[] keys;
+  private final Text[] values;
+
+  BlockCodecBenchmark(int records) {
+    Random rnd = new Random(42);
+    keys = new Text[records];
+    values = new Text[records];
+    int user = 0;
+    for (int i = 0; i < records; i++) {
+      // Sorted keys with runs of the same key, as written by the sorters
+      if (rnd.nextInt(3) == 0) {
+        user += 1 + rnd.nextInt(10);
+      }
+      keys[i] = new Text(String.format("user_%010d", user));
+      values[i] = new Text("2020-01-" + (10 + rnd.nextInt(20)) + "T12:" + (10 + rnd.nextInt(50))
+          + ":00Z\tGET " + PATHS[rnd.nextInt(PATHS.length)] + "?id=" + rnd.nextInt(100000)
+          + "\t200\t" + rnd.nextInt(65536) + "\tMozilla/5.0 (X11; Linux x86_64)");
+    }
+  }
+
+  private void run(String name, Configuration conf, CompressionCodec codec, int iterations)
+      throws IOException {
+    DataOutputBuffer out = new DataOutputBuffer();
+    long writeNanos = 0;
+    long readNanos = 0;
+    long rawLength = 0;
+    long compressedLength = 0;
+    // First iteration warms up
+    for (int i = 0; i <= iterations; i++) {
+      out.reset();
+      FSDataOutputStream stream = new FSDataOutputStream(out, null);
+      long start = System.nanoTime();
+      IFile.Writer writer = new IFile.Writer(conf, stream, Text.class, Text.class, codec,
+          null, null, true);
+      for (int r = 0; r < keys.length; r++) {
+        writer.append(keys[r], values[r]);
+      }
+      writer.close();
+      long written = System.nanoTime();
+      rawLength = writer.getRawLength();
+      compressedLength = writer.getCompressedLength();
+
+      byte[] buffer = new byte[(int) rawLength];
+      IFile.Reader.readToMemory(buffer, new ByteArrayInputStream(out.getData(), 0,
+          out.getLength()), (int) compressedLength, codec, false, 0);
+      long read = System.nanoTime();
+      if (i > 0) {
+        writeNanos += written - start;
+        readNanos += read - written;
+      }
+    }
+    double rawMb = rawLength * (double) iterations / (1024 * 1024);
+    System.out.println(String.format("%-24s %12d %12d %7.3f %12.1f %12.1f", name, rawLength,
+        compressedLength, compressedLength / (double) rawLength,
+        rawMb / (writeNanos / 1e9), rawMb / (readNanos / 1e9)));
+  }
+
+  private static Configuration conf(String blockCodec, int blockSize) {
+    Configuration conf = new Configuration();
+    if (blockCodec != null) {
+      conf.setBoolean(TezRuntimeConfiguration.TEZ_RUNTIME_COMPRESS, true);
+      conf.set(TezRuntimeConfiguration.TEZ_RUNTIME_COMPRESS_BLOCK_CODEC, blockCodec);
+    }
+    conf.setInt(TezRuntimeConfiguration.TEZ_RUNTIME_IFILE_BLOCK_SIZE, blockSize);
+    return conf;
+  }
+
+  public static void main(String[] args) throws IOException {
+    int records = (args.length > 0) ? Integer.parseInt(args[0]) : 500000;
+    int iterations = (args.length > 1) ? Integer.parseInt(args[1]) : 5;
+    BlockCodecBenchmark benchmark = new BlockCodecBenchmark(records);
+    CompressionCodec defaultCodec = ReflectionUtils.newInstance(DefaultCodec.class,
+        new Configuration());
+
+    System.out.println(String.format("%-24s %12s %12s %7s %12s %12s", "codec", "raw",
+        "compressed", "ratio", "write MB/s", "read MB/s"));
+    benchmark.run("none", conf(null, 0), null, iterations);
+    benchmark.run("DefaultCodec stream", conf(null, 0), defaultCodec, iterations);
+    benchmark.run("DefaultCodec blocks", conf(null, 64 * 1024), defaultCodec, iterations);
+    benchmark.run("deflate block codec", conf(DeflateBlockCodec.NAME, 0), defaultCodec,
+        iterations);
+    benchmark.run("lz4 block codec", conf(Lz4BlockCodec.NAME, 0), defaultCodec, iterations);
+  }
+}
@@ -0,0 +1,194 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.runtime.library.common.compress;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.tez.runtime.library.api.TezRuntimeConfiguration;
+import org.junit.Test;
+
+public class TestBlockCodecs {
+
+  private static final List<BlockCodec> CODECS = new ArrayList<BlockCodec>();
+
+  static {
+    CODECS.add(new Lz4BlockCodec());
+    CODECS.add(new DeflateBlockCodec());
+    // Only if libhadoop with zstd is available
+    if (new ZstdBlockCodec().isAvailable()) {
+      CODECS.add(new ZstdBlockCodec());
+    }
+  }
+
+  private static volatile boolean unregisteredCodecInitialized = false;
+
+  private final Random rnd = new Random();
+
+  private List<byte[]> testInputs() {
+    List<byte[]> inputs = new ArrayList<byte[]>();
+    inputs.add(new byte[0]);
+    inputs.add(new byte[] { 1 });
+    inputs.add("0123456789abc".getBytes());
+    byte[] random = new byte[100000];
+    rnd.nextBytes(random);
+    inputs.add(random);
+    byte[] zeros = new byte[100000];
+    inputs.add(zeros);
+    // Text like data with repeats at various distances, including beyond 64KB
+    StringBuilder sb = new StringBuilder();
+    while (sb.length() < 200000) {
+      sb.append("key").append(rnd.nextInt(1000)).append("\tvalue").append(rnd.nextInt(10))
+          .append('\n');
+    }
+    inputs.add(sb.toString().getBytes());
+    return inputs;
+  }
+
+  @Test(timeout = 10000)
+  public void testRoundTrip() throws IOException {
+    for (BlockCodec codec : CODECS) {
+      for (byte[] input : testInputs()) {
+        // Use offsets to check the codecs respect them
+        byte[] src = new byte[input.length + 7];
+        System.arraycopy(input, 0, src, 7, input.length);
+        byte[] compressed = new byte[codec.maxCompressedLength(input.length) + 3];
+        int length = codec.compress(src, 7, input.length, compressed, 3);
+        assertTrue(length <= codec.maxCompressedLength(input.length));
+
+        byte[] raw = new byte[input.length + 5];
+        codec.decompress(compressed, 3, length, raw, 5, input.length);
+        assertArrayEquals(codec + " length " + input.length, input,
+            Arrays.copyOfRange(raw, 5, raw.length));
+      }
+    }
+  }
+
+  @Test(timeout = 10000)
+  public void testMalformedInput() throws IOException {
+    byte[] input = new byte[10000];
+    for (int i = 0; i < input.length; i++) {
+      input[i] = (byte) (i % 100);
+    }
+    for (BlockCodec codec : CODECS) {
+      byte[] compressed = new byte[codec.maxCompressedLength(input.length)];
+      int length = codec.compress(input, 0, input.length, compressed, 0);
+      byte[] raw = new byte[input.length + 1];
+      try {
+        codec.decompress(compressed, 0, length / 2, raw, 0, input.length);
+        fail(codec + ": truncated input should have failed");
+      } catch (IOException e) {
+        // expected
+      }
+      try {
+        codec.decompress(compressed, 0, length, raw, 0, input.length - 1);
+        fail(codec + ": short output should have failed");
+      } catch (IOException e) {
+        // expected
+      }
+      try {
+        codec.decompress(compressed, 0, length, raw, 0, input.length + 1);
+        fail(codec + ": long output should have failed");
+      } catch (IOException e) {
+        // expected
+      }
+    }
+  }
+
+  @Test(timeout = 5000)
+  public void testGetCodec() throws IOException {
+    assertTrue(BlockCodecs.getCodec(Lz4BlockCodec.NAME) instanceof Lz4BlockCodec);
+    assertTrue(BlockCodecs.getCodec(DeflateBlockCodec.NAME) instanceof DeflateBlockCodec);
+
+    assertTrue(BlockCodecs.getCodec(ZstdBlockCodec.NAME) instanceof ZstdBlockCodec);
+
+    // Registered in the test resources with ServiceLoader
+    BlockCodec custom = BlockCodecs.getCodec(IdentityBlockCodec.class.getName());
+    assertTrue(custom instanceof IdentityBlockCodec);
+    assertSame(custom, BlockCodecs.getCodec(IdentityBlockCodec.class.getName()));
+
+    Configuration conf = new Configuration(false);
+    assertNull(BlockCodecs.getConfiguredCodec(conf));
+    conf.set(TezRuntimeConfiguration.TEZ_RUNTIME_COMPRESS_BLOCK_CODEC, Lz4BlockCodec.NAME);
+    // Only used when compression is enabled
+    assertNull(BlockCodecs.getConfiguredCodec(conf));
+    conf.setBoolean(TezRuntimeConfiguration.TEZ_RUNTIME_COMPRESS, true);
+    assertSame(BlockCodecs.getCodec(Lz4BlockCodec.NAME), BlockCodecs.getConfiguredCodec(conf));
+    // Codecs which are not available are not used
+    conf.set(TezRuntimeConfiguration.TEZ_RUNTIME_COMPRESS_BLOCK_CODEC, ZstdBlockCodec.NAME);
+    if (new ZstdBlockCodec().isAvailable()) {
+      assertSame(BlockCodecs.getCodec(ZstdBlockCodec.NAME), BlockCodecs.getConfiguredCodec(conf));
+    } else {
+      assertNull(BlockCodecs.getConfiguredCodec(conf));
+    }
+
+    // Names read from the data only resolve to registered codecs, other classes
+    // are not even loaded
+    for (String name : new String[] { "snappy", String.class.getName(),
+        TestBlockCodecs.class.getName() + "$UnregisteredBlockCodec" }) {
+      try {
+        BlockCodecs.getCodec(name);
+        fail("Should not have loaded " + name);
+      } catch (IOException e) {
+        // expected
+      }
+    }
+    assertFalse(unregisteredCodecInitialized);
+  }
+
+  public static class UnregisteredBlockCodec extends IdentityBlockCodec {
+    static {
+      unregisteredCodecInitialized = true;
+    }
+  }
+
+  public static class IdentityBlockCodec extends BlockCodec {
+    @Override
+    public int maxCompressedLength(int rawLength) {
+      return rawLength;
+    }
+
+    @Override
+    public int compress(byte[] src, int srcOffset, int srcLength, byte[] dest, int destOffset) {
+      System.arraycopy(src, srcOffset, dest, destOffset, srcLength);
+      return srcLength;
+    }
+
+    @Override
+    public void decompress(byte[] src, int srcOffset, int srcLength, byte[] dest, int destOffset,
+        int rawLength) throws IOException {
+      if (srcLength != rawLength) {
+        throw new IOException("Length mismatch");
+      }
+      System.arraycopy(src, srcOffset, dest, destOffset, srcLength);
+    }
+  }
+}
@@ -39,6 +39,10 @@ import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map.Entry;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import com.google.common.collect.Lists;
 
@@ -304,4 +308,79 @@ public class TestFetcher {
       Assert.assertTrue(expectedSrcAttempts[count++].toString().compareTo(key) == 0);
     }
   }
+
+  @Test(timeout = 10000)
+  public void testSharedFetchCrossedClaims() throws Exception {
+    Configuration conf = new Configuration();
+    // Waiting for the read timeout would fail the test
+    conf.setInt(TezRuntimeConfiguration.TEZ_RUNTIME_SHUFFLE_READ_TIMEOUT, 60000);
+    final CyclicBarrier firstClaims = new CyclicBarrier(2);
+    final SharedFetchRegistry registry = new SharedFetchRegistry() {
+      private final ThreadLocal<Boolean> claimed = new ThreadLocal<Boolean>();
+
+      @Override
+      public Entry claim(String key) {
+        Entry entry = super.claim(key);
+        if (claimed.get() == null) {
+          claimed.set(true);
+          // Each fetcher claims its first output before it sees the other's
+          try {
+            firstClaims.await();
+          } catch (Exception e) {
+            throw new RuntimeException(e);
+          }
+        }
+        return entry;
+      }
+    };
+    InputAttemptIdentifier output1 = new InputAttemptIdentifier(0, 0, "attempt_1", true);
+    InputAttemptIdentifier output2 = new InputAttemptIdentifier(1, 0, "attempt_2", true);
+    FetcherCallback callback1 = mock(FetcherCallback.class);
+    FetcherCallback callback2 = mock(FetcherCallback.class);
+    Fetcher fetcher1 = createSharedFetcher(conf, callback1, registry, output1, output2);
+    Fetcher fetcher2 = createSharedFetcher(conf, callback2, registry, output2, output1);
+
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      Future<FetchResult> result1 = executor.submit(fetcher1);
+      Future<FetchResult> result2 = executor.submit(fetcher2);
+      Assert.assertFalse(result1.get().getPendingInputs().iterator().hasNext());
+      Assert.assertFalse(result2.get().getPendingInputs().iterator().hasNext());
+    } finally {
+      executor.shutdownNow();
+    }
+    // Each fetcher fetched the output it claimed and took the other one from the registry
+    verify(fetcher1).doHttpFetch();
+    verify(fetcher2).doHttpFetch();
+    verify(callback1).fetchSucceeded(eq(HOST), eq(output2), any(FetchedInput.class), eq(5L),
+        eq(10L), eq(0L));
+    verify(callback2).fetchSucceeded(eq(HOST), eq(output1), any(FetchedInput.class), eq(5L),
+        eq(10L), eq(0L));
+  }
+
+  private Fetcher createSharedFetcher(Configuration conf, FetcherCallback callback,
+      final SharedFetchRegistry registry, InputAttemptIdentifier... srcAttempts) {
+    Fetcher.FetcherBuilder builder = new Fetcher.FetcherBuilder(callback,
+        ShuffleUtils.getHttpConnectionParams(conf), null, ApplicationId.newInstance(0, 1), 1,
+        null, "fetcherTest", conf, false, HOST, PORT, false, true, false);
+    builder.setSharedFetchRegistry(registry);
+    builder.assignWork(HOST, PORT, 0, 1, Arrays.asList(srcAttempts));
+    final Fetcher fetcher = spy(builder.build());
+    // Fetches and publishes the outputs left to the fetcher, which are the ones it claimed
+    doAnswer(new Answer<Fetcher.HostFetchResult>() {
+      @Override
+      public Fetcher.HostFetchResult answer(InvocationOnMock invocation) throws Throwable {
+        for (InputAttemptIdentifier srcAttempt :
+            Lists.newArrayList(fetcher.srcAttemptsRemaining.values())) {
+          registry.publish(srcAttempt.getPathComponent(),
+              new MemoryFetchedInput(10, srcAttempt, mock(FetchedInputCallback.class)), 5);
+          fetcher.srcAttemptsRemaining.remove(srcAttempt.toString());
+        }
+        return new Fetcher.HostFetchResult(new FetchResult(HOST, PORT, 0, 1,
+            fetcher.srcAttemptsRemaining.values()), null, false);
+      }
+    }).when(fetcher).doHttpFetch();
+    doNothing().when(fetcher).shutdown();
+    return fetcher;
+  }
 }
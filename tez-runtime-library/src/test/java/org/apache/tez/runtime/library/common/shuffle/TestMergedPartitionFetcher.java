@@ -0,0 +1,265 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.runtime.library.common.shuffle;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.crypto.SecretKey;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableUtils;
+import org.apache.hadoop.yarn.api.records.ApplicationId;
+import org.apache.tez.common.security.JobTokenSecretManager;
+import org.apache.tez.runtime.library.common.InputAttemptIdentifier;
+import org.apache.tez.runtime.library.common.security.SecureShuffleUtils;
+import org.apache.tez.runtime.library.common.shuffle.FetchedInput.Type;
+import org.apache.tez.runtime.library.common.shuffle.orderedgrouped.ShuffleHeader;
+import org.apache.tez.runtime.library.common.sort.impl.IFile;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.base.Charsets;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class TestMergedPartitionFetcher {
+
+  private static final SecretKey KEY = JobTokenSecretManager.createSecretKey(
+      "secret".getBytes(Charsets.UTF_8));
+  private static final ApplicationId APP_ID = ApplicationId.newInstance(1, 1);
+
+  private HttpServer server;
+  private MergedPartitionHandler handler;
+  private FetchedInputs fetchedInputs;
+  private MergedPartitionFetcher fetcher;
+
+  @Before
+  public void setUp() throws IOException {
+    handler = new MergedPartitionHandler();
+    server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    server.createContext("/", handler);
+    server.start();
+    fetchedInputs = new FetchedInputs();
+    fetcher = new MergedPartitionFetcher(fetchedInputs, fetchedInputs,
+        ShuffleUtils.getHttpConnectionParams(new Configuration()),
+        new JobTokenSecretManager(KEY), APP_ID, 1, "a-b", new String[] {"localhost"},
+        server.getAddress().getPort(), "test");
+  }
+
+  @After
+  public void tearDown() {
+    server.stop(0);
+  }
+
+  @Test(timeout = 10000)
+  public void testIncrementalRounds() throws IOException {
+    byte[] data00 = handler.push(0, "attempt_0", "a");
+    handler.push(0, "attempt_1", "b");
+    byte[] data01 = handler.push(1, "attempt_0", "c");
+
+    InputAttemptIdentifier input0 = new InputAttemptIdentifier(0, 0, "attempt_0");
+    fetcher.addInput(0, input0);
+    fetcher.addInput(1, input0);
+    // Obsolete before its round
+    InputAttemptIdentifier input3 = new InputAttemptIdentifier(3, 0, "attempt_3");
+    fetcher.addInput(0, input3);
+    fetcher.removeInput(input3);
+    handler.push(0, "attempt_3", "d");
+
+    assertEquals(2, fetcher.fetch());
+    assertEquals(Arrays.asList("reduce=0&fromBlock=0", "reduce=1&fromBlock=0"),
+        handler.requests);
+    assertEquals(2, fetchedInputs.fetched.size());
+    assertArrayEquals(data00, fetchedInputs.fetched.get(0));
+    assertArrayEquals(data01, fetchedInputs.fetched.get(1));
+    long fetchedBytes = fetcher.getFetchedBytes();
+    assertTrue(fetchedBytes > 0);
+
+    // The second round only reads the blocks pushed since. The block of
+    // attempt_1 was skipped as the input was not known, it is pulled.
+    byte[] data02 = handler.push(0, "attempt_2", "e");
+    fetcher.addInput(0, new InputAttemptIdentifier(1, 0, "attempt_1"));
+    fetcher.addInput(0, new InputAttemptIdentifier(2, 0, "attempt_2"));
+    handler.requests.clear();
+    assertEquals(1, fetcher.fetch());
+    assertEquals(Collections.singletonList("reduce=0&fromBlock=3"), handler.requests);
+    assertEquals(3, fetchedInputs.fetched.size());
+    assertArrayEquals(data02, fetchedInputs.fetched.get(2));
+    assertTrue(fetcher.getFetchedBytes() > fetchedBytes);
+
+    // Nothing pending, nothing requested
+    handler.requests.clear();
+    assertEquals(0, fetcher.fetch());
+    assertTrue(handler.requests.isEmpty());
+  }
+
+  @Test(timeout = 10000)
+  public void testFailedHost() throws IOException {
+    handler.push(0, "attempt_0", "a");
+    handler.failing = true;
+    fetcher.addInput(0, new InputAttemptIdentifier(0, 0, "attempt_0"));
+    assertEquals(0, fetcher.fetch());
+    assertEquals(1, handler.requests.size());
+    assertTrue(fetchedInputs.fetched.isEmpty());
+
+    // The host which failed is not asked again
+    handler.failing = false;
+    fetcher.addInput(0, new InputAttemptIdentifier(1, 0, "attempt_1"));
+    assertEquals(0, fetcher.fetch());
+    assertEquals(1, handler.requests.size());
+    assertEquals(0, fetcher.getFetchedBytes());
+  }
+
+  /**
+   * Serves the blocks pushed for each partition like the shuffle handler
+   * does for merged partitions.
+   */
+  private static class MergedPartitionHandler implements HttpHandler {
+    private final Map<Integer, List<byte[]>> blocks = new HashMap<Integer, List<byte[]>>();
+    final List<String> requests = Collections.synchronizedList(new ArrayList<String>());
+    volatile boolean failing = false;
+
+    /**
+     * @return the data of the block as read into memory
+     */
+    synchronized byte[] push(int partition, String mapId, String value) throws IOException {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      IFile.Writer writer = new IFile.Writer(new Configuration(),
+          new FSDataOutputStream(out, null), Text.class, Text.class, null, null, null);
+      writer.append(new Text("key"), new Text(value));
+      writer.close();
+      byte[] data = out.toByteArray();
+      DataOutputBuffer block = new DataOutputBuffer();
+      new ShuffleHeader(mapId, data.length, writer.getRawLength(), partition).write(block);
+      block.write(data);
+      List<byte[]> partitionBlocks = blocks.get(partition);
+      if (partitionBlocks == null) {
+        partitionBlocks = new ArrayList<byte[]>();
+        blocks.put(partition, partitionBlocks);
+      }
+      partitionBlocks.add(Arrays.copyOf(block.getData(), block.getLength()));
+
+      byte[] read = new byte[(int) writer.getRawLength()];
+      IFile.Reader.readToMemory(read, new ByteArrayInputStream(data), data.length, null, false,
+          0);
+      return read;
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+      Map<String, String> params = new HashMap<String, String>();
+      for (String param : exchange.getRequestURI().getQuery().split("&")) {
+        String[] kv = param.split("=", 2);
+        params.put(kv[0], kv[1]);
+      }
+      int partition = Integer.parseInt(params.get("reduce"));
+      int fromBlock = Integer.parseInt(params.get(ShuffleUtils.MERGED_FROM_BLOCK_HTTP_PARAM_NAME));
+      requests.add("reduce=" + partition + "&fromBlock=" + fromBlock);
+      if (failing) {
+        exchange.sendResponseHeaders(500, -1);
+        exchange.close();
+        return;
+      }
+      String urlHash = exchange.getRequestHeaders().getFirst(
+          SecureShuffleUtils.HTTP_HEADER_URL_HASH);
+      exchange.getResponseHeaders().add(SecureShuffleUtils.HTTP_HEADER_REPLY_URL_HASH,
+          SecureShuffleUtils.generateHash(urlHash.getBytes(Charsets.UTF_8), KEY));
+      exchange.getResponseHeaders().add(ShuffleHeader.HTTP_HEADER_NAME,
+          ShuffleHeader.DEFAULT_HTTP_HEADER_NAME);
+      exchange.getResponseHeaders().add(ShuffleHeader.HTTP_HEADER_VERSION,
+          ShuffleHeader.DEFAULT_HTTP_HEADER_VERSION);
+      DataOutputBuffer body = new DataOutputBuffer();
+      synchronized (this) {
+        List<byte[]> partitionBlocks = blocks.get(partition);
+        int count = partitionBlocks == null ? 0 : partitionBlocks.size();
+        WritableUtils.writeVInt(body, Math.max(0, count - fromBlock));
+        for (int i = fromBlock; i < count; i++) {
+          body.write(partitionBlocks.get(i));
+        }
+      }
+      exchange.sendResponseHeaders(200, body.getLength());
+      OutputStream out = exchange.getResponseBody();
+      out.write(body.getData(), 0, body.getLength());
+      out.close();
+    }
+  }
+
+  /**
+   * Allocates the inputs in memory and keeps the data of the fetched ones.
+   */
+  private static class FetchedInputs implements FetchedInputAllocator, FetcherCallback,
+      FetchedInputCallback {
+    final List<byte[]> fetched = new ArrayList<byte[]>();
+
+    @Override
+    public FetchedInput allocate(long actualSize, long compresedSize,
+        InputAttemptIdentifier inputAttemptIdentifier) throws IOException {
+      return new MemoryFetchedInput(actualSize, inputAttemptIdentifier, this);
+    }
+
+    @Override
+    public FetchedInput allocateType(Type type, long actualSize, long compresedSize,
+        InputAttemptIdentifier inputAttemptIdentifier) throws IOException {
+      return allocate(actualSize, compresedSize, inputAttemptIdentifier);
+    }
+
+    @Override
+    public void fetchSucceeded(String host, InputAttemptIdentifier srcAttemptIdentifier,
+        FetchedInput fetchedInput, long fetchedBytes, long decompressedLength,
+        long copyDuration) throws IOException {
+      fetched.add(((MemoryFetchedInput) fetchedInput).getBytes());
+    }
+
+    @Override
+    public void fetchFailed(String host, InputAttemptIdentifier srcAttemptIdentifier,
+        boolean connectFailed) {
+    }
+
+    @Override
+    public void fetchComplete(FetchedInput fetchedInput) {
+    }
+
+    @Override
+    public void fetchFailed(FetchedInput fetchedInput) {
+    }
+
+    @Override
+    public void freeResources(FetchedInput fetchedInput) {
+    }
+  }
+}
@@ -0,0 +1,120 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.runtime.library.common.shuffle;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.tez.runtime.library.common.InputAttemptIdentifier;
+import org.junit.Test;
+
+public class TestSharedFetchRegistry {
+
+  private static class CountingCallback implements FetchedInputCallback {
+    int completed = 0;
+    int failed = 0;
+    int freed = 0;
+
+    @Override
+    public void fetchComplete(FetchedInput fetchedInput) {
+      completed++;
+    }
+
+    @Override
+    public void fetchFailed(FetchedInput fetchedInput) {
+      failed++;
+    }
+
+    @Override
+    public void freeResources(FetchedInput fetchedInput) {
+      freed++;
+    }
+  }
+
+  @Test(timeout = 5000)
+  public void testSharing() throws Exception {
+    SharedFetchRegistry registry = new SharedFetchRegistry();
+    CountingCallback ownerCallback = new CountingCallback();
+    InputAttemptIdentifier owner = new InputAttemptIdentifier(0, 0, "attempt_0", true);
+    InputAttemptIdentifier other = new InputAttemptIdentifier(0, 0, "attempt_0", true);
+
+    assertNull(registry.claim("attempt_0"));
+    SharedFetchRegistry.Entry entry = registry.claim("attempt_0");
+    assertNotNull(entry);
+    // Not published yet
+    assertNull(entry.acquire(other));
+
+    MemoryFetchedInput fetched = new MemoryFetchedInput(10, owner, ownerCallback);
+    MemoryFetchedInput ownerView = registry.publish("attempt_0", fetched, 5);
+    assertEquals(1, ownerCallback.completed);
+    assertSame(fetched.getBytes(), ownerView.getBytes());
+
+    MemoryFetchedInput otherView = entry.await(other, 1, TimeUnit.SECONDS);
+    assertNotNull(otherView);
+    assertSame(fetched.getBytes(), otherView.getBytes());
+    assertSame(other, otherView.getInputAttemptIdentifier());
+    assertEquals(5, entry.getCompressedLength());
+
+    ownerView.commit();
+    otherView.commit();
+    ownerView.free();
+    assertEquals(0, ownerCallback.freed);
+    assertEquals(1, registry.size());
+    otherView.free();
+    // The owner's buffer is released with the last view
+    assertEquals(1, ownerCallback.freed);
+    assertEquals(0, registry.size());
+    assertNull(entry.acquire(other));
+
+    // The next claim fetches again
+    assertNull(registry.claim("attempt_0"));
+  }
+
+  @Test(timeout = 5000)
+  public void testAbortedView() throws Exception {
+    SharedFetchRegistry registry = new SharedFetchRegistry();
+    CountingCallback ownerCallback = new CountingCallback();
+    InputAttemptIdentifier owner = new InputAttemptIdentifier(0, 0, "attempt_0", true);
+
+    assertNull(registry.claim("attempt_0"));
+    MemoryFetchedInput ownerView = registry.publish("attempt_0",
+        new MemoryFetchedInput(10, owner, ownerCallback), 5);
+    ownerView.abort();
+    assertEquals(1, ownerCallback.freed);
+    assertEquals(0, registry.size());
+  }
+
+  @Test(timeout = 5000)
+  public void testAbandon() throws Exception {
+    SharedFetchRegistry registry = new SharedFetchRegistry();
+    InputAttemptIdentifier other = new InputAttemptIdentifier(0, 0, "attempt_0", true);
+
+    assertNull(registry.claim("attempt_0"));
+    SharedFetchRegistry.Entry entry = registry.claim("attempt_0");
+    registry.abandon("attempt_0");
+    assertEquals(0, registry.size());
+    // Waiters are released and fetch on their own
+    assertNull(entry.await(other, 10, TimeUnit.SECONDS));
+    assertNull(registry.claim("attempt_0"));
+  }
+}
@@ -0,0 +1,117 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.runtime.library.common.shuffle;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import org.apache.tez.common.counters.TaskCounter;
+import org.apache.tez.common.counters.TezCounter;
+import org.apache.tez.common.counters.TezCounters;
+import org.junit.Test;
+
+public class TestShuffleBufferPool {
+
+  @Test(timeout = 5000)
+  public void testBufferSize() {
+    assertEquals(ShuffleBufferPool.MIN_BUFFER_SIZE, ShuffleBufferPool.getBufferSize(1));
+    assertEquals(ShuffleBufferPool.MIN_BUFFER_SIZE,
+        ShuffleBufferPool.getBufferSize(ShuffleBufferPool.MIN_BUFFER_SIZE));
+    assertEquals(8192, ShuffleBufferPool.getBufferSize(8192));
+    assertEquals(8192 + 1024, ShuffleBufferPool.getBufferSize(8193));
+    for (int size = 1; size < 10 * 1024 * 1024; size = size * 3 + 7) {
+      int bufferSize = ShuffleBufferPool.getBufferSize(size);
+      assertEquals(true, bufferSize >= size);
+      if (size > ShuffleBufferPool.MIN_BUFFER_SIZE) {
+        assertEquals(true, bufferSize <= size * 1.125);
+      }
+    }
+  }
+
+  @Test(timeout = 5000)
+  public void testReuse() {
+    TezCounters counters = new TezCounters();
+    TezCounter hits = counters.findCounter(TaskCounter.SHUFFLE_BUFFER_POOL_HITS);
+    TezCounter misses = counters.findCounter(TaskCounter.SHUFFLE_BUFFER_POOL_MISSES);
+    ShuffleBufferPool pool = new ShuffleBufferPool(1024 * 1024, 100 * 1024, hits, misses);
+
+    byte[] buffer = pool.allocate(10000);
+    assertEquals(ShuffleBufferPool.getBufferSize(10000), buffer.length);
+    pool.release(buffer);
+    assertEquals(buffer.length, pool.getIdleBytes());
+    // Same size class
+    assertSame(buffer, pool.allocate(9900));
+    assertEquals(0, pool.getIdleBytes());
+    assertNotSame(buffer, pool.allocate(10000));
+    assertEquals(1, hits.getValue());
+    assertEquals(2, misses.getValue());
+
+    // Released twice, or not from the pool
+    pool.release(buffer);
+    pool.release(buffer);
+    pool.release(new byte[buffer.length]);
+    assertEquals(buffer.length, pool.getIdleBytes());
+
+    // Not pooled above the max buffer size
+    byte[] large = pool.allocate(2 * 1024 * 1024);
+    assertEquals(2 * 1024 * 1024, large.length);
+    pool.release(large);
+    assertEquals(buffer.length, pool.getIdleBytes());
+  }
+
+  @Test(timeout = 5000)
+  public void testIdleLimitAndTrim() {
+    ShuffleBufferPool pool = new ShuffleBufferPool(1024 * 1024, 64 * 1024, null, null);
+    byte[] small = pool.allocate(8 * 1024);
+    byte[] medium = pool.allocate(16 * 1024);
+    byte[] large = pool.allocate(48 * 1024);
+    pool.release(small);
+    pool.release(medium);
+    // Over the idle limit, dropped
+    pool.release(large);
+    assertEquals(24 * 1024, pool.getIdleBytes());
+
+    // Largest first
+    assertEquals(16 * 1024, pool.trim(1));
+    assertEquals(8 * 1024, pool.getIdleBytes());
+    assertSame(small, pool.allocate(8 * 1024));
+    assertEquals(0, pool.trim(1));
+  }
+
+  @Test(timeout = 5000)
+  public void testAllocationSizeAndClose() {
+    ShuffleBufferPool pool = new ShuffleBufferPool(1024 * 1024, 1024 * 1024, null, null);
+    for (int size : new int[] { 1, 5000, 9000, 1024 * 1024, 1024 * 1024 + 1 }) {
+      assertEquals(pool.getAllocationSize(size), pool.allocate(size).length);
+    }
+    assertEquals(1024 * 1024 + 1, pool.getAllocationSize(1024 * 1024 + 1));
+
+    byte[] idle = pool.allocate(9000);
+    byte[] inUse = pool.allocate(9000);
+    pool.release(idle);
+    assertEquals(idle.length, pool.getIdleBytes());
+    pool.close();
+    assertEquals(0, pool.getIdleBytes());
+    // Neither buffers in use nor buffers allocated after closing are kept
+    pool.release(inUse);
+    pool.release(pool.allocate(9000));
+    assertEquals(0, pool.getIdleBytes());
+  }
+}
@@ -0,0 +1,280 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.runtime.library.common.shuffle;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+
+import javax.crypto.SecretKey;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.IOUtils;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.security.token.Token;
+import org.apache.hadoop.yarn.api.records.ApplicationId;
+import org.apache.tez.common.counters.TaskCounter;
+import org.apache.tez.common.counters.TezCounters;
+import org.apache.tez.common.security.JobTokenIdentifier;
+import org.apache.tez.common.security.JobTokenSecretManager;
+import org.apache.tez.dag.api.TezConfiguration;
+import org.apache.tez.runtime.api.OutputContext;
+import org.apache.tez.runtime.library.api.TezRuntimeConfiguration;
+import org.apache.tez.runtime.library.common.security.SecureShuffleUtils;
+import org.apache.tez.runtime.library.common.sort.impl.TezIndexRecord;
+import org.apache.tez.runtime.library.common.sort.impl.TezSpillRecord;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.base.Charsets;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class TestShufflePartitionPusher {
+
+  private static final String PATH_COMPONENT = "attempt_1_0001_1_00_000000_0_10003";
+  private static final int PARTITION_LENGTH = 100;
+  // Two merger hosts on the same shuffle handler
+  private static final String[] MERGER_HOSTS = {"localhost", "127.0.0.1"};
+
+  private final Path testDir = new Path(System.getProperty("test.build.data", "/tmp"),
+      TestShufflePartitionPusher.class.getSimpleName());
+  private Configuration conf;
+  private FileSystem fs;
+  private HttpServer server;
+  private PushHandler handler;
+  private TezCounters counters;
+  private OutputContext outputContext;
+
+  @Before
+  public void setUp() throws IOException {
+    conf = new Configuration();
+    fs = FileSystem.getLocal(conf).getRaw();
+    fs.delete(testDir, true);
+
+    Token<JobTokenIdentifier> token = new Token<JobTokenIdentifier>(
+        new JobTokenIdentifier(new Text("job_1_0001")), new JobTokenSecretManager(
+            JobTokenSecretManager.createSecretKey("secret".getBytes(Charsets.UTF_8))));
+    handler = new PushHandler(JobTokenSecretManager.createSecretKey(token.getPassword()));
+    server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    server.createContext("/", handler);
+    server.start();
+
+    conf.setStrings(TezRuntimeConfiguration.TEZ_RUNTIME_SHUFFLE_PUSH_MERGER_HOSTS, MERGER_HOSTS);
+    conf.setInt(TezRuntimeConfiguration.TEZ_RUNTIME_SHUFFLE_PUSH_MAX_BLOCK_SIZE,
+        2 * PARTITION_LENGTH);
+
+    DataOutputBuffer tokenBuffer = new DataOutputBuffer();
+    token.write(tokenBuffer);
+    DataOutputBuffer portBuffer = new DataOutputBuffer();
+    portBuffer.writeInt(server.getAddress().getPort());
+    String auxiliaryService = conf.get(TezConfiguration.TEZ_AM_SHUFFLE_AUXILIARY_SERVICE_ID,
+        TezConfiguration.TEZ_AM_SHUFFLE_AUXILIARY_SERVICE_ID_DEFAULT);
+    counters = new TezCounters();
+    outputContext = mock(OutputContext.class);
+    doReturn(counters).when(outputContext).getCounters();
+    doReturn("src").when(outputContext).getTaskVertexName();
+    doReturn("dest").when(outputContext).getDestinationVertexName();
+    doReturn(ApplicationId.newInstance(1, 1)).when(outputContext).getApplicationId();
+    doReturn(1).when(outputContext).getDagIdentifier();
+    doReturn(ByteBuffer.wrap(tokenBuffer.getData(), 0, tokenBuffer.getLength()))
+        .when(outputContext).getServiceConsumerMetaData(auxiliaryService);
+    doReturn(ByteBuffer.wrap(portBuffer.getData(), 0, portBuffer.getLength()))
+        .when(outputContext).getServiceProviderMetaData(auxiliaryService);
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    handler.unblock();
+    server.stop(0);
+    fs.delete(testDir, true);
+  }
+
+  @Test(timeout = 10000)
+  public void testPush() throws IOException {
+    BitSet emptyPartitions = new BitSet();
+    emptyPartitions.set(2);
+    TezSpillRecord spillRecord = new TezSpillRecord(5);
+    Path output = writeOutput(spillRecord, 5, 3);
+
+    ShufflePartitionPusher pusher = new ShufflePartitionPusher(outputContext, conf);
+    // Empty and too large partitions are not pushed
+    assertEquals(3, pusher.push(fs, output, spillRecord, emptyPartitions, PATH_COMPONENT));
+    assertEquals(Collections.<Integer>emptySet(), handler.failed);
+    assertEquals(3, handler.pushed.size());
+    for (int partition : new int[] {0, 1, 4}) {
+      assertArrayEquals(partitionData(partition), handler.pushed.get(partition));
+      assertEquals(MERGER_HOSTS[partition % 2], handler.hosts.get(partition));
+    }
+    assertEquals(3 * PARTITION_LENGTH,
+        counters.findCounter(TaskCounter.SHUFFLE_BYTES_PUSHED).getValue());
+  }
+
+  @Test(timeout = 10000)
+  public void testHostFailure() throws IOException {
+    TezSpillRecord spillRecord = new TezSpillRecord(4);
+    Path output = writeOutput(spillRecord, 4, -1);
+    handler.failing.add(1);
+
+    ShufflePartitionPusher pusher = new ShufflePartitionPusher(outputContext, conf);
+    // Partition 3 is on the host which failed, it is not tried
+    assertEquals(2, pusher.push(fs, output, spillRecord, new BitSet(), PATH_COMPONENT));
+    assertEquals(Collections.singleton(1), handler.failed);
+    assertEquals(new HashSet<Integer>(Arrays.asList(0, 2)), handler.pushed.keySet());
+    assertEquals(2 * PARTITION_LENGTH,
+        counters.findCounter(TaskCounter.SHUFFLE_BYTES_PUSHED).getValue());
+  }
+
+  @Test(timeout = 10000)
+  public void testTimeout() throws IOException {
+    TezSpillRecord spillRecord = new TezSpillRecord(2);
+    Path output = writeOutput(spillRecord, 2, -1);
+    handler.block();
+    conf.setInt(TezRuntimeConfiguration.TEZ_RUNTIME_SHUFFLE_PUSH_TIMEOUT_MS, 500);
+
+    ShufflePartitionPusher pusher = new ShufflePartitionPusher(outputContext, conf);
+    long startTime = System.currentTimeMillis();
+    assertEquals(0, pusher.push(fs, output, spillRecord, new BitSet(), PATH_COMPONENT));
+    assertTrue(System.currentTimeMillis() - startTime < 5000);
+    assertFalse(Thread.currentThread().isInterrupted());
+    assertEquals(0, counters.findCounter(TaskCounter.SHUFFLE_BYTES_PUSHED).getValue());
+  }
+
+  private static byte[] partitionData(int partition) {
+    byte[] data = new byte[PARTITION_LENGTH];
+    for (int i = 0; i < data.length; i++) {
+      data[i] = (byte) (partition + i);
+    }
+    return data;
+  }
+
+  /**
+   * Writes an output with the given number of partitions, the given one being
+   * larger than the max block size.
+   */
+  private Path writeOutput(TezSpillRecord spillRecord, int numPartitions, int largePartition)
+      throws IOException {
+    Path output = new Path(testDir, "file.out");
+    FSDataOutputStream out = fs.create(output);
+    try {
+      for (int partition = 0; partition < numPartitions; partition++) {
+        byte[] data = partition == largePartition
+            ? new byte[3 * PARTITION_LENGTH] : partitionData(partition);
+        spillRecord.putIndex(new TezIndexRecord(out.getPos(), 2 * data.length, data.length),
+            partition);
+        out.write(data);
+      }
+    } finally {
+      out.close();
+    }
+    return output;
+  }
+
+  /**
+   * Accepts the pushed blocks like the shuffle handler does, after checking
+   * the hash of the URL.
+   */
+  private static class PushHandler implements HttpHandler {
+    private final SecretKey key;
+    final Map<Integer, byte[]> pushed = Collections.synchronizedMap(
+        new HashMap<Integer, byte[]>());
+    final Map<Integer, String> hosts = Collections.synchronizedMap(
+        new HashMap<Integer, String>());
+    final Set<Integer> failing = Collections.synchronizedSet(new HashSet<Integer>());
+    final Set<Integer> failed = Collections.synchronizedSet(new HashSet<Integer>());
+    private volatile CountDownLatch blocked = new CountDownLatch(0);
+
+    PushHandler(SecretKey key) {
+      this.key = key;
+    }
+
+    void block() {
+      blocked = new CountDownLatch(1);
+    }
+
+    void unblock() {
+      blocked.countDown();
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+      try {
+        blocked.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      Map<String, String> params = new HashMap<String, String>();
+      for (String param : exchange.getRequestURI().getQuery().split("&")) {
+        String[] kv = param.split("=", 2);
+        params.put(kv[0], kv[1]);
+      }
+      int partition = Integer.parseInt(params.get("reduce"));
+      assertEquals("POST", exchange.getRequestMethod());
+      assertEquals(PATH_COMPONENT, params.get("map"));
+      assertEquals("src-dest", params.get(ShuffleUtils.PUSH_EDGE_HTTP_PARAM_NAME));
+      assertEquals(String.valueOf(2 * PARTITION_LENGTH),
+          params.get(ShuffleUtils.PUSH_RAW_LENGTH_HTTP_PARAM_NAME));
+      String urlHash = exchange.getRequestHeaders().getFirst(
+          SecureShuffleUtils.HTTP_HEADER_URL_HASH);
+      String msg = exchange.getLocalAddress().getPort() + exchange.getRequestURI().getPath()
+          + "?" + exchange.getRequestURI().getQuery();
+      SecureShuffleUtils.verifyReply(urlHash, msg, key);
+
+      InputStream in = exchange.getRequestBody();
+      byte[] data = new byte[Integer.parseInt(
+          exchange.getRequestHeaders().getFirst("Content-Length"))];
+      IOUtils.readFully(in, data, 0, data.length);
+      in.close();
+      if (failing.contains(partition)) {
+        failed.add(partition);
+        exchange.sendResponseHeaders(507, -1);
+        exchange.close();
+        return;
+      }
+      pushed.put(partition, data);
+      hosts.put(partition, exchange.getRequestHeaders().getFirst("Host").split(":")[0]);
+      exchange.getResponseHeaders().add(SecureShuffleUtils.HTTP_HEADER_REPLY_URL_HASH,
+          SecureShuffleUtils.generateHash(urlHash.getBytes(Charsets.UTF_8), key));
+      exchange.sendResponseHeaders(200, -1);
+      exchange.close();
+    }
+  }
+}
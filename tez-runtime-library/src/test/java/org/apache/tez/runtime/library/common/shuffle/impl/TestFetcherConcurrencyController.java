@@ -0,0 +1,157 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.runtime.library.common.shuffle.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class TestFetcherConcurrencyController {
+
+  private static final long INTERVAL = 1000;
+
+  @Test(timeout = 5000)
+  public void testSlowStartAndCongestionAvoidance() {
+    long now = 0;
+    FetcherConcurrencyController controller =
+        new FetcherConcurrencyController("test", 2, 10, INTERVAL, 0.9f, now);
+    assertEquals(2, controller.getTargetFetchers());
+    controller.sampleRunningFetchers(now, 2);
+
+    // Not evaluated before the interval elapsed
+    controller.fetchSucceeded(1000);
+    assertFalse(controller.update(now + INTERVAL / 2, 2, 0));
+
+    // Doubles while all fetchers are busy, the number of running fetchers
+    // given to update applies from then on
+    now += INTERVAL;
+    assertTrue(controller.update(now, 4, 0));
+    assertEquals(4, controller.getTargetFetchers());
+    now += INTERVAL;
+    controller.fetchSucceeded(2000);
+    assertTrue(controller.update(now, 5, 0));
+    assertEquals(8, controller.getTargetFetchers());
+
+    // Not increased if not all the fetchers were used
+    now += INTERVAL;
+    controller.fetchSucceeded(4000);
+    assertFalse(controller.update(now, 8, 0));
+    assertEquals(8, controller.getTargetFetchers());
+
+    // Capped by the max
+    now += INTERVAL;
+    controller.fetchSucceeded(4000);
+    assertTrue(controller.update(now, 10, 0));
+    assertEquals(10, controller.getTargetFetchers());
+
+    // Failures halve the number of fetchers and end slow start
+    now += INTERVAL;
+    controller.fetchSucceeded(4000);
+    controller.fetchFailed();
+    assertTrue(controller.update(now, 5, 0));
+    assertEquals(5, controller.getTargetFetchers());
+    now += INTERVAL;
+    controller.fetchSucceeded(4000);
+    assertTrue(controller.update(now, 6, 0));
+    assertEquals(6, controller.getTargetFetchers());
+
+    // An increase which lowered throughput is undone
+    now += INTERVAL;
+    controller.fetchSucceeded(1000);
+    assertTrue(controller.update(now, 5, 0));
+    assertEquals(5, controller.getTargetFetchers());
+  }
+
+  @Test(timeout = 5000)
+  public void testSlowStartIncreaseUndone() {
+    long now = 0;
+    FetcherConcurrencyController controller =
+        new FetcherConcurrencyController("test", 2, 16, INTERVAL, 0.9f, now);
+    controller.sampleRunningFetchers(now, 2);
+    now += INTERVAL;
+    controller.fetchSucceeded(4000);
+    assertTrue(controller.update(now, 4, 0));
+    now += INTERVAL;
+    controller.fetchSucceeded(4000);
+    assertTrue(controller.update(now, 8, 0));
+    assertEquals(8, controller.getTargetFetchers());
+
+    // Back to the number before the doubling, not one less
+    now += INTERVAL;
+    controller.fetchSucceeded(1000);
+    assertTrue(controller.update(now, 4, 0));
+    assertEquals(4, controller.getTargetFetchers());
+  }
+
+  @Test(timeout = 5000)
+  public void testBusyAveragedOverInterval() {
+    long now = 0;
+    FetcherConcurrencyController controller =
+        new FetcherConcurrencyController("test", 4, 16, INTERVAL, 0.9f, now);
+    // Mostly idle, with all the fetchers running only at the end
+    controller.sampleRunningFetchers(now, 1);
+    controller.sampleRunningFetchers(now + INTERVAL - 10, 4);
+    now += INTERVAL;
+    controller.fetchSucceeded(1000);
+    assertFalse(controller.update(now, 4, 0));
+    assertEquals(4, controller.getTargetFetchers());
+
+    // Busy all along, with short gaps between fetches
+    controller.sampleRunningFetchers(now + INTERVAL / 2, 3);
+    controller.sampleRunningFetchers(now + INTERVAL / 2 + 10, 4);
+    now += INTERVAL;
+    controller.fetchSucceeded(1000);
+    assertTrue(controller.update(now, 3, 0));
+    assertEquals(8, controller.getTargetFetchers());
+  }
+
+  @Test(timeout = 5000)
+  public void testMemoryPressureAndStalls() {
+    long now = 0;
+    FetcherConcurrencyController controller =
+        new FetcherConcurrencyController("test", 1, 16, INTERVAL, 0.9f, now);
+    controller.sampleRunningFetchers(now, 1);
+    for (int i = 0; i < 4; i++) {
+      now += INTERVAL;
+      controller.fetchSucceeded(1000);
+      controller.update(now, controller.getTargetFetchers(), 0);
+      controller.sampleRunningFetchers(now, controller.getTargetFetchers());
+    }
+    assertEquals(16, controller.getTargetFetchers());
+
+    // No completed fetches, kept as is
+    now += INTERVAL;
+    assertFalse(controller.update(now, 16, 0));
+    assertEquals(16, controller.getTargetFetchers());
+
+    now += INTERVAL;
+    controller.fetchSucceeded(1000);
+    assertTrue(controller.update(now, 16, 0.95f));
+    assertEquals(8, controller.getTargetFetchers());
+
+    // Never below the min
+    for (int i = 0; i < 5; i++) {
+      now += INTERVAL;
+      controller.update(now, 1, 1.0f);
+    }
+    assertEquals(1, controller.getTargetFetchers());
+  }
+}
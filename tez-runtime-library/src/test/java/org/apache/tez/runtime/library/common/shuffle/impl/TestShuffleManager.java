@@ -35,8 +35,13 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.ExecutorService;
 
 import com.google.common.annotations.VisibleForTesting;
@@ -64,6 +69,7 @@ import org.apache.tez.runtime.library.common.shuffle.FetchedInputAllocator;
 import org.apache.tez.runtime.library.common.shuffle.Fetcher;
 import org.apache.tez.runtime.library.common.shuffle.FetchResult;
 import org.apache.tez.runtime.library.common.shuffle.InputHost;
+import org.apache.tez.runtime.library.common.shuffle.MergedPartitionFetcher;
 import org.apache.tez.runtime.library.common.shuffle.ShuffleUtils;
 import org.apache.tez.runtime.library.shuffle.impl.ShuffleUserPayloads.DataMovementEventPayloadProto;
 import org.junit.After;
@@ -249,7 +255,94 @@ public class TestShuffleManager {
     return dme;
   }
 
+  /**
+   * With push enabled, the inputs found in the merged partitions are not
+   * pulled, the others are pulled while later inputs are still unknown.
+   */
+  @Test(timeout = 20000)
+  public void testMergedFetch() throws Exception {
+    conf.setBoolean(TezRuntimeConfiguration.TEZ_RUNTIME_SHUFFLE_PUSH_ENABLED, true);
+    conf.setStrings(TezRuntimeConfiguration.TEZ_RUNTIME_SHUFFLE_PUSH_MERGER_HOSTS, "merger");
+    InputContext inputContext = createInputContext();
+    ShuffleManagerForTest shuffleManager = createShuffleManager(inputContext, 4);
+    FakeMergedPartitionFetcher mergedFetcher = shuffleManager.mergedFetcher;
+    mergedFetcher.pushed.addAll(Arrays.asList(0, 2));
+    ShuffleInputEventHandlerImpl handler = new ShuffleInputEventHandlerImpl(
+        inputContext, shuffleManager, mock(FetchedInputAllocator.class), null, false, 0, false);
+    shuffleManager.run();
+
+    handler.handleEvents(Arrays.asList(createDataMovementEvent("host0", 0, 0),
+        createDataMovementEvent("host0", 1, 1)));
+    waitForCompletedInputs(shuffleManager, 2);
+    // Nothing is known about the last two inputs yet
+    assertEquals(Collections.singletonList(1), shuffleManager.getPulledInputs());
+
+    handler.handleEvents(Arrays.asList(createDataMovementEvent("host1", 0, 2),
+        createDataMovementEvent("host1", 1, 3)));
+    waitForCompletedInputs(shuffleManager, 4);
+    assertEquals(Arrays.asList(1, 3), shuffleManager.getPulledInputs());
+    assertEquals(new HashSet<Integer>(Arrays.asList(0, 1, 2, 3)), mergedFetcher.added);
+    assertTrue(mergedFetcher.rounds >= 2);
+  }
+
+  private static void waitForCompletedInputs(ShuffleManagerForTest shuffleManager,
+      int numInputs) throws InterruptedException {
+    while (shuffleManager.getNumOfCompletedInputs() < numInputs) {
+      Thread.sleep(50);
+    }
+  }
+
+  /**
+   * Finds the pushed inputs in the merged partitions.
+   */
+  private static class FakeMergedPartitionFetcher extends MergedPartitionFetcher {
+    private final ShuffleManager shuffleManager;
+    final Set<Integer> pushed = Collections.synchronizedSet(new HashSet<Integer>());
+    final Set<Integer> added = Collections.synchronizedSet(new HashSet<Integer>());
+    private final List<InputAttemptIdentifier> pending = new ArrayList<InputAttemptIdentifier>();
+    volatile int rounds = 0;
+
+    FakeMergedPartitionFetcher(ShuffleManager shuffleManager) {
+      super(shuffleManager, null, null, null, null, 0, "edge", new String[] {"merger"}, PORT,
+          "test");
+      this.shuffleManager = shuffleManager;
+    }
+
+    @Override
+    public synchronized void addInput(int partition, InputAttemptIdentifier input) {
+      pending.add(input);
+      added.add(input.getInputIdentifier());
+    }
+
+    @Override
+    public int fetch() {
+      List<InputAttemptIdentifier> inputs;
+      synchronized (this) {
+        inputs = new ArrayList<InputAttemptIdentifier>(pending);
+        pending.clear();
+      }
+      rounds++;
+      int fetched = 0;
+      for (InputAttemptIdentifier input : inputs) {
+        if (pushed.contains(input.getInputIdentifier())) {
+          try {
+            shuffleManager.fetchSucceeded("merger", input, new TestFetchedInput(input), 0, 0, 0);
+          } catch (IOException e) {
+            throw new RuntimeException(e);
+          }
+          fetched++;
+        }
+      }
+      return fetched;
+    }
+  }
+
   private static class ShuffleManagerForTest extends ShuffleManager {
+    // Set by the constructor of ShuffleManager, not initialized here
+    FakeMergedPartitionFetcher mergedFetcher;
+    private final List<Integer> pulledInputs =
+        Collections.synchronizedList(new ArrayList<Integer>());
+
     public ShuffleManagerForTest(InputContext inputContext, Configuration conf,
         int numInputs, int bufferSize, boolean ifileReadAheadEnabled,
         int ifileReadAheadLength, CompressionCodec codec,
@@ -268,6 +361,7 @@ public class TestShuffleManager {
           @Override
           public FetchResult answer(InvocationOnMock invocation) throws Throwable {
             for(InputAttemptIdentifier input : fetcher.getSrcAttempts()) {
+              pulledInputs.add(input.getInputIdentifier());
               ShuffleManagerForTest.this.fetchSucceeded(
                   fetcher.getHost(), input, new TestFetchedInput(input), 0, 0,
                       0);
@@ -281,10 +375,24 @@ public class TestShuffleManager {
       return fetcher;
     }
 
+    @Override
+    MergedPartitionFetcher createMergedPartitionFetcher(Configuration conf) {
+      mergedFetcher = new FakeMergedPartitionFetcher(this);
+      return mergedFetcher;
+    }
+
     public int getNumOfCompletedInputs() {
       return completedInputSet.cardinality();
     }
 
+    List<Integer> getPulledInputs() {
+      synchronized (pulledInputs) {
+        List<Integer> inputs = new ArrayList<Integer>(pulledInputs);
+        Collections.sort(inputs);
+        return inputs;
+      }
+    }
+
     boolean isFetcherExecutorShutdown() {
       return fetcherExecutor.isShutdown();
     }
@@ -26,6 +26,7 @@ import static org.mockito.Mockito.atLeastOnce;
 import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.spy;
 import static org.mockito.Mockito.verify;
 
@@ -632,6 +633,71 @@ public class TestMergeManager {
     testLocalDiskMergeMultipleTasks(true);
   }
 
+  @Test(timeout = 10000)
+  public void testTailMerge() throws Throwable {
+    Configuration conf = new TezConfiguration(defaultConf);
+    conf.setBoolean(TezRuntimeConfiguration.TEZ_RUNTIME_COMPRESS, false);
+    conf.set(TezRuntimeConfiguration.TEZ_RUNTIME_KEY_CLASS, IntWritable.class.getName());
+    conf.set(TezRuntimeConfiguration.TEZ_RUNTIME_VALUE_CLASS, IntWritable.class.getName());
+    conf.setInt(TezRuntimeConfiguration.TEZ_RUNTIME_IO_SORT_FACTOR, 2);
+
+    Path localDir = new Path(workDir, "local");
+    Path srcDir = new Path(workDir, "srcData");
+    localFs.mkdirs(localDir);
+    localFs.mkdirs(srcDir);
+
+    conf.setStrings(TezRuntimeFrameworkConfigs.LOCAL_DIRS, localDir.toString());
+
+    FileSystem localFs = FileSystem.getLocal(conf);
+    LocalDirAllocator localDirAllocator =
+        new LocalDirAllocator(TezRuntimeFrameworkConfigs.LOCAL_DIRS);
+    InputContext inputContext = createMockInputContext(UUID.randomUUID().toString());
+
+    ExceptionReporter exceptionReporter = mock(ExceptionReporter.class);
+
+    MergeManager mergeManager =
+        new MergeManager(conf, localFs, localDirAllocator, inputContext, null, null, null, null,
+            exceptionReporter, 1 * 1024l * 1024l, null, false, -1);
+    mergeManager.configureAndStart();
+
+    // Two on disk outputs, below the 2 * ioSortFactor - 1 which starts a merge on commit
+    SrcFileInfo file1Info =
+        createFile(conf, localFs, new Path(srcDir, InputAttemptIdentifier.PATH_PREFIX + "src1.out"),
+            2, 3, 6);
+    SrcFileInfo file2Info =
+        createFile(conf, localFs, new Path(srcDir, InputAttemptIdentifier.PATH_PREFIX + "src2.out"),
+            2, 3, 0);
+    getMapOutputForDirectDiskFetch(new InputAttemptIdentifier(0, 0, file1Info.path.getName()),
+        file1Info.path, file1Info.indexedRecords[0], mergeManager).commit();
+    getMapOutputForDirectDiskFetch(new InputAttemptIdentifier(1, 0, file2Info.path.getName()),
+        file2Info.path, file2Info.indexedRecords[0], mergeManager).commit();
+    assertEquals(2, mergeManager.onDiskMapOutputs.size());
+
+    // The tail merge merges them into one
+    mergeManager.startTailMerge();
+    mergeManager.onDiskMerger.waitForMerge();
+    assertEquals(1, mergeManager.onDiskMapOutputs.size());
+
+    // A committed in memory output, below the merge threshold, is above the
+    // memory kept for the final merge and gets written to disk
+    InputAttemptIdentifier iIdentifier3 = new InputAttemptIdentifier(2, 0);
+    byte[] data = generateData(conf, 10, iIdentifier3);
+    MapOutput mapOutput = mergeManager.reserve(iIdentifier3, data.length, data.length, 0);
+    assertEquals(MapOutput.Type.MEMORY, mapOutput.getType());
+    System.arraycopy(data, 0, mapOutput.getMemory(), 0, data.length);
+    mapOutput.commit();
+    assertEquals(1, mergeManager.inMemoryMapOutputs.size());
+
+    mergeManager.startTailMerge();
+    mergeManager.waitForInMemoryMerge();
+    assertEquals(0, mergeManager.inMemoryMapOutputs.size());
+    assertEquals(0, mergeManager.getCommitMemory());
+    assertEquals(2, mergeManager.onDiskMapOutputs.size());
+
+    mergeManager.close(true);
+    verify(exceptionReporter, never()).reportException(any(Throwable.class));
+  }
+
   @Test(timeout = 10000)
   public void testOnDiskMergerFilenames() throws IOException, InterruptedException {
     Configuration conf = new TezConfiguration(defaultConf);
@@ -0,0 +1,102 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.runtime.library.common.shuffle.orderedgrouped;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.WritableUtils;
+import org.apache.tez.runtime.library.common.InputAttemptIdentifier;
+import org.apache.tez.runtime.library.common.shuffle.ShuffleUtils;
+import org.junit.Test;
+
+public class TestShuffleRangeHeader {
+
+  @Test(timeout = 5000)
+  public void testReadWrite() throws IOException {
+    String mapId = InputAttemptIdentifier.PATH_PREFIX + "attempt_1_0001_1_01_000001_0_10001";
+    long[] compressed = new long[] { 100, 0, 1L << 40, 7 };
+    long[] uncompressed = new long[] { 250, 0, 1L << 41, 9 };
+    ShuffleRangeHeader header = new ShuffleRangeHeader(mapId, 5, compressed, uncompressed);
+
+    DataOutputBuffer out = new DataOutputBuffer();
+    header.writeCount(out);
+    header.write(out);
+    assertEquals(out.getLength(), header.writeLength());
+
+    DataInputBuffer in = new DataInputBuffer();
+    in.reset(out.getData(), 0, out.getLength());
+    int count = WritableUtils.readVInt(in);
+    assertTrue(ShuffleRangeHeader.isCompact(count));
+    assertEquals(compressed.length, ShuffleRangeHeader.getPartitionCount(count));
+    ShuffleRangeHeader read = new ShuffleRangeHeader(ShuffleRangeHeader.getPartitionCount(count));
+    read.readFields(in);
+    assertEquals(out.getLength(), in.getPosition());
+
+    assertEquals(mapId, read.getMapId());
+    assertEquals(5, read.getFirstPartition());
+    assertEquals(compressed.length, read.getPartitionCount());
+    for (int i = 0; i < compressed.length; i++) {
+      ShuffleHeader partitionHeader = read.getHeader(i);
+      assertEquals(mapId, partitionHeader.getMapId());
+      assertEquals(5 + i, partitionHeader.getPartition());
+      assertEquals(compressed[i], partitionHeader.getCompressedLength());
+      assertEquals(uncompressed[i], partitionHeader.getUncompressedLength());
+    }
+  }
+
+  @Test(timeout = 5000)
+  public void testSmallerThanPartitionHeaders() throws IOException {
+    String mapId = InputAttemptIdentifier.PATH_PREFIX + "attempt_1_0001_1_01_000001_0_10001";
+    int count = 100;
+    long[] lengths = new long[count];
+    DataOutputBuffer legacy = new DataOutputBuffer();
+    WritableUtils.writeVInt(legacy, count);
+    for (int i = 0; i < count; i++) {
+      lengths[i] = 1000 + i;
+      new ShuffleHeader(mapId, lengths[i], lengths[i], i).write(legacy);
+    }
+    ShuffleRangeHeader header = new ShuffleRangeHeader(mapId, 0, lengths, lengths);
+    assertTrue(header.writeLength() * 5 < legacy.getLength());
+  }
+
+  @Test(timeout = 5000)
+  public void testLegacyCount() {
+    assertFalse(ShuffleRangeHeader.isCompact(1));
+    assertEquals(3, ShuffleRangeHeader.getPartitionCount(3));
+  }
+
+  @Test(timeout = 5000)
+  public void testRequestParameter() {
+    String single = ShuffleUtils.constructBaseURIForShuffleHandler("host", 1, 2, 1,
+        "application_1_1", 1, false, true).toString();
+    assertFalse(single.contains(ShuffleRangeHeader.HTTP_PARAM_NAME));
+    String range = ShuffleUtils.constructBaseURIForShuffleHandler("host", 1, 2, 4,
+        "application_1_1", 1, false, true).toString();
+    assertTrue(range.contains("&reduce=2-5&" + ShuffleRangeHeader.HTTP_PARAM_NAME + "=true&map="));
+    String legacy = ShuffleUtils.constructBaseURIForShuffleHandler("host", 1, 2, 4,
+        "application_1_1", 1, false).toString();
+    assertFalse(legacy.contains(ShuffleRangeHeader.HTTP_PARAM_NAME));
+  }
+}
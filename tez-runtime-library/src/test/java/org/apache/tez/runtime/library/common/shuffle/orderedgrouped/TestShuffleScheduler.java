@@ -45,6 +45,7 @@ import org.apache.hadoop.yarn.api.records.ApplicationId;
 import org.apache.tez.common.TezCommonUtils;
 import org.apache.tez.common.TezExecutors;
 import org.apache.tez.common.TezSharedExecutor;
+import org.apache.tez.common.counters.TaskCounter;
 import org.apache.tez.common.counters.TezCounters;
 import org.apache.tez.common.security.JobTokenIdentifier;
 import org.apache.tez.common.security.JobTokenSecretManager;
@@ -202,6 +203,144 @@ public class TestShuffleScheduler {
     }
   }
 
+  @Test(timeout = 5000)
+  public void testTailMerge() throws Exception {
+    InputContext inputContext = createTezInputContext();
+    Configuration conf = new TezConfiguration();
+    conf.setFloat(TezRuntimeConfiguration.TEZ_RUNTIME_SHUFFLE_MERGE_TAIL_INPUTS_PERCENT, 0.3f);
+    int numInputs = 10;
+    Shuffle shuffle = mock(Shuffle.class);
+    MergeManager mergeManager = mock(MergeManager.class);
+
+    ShuffleSchedulerForTest scheduler =
+        new ShuffleSchedulerForTest(inputContext, conf, numInputs, shuffle, mergeManager,
+            mergeManager,
+            System.currentTimeMillis(), null, false, 0, "srcName");
+    MapHost mapHost = new MapHost("host1", 10000, 0, 1);
+    try {
+      for (int i = 0; i < numInputs; i++) {
+        InputAttemptIdentifier inputAttemptIdentifier =
+            new InputAttemptIdentifier(i, 0, "attempt_");
+        MapOutput mapOutput = MapOutput.createMemoryMapOutput(inputAttemptIdentifier,
+            mock(FetchedInputAllocatorOrderedGrouped.class), 100, false);
+        scheduler.copySucceeded(inputAttemptIdentifier, mapHost, 20, 25, 100, mapOutput, false);
+        // Starts once 3 inputs are left to fetch
+        verify(mergeManager, times(i < 6 ? 0 : 1)).startTailMerge();
+      }
+      assertTrue(scheduler.isDone());
+    } finally {
+      scheduler.close();
+    }
+  }
+
+  @Test(timeout = 20000)
+  public void testConcurrentTailMerge() throws Exception {
+    InputContext inputContext = createTezInputContext();
+    Configuration conf = new TezConfiguration();
+    conf.setFloat(TezRuntimeConfiguration.TEZ_RUNTIME_SHUFFLE_MERGE_TAIL_INPUTS_PERCENT, 0.5f);
+    final int numInputs = 200;
+    Shuffle shuffle = mock(Shuffle.class);
+    MergeManager mergeManager = mock(MergeManager.class);
+
+    final ShuffleSchedulerForTest scheduler =
+        new ShuffleSchedulerForTest(inputContext, conf, numInputs, shuffle, mergeManager,
+            mergeManager,
+            System.currentTimeMillis(), null, false, 0, "srcName");
+    final MapHost mapHost = new MapHost("host1", 10000, 0, 1);
+    int numThreads = 4;
+    ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+    try {
+      Future<?>[] futures = new Future<?>[numThreads];
+      for (int t = 0; t < numThreads; t++) {
+        final int thread = t;
+        futures[t] = executor.submit(new Callable<Void>() {
+          @Override
+          public Void call() throws Exception {
+            for (int i = thread; i < numInputs; i += 4) {
+              InputAttemptIdentifier inputAttemptIdentifier =
+                  new InputAttemptIdentifier(i, 0, "attempt_");
+              MapOutput mapOutput = MapOutput.createMemoryMapOutput(inputAttemptIdentifier,
+                  mock(FetchedInputAllocatorOrderedGrouped.class), 100, false);
+              scheduler.copySucceeded(inputAttemptIdentifier, mapHost, 20, 25, 100, mapOutput,
+                  false);
+            }
+            return null;
+          }
+        });
+      }
+      for (Future<?> future : futures) {
+        future.get();
+      }
+      assertEquals(0, scheduler.remainingMaps.get());
+      verify(mergeManager, times(1)).startTailMerge();
+    } finally {
+      scheduler.close();
+      executor.shutdownNow();
+    }
+  }
+
+  @Test(timeout = 20000)
+  public void testConcurrentCopySucceeded() throws Exception {
+    InputContext inputContext = createTezInputContext();
+    Configuration conf = new TezConfiguration();
+    final int numInputs = 200;
+    Shuffle shuffle = mock(Shuffle.class);
+    MergeManager mergeManager = mock(MergeManager.class);
+
+    final ShuffleSchedulerForTest scheduler =
+        new ShuffleSchedulerForTest(inputContext, conf, numInputs, shuffle, mergeManager,
+            mergeManager,
+            System.currentTimeMillis(), null, false, 0, "srcName");
+
+    final InputAttemptIdentifier[] identifiers = new InputAttemptIdentifier[numInputs];
+    for (int i = 0; i < numInputs; i++) {
+      CompositeInputAttemptIdentifier inputAttemptIdentifier =
+          new CompositeInputAttemptIdentifier(i, 0, "attempt_", 1);
+      scheduler.addKnownMapOutput("host" + (i % 4), 10000, 1, inputAttemptIdentifier);
+      identifiers[i] = inputAttemptIdentifier;
+    }
+    assertEquals(4, scheduler.mapLocations.size());
+    final MapHost mapHost = scheduler.mapLocations.values().iterator().next();
+
+    // Every input is fetched by several threads, only one copy must be committed
+    int numThreads = 4;
+    ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+    try {
+      Future<?>[] futures = new Future<?>[numThreads];
+      for (int t = 0; t < numThreads; t++) {
+        futures[t] = executor.submit(new Callable<Void>() {
+          @Override
+          public Void call() throws Exception {
+            for (int i = 0; i < numInputs; i++) {
+              MapOutput mapOutput = MapOutput.createMemoryMapOutput(identifiers[i],
+                  mock(FetchedInputAllocatorOrderedGrouped.class), 100, false);
+              scheduler.copySucceeded(identifiers[i], mapHost, 20, 25, 100, mapOutput, false);
+            }
+            return null;
+          }
+        });
+      }
+      for (Future<?> future : futures) {
+        future.get();
+      }
+      assertEquals(0, scheduler.remainingMaps.get());
+      assertTrue(scheduler.isDone());
+      assertEquals(numInputs, inputContext.getCounters()
+          .findCounter(TaskCounter.NUM_SHUFFLED_INPUTS).getValue());
+      assertEquals(numInputs * 20, inputContext.getCounters()
+          .findCounter(TaskCounter.SHUFFLE_BYTES).getValue());
+      for (int i = 0; i < numInputs; i++) {
+        assertTrue("Input " + i + " not finished", scheduler.isInputFinished(i));
+      }
+      assertTrue(scheduler.isInputFinished(0, numInputs - 1));
+      assertTrue(scheduler.failureCounts.isEmpty());
+      assertTrue(scheduler.pipelinedShuffleInfoEventsMap.isEmpty());
+    } finally {
+      scheduler.close();
+      executor.shutdownNow();
+    }
+  }
+
   @Test(timeout = 60000)
   /**
    * Scenario
@@ -48,7 +48,10 @@ import org.apache.hadoop.io.compress.CompressionCodec;
 import org.apache.hadoop.io.compress.CompressionCodecFactory;
 import org.apache.hadoop.io.serializer.Deserializer;
 import org.apache.hadoop.io.serializer.SerializationFactory;
+import org.apache.tez.runtime.library.api.TezRuntimeConfiguration;
 import org.apache.tez.runtime.library.common.InputAttemptIdentifier;
+import org.apache.tez.runtime.library.common.compress.DeflateBlockCodec;
+import org.apache.tez.runtime.library.common.compress.Lz4BlockCodec;
 import org.apache.tez.runtime.library.common.shuffle.orderedgrouped.InMemoryReader;
 import org.apache.tez.runtime.library.common.shuffle.orderedgrouped.InMemoryWriter;
 import org.apache.tez.runtime.library.common.sort.impl.IFile.Reader;
@@ -552,6 +555,238 @@ public class TestIFile {
     readAndVerifyData(writer.getRawLength(), writer.getCompressedLength(), data, codec);
   }
 
+  @Test(timeout = 5000)
+  //block compressed IFile, with blocks smaller than a record
+  public void testBlockCompressedIFile() throws IOException {
+    Configuration conf = new Configuration(defaultConf);
+    conf.setInt(TezRuntimeConfiguration.TEZ_RUNTIME_IFILE_BLOCK_SIZE, 16);
+    List<KVPair> data = KVDataGen.generateTestData(true, 10);
+    DataOutputBuffer firstKey = new DataOutputBuffer();
+    data.get(0).getKey().write(firstKey);
+
+    for (boolean rle : new boolean[] { false, true }) {
+      for (boolean repeatKeys : new boolean[] { false, true }) {
+        FSDataOutputStream out = localFs.create(outputPath);
+        Writer writer = new IFile.Writer(conf, out,
+            Text.class, IntWritable.class, codec, null, null, rle);
+        writeTestFile(writer, repeatKeys, data);
+        out.close();
+
+        byte[] file = new byte[(int) writer.getCompressedLength()];
+        FSDataInputStream in = localFs.open(outputPath);
+        in.readFully(file);
+        in.close();
+        assertEquals(IFile.HEADER_FLAG_BLOCK_COMPRESSED, file[3]);
+
+        // Index at the end of the file matches what was written
+        List<IFileBlockFormat.BlockIndexEntry> blocks = IFileBlockFormat.readBlockIndex(
+            Arrays.copyOfRange(file, IFile.HEADER.length, file.length - 4),
+            file.length - IFile.HEADER.length - 4);
+        assertTrue("Expected multiple blocks, got " + blocks.size(), blocks.size() > 1);
+        assertArrayEquals(Arrays.copyOf(firstKey.getData(), firstKey.getLength()),
+            blocks.get(0).getFirstKey());
+        long records = 0;
+        long rawLength = IFile.HEADER.length;
+        for (IFileBlockFormat.BlockIndexEntry block : blocks) {
+          assertTrue(block.getFirstKey().length > 0);
+          records += block.getRecords();
+          rawLength += block.getRawLength();
+        }
+        assertEquals(data.size(), records);
+        assertEquals(writer.getRawLength(), rawLength);
+
+        readAndVerifyData(writer.getRawLength(), writer.getCompressedLength(), data, codec);
+      }
+    }
+  }
+
+  @Test(timeout = 5000)
+  public void testBlockCompressedIFileCorruption() throws IOException {
+    Configuration conf = new Configuration(defaultConf);
+    conf.setInt(TezRuntimeConfiguration.TEZ_RUNTIME_IFILE_BLOCK_SIZE, 16);
+    List<KVPair> data = KVDataGen.generateTestData(true, 10);
+    FSDataOutputStream out = localFs.create(outputPath);
+    Writer writer = new IFile.Writer(conf, out,
+        Text.class, IntWritable.class, codec, null, null, true);
+    writeTestFile(writer, true, data);
+    out.close();
+
+    byte[] file = new byte[(int) writer.getCompressedLength()];
+    FSDataInputStream in = localFs.open(outputPath);
+    in.readFully(file);
+    in.close();
+    // Flip a bit in the compressed bytes of the first block
+    file[IFile.HEADER.length + 8] ^= 1;
+    byte[] buffer = new byte[(int) writer.getRawLength()];
+    try {
+      IFile.Reader.readToMemory(buffer, new ByteArrayInputStream(file), file.length,
+          codec, false, 0);
+      fail("Corrupt block should have been detected");
+    } catch (IOException e) {
+      // expected
+    }
+  }
+
+  @Test(timeout = 5000)
+  public void testBlockCodecIFile() throws IOException {
+    List<KVPair> data = KVDataGen.generateTestData(true, 10);
+    for (String blockCodec : new String[] { Lz4BlockCodec.NAME, DeflateBlockCodec.NAME }) {
+      // The block codec is used with or without a hadoop codec
+      for (CompressionCodec compressionCodec : new CompressionCodec[] { codec, null }) {
+        Configuration conf = new Configuration(defaultConf);
+        conf.setBoolean(TezRuntimeConfiguration.TEZ_RUNTIME_COMPRESS, true);
+        conf.set(TezRuntimeConfiguration.TEZ_RUNTIME_COMPRESS_BLOCK_CODEC, blockCodec);
+        conf.setInt(TezRuntimeConfiguration.TEZ_RUNTIME_IFILE_BLOCK_SIZE, 16);
+        FSDataOutputStream out = localFs.create(outputPath);
+        Writer writer = new IFile.Writer(conf, out,
+            Text.class, IntWritable.class, compressionCodec, null, null, true);
+        writeTestFile(writer, true, data);
+        out.close();
+
+        // The codec is recorded in the file, readers do not need to know it
+        FSDataInputStream in = localFs.open(outputPath);
+        assertEquals(IFile.HEADER_FLAG_BLOCK_CODEC, IFile.Reader.readHeaderFlag(in));
+        in.seek(0);
+        byte[] bytes = new byte[(int) writer.getRawLength()];
+        IFile.Reader.readToMemory(bytes, in, (int) writer.getCompressedLength(), null, false, -1);
+        in.close();
+        readUsingInMemoryReader(bytes, data);
+        readUsingIFileReader(data, null);
+      }
+    }
+  }
+
+  @Test(timeout = 5000)
+  public void testBlockCodecNeedsCompression() throws IOException {
+    List<KVPair> data = KVDataGen.generateTestData(true, 10);
+    Configuration conf = new Configuration(defaultConf);
+    conf.setBoolean(TezRuntimeConfiguration.TEZ_RUNTIME_COMPRESS, false);
+    conf.set(TezRuntimeConfiguration.TEZ_RUNTIME_COMPRESS_BLOCK_CODEC, Lz4BlockCodec.NAME);
+    FSDataOutputStream out = localFs.create(outputPath);
+    Writer writer = new IFile.Writer(conf, out, Text.class, IntWritable.class, null, null, null,
+        true);
+    writeTestFile(writer, true, data);
+    out.close();
+
+    FSDataInputStream in = localFs.open(outputPath);
+    assertEquals(IFile.HEADER_FLAG_PLAIN, IFile.Reader.readHeaderFlag(in));
+    in.close();
+    readUsingIFileReader(data, null);
+  }
+
+  @Test(timeout = 5000)
+  public void testKeyPrefixCompression() throws IOException {
+    // Sorted composite keys sharing long prefixes, with repeats
+    List<KVPair> data = new ArrayList<KVPair>();
+    for (int i = 0; i < 100; i++) {
+      Text key = new Text(String.format("tenant_%02d|2020-01-%02d|%06d", i / 40, i / 10, i));
+      for (int j = 0; j <= i % 3; j++) {
+        data.add(new KVPair(key, new IntWritable(i * j)));
+      }
+    }
+    // Keys which share less than a few bytes are written as is
+    data.add(new KVPair(new Text("u"), new IntWritable(1)));
+    data.add(new KVPair(new Text("v"), new IntWritable(2)));
+
+    Configuration conf = new Configuration(defaultConf);
+    conf.setBoolean(TezRuntimeConfiguration.TEZ_RUNTIME_IFILE_KEY_PREFIX_COMPRESSION, true);
+    for (CompressionCodec compressionCodec : new CompressionCodec[] { null, codec }) {
+      for (int blockSize : new int[] { 0, 64 }) {
+        conf.setInt(TezRuntimeConfiguration.TEZ_RUNTIME_IFILE_BLOCK_SIZE, blockSize);
+        for (boolean rle : new boolean[] { false, true }) {
+          for (boolean repeatKeys : new boolean[] { false, true }) {
+            Writer plainWriter = writeTestFile(rle, repeatKeys, data, null);
+
+            FSDataOutputStream out = localFs.create(outputPath);
+            Writer writer = new IFile.Writer(conf, out,
+                Text.class, IntWritable.class, compressionCodec, null, null, rle);
+            writeTestFile(writer, repeatKeys, data);
+            out.close();
+            assertTrue(writer.getRawLength() < plainWriter.getRawLength());
+            readAndVerifyData(writer.getRawLength(), writer.getCompressedLength(), data,
+                compressionCodec);
+            if (compressionCodec == null) {
+              Reader mappedReader = MappedIFileReader.tryOpen(localFs, outputPath, 0,
+                  writer.getCompressedLength(), null, null);
+              assertNotNull(mappedReader);
+              verifyData(mappedReader, data);
+              mappedReader.close();
+            }
+
+            out = localFs.create(outputPath);
+            writer = new IFile.Writer(conf, out,
+                Text.class, IntWritable.class, compressionCodec, null, null, rle);
+            writeTestFileUsingDataBuffer(writer, repeatKeys, data);
+            out.close();
+            readAndVerifyData(writer.getRawLength(), writer.getCompressedLength(), data,
+                compressionCodec);
+          }
+        }
+      }
+    }
+  }
+
+  @Test(timeout = 5000)
+  public void testTruncatedFrontCodedKey() throws IOException {
+    List<KVPair> data = new ArrayList<KVPair>();
+    data.add(new KVPair(new Text("tenant_00|2020-01-01|000000"), new IntWritable(1)));
+    data.add(new KVPair(new Text("tenant_00|2020-01-01|999999|suffix_of_the_last_key"),
+        new IntWritable(2)));
+    Configuration conf = new Configuration(defaultConf);
+    conf.setBoolean(TezRuntimeConfiguration.TEZ_RUNTIME_IFILE_KEY_PREFIX_COMPRESSION, true);
+    conf.setInt(TezRuntimeConfiguration.TEZ_RUNTIME_IFILE_BLOCK_SIZE, 0);
+    FSDataOutputStream out = localFs.create(outputPath);
+    Writer writer = new IFile.Writer(conf, out, Text.class, IntWritable.class, null, null, null,
+        false);
+    writeTestFile(writer, false, data);
+    out.close();
+
+    FSDataInputStream in = localFs.open(outputPath);
+    byte[] bytes = new byte[(int) writer.getRawLength()];
+    IFile.Reader.readToMemory(bytes, in, (int) writer.getCompressedLength(), null, false, -1);
+    in.close();
+    // Cut the data in the middle of the suffix of the last key, before its
+    // value and the EOF markers
+    InMemoryReader inMemReader = new InMemoryReader(null,
+        new InputAttemptIdentifier(0, 0), bytes, 0, bytes.length - 2 - 4 - 8);
+    DataInputBuffer key = new DataInputBuffer();
+    DataInputBuffer value = new DataInputBuffer();
+    assertTrue(inMemReader.nextRawKey(key));
+    inMemReader.nextRawValue(value);
+    try {
+      inMemReader.nextRawKey(key);
+      fail("Key longer than the remaining data should not be read");
+    } catch (IOException e) {
+      assertTrue(e.getMessage().contains("exceeds the remaining"));
+    }
+  }
+
+  @Test(timeout = 5000)
+  public void testMappedReaderAfterClose() throws IOException {
+    List<KVPair> data = KVDataGen.generateTestData(true, 0);
+    Writer writer = writeTestFile(false, false, data, null);
+    Reader reader = MappedIFileReader.tryOpen(localFs, outputPath, 0,
+        writer.getCompressedLength(), null, null);
+    assertNotNull(reader);
+    DataInputBuffer key = new DataInputBuffer();
+    DataInputBuffer value = new DataInputBuffer();
+    assertTrue(reader.nextRawKey(key));
+    reader.close();
+    // The segment is unmapped, reads fail instead of touching the memory
+    try {
+      reader.nextRawValue(value);
+      fail("Reading a value after close should have failed");
+    } catch (IOException e) {
+      assertTrue(e.getMessage().contains("already closed"));
+    }
+    try {
+      reader.nextRawKey(key);
+      fail("Reading a key after close should have failed");
+    } catch (IOException e) {
+      assertTrue(e.getMessage().contains("already closed"));
+    }
+  }
+
   @Test(timeout = 20000)
   public void testReadToDisk() throws IOException {
     // verify sending a stream of zeroes generates an error
@@ -22,9 +22,11 @@ import com.google.common.collect.Maps;
 import org.apache.commons.lang.RandomStringUtils;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.CommonConfigurationKeys;
+import org.apache.hadoop.fs.FSDataInputStream;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.LocalDirAllocator;
 import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.BytesWritable;
 import org.apache.hadoop.io.DataInputBuffer;
 import org.apache.hadoop.io.DataOutputBuffer;
 import org.apache.hadoop.io.Text;
@@ -47,10 +49,14 @@ import org.apache.tez.runtime.library.api.TezRuntimeConfiguration;
 import org.apache.tez.runtime.library.api.TezRuntimeConfiguration.ReportPartitionStats;
 import org.apache.tez.runtime.library.common.Constants;
 import org.apache.tez.runtime.library.common.combine.Combiner;
+import org.apache.tez.runtime.library.common.combine.HashCombineBuffer;
+import org.apache.tez.runtime.library.common.comparator.TezBytesComparator;
+import org.apache.tez.runtime.library.common.serializer.TezBytesWritableSerialization;
 import org.apache.tez.runtime.library.common.shuffle.ShuffleUtils;
 import org.apache.tez.runtime.library.conf.OrderedPartitionedKVOutputConfig.SorterImpl;
 import org.apache.tez.runtime.library.partitioner.HashPartitioner;
 import org.apache.tez.runtime.library.testutils.RandomTextGenerator;
+import org.apache.tez.runtime.library.utils.DirectBufferPool;
 import org.junit.After;
 import org.junit.AfterClass;
 import org.junit.Assert;
@@ -61,6 +67,7 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
 import java.util.TreeMap;
 import java.util.UUID;
 
@@ -154,6 +161,109 @@ public class TestPipelinedSorter {
     verifyOutputPermissions(outputContext.getUniqueIdentifier());
   }
 
+  @Test
+  public void basicTestWithDirectBuffers() throws IOException {
+    conf.setBoolean(TezRuntimeConfiguration.TEZ_RUNTIME_PIPELINED_SORTER_USE_DIRECT_BUFFERS, true);
+    conf.setInt(TezRuntimeConfiguration.TEZ_RUNTIME_IO_SORT_MB, 5);
+    //# partition, # of keys, size per key, InitialMem, blockSize
+    basicTest(1, 100000, 100, (10 * 1024l * 1024l), 3 << 20);
+    assertTrue("Sort buffers should be returned to the pool",
+        DirectBufferPool.getInstance().getPooledBytes() > 0);
+  }
+
+  @Test
+  public void testMultipleSpillsWithDirectBuffers() throws IOException {
+    conf.setBoolean(TezRuntimeConfiguration.TEZ_RUNTIME_PIPELINED_SORTER_USE_DIRECT_BUFFERS, true);
+    this.numOutputs = 5;
+    this.initialAvailableMem = 5 * 1024 * 1024;
+    conf.setInt(TezRuntimeConfiguration
+        .TEZ_RUNTIME_PIPELINED_SORTER_MIN_BLOCK_SIZE_IN_MB, 3);
+    PipelinedSorter sorter = new PipelinedSorter(this.outputContext, conf, numOutputs,
+        initialAvailableMem);
+    assertTrue(sorter.buffers.get(0).isDirect());
+
+    writeSimilarKeys(sorter, 25000, 1000, true);
+    assertTrue("Expecting needsRLE to be true", sorter.needsRLE());
+    verifyCounters(sorter, outputContext);
+    verifyOutputPermissions(outputContext.getUniqueIdentifier());
+  }
+
+  @Test
+  public void testDirectBuffersReleasedOnFailedFlush() throws IOException {
+    conf.setBoolean(TezRuntimeConfiguration.TEZ_RUNTIME_PIPELINED_SORTER_USE_DIRECT_BUFFERS, true);
+    conf.set(TezRuntimeConfiguration.TEZ_RUNTIME_COMBINER_CLASS, FailingCombiner.class.getName());
+    this.numOutputs = 1;
+    this.initialAvailableMem = 5 * 1024 * 1024;
+    conf.setInt(TezRuntimeConfiguration
+        .TEZ_RUNTIME_PIPELINED_SORTER_MIN_BLOCK_SIZE_IN_MB, 3);
+    PipelinedSorter sorter = new PipelinedSorter(this.outputContext, conf, numOutputs,
+        initialAvailableMem);
+    long pooledBytes = DirectBufferPool.getInstance().getPooledBytes();
+    sorter.write(new Text("key"), new Text("value"));
+    try {
+      sorter.flush();
+      Assert.fail("Combiner failure should fail the flush");
+    } catch (IOException e) {
+      // expected
+    }
+    assertTrue(sorter.buffers.isEmpty());
+    assertTrue("Sort buffers should be returned to the pool",
+        DirectBufferPool.getInstance().getPooledBytes() > pooledBytes);
+  }
+
+  // for testDirectBuffersReleasedOnFailedFlush
+  public static class FailingCombiner implements Combiner {
+    public FailingCombiner(TaskContext ctx) {
+      // do nothing
+    }
+
+    @Override
+    public void combine(TezRawKeyValueIterator rawIter, IFile.Writer writer) throws IOException {
+      throw new IOException("Failing combiner");
+    }
+  }
+
+  @Test
+  public void testWithRadixSort() throws IOException {
+    conf.set(TezRuntimeConfiguration.TEZ_RUNTIME_KEY_CLASS, BytesWritable.class.getName());
+    conf.set(TezRuntimeConfiguration.TEZ_RUNTIME_VALUE_CLASS, BytesWritable.class.getName());
+    conf.set(TezRuntimeConfiguration.TEZ_RUNTIME_KEY_COMPARATOR_CLASS,
+        TezBytesComparator.class.getName());
+    conf.set(CommonConfigurationKeys.IO_SERIALIZATIONS_KEY,
+        TezBytesWritableSerialization.class.getName() + ","
+            + conf.get(CommonConfigurationKeys.IO_SERIALIZATIONS_KEY));
+    conf.setBoolean(TezRuntimeConfiguration.TEZ_RUNTIME_PIPELINED_SORTER_RADIX_SORT, true);
+    this.numOutputs = 5;
+    this.initialAvailableMem = 5 * 1024 * 1024;
+    conf.setInt(TezRuntimeConfiguration
+        .TEZ_RUNTIME_PIPELINED_SORTER_MIN_BLOCK_SIZE_IN_MB, 3);
+    PipelinedSorter sorter = new PipelinedSorter(this.outputContext, conf, numOutputs,
+        initialAvailableMem);
+
+    // mix short keys with keys sharing a prefix longer than the radix prefix, so that
+    // both the radix pass and the comparator fallback are exercised
+    Random random = new Random();
+    int numKeys = 200000;
+    for (int i = 0; i < numKeys; i++) {
+      String key = (i % 3 == 0) ? RandomStringUtils.randomAlphanumeric(random.nextInt(6)) :
+          "common_prefix_" + RandomStringUtils.randomAlphanumeric(random.nextInt(20));
+      sorter.write(new BytesWritable(key.getBytes()),
+          new BytesWritable(RandomStringUtils.randomAlphanumeric(10).getBytes()));
+    }
+    closeSorter(sorter);
+    verifyCounters(sorter, outputContext);
+    assertTrue(sorter.getNumSpills() > 1);
+    Assert.assertEquals(numKeys, verifySortedPartitions(sorter, new TezBytesComparator()));
+  }
+
+  @Test
+  public void testRadixSortIgnoredForOtherComparators() throws IOException {
+    conf.setBoolean(TezRuntimeConfiguration.TEZ_RUNTIME_PIPELINED_SORTER_RADIX_SORT, true);
+    conf.setInt(TezRuntimeConfiguration.TEZ_RUNTIME_IO_SORT_MB, 5);
+    //# partition, # of keys, size per key, InitialMem, blockSize
+    basicTest(1, 10000, 100, (10 * 1024l * 1024l), 3 << 20);
+  }
+
   @Test
   public void testWithoutPartitionStats() throws IOException {
     conf.setBoolean(TezRuntimeConfiguration.TEZ_RUNTIME_REPORT_PARTITION_STATS, false);
@@ -446,6 +556,28 @@ public class TestPipelinedSorter {
     verifyOutputPermissions(outputContext.getUniqueIdentifier());
   }
 
+  @Test
+  public void testParallelFinalMerge() throws IOException {
+    conf.setBoolean(TezRuntimeConfiguration.TEZ_RUNTIME_ENABLE_FINAL_MERGE_IN_OUTPUT, true);
+    conf.setInt(TezRuntimeConfiguration.TEZ_RUNTIME_PIPELINED_SORTER_FINAL_MERGE_THREADS, 3);
+    // force intermediate merge passes in all the merging threads
+    conf.setInt(TezRuntimeConfiguration.TEZ_RUNTIME_IO_SORT_FACTOR, 2);
+    this.numOutputs = 7;
+    this.initialAvailableMem = 5 * 1024 * 1024;
+    conf.setInt(TezRuntimeConfiguration
+        .TEZ_RUNTIME_PIPELINED_SORTER_MIN_BLOCK_SIZE_IN_MB, 3);
+    PipelinedSorter sorter = new PipelinedSorter(this.outputContext, conf, numOutputs,
+        initialAvailableMem);
+
+    writeData(sorter, 25000, 500);
+    assertTrue(sorter.getNumSpills() > 2);
+    verifyCounters(sorter, outputContext);
+    verifyOutputPermissions(outputContext.getUniqueIdentifier());
+    Assert.assertEquals(25000, verifySortedPartitions(sorter, WritableComparator.get(Text.class)));
+    Assert.assertEquals(localFs.getFileStatus(sorter.finalOutputFile).getLen(),
+        outputContext.getCounters().findCounter(TaskCounter.OUTPUT_BYTES_PHYSICAL).getValue());
+  }
+
   @Test
   public void testWithCombiner() throws IOException {
     conf.setBoolean(TezRuntimeConfiguration.TEZ_RUNTIME_ENABLE_FINAL_MERGE_IN_OUTPUT, true);
@@ -469,6 +601,31 @@ public class TestPipelinedSorter {
     verifyOutputPermissions(outputContext.getUniqueIdentifier());
   }
 
+  @Test
+  public void testHashCombineMemory() throws IOException {
+    conf.set(TezRuntimeConfiguration.TEZ_RUNTIME_COMBINER_CLASS, DummyCombiner.class.getName());
+    conf.setInt(TezRuntimeConfiguration.TEZ_RUNTIME_IO_SORT_MB, 5);
+    conf.setInt(TezRuntimeConfiguration.TEZ_RUNTIME_COMBINE_HASH_BUFFER_BYTES, 1 << 20);
+    conf.setInt(TezRuntimeConfiguration.TEZ_RUNTIME_PIPELINED_SORTER_MIN_BLOCK_SIZE_IN_MB, 1);
+    this.numOutputs = 5;
+    long hashMemory = HashCombineBuffer.getMemoryRequirement(1 << 20);
+    assertTrue(hashMemory > (1 << 20));
+    long requested = ExternalSorter.getInitialMemoryRequirement(conf, 100 << 20);
+    Assert.assertEquals((5 << 20) + hashMemory, requested);
+
+    // The hash table is left out of the sort buffer
+    PipelinedSorter sorter = new PipelinedSorter(this.outputContext, conf, numOutputs, requested);
+    Assert.assertEquals(1 << 20, sorter.hashCombineBufferBytes);
+    Assert.assertEquals(5, sorter.availableMemoryMb);
+    writeData(sorter, 100, 20);
+    verifyCounters(sorter, outputContext);
+
+    // Not enough memory assigned for the hash table
+    sorter = new PipelinedSorter(this.outputContext, conf, numOutputs, hashMemory + 1000);
+    Assert.assertEquals(0, sorter.hashCombineBufferBytes);
+    Assert.assertEquals(1, sorter.availableMemoryMb);
+  }
+
   // for testWithCombiner
   public static class DummyCombiner implements Combiner {
     public DummyCombiner(TaskContext ctx) {
@@ -880,6 +1037,45 @@ public class TestPipelinedSorter {
     }
   }
 
+  /**
+   * Check that every partition of the final output is sorted.
+   * @return total number of records read
+   */
+  private int verifySortedPartitions(PipelinedSorter sorter, WritableComparator comparator)
+      throws IOException {
+    FileSystem fs = sorter.finalOutputFile.getFileSystem(conf);
+    TezSpillRecord spillRecord = new TezSpillRecord(sorter.finalIndexFile, conf);
+    int numRecords = 0;
+    for (int i = 0; i < spillRecord.size(); i++) {
+      TezIndexRecord indexRecord = spillRecord.getIndex(i);
+      if (!indexRecord.hasData()) {
+        continue;
+      }
+      FSDataInputStream in = fs.open(sorter.finalOutputFile);
+      in.seek(indexRecord.getStartOffset());
+      IFile.Reader reader = new IFile.Reader(in, indexRecord.getPartLength(), null, null, null,
+          false, -1, 4096);
+      DataInputBuffer keyIn = new DataInputBuffer();
+      DataInputBuffer valIn = new DataInputBuffer();
+      DataOutputBuffer prevKey = new DataOutputBuffer();
+      boolean first = true;
+      while (reader.nextRawKey(keyIn)) {
+        reader.nextRawValue(valIn);
+        if (!first) {
+          assertTrue("Partition " + i + " is not sorted", comparator.compare(
+              prevKey.getData(), 0, prevKey.getLength(),
+              keyIn.getData(), keyIn.getPosition(), keyIn.getLength() - keyIn.getPosition()) <= 0);
+        }
+        prevKey.reset();
+        prevKey.write(keyIn.getData(), keyIn.getPosition(), keyIn.getLength() - keyIn.getPosition());
+        first = false;
+        numRecords++;
+      }
+      reader.close();
+    }
+    return numRecords;
+  }
+
   private void closeSorter(ExternalSorter sorter) throws IOException {
     if (sorter != null) {
       sorter.flush();
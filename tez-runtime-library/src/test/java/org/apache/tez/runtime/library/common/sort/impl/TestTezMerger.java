@@ -52,11 +52,14 @@ import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.mock;
 
@@ -557,6 +560,91 @@ public class TestTezMerger {
     verify(records, expectedResult);
   }
 
+  @Test(timeout = 20000)
+  public void testMergeWithMappedReads() throws Exception {
+    Configuration conf = new Configuration(defaultConf);
+    conf.setBoolean(TezRuntimeConfiguration.TEZ_RUNTIME_IFILE_MMAP_READS, true);
+
+    List<Path> pathList = createIFiles(10, 100);
+    Path first = pathList.get(0);
+    MappedIFileReader reader = MappedIFileReader.tryOpen(localFs, first, 0,
+        localFs.getFileStatus(first).getLen(), null, null);
+    assertNotNull(reader);
+    reader.close();
+
+    //merge factor smaller than the number of files, so that intermediate files are read as well
+    TezMerger merger = new TezMerger();
+    TezRawKeyValueIterator records = merger.merge(conf, localFs, IntWritable.class,
+        LongWritable.class, null, false, 0, 1024, pathList.toArray(new Path[pathList.size()]),
+        true, 3, new Path(workDir, "tmp_" + System.nanoTime()), comparator, new Reporter(), null,
+        null, null, new Progress());
+    verifyData(records);
+    verificationDataSet.clear();
+  }
+
+  @Test(timeout = 20000)
+  public void testMergeWithPlanner() throws Exception {
+    Configuration conf = new Configuration(defaultConf);
+    conf.setBoolean(TezRuntimeConfiguration.TEZ_RUNTIME_MERGE_PLANNER_ENABLED, true);
+
+    //12 files with a factor of 4 would need intermediate passes, the planner merges them at once
+    List<Path> pathList = createIFiles(12, 100);
+    TezMerger merger = new TezMerger();
+    TezRawKeyValueIterator records = merger.merge(conf, localFs, IntWritable.class,
+        LongWritable.class, null, false, 0, 1024, pathList.toArray(new Path[pathList.size()]),
+        true, 4, new Path(workDir, "tmp_" + System.nanoTime()), comparator, new Reporter(), null,
+        null, null, new Progress());
+    TezMergePlanner.MergePlan plan = TezMerger.getMergePlan(records);
+    assertNotNull(plan);
+    assertEquals(12, plan.getFactor());
+    assertEquals(0, plan.getIntermediatePasses());
+    verifyData(records);
+    verificationDataSet.clear();
+  }
+
+  @Test(timeout = 5000)
+  public void testMergePlanner() throws Exception {
+    Configuration conf = new Configuration(defaultConf);
+    conf.setInt(TezRuntimeConfiguration.TEZ_RUNTIME_MERGE_PLANNER_SEGMENTS_PER_DISK, 12);
+    conf.setInt(TezRuntimeConfiguration.TEZ_RUNTIME_MERGE_PLANNER_SEGMENT_BYTES, 1024);
+    TezMergePlanner planner = new TezMergePlanner(conf, 1024 * 1024 * 1024);
+    assertEquals(12, planner.getMaxFactor());
+
+    //skewed segment sizes, sorted like TezMerger sorts them
+    long[] sizes = new long[40];
+    for (int i = 0; i < sizes.length; i++) {
+      sizes[i] = (i % 5 == 0) ? 1000000 + i : 1000 + i;
+    }
+    Arrays.sort(sizes);
+
+    TezMergePlanner.MergePlan fixed = TezMergePlanner.simulate(sizes, 0, 10);
+    TezMergePlanner.MergePlan plan = planner.plan(sizes, 0, 10);
+    assertTrue(plan.getFactor() >= 10 && plan.getFactor() <= 12);
+    assertTrue(plan.getIntermediateBytes() <= fixed.getIntermediateBytes());
+
+    //the simulation matches the bytes TezMerger accounts for in intermediate merges
+    List<TezMerger.Segment> segments = Lists.newArrayList();
+    for (long size : sizes) {
+      segments.add(new TezMerger.DiskSegment(localFs, new Path(workDir, "unused"), 0, size, null,
+          false, 0, 1024, true));
+    }
+    for (int factor = 2; factor <= 12; factor++) {
+      assertEquals(TezMerger.MergeQueue.computeBytesInMerges(segments, factor, 0, false),
+          TezMergePlanner.simulate(sizes, 0, factor).getIntermediateBytes());
+    }
+
+    //fits at once
+    assertEquals(0, planner.plan(Arrays.copyOf(sizes, 11), 0, 10).getIntermediatePasses());
+    assertEquals(11, planner.plan(Arrays.copyOf(sizes, 11), 0, 10).getFactor());
+
+    //memory limits the factor to 2 readers, the configured factor is never lowered
+    planner = new TezMergePlanner(conf, 2 * 1024 * 10);
+    assertEquals(2, planner.getMaxFactor());
+    TezMergePlanner.MergePlan limited = planner.plan(sizes, 0, 10);
+    assertEquals(10, limited.getFactor());
+    assertEquals(fixed.getIntermediateBytes(), limited.getIntermediateBytes());
+  }
+
   /**
    * Merge the data sets
    *
@@ -0,0 +1,160 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.runtime.library.output;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.doReturn;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.tez.common.counters.TaskCounter;
+import org.apache.tez.dag.api.TezConfiguration;
+import org.apache.tez.runtime.api.Event;
+import org.apache.tez.runtime.api.OutputContext;
+import org.apache.tez.runtime.api.TaskContext;
+import org.apache.tez.runtime.api.events.CompositeDataMovementEvent;
+import org.apache.tez.runtime.library.api.KeyValueWriter;
+import org.apache.tez.runtime.library.api.TezRuntimeConfiguration;
+import org.apache.tez.runtime.library.common.combine.Combiner;
+import org.apache.tez.runtime.library.common.sort.impl.IFile;
+import org.apache.tez.runtime.library.common.sort.impl.TezRawKeyValueIterator;
+import org.apache.tez.runtime.library.common.writers.HashAggregatingPartitionedKVWriter;
+import org.apache.tez.runtime.library.partitioner.HashPartitioner;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestHashAggregatedPartitionedKVOutput {
+
+  private static final Path WORK_DIR = new Path(System.getProperty("test.build.data", "/tmp"),
+      TestHashAggregatedPartitionedKVOutput.class.getName());
+
+  private FileSystem localFs;
+
+  @Before
+  public void setup() throws IOException {
+    localFs = FileSystem.getLocal(new Configuration());
+    localFs.mkdirs(WORK_DIR);
+  }
+
+  @After
+  public void cleanup() throws IOException {
+    localFs.delete(WORK_DIR, true);
+  }
+
+  public static class SumCombiner implements Combiner {
+    public SumCombiner(TaskContext ctx) {
+    }
+
+    @Override
+    public void combine(TezRawKeyValueIterator rawIter, IFile.Writer writer)
+        throws InterruptedException, IOException {
+      Text key = new Text();
+      IntWritable value = new IntWritable();
+      int sum = 0;
+      boolean hasKey = false;
+      while (rawIter.next()) {
+        if (hasKey && !rawIter.isSameKey()) {
+          writer.append(key, new IntWritable(sum));
+          sum = 0;
+        }
+        key.readFields(rawIter.getKey());
+        value.readFields(rawIter.getValue());
+        sum += value.get();
+        hasKey = true;
+      }
+      if (hasKey) {
+        writer.append(key, new IntWritable(sum));
+      }
+    }
+  }
+
+  private Configuration createConf(boolean combine) {
+    Configuration conf = new Configuration();
+    conf.set(TezRuntimeConfiguration.TEZ_RUNTIME_KEY_CLASS, Text.class.getName());
+    conf.set(TezRuntimeConfiguration.TEZ_RUNTIME_VALUE_CLASS, IntWritable.class.getName());
+    conf.set(TezRuntimeConfiguration.TEZ_RUNTIME_PARTITIONER_CLASS,
+        HashPartitioner.class.getName());
+    conf.setInt(TezRuntimeConfiguration.TEZ_RUNTIME_UNORDERED_OUTPUT_BUFFER_SIZE_MB, 4);
+    conf.setInt(TezRuntimeConfiguration.TEZ_RUNTIME_HASH_AGGREGATION_BUFFER_SIZE_MB, 2);
+    if (combine) {
+      conf.set(TezRuntimeConfiguration.TEZ_RUNTIME_COMBINER_CLASS, SumCombiner.class.getName());
+    }
+    return conf;
+  }
+
+  private long writeRecords(Configuration conf, int numPartitions, int records, int keys)
+      throws Exception {
+    OutputContext outputContext = OutputTestHelpers.createOutputContext(conf, WORK_DIR);
+    DataOutputBuffer serviceProviderMetaData = new DataOutputBuffer();
+    serviceProviderMetaData.writeInt(80);
+    doReturn(ByteBuffer.wrap(serviceProviderMetaData.getData())).when(outputContext)
+        .getServiceProviderMetaData(TezConfiguration.TEZ_AM_SHUFFLE_AUXILIARY_SERVICE_ID_DEFAULT);
+    HashAggregatedPartitionedKVOutput output =
+        new HashAggregatedPartitionedKVOutput(outputContext, numPartitions);
+    output.initialize();
+    output.start();
+    KeyValueWriter writer = (KeyValueWriter) output.getWriter();
+    for (int i = 0; i < records; i++) {
+      writer.write(new Text("key" + (i % keys)), new IntWritable(1));
+    }
+    List<Event> events = output.close();
+    int dataMovementEvents = 0;
+    for (Event event : events) {
+      if (event instanceof CompositeDataMovementEvent) {
+        dataMovementEvents++;
+      }
+    }
+    assertEquals(1, dataMovementEvents);
+    return outputContext.getCounters().findCounter(TaskCounter.OUTPUT_RECORDS).getValue();
+  }
+
+  @Test(timeout = 10000)
+  public void testAggregation() throws Exception {
+    // Every key is written once after being aggregated
+    assertEquals(10, writeRecords(createConf(true), 5, 10000, 10));
+  }
+
+  @Test(timeout = 10000)
+  public void testSinglePartition() throws Exception {
+    assertEquals(10, writeRecords(createConf(true), 1, 10000, 10));
+  }
+
+  @Test(timeout = 10000)
+  public void testWithoutCombiner() throws Exception {
+    assertEquals(10000, writeRecords(createConf(false), 5, 10000, 10));
+  }
+
+  @Test(timeout = 5000)
+  public void testMemoryRequirement() {
+    long maxMemory = 200 << 20;
+    assertEquals(6L << 20, HashAggregatingPartitionedKVWriter.getInitialMemoryRequirement(
+        createConf(true), maxMemory));
+    assertEquals(4L << 20, HashAggregatingPartitionedKVWriter.getInitialMemoryRequirement(
+        createConf(false), maxMemory));
+  }
+}